@@ -41,7 +41,11 @@ import org.stagemonitor.configuration.source.SimpleSource;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.ServiceLoader;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
 public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
@@ -51,6 +55,8 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
     protected ElasticApmTracer tracer;
     private long receivedPayloads = 0;
     private long receivedBytes = 0;
+    // each distinct client address corresponds to a TCP connection (and a handshake)
+    private final Set<SocketAddress> receivedConnections = Collections.synchronizedSet(new HashSet<SocketAddress>());
 
     public AbstractMockApmServerBenchmark(boolean apmEnabled) {
         this.apmEnabled = apmEnabled;
@@ -63,6 +69,7 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
             .setHandler(new BlockingHandler(exchange -> {
                 if (!exchange.getRequestPath().equals("/healthcheck")) {
                     receivedPayloads++;
+                    receivedConnections.add(exchange.getSourceAddress());
                     exchange.startBlocking();
                     try (InputStream is = exchange.getInputStream()) {
                         for (int n = 0; -1 != n; n = is.read(buffer)) {
@@ -71,24 +78,27 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
                     }
                     System.getProperties().put("server.received.bytes", receivedBytes);
                     System.getProperties().put("server.received.payloads", receivedPayloads);
+                    System.getProperties().put("server.received.connections", (long) receivedConnections.size());
                     exchange.setStatusCode(200).endExchange();
                 }
             })).build();
 
         server.start();
         int port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+        SimpleSource configSource = new SimpleSource()
+            .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+            .add(CoreConfiguration.INSTRUMENT, Boolean.toString(apmEnabled))
+            .add("active", Boolean.toString(apmEnabled))
+            .add("api_request_size", "10mb")
+            .add("capture_headers", "false")
+//             .add("profiling_inferred_spans", "true")
+//             .add("profiling_interval", "10s")
+            .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
+            .add("server_url", "http://localhost:" + port);
+        configure(configSource);
         tracer = new ElasticApmTracerBuilder()
             .configurationRegistry(ConfigurationRegistry.builder()
-                .addConfigSource(new SimpleSource()
-                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
-                    .add(CoreConfiguration.INSTRUMENT, Boolean.toString(apmEnabled))
-                    .add("active", Boolean.toString(apmEnabled))
-                    .add("api_request_size", "10mb")
-                    .add("capture_headers", "false")
-//                     .add("profiling_inferred_spans", "true")
-//                     .add("profiling_interval", "10s")
-                    .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
-                    .add("server_url", "http://localhost:" + port))
+                .addConfigSource(configSource)
                 .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
                 .build())
             .buildAndStart();
@@ -96,6 +106,14 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
 
     }
 
+    /**
+     * Allows subclasses to add or override configuration options
+     *
+     * @param configSource the configuration source the tracer is created with
+     */
+    protected void configure(SimpleSource configSource) {
+    }
+
     @TearDown
     public void tearDown() throws ExecutionException, InterruptedException {
         Thread.sleep(1000);
@@ -105,5 +123,6 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
         System.out.println("Dropped: " + tracer.getReporter().getDropped());
         System.out.println("receivedPayloads = " + receivedPayloads);
         System.out.println("receivedBytes = " + receivedBytes);
+        System.out.println("receivedConnections = " + receivedConnections.size());
     }
 }
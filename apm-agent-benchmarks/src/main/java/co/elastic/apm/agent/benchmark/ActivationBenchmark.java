@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of activating and deactivating spans and of looking up the currently active span or transaction.
+ * <p>
+ * When running via {@code benchmarks.jar}, use the {@code -t} option to set the number of threads,
+ * {@link #main(String[])} runs the benchmarks with 1, 8 and 64 threads.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ActivationBenchmark extends AbstractBenchmark {
+
+    private ElasticApmTracer tracer;
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 8, 64}) {
+            new Runner(new OptionsBuilder()
+                .include(ActivationBenchmark.class.getSimpleName())
+                .threads(threads)
+                .measurementTime(TimeValue.seconds(1))
+                .warmupTime(TimeValue.seconds(1))
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    /**
+     * Each thread has its own transaction, which is active during the whole benchmark, and a child span
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private ElasticApmTracer tracer;
+        private Transaction transaction;
+        private Span span;
+
+        @Setup
+        public void setUp(ActivationBenchmark benchmark) {
+            tracer = benchmark.tracer;
+            transaction = tracer.startRootTransaction(null);
+            span = transaction.createSpan();
+            tracer.activate(transaction);
+        }
+
+        @TearDown
+        public void tearDown() {
+            tracer.deactivate(transaction);
+            span.end();
+            transaction.end();
+        }
+    }
+
+    @Benchmark
+    public void activateDeactivate(ThreadState state) {
+        tracer.activate(state.span);
+        tracer.deactivate(state.span);
+    }
+
+    @Benchmark
+    public Transaction currentTransaction(ThreadState state) {
+        return tracer.currentTransaction();
+    }
+
+    @Benchmark
+    public AbstractSpan<?> getActive(ThreadState state) {
+        return tracer.getActive();
+    }
+}
@@ -0,0 +1,392 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.bci.ElasticApmAgent;
+import co.elastic.apm.agent.benchmark.sql.BlackholeConnection;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.TracerConfiguration;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ServiceLoader;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-call overhead of the advices of individual plugins, depending on the {@link #mode}:
+ * <ul>
+ *     <li>{@link AgentMode#NONE}: no instrumentation, the baseline</li>
+ *     <li>{@link AgentMode#INACTIVE}: instrumented but not recording, the advices return early</li>
+ *     <li>{@link AgentMode#UNSAMPLED}: instrumented and recording, but no transaction is sampled</li>
+ *     <li>{@link AgentMode#SAMPLED}: instrumented and recording, every transaction is sampled</li>
+ * </ul>
+ * <p>
+ * The JDBC, HTTP client and executor advices only create spans or propagate the context within a transaction.
+ * In the {@code UNSAMPLED} and {@code SAMPLED} modes, these benchmarks call the instrumented method within a transaction
+ * that is started by the benchmark.
+ * {@link #transaction()} measures the cost of that transaction alone so that it can be subtracted.
+ * </p>
+ * <p>
+ * The HTTP client benchmark executes requests through a regular Apache HttpClient whose connection manager and request
+ * executor are stubbed out, so that no I/O is involved and the {@code NONE} baseline only contains the client's own
+ * request processing.
+ * </p>
+ * <p>
+ * The transactions are serialized by the reporter but not sent.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AdviceOverheadBenchmark {
+
+    public enum AgentMode {
+        NONE,
+        INACTIVE,
+        UNSAMPLED,
+        SAMPLED
+    }
+
+    @Param({"NONE", "INACTIVE", "UNSAMPLED", "SAMPLED"})
+    public AgentMode mode;
+
+    private ElasticApmTracer tracer;
+    private HttpServlet servlet;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private Connection connection;
+    private CloseableHttpClient httpClient;
+    private Executor executor;
+    private Runnable task;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(AdviceOverheadBenchmark.class.getSimpleName())
+            .measurementTime(TimeValue.seconds(1))
+            .warmupTime(TimeValue.seconds(1))
+            .addProfiler(GCProfiler.class)
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add(CoreConfiguration.INSTRUMENT, Boolean.toString(mode != AgentMode.NONE))
+                    .add(TracerConfiguration.RECORDING, Boolean.toString(mode != AgentMode.INACTIVE))
+                    .add(CoreConfiguration.SAMPLE_RATE, mode == AgentMode.SAMPLED ? "1" : "0")
+                    .add("log_level", "OFF")
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+        if (mode != AgentMode.NONE) {
+            ElasticApmAgent.initInstrumentation(tracer, ByteBuddyAgent.install());
+        }
+
+        servlet = new BenchmarkServlet();
+        request = new MockHttpServletRequest("GET", "/app/test");
+        response = new MockHttpServletResponse();
+        BlackholeConnection.INSTANCE.init(blackhole);
+        connection = BlackholeConnection.INSTANCE;
+        httpClient = HttpClients.custom()
+            .setConnectionManager(new StubConnectionManager())
+            .setRequestExecutor(new StubRequestExecutor())
+            .build();
+        executor = new InlineExecutor();
+        task = new Runnable() {
+            @Override
+            public void run() {
+                blackhole.consume(this);
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        httpClient.close();
+        ElasticApmAgent.reset();
+        tracer.stop();
+    }
+
+    @Benchmark
+    public int servlet() throws Exception {
+        servlet.service(request, response);
+        return response.getStatus();
+    }
+
+    @Benchmark
+    public boolean jdbc() throws SQLException {
+        Transaction transaction = startTransaction();
+        try {
+            PreparedStatement statement = connection.prepareStatement("SELECT * FROM ELASTIC_APM WHERE foo=?");
+            statement.setInt(1, 1);
+            return statement.execute();
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Benchmark
+    public int httpclient() throws IOException {
+        Transaction transaction = startTransaction();
+        try {
+            CloseableHttpResponse response = httpClient.execute(new HttpGet("http://localhost:8080/app/test"));
+            try {
+                return response.getStatusLine().getStatusCode();
+            } finally {
+                response.close();
+            }
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Benchmark
+    public Runnable executor() {
+        Transaction transaction = startTransaction();
+        try {
+            executor.execute(task);
+            return task;
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Benchmark
+    @Nullable
+    public Transaction transaction() {
+        Transaction transaction = startTransaction();
+        endTransaction(transaction);
+        return transaction;
+    }
+
+    @Nullable
+    private Transaction startTransaction() {
+        if (mode == AgentMode.NONE) {
+            return null;
+        }
+        Transaction transaction = tracer.startRootTransaction(null);
+        if (transaction != null) {
+            transaction.activate();
+        }
+        return transaction;
+    }
+
+    private void endTransaction(@Nullable Transaction transaction) {
+        if (transaction != null) {
+            transaction.deactivate().end();
+        }
+    }
+
+    private static class BenchmarkServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+            resp.setStatus(200);
+        }
+    }
+
+    /**
+     * Instrumented by the executor instrumentation of the {@code apm-java-concurrent-plugin}.
+     */
+    private static class InlineExecutor implements Executor {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+
+    /**
+     * Responds without touching the connection.
+     */
+    private static class StubRequestExecutor extends HttpRequestExecutor {
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context) {
+            return new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        }
+    }
+
+    /**
+     * Always leases the same, already open, connection so that no route has to be established.
+     */
+    private static class StubConnectionManager implements HttpClientConnectionManager {
+
+        private final HttpClientConnection connection = new StubConnection();
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit) {
+                    return connection;
+                }
+
+                @Override
+                public boolean cancel() {
+                    return false;
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+        }
+
+        @Override
+        public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) {
+        }
+
+        @Override
+        public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) {
+        }
+
+        @Override
+        public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) {
+        }
+
+        @Override
+        public void closeIdleConnections(long idletime, TimeUnit tunit) {
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private static class StubConnection implements HttpClientConnection {
+
+        @Override
+        public boolean isResponseAvailable(int timeout) {
+            return true;
+        }
+
+        @Override
+        public void sendRequestHeader(HttpRequest request) {
+        }
+
+        @Override
+        public void sendRequestEntity(HttpEntityEnclosingRequest request) {
+        }
+
+        @Override
+        public HttpResponse receiveResponseHeader() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void receiveResponseEntity(HttpResponse response) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public boolean isStale() {
+            return false;
+        }
+
+        @Override
+        public void setSocketTimeout(int timeout) {
+        }
+
+        @Override
+        public int getSocketTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        @Nullable
+        public HttpConnectionMetrics getMetrics() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.sdk.state.CallDepth;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of detecting nested calls with {@link CallDepth},
+ * as done in the enter and exit advices of an instrumented method that calls three other instrumented methods.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CallDepthBenchmark {
+
+    private CallDepth[] callDepths;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(CallDepthBenchmark.class.getSimpleName())
+            .measurementTime(TimeValue.seconds(1))
+            .warmupTime(TimeValue.seconds(1))
+            .forks(1)
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp() {
+        callDepths = new CallDepth[]{
+            CallDepth.get(ServletAdvice.class),
+            CallDepth.get(FilterAdvice.class),
+            CallDepth.get(JdbcAdvice.class),
+            CallDepth.get(HttpClientAdvice.class)
+        };
+    }
+
+    @Benchmark
+    public int enterAndExit() {
+        int nested = 0;
+        for (CallDepth callDepth : callDepths) {
+            if (callDepth.isNestedCallAndIncrement()) {
+                nested++;
+            }
+        }
+        for (CallDepth callDepth : callDepths) {
+            if (callDepth.isNestedCallAndDecrement()) {
+                nested++;
+            }
+        }
+        return nested;
+    }
+
+    private static class ServletAdvice {
+    }
+
+    private static class FilterAdvice {
+    }
+
+    private static class JdbcAdvice {
+    }
+
+    private static class HttpClientAdvice {
+    }
+}
@@ -0,0 +1,192 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.bci.ElasticApmAgent;
+import co.elastic.apm.agent.concurrent.ExecutorInstrumentation;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.sdk.state.GlobalVariables;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.HashSet;
+import java.util.ServiceLoader;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-task overhead of propagating the active context to tasks submitted to an {@link Executor}.
+ * <p>
+ * The executors used in this benchmark defer the execution of the task until the submitting span is deactivated,
+ * so that the propagated context has to be activated when running the task, just like on a different thread.
+ * </p>
+ * <ul>
+ *     <li>{@link #baseline()}: no context propagation</li>
+ *     <li>{@link #instrumentedTask()}: the class of the task is instrumented and the context is tracked in a weak map</li>
+ *     <li>{@link #lambdaTask()}: lambdas can't be instrumented and are wrapped in a context-carrying wrapper</li>
+ *     <li>{@link #threadPerTaskExecutorTask()}: all tasks of thread-per-task executors,
+ *     such as {@code Executors.newVirtualThreadPerTaskExecutor()}, are wrapped in a context-carrying wrapper</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ContextPropagationBenchmark {
+
+    private ElasticApmTracer tracer;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ContextPropagationBenchmark.class.getSimpleName())
+            .measurementTime(TimeValue.seconds(1))
+            .warmupTime(TimeValue.seconds(1))
+            .addProfiler(GCProfiler.class)
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+        GlobalVariables.get(ExecutorInstrumentation.class, "threadPerTaskExecutors", new HashSet<String>())
+            .add(DeferringThreadPerTaskExecutor.class.getName());
+        ElasticApmAgent.initInstrumentation(tracer, ByteBuddyAgent.install());
+    }
+
+    @TearDown
+    public void tearDown() {
+        ElasticApmAgent.reset();
+        tracer.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private Transaction transaction;
+        private final DeferringExecutor executor = new DeferringExecutor();
+        private final DeferringThreadPerTaskExecutor threadPerTaskExecutor = new DeferringThreadPerTaskExecutor();
+        private int counter;
+
+        @Setup
+        public void setUp(ContextPropagationBenchmark benchmark) {
+            transaction = benchmark.tracer.startRootTransaction(null);
+        }
+
+        @TearDown
+        public void tearDown() {
+            transaction.end();
+        }
+    }
+
+    @Benchmark
+    public int baseline(ThreadState state) {
+        Task task = new Task();
+        tracer.activate(state.transaction);
+        tracer.deactivate(state.transaction);
+        task.run();
+        return task.result;
+    }
+
+    @Benchmark
+    public int instrumentedTask(ThreadState state) {
+        Task task = new Task();
+        tracer.activate(state.transaction);
+        state.executor.execute(task);
+        tracer.deactivate(state.transaction);
+        state.executor.runPendingTask();
+        return task.result;
+    }
+
+    @Benchmark
+    public int lambdaTask(final ThreadState state) {
+        tracer.activate(state.transaction);
+        state.executor.execute(() -> state.counter++);
+        tracer.deactivate(state.transaction);
+        state.executor.runPendingTask();
+        return state.counter;
+    }
+
+    @Benchmark
+    public int threadPerTaskExecutorTask(ThreadState state) {
+        Task task = new Task();
+        tracer.activate(state.transaction);
+        state.threadPerTaskExecutor.execute(task);
+        tracer.deactivate(state.transaction);
+        state.threadPerTaskExecutor.runPendingTask();
+        return task.result;
+    }
+
+    private static class Task implements Runnable {
+        private int result;
+
+        @Override
+        public void run() {
+            result++;
+        }
+    }
+
+    public static class DeferringExecutor implements Executor {
+
+        private Runnable pendingTask;
+
+        @Override
+        public void execute(Runnable command) {
+            pendingTask = command;
+        }
+
+        void runPendingTask() {
+            Runnable task = pendingTask;
+            pendingTask = null;
+            task.run();
+        }
+    }
+
+    public static class DeferringThreadPerTaskExecutor extends DeferringExecutor {
+    }
+}
@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.BinaryHeaderGetter;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of consuming a polled batch of messages with the two {@code message_batch_strategy} options.
+ * The messages are a stand-in for Kafka records: header maps with a binary {@code elasticapmtraceparent} header,
+ * each from a different producer span.
+ * <ul>
+ *     <li>{@link #singleHandling()}: a transaction per message, like {@code ConsumerRecordsIteratorWrapper}</li>
+ *     <li>{@link #batchHandling()}: a transaction per batch with a span link per message,
+ *     like {@code ConsumerRecordsBatchIteratorWrapper}</li>
+ * </ul>
+ * The transactions are serialized by the reporter but not sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageBatchBenchmark {
+
+    @Param({"500"})
+    public int batchSize;
+
+    private ElasticApmTracer tracer;
+    private Map<String, byte[]>[] messages;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(MessageBatchBenchmark.class.getSimpleName())
+            .measurementTime(TimeValue.seconds(1))
+            .warmupTime(TimeValue.seconds(1))
+            .addProfiler(GCProfiler.class)
+            .build())
+            .run();
+    }
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("log_level", "OFF")
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+
+        Random random = new Random(42);
+        messages = new Map[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            byte[] traceparent = new byte[TraceContext.BINARY_FORMAT_EXPECTED_LENGTH];
+            random.nextBytes(traceparent);
+            // version, followed by the trace id, parent id and flags fields and their ids
+            traceparent[0] = 0;
+            traceparent[1] = 0;
+            traceparent[18] = 1;
+            traceparent[27] = 2;
+            traceparent[28] = 1;
+            messages[i] = new HashMap<>();
+            messages[i].put(TraceContext.TRACE_PARENT_BINARY_HEADER_NAME, traceparent);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @Benchmark
+    public int singleHandling() {
+        int transactions = 0;
+        for (Map<String, byte[]> message : messages) {
+            Transaction transaction = tracer.startChildTransaction(message, MapHeaderGetter.INSTANCE, null);
+            if (transaction != null) {
+                transaction.withType("messaging").withName("Kafka record from topic").activate();
+                transaction.getContext().getMessage().withQueue("topic");
+                transaction.deactivate().end();
+                transactions++;
+            }
+        }
+        return transactions;
+    }
+
+    @Benchmark
+    public int batchHandling() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        if (transaction == null) {
+            return 0;
+        }
+        transaction.withType("messaging").withName("Kafka records from topic").activate();
+        transaction.getContext().getMessage().withQueue("topic");
+        for (Map<String, byte[]> message : messages) {
+            transaction.addSpanLink(TraceContext.<Map<String, byte[]>>getFromTraceContextBinaryHeaders(), MapHeaderGetter.INSTANCE, message);
+        }
+        transaction.deactivate().end();
+        return 1;
+    }
+
+    private static class MapHeaderGetter implements BinaryHeaderGetter<Map<String, byte[]>> {
+
+        private static final MapHeaderGetter INSTANCE = new MapHeaderGetter();
+
+        @Nullable
+        @Override
+        public byte[] getFirstHeader(String headerName, Map<String, byte[]> carrier) {
+            return carrier.get(headerName);
+        }
+
+        @Override
+        public <S> void forEach(String headerName, Map<String, byte[]> carrier, S state, HeaderConsumer<byte[], S> consumer) {
+            byte[] value = carrier.get(headerName);
+            if (value != null) {
+                consumer.accept(value, state);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.bci.IndyPluginClassLoaderFactory;
+import co.elastic.apm.agent.sdk.state.GlobalState;
+import co.elastic.apm.agent.util.PackageScanner;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.isAnnotatedWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Measures the time it takes to link the first invocation of an advice in {@link #classLoaders} web application class loaders,
+ * which creates a plugin class loader per web application and loads the advice from it.
+ * <p>
+ * With {@link #sharePluginClasses} {@code false}, the class files of the plugin are read and filtered for each plugin class loader,
+ * like they were before they have been shared by all plugin class loaders of a plugin.
+ * The metaspace growth and the plugin class loader statistics are printed after each iteration.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PluginClassLoaderBenchmark {
+
+    private static final String PLUGIN_PACKAGE = "co.elastic.apm.agent.jdbc";
+    private static final String ADVICE_CLASS_NAME = "co.elastic.apm.agent.jdbc.StatementInstrumentation$ExecuteWithQueryInstrumentation";
+
+    @Param({"200"})
+    public int classLoaders;
+
+    @Param({"true", "false"})
+    public boolean sharePluginClasses;
+
+    private List<String> pluginClasses;
+    private ClassLoader agentClassLoader;
+    private List<ClassLoader> webAppClassLoaders;
+    private List<ClassLoader> pluginClassLoaders;
+    private long metaspaceBefore;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(PluginClassLoaderBenchmark.class.getSimpleName())
+            .warmupIterations(3)
+            .measurementIterations(10)
+            .forks(1)
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        agentClassLoader = PluginClassLoaderBenchmark.class.getClassLoader();
+        pluginClasses = PackageScanner.getClassNames(PLUGIN_PACKAGE, agentClassLoader);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpClassLoaders() {
+        IndyPluginClassLoaderFactory.clear();
+        webAppClassLoaders = new ArrayList<>(classLoaders);
+        for (int i = 0; i < classLoaders; i++) {
+            webAppClassLoaders.add(new URLClassLoader(new URL[0], agentClassLoader));
+        }
+        pluginClassLoaders = new ArrayList<>(classLoaders);
+        System.gc();
+        metaspaceBefore = getMetaspaceUsage();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        System.out.printf("%nMetaspace growth: %,d bytes%n", getMetaspaceUsage() - metaspaceBefore);
+        System.out.println(IndyPluginClassLoaderFactory.PluginClassLoaderStats.getTableHeader());
+        for (IndyPluginClassLoaderFactory.PluginClassLoaderStats stats : IndyPluginClassLoaderFactory.getPluginClassLoaderStats()) {
+            System.out.println(stats);
+        }
+        pluginClassLoaders = null;
+        webAppClassLoaders = null;
+    }
+
+    @Benchmark
+    public List<ClassLoader> linkFirstInvocation() throws Exception {
+        for (ClassLoader webAppClassLoader : webAppClassLoaders) {
+            if (!sharePluginClasses) {
+                IndyPluginClassLoaderFactory.clear();
+            }
+            ClassLoader pluginClassLoader = IndyPluginClassLoaderFactory.getOrCreatePluginClassLoader(
+                webAppClassLoader,
+                PLUGIN_PACKAGE,
+                pluginClasses,
+                agentClassLoader,
+                ClassFileLocator.ForClassLoader.of(agentClassLoader),
+                isAnnotatedWith(named(GlobalState.class.getName())));
+            pluginClassLoader.loadClass(ADVICE_CLASS_NAME);
+            // the call sites keep the plugin class loaders alive
+            pluginClassLoaders.add(pluginClassLoader);
+        }
+        return pluginClassLoaders;
+    }
+
+    private static long getMetaspaceUsage() {
+        long used = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getName().contains("Metaspace")) {
+                used += memoryPool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+}
@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.bci.bytebuddy.ParallelMatchingDiscoveryStrategy;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.pool.TypePool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time it takes to determine which loaded classes have to be retransformed when attaching the agent at runtime,
+ * depending on the {@code retransformation_parallelism}.
+ * <p>
+ * The application is simulated by loading {@link #classes} classes generated by {@link SyntheticClasspath}.
+ * {@link #parallelism} {@code 1} matches the loaded classes on the calling thread, like Byte Buddy does by default.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RetransformationBenchmark {
+
+    @Param({"6000"})
+    public int classes;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private File tempDir;
+    private URLClassLoader applicationClassLoader;
+    private Instrumentation instrumentation;
+    private List<ElementMatcher<TypeDescription>> typeMatchers;
+    private ParallelMatchingDiscoveryStrategy discoveryStrategy;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(RetransformationBenchmark.class.getSimpleName())
+            .warmupIterations(3)
+            .measurementIterations(10)
+            .forks(1)
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("retransformation").toFile();
+        File jar = new File(tempDir, "app.jar");
+        List<String> classNames = SyntheticClasspath.generateJar(jar, classes);
+        applicationClassLoader = new URLClassLoader(new URL[]{jar.toURI().toURL()});
+        for (String className : classNames) {
+            Class.forName(className, false, applicationClassLoader);
+        }
+        instrumentation = ByteBuddyAgent.install();
+        typeMatchers = SyntheticClasspath.createTypeMatchers();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpDiscoveryStrategy() {
+        // starts with empty type pools, like when attaching
+        discoveryStrategy = new ParallelMatchingDiscoveryStrategy(parallelism, AgentBuilder.LocationStrategy.ForClassLoader.WEAK,
+            new AgentBuilder.PoolStrategy.WithTypePoolCache.Simple(TypePool.Default.ReaderMode.FAST, new ConcurrentHashMap<ClassLoader, TypePool.CacheProvider>()));
+        for (ElementMatcher<TypeDescription> typeMatcher : typeMatchers) {
+            discoveryStrategy.addMatcher(new AgentBuilder.RawMatcher.ForElementMatchers(typeMatcher));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        applicationClassLoader.close();
+        File[] files = tempDir.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            file.delete();
+        }
+        tempDir.delete();
+    }
+
+    @Benchmark
+    public int matchLoadedClasses() {
+        int matchingClasses = 0;
+        for (Iterable<Class<?>> batch : discoveryStrategy.resolve(instrumentation)) {
+            for (Class<?> ignored : batch) {
+                matchingClasses++;
+            }
+        }
+        return matchingClasses;
+    }
+}
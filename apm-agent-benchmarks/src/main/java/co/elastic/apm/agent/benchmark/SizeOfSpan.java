@@ -51,5 +51,10 @@ public class SizeOfSpan {
             queueSize * 2 * sizeOfTransaction +
             queueSize * sizeOfError;
         System.out.println("sizeOfObjectPools: " + sizeOfObjectPools / 1024.0 / 1024.0 + " MiB");
+
+        // with off_heap_span_records, queued spans don't retain a Span object but a record of the direct buffer
+        final long sizeOfSpanRecords = (long) queueSize * new ReporterConfiguration().getOffHeapSpanRecordSize();
+        System.out.println("sizeOfQueuedSpans on-heap: " + queueSize * sizeOfSpan / 1024.0 / 1024.0 + " MiB");
+        System.out.println("sizeOfQueuedSpans off-heap: " + sizeOfSpanRecords / 1024.0 / 1024.0 + " MiB (direct)");
     }
 }
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.pool.TypePool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static net.bytebuddy.matcher.ElementMatchers.hasSuperType;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Generates a jar with synthetic classes for the type matching benchmarks.
+ * <p>
+ * The classes form class hierarchies of depth 10.
+ * Every 50th class implements one of {@link #INTERFACES} interfaces,
+ * which the {@linkplain #createTypeMatchers() type matchers} are looking for,
+ * like most instrumentations match on the super types of a class.
+ * </p>
+ */
+class SyntheticClasspath {
+
+    static final int INTERFACES = 100;
+    private static final int HIERARCHY_DEPTH = 10;
+
+    /**
+     * @param jar     the jar to write the classes to
+     * @param classes the number of classes, not including the interfaces
+     * @return the names of the classes, not including the interfaces
+     */
+    static List<String> generateJar(File jar, int classes) throws IOException {
+        List<String> classNames = new ArrayList<>(classes);
+        ByteBuddy byteBuddy = new ByteBuddy();
+        // the generated classes refer to each other, so they are described by a pool of the generated class files
+        Map<String, byte[]> classFiles = new HashMap<>();
+        TypePool generatedTypes = TypePool.Default.of(new ClassFileLocator.Compound(new ClassFileLocator.Simple(classFiles), ClassFileLocator.ForClassLoader.ofSystemLoader()));
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            for (int i = 0; i < INTERFACES; i++) {
+                String interfaceName = "com.example.Service" + i;
+                addClass(out, classFiles, interfaceName, byteBuddy.makeInterface().name(interfaceName).make().getBytes());
+            }
+            for (int i = 0; i < classes; i++) {
+                String className = "com.example.Class" + i;
+                TypeDescription superClass = i % HIERARCHY_DEPTH == 0
+                    ? TypeDescription.OBJECT
+                    : generatedTypes.describe("com.example.Class" + (i - 1)).resolve();
+                DynamicType.Builder<?> builder = byteBuddy.subclass(superClass).name(className)
+                    .defineField("value", int.class, Visibility.PRIVATE);
+                if (i % 50 == 0) {
+                    builder = builder.implement(generatedTypes.describe("com.example.Service" + (i / 50 % INTERFACES)).resolve());
+                }
+                addClass(out, classFiles, className, builder.make().getBytes());
+                classNames.add(className);
+            }
+        }
+        return classNames;
+    }
+
+    private static void addClass(JarOutputStream out, Map<String, byte[]> classFiles, String className, byte[] bytes) throws IOException {
+        classFiles.put(className, bytes);
+        out.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    /**
+     * @return a type matcher per interface, matching the classes that implement it
+     */
+    static List<ElementMatcher<TypeDescription>> createTypeMatchers() {
+        List<ElementMatcher<TypeDescription>> typeMatchers = new ArrayList<>(INTERFACES);
+        for (int i = 0; i < INTERFACES; i++) {
+            typeMatchers.add(hasSuperType(named("com.example.Service" + i)));
+        }
+        return typeMatchers;
+    }
+}
@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.BinaryHeaderSetter;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.TextHeaderSetter;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the allocations of injecting the trace context headers into outgoing requests and messages.
+ * <ul>
+ *     <li>{@link #httpClientExitSpan()}: an HTTP client call creating an exit span, which sets the {@code traceparent},
+ *     {@code elastic-apm-traceparent} and {@code tracestate} text headers, like the Apache HttpClient plugin</li>
+ *     <li>{@link #httpClientWithoutSpan()}: an HTTP client call for which no span is created
+ *     (for example because it's a nested exit span), so that the headers of the parent are propagated</li>
+ *     <li>{@link #kafkaProducerExitSpan()}: a Kafka record sent within an exit span, which gets the binary
+ *     {@code elasticapmtraceparent} header backed by a reused buffer, like the Kafka plugin</li>
+ * </ul>
+ * Use the {@code gc.alloc.rate.norm} metric of the {@link GCProfiler} to compare the allocations per outgoing call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TraceHeaderInjectionBenchmark {
+
+    private ElasticApmTracer tracer;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(TraceHeaderInjectionBenchmark.class.getSimpleName())
+            .measurementTime(TimeValue.seconds(1))
+            .warmupTime(TimeValue.seconds(1))
+            .addProfiler(GCProfiler.class)
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add(CoreConfiguration.SAMPLE_RATE, "0.5")
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private Transaction transaction;
+        private final Map<String, String> httpRequestHeaders = new HashMap<>();
+        private final Map<String, byte[]> kafkaRecordHeaders = new HashMap<>();
+
+        @Setup
+        public void setUp(TraceHeaderInjectionBenchmark benchmark) {
+            // creates a sampled transaction with an es=s:0.5 tracestate entry
+            do {
+                if (transaction != null) {
+                    transaction.end();
+                }
+                transaction = benchmark.tracer.startRootTransaction(null);
+            } while (transaction == null || !transaction.isSampled());
+        }
+
+        @TearDown
+        public void tearDown() {
+            transaction.end();
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> httpClientExitSpan(ThreadState state) {
+        Span span = state.transaction.createExitSpan();
+        if (span != null) {
+            span.propagateTraceContext(state.httpRequestHeaders, MapTextHeaderSetter.INSTANCE);
+            span.end();
+        }
+        return state.httpRequestHeaders;
+    }
+
+    @Benchmark
+    public Map<String, String> httpClientWithoutSpan(ThreadState state) {
+        state.transaction.propagateTraceContext(state.httpRequestHeaders, MapTextHeaderSetter.INSTANCE);
+        return state.httpRequestHeaders;
+    }
+
+    @Benchmark
+    public Map<String, byte[]> kafkaProducerExitSpan(ThreadState state) {
+        Span span = state.transaction.createExitSpan();
+        if (span != null) {
+            span.propagateTraceContext(state.kafkaRecordHeaders, ReusingBinaryHeaderSetter.INSTANCE);
+            span.end();
+        }
+        return state.kafkaRecordHeaders;
+    }
+
+    private static class MapTextHeaderSetter implements TextHeaderSetter<Map<String, String>> {
+
+        private static final MapTextHeaderSetter INSTANCE = new MapTextHeaderSetter();
+
+        @Override
+        public void setHeader(String headerName, String headerValue, Map<String, String> carrier) {
+            carrier.put(headerName, headerValue);
+        }
+    }
+
+    /**
+     * Like the Kafka plugin, hands out a per-thread buffer for each header so that no byte array is allocated per record
+     */
+    private static class ReusingBinaryHeaderSetter implements BinaryHeaderSetter<Map<String, byte[]>> {
+
+        private static final ReusingBinaryHeaderSetter INSTANCE = new ReusingBinaryHeaderSetter();
+
+        private final ThreadLocal<byte[]> buffer = new ThreadLocal<>();
+
+        @Nullable
+        @Override
+        public byte[] getFixedLengthByteArray(String headerName, int length) {
+            byte[] bytes = buffer.get();
+            if (bytes == null || bytes.length != length) {
+                bytes = new byte[length];
+                buffer.set(bytes);
+            }
+            return bytes;
+        }
+
+        @Override
+        public void setHeader(String headerName, byte[] headerValue, Map<String, byte[]> carrier) {
+            carrier.put(headerName, headerValue);
+        }
+    }
+}
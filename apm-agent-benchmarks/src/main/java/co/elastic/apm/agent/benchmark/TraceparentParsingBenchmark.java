@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.BinaryHeaderGetter;
+import co.elastic.apm.agent.impl.transaction.TextHeaderGetter;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.util.HexUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing the trace context headers of inbound requests and messages.
+ * <ul>
+ *     <li>{@link #w3cHeader()}: a valid {@code traceparent} header</li>
+ *     <li>{@link #legacyHeader()}: only the {@code elastic-apm-traceparent} header sent by older agents</li>
+ *     <li>{@link #invalidHeader()}: a {@code traceparent} header with a non-hex char in the parent id</li>
+ *     <li>{@link #binaryHeader()}: the binary {@code elasticapmtraceparent} header, as used for Kafka records</li>
+ * </ul>
+ * The benchmarks disable logging, so that the warnings about invalid headers don't dominate the results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TraceparentParsingBenchmark {
+
+    /**
+     * Parsing the same id over and over again would let the CPU learn the branches of the hex decoding,
+     * which doesn't happen for the random ids of real requests
+     */
+    private static final int NUMBER_OF_HEADERS = 1024;
+
+    private ElasticApmTracer tracer;
+    private TraceContext traceContext;
+    private final Map<String, String>[] w3cHeaders = newMaps(NUMBER_OF_HEADERS);
+    private final Map<String, String>[] legacyHeaders = newMaps(NUMBER_OF_HEADERS);
+    private final Map<String, String>[] invalidHeaders = newMaps(NUMBER_OF_HEADERS);
+    private final Map<String, byte[]>[] binaryHeaders = newMaps(NUMBER_OF_HEADERS);
+    private int index;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(TraceparentParsingBenchmark.class.getSimpleName())
+            .measurementTime(TimeValue.seconds(1))
+            .warmupTime(TimeValue.seconds(1))
+            .addProfiler(GCProfiler.class)
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("log_level", "OFF")
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+        traceContext = TraceContext.with64BitId(tracer);
+
+        Random random = new Random(42);
+        byte[] traceId = new byte[16];
+        byte[] parentId = new byte[8];
+        for (int i = 0; i < NUMBER_OF_HEADERS; i++) {
+            random.nextBytes(traceId);
+            random.nextBytes(parentId);
+            String traceparent = "00-" + HexUtils.bytesToHex(traceId) + "-" + HexUtils.bytesToHex(parentId) + "-01";
+            w3cHeaders[i].put(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, traceparent);
+            legacyHeaders[i].put(TraceContext.ELASTIC_TRACE_PARENT_TEXTUAL_HEADER_NAME, traceparent);
+            invalidHeaders[i].put(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, traceparent.substring(0, 51) + "g-01");
+
+            // version, trace id field, trace id, parent id field, parent id, flags field, flags
+            byte[] binary = new byte[TraceContext.BINARY_FORMAT_EXPECTED_LENGTH];
+            binary[1] = 0;
+            System.arraycopy(traceId, 0, binary, 2, traceId.length);
+            binary[18] = 1;
+            System.arraycopy(parentId, 0, binary, 19, parentId.length);
+            binary[27] = 2;
+            binary[28] = 1;
+            binaryHeaders[i].put(TraceContext.TRACE_PARENT_BINARY_HEADER_NAME, binary);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Map<String, T>[] newMaps(int size) {
+        Map<String, T>[] maps = new Map[size];
+        for (int i = 0; i < size; i++) {
+            maps[i] = new HashMap<>();
+        }
+        return maps;
+    }
+
+    private int nextIndex() {
+        return index++ & (NUMBER_OF_HEADERS - 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @Benchmark
+    public boolean w3cHeader() {
+        traceContext.resetState();
+        return TraceContext.<Map<String, String>>getFromTraceContextTextHeaders().asChildOf(traceContext, w3cHeaders[nextIndex()], TextMapHeaderGetter.INSTANCE);
+    }
+
+    @Benchmark
+    public boolean legacyHeader() {
+        traceContext.resetState();
+        return TraceContext.<Map<String, String>>getFromTraceContextTextHeaders().asChildOf(traceContext, legacyHeaders[nextIndex()], TextMapHeaderGetter.INSTANCE);
+    }
+
+    @Benchmark
+    public boolean invalidHeader() {
+        traceContext.resetState();
+        return TraceContext.<Map<String, String>>getFromTraceContextTextHeaders().asChildOf(traceContext, invalidHeaders[nextIndex()], TextMapHeaderGetter.INSTANCE);
+    }
+
+    @Benchmark
+    public boolean binaryHeader() {
+        traceContext.resetState();
+        return TraceContext.<Map<String, byte[]>>getFromTraceContextBinaryHeaders().asChildOf(traceContext, binaryHeaders[nextIndex()], BinaryMapHeaderGetter.INSTANCE);
+    }
+
+    private static class TextMapHeaderGetter implements TextHeaderGetter<Map<String, String>> {
+
+        private static final TextMapHeaderGetter INSTANCE = new TextMapHeaderGetter();
+
+        @Nullable
+        @Override
+        public String getFirstHeader(String headerName, Map<String, String> carrier) {
+            return carrier.get(headerName);
+        }
+
+        @Override
+        public <S> void forEach(String headerName, Map<String, String> carrier, S state, HeaderConsumer<String, S> consumer) {
+            String value = carrier.get(headerName);
+            if (value != null) {
+                consumer.accept(value, state);
+            }
+        }
+    }
+
+    private static class BinaryMapHeaderGetter implements BinaryHeaderGetter<Map<String, byte[]>> {
+
+        private static final BinaryMapHeaderGetter INSTANCE = new BinaryMapHeaderGetter();
+
+        @Nullable
+        @Override
+        public byte[] getFirstHeader(String headerName, Map<String, byte[]> carrier) {
+            return carrier.get(headerName);
+        }
+
+        @Override
+        public <S> void forEach(String headerName, Map<String, byte[]> carrier, S state, HeaderConsumer<byte[], S> consumer) {
+            byte[] value = carrier.get(headerName);
+            if (value != null) {
+                consumer.accept(value, state);
+            }
+        }
+    }
+}
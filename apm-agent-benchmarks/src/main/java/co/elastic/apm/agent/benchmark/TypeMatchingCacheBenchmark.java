@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.bci.bytebuddy.TypeMatchingCache;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.pool.TypePool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time it takes to match all classes of a synthetic jar against a set of instrumentations,
+ * which is what dominates the startup overhead of the agent on applications with many classes.
+ * <p>
+ * The jar contains {@link #classes} classes generated by {@link SyntheticClasspath}.
+ * </p>
+ * <ul>
+ *     <li>{@link #withoutCache()}: resolves the type hierarchy of each class, starting with an empty type pool</li>
+ *     <li>{@link #withCache()}: reads the results of a previous run from the {@link TypeMatchingCache}</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TypeMatchingCacheBenchmark {
+
+    @Param({"20000"})
+    public int classes;
+
+    private File tempDir;
+    private File jar;
+    private ProtectionDomain protectionDomain;
+    private List<String> classNames;
+    private List<ElementMatcher<TypeDescription>> typeMatchers;
+    private List<String> instrumentations;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(TypeMatchingCacheBenchmark.class.getSimpleName())
+            .warmupIterations(3)
+            .measurementIterations(10)
+            .forks(1)
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("type-matching-cache").toFile();
+        jar = new File(tempDir, "app.jar");
+        protectionDomain = new ProtectionDomain(new CodeSource(jar.toURI().toURL(), (Certificate[]) null), null);
+        classNames = SyntheticClasspath.generateJar(jar, classes);
+        typeMatchers = SyntheticClasspath.createTypeMatchers();
+        instrumentations = new ArrayList<>(typeMatchers.size());
+        for (int i = 0; i < typeMatchers.size(); i++) {
+            instrumentations.add("com.example.Service" + i + "Instrumentation");
+        }
+        // populates the cache file for withCache()
+        matchAll(true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = tempDir.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            file.delete();
+        }
+        tempDir.delete();
+    }
+
+    @Benchmark
+    public int withoutCache() throws IOException {
+        return matchAll(false);
+    }
+
+    @Benchmark
+    public int withCache() throws IOException {
+        return matchAll(true);
+    }
+
+    private int matchAll(boolean useCache) throws IOException {
+        TypeMatchingCache cache = useCache
+            ? TypeMatchingCache.load(tempDir, "benchmark", instrumentations)
+            : null;
+        int matches = 0;
+        try (ClassFileLocator classFileLocator = new ClassFileLocator.Compound(ClassFileLocator.ForJarFile.of(jar), ClassFileLocator.ForClassLoader.ofSystemLoader())) {
+            TypePool typePool = new TypePool.Default.WithLazyResolution(new TypePool.CacheProvider.Simple(), classFileLocator, TypePool.Default.ReaderMode.FAST);
+            for (String className : classNames) {
+                TypeDescription typeDescription = typePool.describe(className).resolve();
+                for (int i = 0; i < typeMatchers.size(); i++) {
+                    Boolean match = cache != null ? cache.isMatch(i, className, protectionDomain) : null;
+                    if (match == null) {
+                        match = typeMatchers.get(i).matches(typeDescription);
+                        if (cache != null) {
+                            cache.recordMatch(i, className, protectionDomain, match);
+                        }
+                    }
+                    if (match) {
+                        matches++;
+                    }
+                }
+            }
+        }
+        if (cache != null) {
+            cache.persist();
+        }
+        return matches;
+    }
+}
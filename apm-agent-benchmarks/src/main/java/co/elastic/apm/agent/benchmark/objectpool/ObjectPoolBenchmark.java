@@ -41,11 +41,22 @@ import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Compares the latency of creating and recycling an object with different pool implementations.
+ * <p>
+ * When running via {@code benchmarks.jar}, use the {@code -t} option to set the number of threads,
+ * {@link #main(String[])} runs the benchmarks with 1, 8 and 64 threads.
+ * </p>
+ */
 @BenchmarkMode(Mode.SampleTime)
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 public class ObjectPoolBenchmark extends AbstractBenchmark {
@@ -58,7 +69,16 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
     private ObjectPool<Transaction> jctoolsAtomicQueueObjectPool;
 
     public static void main(String[] args) throws RunnerException {
-        run(ObjectPoolBenchmark.class);
+        for (int threads : new int[]{1, 8, 64}) {
+            new Runner(new OptionsBuilder()
+                .include(ObjectPoolBenchmark.class.getSimpleName())
+                .threads(threads)
+                .measurementTime(TimeValue.seconds(1))
+                .warmupTime(TimeValue.seconds(1))
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+        }
     }
 
     @Setup
@@ -68,12 +88,13 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         jctoolsQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcArrayQueue<>(256), true, () -> new Transaction(tracer));
         jctoolsAtomicQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), true, () -> new Transaction(tracer));
         agronaQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new ManyToManyConcurrentArrayQueue<>(256), true, () -> new Transaction(tracer));
-        threadLocalObjectPool = new ThreadLocalObjectPool<>(64, true, () -> new Transaction(tracer));
+        threadLocalObjectPool = ThreadLocalObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), 8, () -> new Transaction(tracer));
     }
 
     @TearDown
     public void tearDown() {
         System.out.println("Objects created by agronaQueueObjectPool: " + agronaQueueObjectPool.getGarbageCreated());
+        System.out.println("Objects created by threadLocalObjectPool: " + threadLocalObjectPool.getGarbageCreated());
     }
 
     //    @Benchmark
@@ -114,7 +135,7 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         return transaction;
     }
 
-    //    @Benchmark
+    @Benchmark
     @Threads(8)
     public Transaction testThreadLocalObjectPool() {
         Transaction transaction = threadLocalObjectPool.createInstance();
@@ -36,6 +36,9 @@ import org.openjdk.jmh.results.ScalarResult;
 import org.openjdk.jmh.runner.options.TimeValue;
 
 import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -49,7 +52,9 @@ public class ReporterProfiler implements InternalProfiler {
     private Long receivedBytesStart;
     @Nullable
     private Long receivedPayloadsStart;
-
+    @Nullable
+    private Long receivedConnectionsStart;
+    private long reporterCpuTimeStart;
 
     public ReporterProfiler() {
     }
@@ -66,7 +71,26 @@ public class ReporterProfiler implements InternalProfiler {
             droppedCountStart = reporter.getDropped();
             receivedBytesStart = getLong("server.received.bytes");
             receivedPayloadsStart = getLong("server.received.payloads");
+            receivedConnectionsStart = getLong("server.received.connections");
+            reporterCpuTimeStart = getReporterThreadCpuTime();
+        }
+    }
+
+    /**
+     * Returns the CPU time of the threads serializing and sending events to the APM Server
+     */
+    private static long getReporterThreadCpuTime() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadCpuTimeSupported()) {
+            return -1;
         }
+        long cpuTime = 0;
+        for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds())) {
+            if (threadInfo != null && threadInfo.getThreadName().contains("server-reporter")) {
+                cpuTime += Math.max(0, threadMXBean.getThreadCpuTime(threadInfo.getThreadId()));
+            }
+        }
+        return cpuTime;
     }
 
     private Long getLong(String propertyName) {
@@ -85,6 +109,12 @@ public class ReporterProfiler implements InternalProfiler {
             if (reportedDuringThisIteration > 0) {
                 double reportsPerSecond = perSecond(iterationDurationNs, reportedDuringThisIteration);
                 results.add(new ScalarResult(Defaults.PREFIX + "reporter.reported", reportsPerSecond, "events/s", AggregationPolicy.AVG));
+
+                long reporterCpuTime = getReporterThreadCpuTime();
+                if (reporterCpuTimeStart >= 0 && reporterCpuTime >= 0) {
+                    double cpuTimePer10kEvents = (reporterCpuTime - reporterCpuTimeStart) * 10_000.0 / reportedDuringThisIteration;
+                    results.add(new ScalarResult(Defaults.PREFIX + "reporter.cpu.time.per.10k.events", cpuTimePer10kEvents / 1_000_000, "ms", AggregationPolicy.AVG));
+                }
             }
 
             final long droppedDuringThisIteration = reporter.getDropped() - droppedCountStart;
@@ -104,6 +134,13 @@ public class ReporterProfiler implements InternalProfiler {
                 results.add(new ScalarResult(Defaults.PREFIX + "server.received.payloads", perSecond(iterationDurationNs,
                     receivedPayloadsDuringThisIteration), "payloads/s", AggregationPolicy.AVG));
             }
+
+            Long receivedConnections = getLong("server.received.connections");
+            if (receivedConnections != null) {
+                long connectionsDuringThisIteration = receivedConnections - (receivedConnectionsStart != null ? receivedConnectionsStart : 0);
+                results.add(new ScalarResult(Defaults.PREFIX + "server.received.connections", connectionsDuringThisIteration,
+                    "connections", AggregationPolicy.SUM));
+            }
         }
         return results;
     }
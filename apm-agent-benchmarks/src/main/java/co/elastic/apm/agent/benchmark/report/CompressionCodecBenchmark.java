@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.compression.CompressionCodec;
+import co.elastic.apm.agent.report.compression.DeflateCompressionCodec;
+import co.elastic.apm.agent.report.compression.NoCompressionCodec;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU time and the bytes on the wire per event for each {@link CompressionCodec}.
+ * <p>
+ * The payload consists of the metadata and {@link #EVENTS} transactions and spans, serialized by {@link DslJsonSerializer}.
+ * The score is the time it takes to compress a single event.
+ * The number of compressed bytes per event is printed at the end of each trial.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@OperationsPerInvocation(CompressionCodecBenchmark.EVENTS)
+public class CompressionCodecBenchmark extends AbstractBenchmark {
+
+    static final int EVENTS = 1000;
+
+    @Param({"deflate", "deflate-dictionary", "none"})
+    public String codec;
+
+    private CompressionCodec compressionCodec;
+    private byte[] payload;
+    private final OutputStream nullOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    public static void main(String[] args) throws RunnerException {
+        run(CompressionCodecBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        switch (codec) {
+            case "deflate":
+                compressionCodec = new DeflateCompressionCodec(1);
+                break;
+            case "deflate-dictionary":
+                compressionCodec = new PresetDictionaryDeflateCompressionCodec(1);
+                break;
+            case "none":
+                compressionCodec = new NoCompressionCodec();
+                break;
+            default:
+                throw new IllegalArgumentException(codec);
+        }
+        payload = createPayload();
+    }
+
+    private static byte[] createPayload() throws Exception {
+        ElasticApmTracer tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+        try {
+            DslJsonSerializer serializer = new DslJsonSerializer(tracer.getConfig(StacktraceConfiguration.class),
+                tracer.getApmServerClient(), tracer.getMetaData());
+            ByteArrayOutputStream ndJson = new ByteArrayOutputStream();
+            serializer.setOutputStream(ndJson);
+            serializer.blockUntilReady();
+            serializer.appendMetaDataNdJsonToStream();
+            for (int i = 0; i < EVENTS / 2; i++) {
+                Transaction transaction = tracer.startRootTransaction(null);
+                if (transaction == null) {
+                    throw new IllegalStateException("Tracer is not active");
+                }
+                transaction.withName("GET /users/{id}").withType("request").withResult("HTTP 2xx");
+                Span span = transaction.createSpan()
+                    .withName("SELECT FROM users")
+                    .withType("db").withSubtype("postgresql").withAction("query");
+                span.getContext().getDb().withStatement("SELECT * FROM users WHERE id = ?");
+                serializer.serializeSpanNdJson(span);
+                serializer.serializeTransactionNdJson(transaction);
+            }
+            serializer.fullFlush();
+            return ndJson.toByteArray();
+        } finally {
+            tracer.stop();
+        }
+    }
+
+    @TearDown
+    public void printBytesPerEvent() throws IOException {
+        compress();
+        System.out.printf("%n%s: %d uncompressed bytes, %d compressed bytes, %.1f bytes per event%n", codec,
+            payload.length, compressionCodec.getBytesWritten(), (double) compressionCodec.getBytesWritten() / EVENTS);
+    }
+
+    @Benchmark
+    public long compress() throws IOException {
+        compressionCodec.reset();
+        OutputStream os = compressionCodec.wrap(nullOutputStream);
+        os.write(payload);
+        os.close();
+        return compressionCodec.getBytesWritten();
+    }
+}
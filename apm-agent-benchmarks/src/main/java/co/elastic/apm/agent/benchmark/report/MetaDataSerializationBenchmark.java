@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.OutputStream;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU and allocation cost of writing the {@code metadata} line that starts every intake API request.
+ * <p>
+ * {@link #cachedMetaData()} is what the reporter does when starting a request,
+ * {@link #uncachedMetaData()} renders the metadata from scratch with a fresh serializer.
+ * Compare the {@code gc.alloc.rate.norm} values reported by the GC profiler.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class MetaDataSerializationBenchmark extends AbstractBenchmark {
+
+    private ElasticApmTracer tracer;
+    private DslJsonSerializer serializer;
+    private final OutputStream nullOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    public static void main(String[] args) throws RunnerException {
+        run(MetaDataSerializationBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("global_labels", "region=us-east-1,tier=backend")
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+        serializer = createSerializer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @Benchmark
+    public void cachedMetaData() throws Exception {
+        writeMetaData(serializer);
+    }
+
+    @Benchmark
+    public void uncachedMetaData() throws Exception {
+        writeMetaData(createSerializer());
+    }
+
+    private DslJsonSerializer createSerializer() {
+        return new DslJsonSerializer(tracer.getConfig(StacktraceConfiguration.class), tracer.getApmServerClient(), tracer.getMetaData());
+    }
+
+    private void writeMetaData(DslJsonSerializer serializer) throws Exception {
+        serializer.setOutputStream(nullOutputStream);
+        serializer.blockUntilReady();
+        serializer.appendMetaDataNdJsonToStream();
+        serializer.fullFlush();
+    }
+}
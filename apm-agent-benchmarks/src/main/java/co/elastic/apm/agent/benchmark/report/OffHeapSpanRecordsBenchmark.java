@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractMockApmServerBenchmark;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.Reporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares keeping the queued spans on the heap with serializing them into off-heap records (see {@code off_heap_span_records})
+ * when many application threads report spans with stack traces concurrently.
+ * <p>
+ * Run with the {@link org.openjdk.jmh.profile.GCProfiler} (which {@link #run} adds)
+ * to compare the allocation rate and the GC count and time.
+ * The heap retained by a queued span is printed by {@link co.elastic.apm.agent.benchmark.SizeOfSpan}.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(8)
+public class OffHeapSpanRecordsBenchmark extends AbstractMockApmServerBenchmark {
+
+    @Param({"false", "true"})
+    public boolean offHeapSpanRecords;
+
+    public OffHeapSpanRecordsBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(OffHeapSpanRecordsBenchmark.class);
+    }
+
+    @Override
+    protected void configure(SimpleSource configSource) {
+        configSource
+            .add("off_heap_span_records", Boolean.toString(offHeapSpanRecords))
+            .add("off_heap_span_record_size", "8kb")
+            .add("span_frames_min_duration", "-1ms")
+            .add("max_queue_size", "8192");
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        System.getProperties().put(Reporter.class.getName(), tracer.getReporter());
+    }
+
+    @Benchmark
+    public Transaction reportTransactionWithSpans() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        if (transaction != null) {
+            transaction.withName("GET /benchmark").withType("request");
+            for (int i = 0; i < 4; i++) {
+                Span span = transaction.createSpan().withName("SELECT FROM foo").withType("db");
+                span.end();
+            }
+            transaction.end();
+        }
+        return transaction;
+    }
+}
@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.report.compression.CompressionCodec;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A {@code deflate} codec which primes the compressor with a dictionary of the keys and values which are common in intake API ND-JSON.
+ * <p>
+ * The resulting zlib stream can only be decompressed by a server which knows the same dictionary.
+ * As the APM Server does not support that, this codec only exists to measure its effect against the regular {@code deflate} codec.
+ * </p>
+ */
+class PresetDictionaryDeflateCompressionCodec implements CompressionCodec {
+
+    /**
+     * The most frequent strings should be at the end of the dictionary, as they are reachable via the shortest distances.
+     */
+    private static final byte[] DICTIONARY = ("" +
+        "{\"metadata\":{\"service\":{\"name\":\"\",\"agent\":{\"name\":\"java\",\"version\":\"\",\"ephemeral_id\":\"\"}," +
+        "\"language\":{\"name\":\"Java\",\"version\":\"\"},\"runtime\":{\"name\":\"Java\",\"version\":\"\"}}," +
+        "\"process\":{\"pid\":,\"ppid\":,\"title\":\"\",\"argv\":[]},\"system\":{\"architecture\":\"\",\"hostname\":\"\",\"platform\":\"\"}}}\n" +
+        "{\"error\":{\"id\":\"\",\"culprit\":\"\",\"exception\":{\"message\":\"\",\"type\":\"\",\"stacktrace\":[{\"filename\":\"\",\"classname\":\"\",\"function\":\"\",\"library_frame\":false,\"lineno\":}]}}}\n" +
+        "{\"transaction\":{\"timestamp\":,\"name\":\"\",\"id\":\"\",\"trace_id\":\"\",\"type\":\"request\",\"duration\":,\"result\":\"HTTP 2xx\"," +
+        "\"outcome\":\"success\",\"context\":{\"service\":{\"framework\":{\"name\":\"\",\"version\":\"\"}},\"tags\":{}}," +
+        "\"span_count\":{\"started\":,\"dropped\":0},\"sample_rate\":1.0,\"sampled\":true}}\n" +
+        "{\"span\":{\"timestamp\":,\"name\":\"\",\"id\":\"\",\"transaction_id\":\"\",\"trace_id\":\"\",\"parent_id\":\"\"," +
+        "\"type\":\"\",\"subtype\":\"\",\"action\":\"\",\"duration\":,\"outcome\":\"success\",\"context\":{\"service\":{\"name\":\"\"}," +
+        "\"destination\":{\"address\":\"\",\"port\":,\"service\":{\"name\":\"\",\"resource\":\"\",\"type\":\"\"}},\"db\":{\"type\":\"\",\"statement\":\"\"},\"tags\":{}},\"sample_rate\":1.0}}\n")
+        .getBytes(StandardCharsets.UTF_8);
+
+    private final int level;
+    private final Deflater deflater;
+
+    PresetDictionaryDeflateCompressionCodec(int level) {
+        this.level = level;
+        this.deflater = new Deflater(level);
+        deflater.setDictionary(DICTIONARY);
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return "deflate";
+    }
+
+    @Override
+    public OutputStream wrap(OutputStream os) {
+        return new DeflaterOutputStream(os, deflater);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return deflater.getBytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return deflater.getBytesWritten();
+    }
+
+    @Override
+    public void reset() {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+    }
+
+    @Override
+    public CompressionCodec newInstance() {
+        return new PresetDictionaryDeflateCompressionCodec(level);
+    }
+}
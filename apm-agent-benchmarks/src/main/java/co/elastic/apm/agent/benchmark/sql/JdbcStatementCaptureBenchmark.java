@@ -0,0 +1,168 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.sql;
+
+import co.elastic.apm.agent.bci.ElasticApmAgent;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time and the allocations of capturing JDBC statements on the {@link BlackholeConnection},
+ * for statement batches ({@link Statement#addBatch} and {@link Statement#executeBatch})
+ * and for statements that exceed the length that is serialized and are therefore truncated when they are captured.
+ * <p>
+ * Run with the {@link GCProfiler} (which {@link #main} adds) to compare the allocation rate, with and without the agent.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JdbcStatementCaptureBenchmark {
+
+    @Param({"false", "true"})
+    public boolean instrument;
+
+    @Param({"10", "1000"})
+    public int batchSize;
+
+    private ElasticApmTracer tracer;
+    private Statement statement;
+    private String[] batchStatements;
+    private String hugeStatement;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(JdbcStatementCaptureBenchmark.class.getSimpleName())
+            .measurementTime(TimeValue.seconds(1))
+            .warmupTime(TimeValue.seconds(1))
+            .addProfiler(GCProfiler.class)
+            .build())
+            .run();
+    }
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws SQLException {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add(CoreConfiguration.INSTRUMENT, Boolean.toString(instrument))
+                    .add("log_level", "OFF")
+                    .add("disable_send", "true"))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+        if (instrument) {
+            ElasticApmAgent.initInstrumentation(tracer, ByteBuddyAgent.install());
+        }
+        BlackholeConnection.INSTANCE.init(blackhole);
+        statement = BlackholeConnection.INSTANCE.createStatement();
+
+        batchStatements = new String[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            // a few distinct statements, as typically only the values differ
+            batchStatements[i] = "INSERT INTO ELASTIC_APM (foo, bar) VALUES (" + (i % 4) + ", 'bar')";
+        }
+        StringBuilder sb = new StringBuilder("INSERT INTO ELASTIC_APM (foo) VALUES (0)");
+        while (sb.length() < 100_000) {
+            sb.append(", (0)");
+        }
+        hugeStatement = sb.toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        ElasticApmAgent.reset();
+        tracer.stop();
+    }
+
+    @Benchmark
+    public int[] statementBatch() throws SQLException {
+        Transaction transaction = startTransaction();
+        try {
+            for (String batchStatement : batchStatements) {
+                statement.addBatch(batchStatement);
+            }
+            return statement.executeBatch();
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Benchmark
+    public boolean hugeStatement() throws SQLException {
+        Transaction transaction = startTransaction();
+        try {
+            return statement.execute(hugeStatement);
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Nullable
+    private Transaction startTransaction() {
+        if (!instrument) {
+            return null;
+        }
+        Transaction transaction = tracer.startRootTransaction(null);
+        if (transaction != null) {
+            transaction.activate();
+        }
+        return transaction;
+    }
+
+    private void endTransaction(@Nullable Transaction transaction) {
+        if (transaction != null) {
+            transaction.deactivate().end();
+        }
+    }
+}
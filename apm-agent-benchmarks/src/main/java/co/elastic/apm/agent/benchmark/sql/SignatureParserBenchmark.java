@@ -43,8 +43,17 @@ import java.util.concurrent.TimeUnit;
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 public class SignatureParserBenchmark extends AbstractBenchmark {
 
+    private static final String PREPARED_QUERY = "SELECT *,(SELECT COUNT(*) FROM table2 WHERE table2.field1 = table1.id) AS count FROM table1 WHERE table1.field1 = ?";
+
+    /**
+     * More than the signature cache can hold, so that each query is evicted before it's executed again
+     */
+    private static final int DISTINCT_QUERIES = 4096;
+
     private SignatureParser signatureParser;
     private StringBuilder stringBuilder;
+    private String[] distinctQueries;
+    private int distinctQueryIndex;
 
     public static void main(String[] args) throws RunnerException {
         run(SignatureParserBenchmark.class);
@@ -54,6 +63,10 @@ public class SignatureParserBenchmark extends AbstractBenchmark {
     public void setUp() {
         stringBuilder = new StringBuilder();
         signatureParser = new SignatureParser();
+        distinctQueries = new String[DISTINCT_QUERIES];
+        for (int i = 0; i < DISTINCT_QUERIES; i++) {
+            distinctQueries[i] = PREPARED_QUERY.replace("table1", "table" + i);
+        }
     }
 
     @Benchmark
@@ -70,6 +83,36 @@ public class SignatureParserBenchmark extends AbstractBenchmark {
         return stringBuilder;
     }
 
+    /**
+     * The same prepared statement executed over and over again, which looks up the same query string instance
+     */
+    @Benchmark
+    public StringBuilder preparedQueryCacheHit() {
+        stringBuilder.setLength(0);
+        signatureParser.querySignature(PREPARED_QUERY, stringBuilder, true);
+        return stringBuilder;
+    }
+
+    /**
+     * An equal query string, but a different instance, like ORMs that generate the query for each execution
+     */
+    @Benchmark
+    public StringBuilder preparedQueryCacheHitEqualString() {
+        stringBuilder.setLength(0);
+        signatureParser.querySignature(new String(PREPARED_QUERY), stringBuilder, true);
+        return stringBuilder;
+    }
+
+    /**
+     * Prepared statements that are not repeated often enough to stay in the cache
+     */
+    @Benchmark
+    public StringBuilder preparedQueryCacheMiss() {
+        stringBuilder.setLength(0);
+        signatureParser.querySignature(distinctQueries[distinctQueryIndex++ & (DISTINCT_QUERIES - 1)], stringBuilder, true);
+        return stringBuilder;
+    }
+
     @Benchmark
     public void consumeCpu() {
         // to get a feel for the jitter of this machine (most notable in higher percentiles)
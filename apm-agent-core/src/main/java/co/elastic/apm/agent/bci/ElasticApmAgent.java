@@ -24,15 +24,19 @@
  */
 package co.elastic.apm.agent.bci;
 
+import co.elastic.apm.agent.bci.bytebuddy.AdaptiveBatchAllocator;
 import co.elastic.apm.agent.bci.bytebuddy.AnnotationValueOffsetMappingFactory;
 import co.elastic.apm.agent.bci.bytebuddy.ErrorLoggingListener;
 import co.elastic.apm.agent.bci.bytebuddy.FailSafeDeclaredMethodsCompiler;
 import co.elastic.apm.agent.bci.bytebuddy.MatcherTimer;
 import co.elastic.apm.agent.bci.bytebuddy.MinimumClassFileVersionValidator;
+import co.elastic.apm.agent.bci.bytebuddy.ParallelMatchingDiscoveryStrategy;
 import co.elastic.apm.agent.bci.bytebuddy.PatchBytecodeVersionTo51Transformer;
 import co.elastic.apm.agent.bci.bytebuddy.RootPackageCustomLocator;
 import co.elastic.apm.agent.bci.bytebuddy.SimpleMethodSignatureOffsetMappingFactory;
 import co.elastic.apm.agent.bci.bytebuddy.SoftlyReferencingTypePoolCache;
+import co.elastic.apm.agent.bci.bytebuddy.TypeMatchingCache;
+import co.elastic.apm.agent.bci.bytebuddy.TypeNamePreFilter;
 import co.elastic.apm.agent.bci.bytebuddy.postprocessor.AssignToPostProcessorFactory;
 import co.elastic.apm.agent.bci.classloading.ExternalPluginClassLoader;
 import co.elastic.apm.agent.bci.methodmatching.MethodMatcher;
@@ -47,6 +51,7 @@ import co.elastic.apm.agent.sdk.weakmap.WeakMapSupplier;
 import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
 import co.elastic.apm.agent.util.ExecutorUtils;
 import co.elastic.apm.agent.util.ObjectUtils;
+import co.elastic.apm.agent.util.VersionUtils;
 import co.elastic.apm.agent.premain.ThreadUtils;
 import com.blogspot.mydailyjava.weaklockfree.WeakConcurrentMap;
 import net.bytebuddy.ByteBuddy;
@@ -118,6 +123,8 @@ public class ElasticApmAgent {
 
     private static final ConcurrentMap<String, MatcherTimer> matcherTimers = new ConcurrentHashMap<>();
     @Nullable
+    private static volatile TypeMatchingCache typeMatchingCache;
+    @Nullable
     private static Instrumentation instrumentation;
     @Nullable
     private static ResettableClassFileTransformer resettableClassFileTransformer;
@@ -311,20 +318,71 @@ public class ElasticApmAgent {
         final ByteBuddy byteBuddy = new ByteBuddy()
             .with(TypeValidation.of(logger.isDebugEnabled()))
             .with(FailSafeDeclaredMethodsCompiler.INSTANCE);
+        AgentBuilder.LocationStrategy locationStrategy = getLocationStrategy(logger);
+        AgentBuilder.PoolStrategy poolStrategy = getPoolStrategy(coreConfiguration.isTypePoolCacheEnabled());
+        ParallelMatchingDiscoveryStrategy discoveryStrategy = null;
+        if (!premain && coreConfiguration.getRetransformationParallelism() > 0) {
+            discoveryStrategy = new ParallelMatchingDiscoveryStrategy(coreConfiguration.getRetransformationParallelism(), locationStrategy, poolStrategy);
+        }
         AgentBuilder agentBuilder = getAgentBuilder(
-            byteBuddy, coreConfiguration, logger, descriptionStrategy, premain, coreConfiguration.isTypePoolCacheEnabled()
+            byteBuddy, coreConfiguration, logger, descriptionStrategy, premain, locationStrategy, poolStrategy, discoveryStrategy
         );
-        int numberOfAdvices = 0;
+        List<ElasticApmInstrumentation> includedAdvices = new ArrayList<>();
         for (final ElasticApmInstrumentation advice : instrumentations) {
             if (isIncluded(advice, coreConfiguration)) {
-                numberOfAdvices++;
-                agentBuilder = applyAdvice(tracer, agentBuilder, advice, new ElementMatcher.Junction.Conjunction<>(advice.getTypeMatcher(), not(isInterface())));
+                includedAdvices.add(advice);
+            }
+        }
+        typeMatchingCache = createTypeMatchingCache(tracer, includedAdvices);
+        TypeNamePreFilter typeNamePreFilter = null;
+        if (coreConfiguration.isTypeMatchingWithNamePreFilter()) {
+            List<ElementMatcher<? super NamedElement>> preFilters = new ArrayList<>(includedAdvices.size());
+            for (ElasticApmInstrumentation advice : includedAdvices) {
+                preFilters.add(advice.getTypeMatcherPreFilter());
             }
+            typeNamePreFilter = TypeNamePreFilter.compile(preFilters);
         }
-        logger.debug("Applied {} advices", numberOfAdvices);
+        for (int i = 0; i < includedAdvices.size(); i++) {
+            ElasticApmInstrumentation advice = includedAdvices.get(i);
+            agentBuilder = applyAdvice(tracer, agentBuilder, advice, new ElementMatcher.Junction.Conjunction<>(advice.getTypeMatcher(), not(isInterface())), typeMatchingCache, typeNamePreFilter, i, discoveryStrategy);
+        }
+        logger.debug("Applied {} advices", includedAdvices.size());
         return agentBuilder;
     }
 
+    @Nullable
+    private static TypeMatchingCache createTypeMatchingCache(ElasticApmTracer tracer, List<ElasticApmInstrumentation> advices) {
+        // persists the results of the instrumentations that are about to be replaced when re-initializing the instrumentation
+        persistTypeMatchingCache();
+        String cacheDir = tracer.getConfig(CoreConfiguration.class).getTypeMatchingCacheDir();
+        if (cacheDir == null || cacheDir.trim().isEmpty()) {
+            return null;
+        }
+        List<String> keyParts = new ArrayList<>();
+        for (ElasticApmInstrumentation advice : advices) {
+            keyParts.add(advice.getClass().getName());
+        }
+        // some type matchers depend on the configuration, such as application_packages or trace_methods
+        List<String> options = new ArrayList<>();
+        for (List<ConfigurationOption<?>> optionsOfCategory : tracer.getConfigurationRegistry().getConfigurationOptionsByCategory().values()) {
+            for (ConfigurationOption<?> option : optionsOfCategory) {
+                if (!option.isDynamic() && !option.isSensitive()) {
+                    options.add(option.getKey() + '=' + option.getValueAsString());
+                }
+            }
+        }
+        Collections.sort(options);
+        keyParts.addAll(options);
+        return TypeMatchingCache.load(new File(cacheDir.trim()), VersionUtils.getAgentVersion(), keyParts);
+    }
+
+    static void persistTypeMatchingCache() {
+        TypeMatchingCache cache = typeMatchingCache;
+        if (cache != null) {
+            cache.persist();
+        }
+    }
+
     private static boolean isIncluded(ElasticApmInstrumentation advice, CoreConfiguration coreConfiguration) {
         ArrayList<String> disabledInstrumentations = new ArrayList<>(coreConfiguration.getDisabledInstrumentations());
         // Supporting the deprecated `incubating` tag for backward compatibility
@@ -348,7 +406,10 @@ public class ElasticApmAgent {
     }
 
     private static AgentBuilder applyAdvice(final ElasticApmTracer tracer, final AgentBuilder agentBuilder,
-                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super TypeDescription> typeMatcher) {
+                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super TypeDescription> typeMatcher,
+                                            @Nullable final TypeMatchingCache typeMatchingCache, @Nullable final TypeNamePreFilter typeNamePreFilter,
+                                            final int instrumentationIndex,
+                                            @Nullable ParallelMatchingDiscoveryStrategy discoveryStrategy) {
         final Logger logger = getLogger();
         logger.debug("Applying instrumentation {}", instrumentation.getClass().getName());
         final boolean classLoadingMatchingPreFilter = tracer.getConfig(CoreConfiguration.class).isClassLoadingMatchingPreFilter();
@@ -357,41 +418,70 @@ public class ElasticApmAgent {
         final ElementMatcher<? super NamedElement> typeMatcherPreFilter = instrumentation.getTypeMatcherPreFilter();
         final ElementMatcher.Junction<ProtectionDomain> versionPostFilter = instrumentation.getProtectionDomainPostFilter();
         final ElementMatcher<? super MethodDescription> methodMatcher = new ElementMatcher.Junction.Conjunction<>(instrumentation.getMethodMatcher(), not(isAbstract()));
-        return agentBuilder
-            .type(new AgentBuilder.RawMatcher() {
-                @Override
-                public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
-                    long start = System.nanoTime();
-                    try {
-                        if (classLoadingMatchingPreFilter && !classLoaderMatcher.matches(classLoader)) {
+        // free of side effects so that it can also be evaluated by the discovery strategy
+        final AgentBuilder.RawMatcher rawTypeMatcher = new AgentBuilder.RawMatcher() {
+            @Override
+            public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+                long start = System.nanoTime();
+                try {
+                    if (classLoadingMatchingPreFilter && !classLoaderMatcher.matches(classLoader)) {
+                        return false;
+                    }
+                    if (typeMatchingWithNamePreFilter) {
+                        if (typeNamePreFilter != null && typeNamePreFilter.rejects(instrumentationIndex, typeDescription.getName())) {
+                            getOrCreateTimer(instrumentation.getClass()).addTypeNamePreFilterRejection();
                             return false;
                         }
-                        if (typeMatchingWithNamePreFilter && !typeMatcherPreFilter.matches(typeDescription)) {
+                        if (!typeMatcherPreFilter.matches(typeDescription)) {
                             return false;
                         }
-                        boolean typeMatches;
-                        try {
-                            typeMatches = typeMatcher.matches(typeDescription) && versionPostFilter.matches(protectionDomain);
-                        } catch (Exception ignored) {
-                            // could be because of a missing type
-                            typeMatches = false;
+                    }
+                    try {
+                        Boolean cachedTypeMatch = null;
+                        if (typeMatchingCache != null) {
+                            cachedTypeMatch = typeMatchingCache.isMatch(instrumentationIndex, typeDescription.getName(), protectionDomain);
                         }
-                        if (typeMatches) {
-                            logger.debug("Type match for instrumentation {}: {} matches {}",
-                                instrumentation.getClass().getSimpleName(), typeMatcher, typeDescription);
-                            try {
-                                instrumentation.onTypeMatch(typeDescription, classLoader, protectionDomain, classBeingRedefined);
-                            } catch (Exception e) {
-                                logger.error(e.getMessage(), e);
-                            }
-                            if (logger.isTraceEnabled()) {
-                                logClassLoaderHierarchy(classLoader, logger, instrumentation);
+                        boolean typeMatches;
+                        if (cachedTypeMatch != null) {
+                            getOrCreateTimer(instrumentation.getClass()).addTypeMatchingCacheHit();
+                            typeMatches = cachedTypeMatch;
+                        } else {
+                            typeMatches = typeMatcher.matches(typeDescription);
+                            if (typeMatchingCache != null) {
+                                typeMatchingCache.recordMatch(instrumentationIndex, typeDescription.getName(), protectionDomain, typeMatches);
                             }
                         }
-                        return typeMatches;
-                    } finally {
-                        getOrCreateTimer(instrumentation.getClass()).addTypeMatchingDuration(System.nanoTime() - start);
+                        return typeMatches && versionPostFilter.matches(protectionDomain);
+                    } catch (Exception ignored) {
+                        // could be because of a missing type
+                        return false;
                     }
+                } finally {
+                    getOrCreateTimer(instrumentation.getClass()).addTypeMatchingDuration(System.nanoTime() - start);
+                }
+            }
+        };
+        if (discoveryStrategy != null) {
+            discoveryStrategy.addMatcher(rawTypeMatcher);
+        }
+        return agentBuilder
+            .type(new AgentBuilder.RawMatcher() {
+                @Override
+                public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+                    if (!rawTypeMatcher.matches(typeDescription, classLoader, module, classBeingRedefined, protectionDomain)) {
+                        return false;
+                    }
+                    logger.debug("Type match for instrumentation {}: {} matches {}",
+                        instrumentation.getClass().getSimpleName(), typeMatcher, typeDescription);
+                    try {
+                        instrumentation.onTypeMatch(typeDescription, classLoader, protectionDomain, classBeingRedefined);
+                    } catch (Exception e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                    if (logger.isTraceEnabled()) {
+                        logClassLoaderHierarchy(classLoader, logger, instrumentation);
+                    }
+                    return true;
                 }
             })
             .transform(new PatchBytecodeVersionTo51Transformer())
@@ -562,6 +652,22 @@ public class ElasticApmAgent {
         return totalTime;
     }
 
+    static long getTotalTypeMatchingCacheHits() {
+        long hits = 0;
+        for (MatcherTimer value : matcherTimers.values()) {
+            hits += value.getTypeMatchingCacheHits();
+        }
+        return hits;
+    }
+
+    static long getTotalTypeNamePreFilterRejections() {
+        long rejections = 0;
+        for (MatcherTimer value : matcherTimers.values()) {
+            rejections += value.getTypeNamePreFilterRejections();
+        }
+        return rejections;
+    }
+
     static Collection<MatcherTimer> getMatcherTimers() {
         return matcherTimers.values();
     }
@@ -619,12 +725,11 @@ public class ElasticApmAgent {
         }
         dynamicClassFileTransformers.clear();
         instrumentation = null;
+        typeMatchingCache = null;
         IndyPluginClassLoaderFactory.clear();
     }
 
-    private static AgentBuilder getAgentBuilder(final ByteBuddy byteBuddy, final CoreConfiguration coreConfiguration, final Logger logger,
-                                                final AgentBuilder.DescriptionStrategy descriptionStrategy, final boolean premain,
-                                                final boolean useTypePoolCache) {
+    private static AgentBuilder.LocationStrategy getLocationStrategy(Logger logger) {
         AgentBuilder.LocationStrategy locationStrategy = AgentBuilder.LocationStrategy.ForClassLoader.WEAK;
         if (agentJarFile != null) {
             try {
@@ -643,11 +748,40 @@ public class ElasticApmAgent {
                 logger.warn("Failed to add ClassFileLocator for the agent jar. Some instrumentations may not work", e);
             }
         }
-        return new AgentBuilder.Default(byteBuddy)
-            .with(RedefinitionStrategy.RETRANSFORMATION)
-            // when runtime attaching, only retransform up to 100 classes at once and sleep 100ms in-between as retransformation causes a stop-the-world pause
-            .with(premain ? RedefinitionStrategy.BatchAllocator.ForTotal.INSTANCE : RedefinitionStrategy.BatchAllocator.ForFixedSize.ofSize(100))
-            .with(premain ? RedefinitionStrategy.Listener.NoOp.INSTANCE : RedefinitionStrategy.Listener.Pausing.of(100, TimeUnit.MILLISECONDS))
+        return locationStrategy;
+    }
+
+    private static AgentBuilder.PoolStrategy getPoolStrategy(boolean useTypePoolCache) {
+        // ReaderMode.FAST as we don't need to read method parameter names
+        return useTypePoolCache
+            ? new SoftlyReferencingTypePoolCache(TypePool.Default.ReaderMode.FAST, 1, isReflectionClassLoader())
+            : AgentBuilder.PoolStrategy.Default.FAST;
+    }
+
+    private static AgentBuilder getAgentBuilder(final ByteBuddy byteBuddy, final CoreConfiguration coreConfiguration, final Logger logger,
+                                                final AgentBuilder.DescriptionStrategy descriptionStrategy, final boolean premain,
+                                                final AgentBuilder.LocationStrategy locationStrategy, final AgentBuilder.PoolStrategy poolStrategy,
+                                                @Nullable final ParallelMatchingDiscoveryStrategy discoveryStrategy) {
+        AgentBuilder.RedefinitionListenable redefinitionListenable;
+        if (discoveryStrategy != null) {
+            // when runtime attaching, only retransform the classes matched by the discovery strategy,
+            // in batches that keep the stop-the-world pauses of the retransformation short
+            AdaptiveBatchAllocator batchAllocator = new AdaptiveBatchAllocator(100, 10, 1000, 50, TimeUnit.MILLISECONDS);
+            redefinitionListenable = new AgentBuilder.Default(byteBuddy)
+                .with(RedefinitionStrategy.RETRANSFORMATION)
+                .with((RedefinitionStrategy.BatchAllocator) batchAllocator)
+                .with(discoveryStrategy)
+                .with(RedefinitionStrategy.Listener.Pausing.of(100, TimeUnit.MILLISECONDS))
+                // has to be the last listener so that the pauses are not accounted to the batches
+                .with((RedefinitionStrategy.Listener) batchAllocator);
+        } else {
+            redefinitionListenable = new AgentBuilder.Default(byteBuddy)
+                .with(RedefinitionStrategy.RETRANSFORMATION)
+                // when runtime attaching, only retransform up to 100 classes at once and sleep 100ms in-between as retransformation causes a stop-the-world pause
+                .with(premain ? RedefinitionStrategy.BatchAllocator.ForTotal.INSTANCE : RedefinitionStrategy.BatchAllocator.ForFixedSize.ofSize(100))
+                .with(premain ? RedefinitionStrategy.Listener.NoOp.INSTANCE : RedefinitionStrategy.Listener.Pausing.of(100, TimeUnit.MILLISECONDS));
+        }
+        return redefinitionListenable
             .with(new RedefinitionStrategy.Listener.Adapter() {
                 @Override
                 public Iterable<? extends List<Class<?>>> onError(int index, List<Class<?>> batch, Throwable throwable, List<Class<?>> types) {
@@ -659,10 +793,7 @@ public class ElasticApmAgent {
             .with(descriptionStrategy)
             .with(locationStrategy)
             .with(new ErrorLoggingListener())
-            // ReaderMode.FAST as we don't need to read method parameter names
-            .with(useTypePoolCache
-                ? new SoftlyReferencingTypePoolCache(TypePool.Default.ReaderMode.FAST, 1, isReflectionClassLoader())
-                : AgentBuilder.PoolStrategy.Default.FAST)
+            .with(poolStrategy)
             .ignore(any(), isReflectionClassLoader())
             .or(any(), classLoaderWithName("org.codehaus.groovy.runtime.callsite.CallSiteClassLoader"))
             .or(nameStartsWith("co.elastic.apm.agent.shaded"))
@@ -743,7 +874,8 @@ public class ElasticApmAgent {
                         .with(TypeValidation.of(logger.isDebugEnabled()))
                         .with(FailSafeDeclaredMethodsCompiler.INSTANCE);
                     AgentBuilder agentBuilder = getAgentBuilder(
-                        byteBuddy, config, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false, false
+                        byteBuddy, config, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false,
+                        getLocationStrategy(logger), getPoolStrategy(false), null
                     );
                     for (Class<? extends ElasticApmInstrumentation> instrumentationClass : instrumentationClasses) {
                         ElasticApmInstrumentation apmInstrumentation = instantiate(instrumentationClass);
@@ -752,7 +884,7 @@ public class ElasticApmAgent {
                             ObjectUtils.systemClassLoaderIfNull(instrumentationClass.getClassLoader()));
                         ElementMatcher.Junction<? super TypeDescription> typeMatcher = getTypeMatcher(classToInstrument, apmInstrumentation.getMethodMatcher(), none());
                         if (typeMatcher != null && isIncluded(apmInstrumentation, config)) {
-                            agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, typeMatcher.and(apmInstrumentation.getTypeMatcher()));
+                            agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, typeMatcher.and(apmInstrumentation.getTypeMatcher()), null, null, 0, null);
                         }
                     }
                     dynamicClassFileTransformers.add(agentBuilder.installOn(instrumentation));
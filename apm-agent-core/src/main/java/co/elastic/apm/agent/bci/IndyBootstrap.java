@@ -331,7 +331,9 @@ public class IndyBootstrap {
             ClassLoader instrumentationClassLoader = ElasticApmAgent.getInstrumentationClassLoader(adviceClassName);
             ClassFileLocator classFileLocator;
             List<String> pluginClasses = new ArrayList<>();
+            String pluginName;
             if (instrumentationClassLoader instanceof ExternalPluginClassLoader) {
+                pluginName = ((ExternalPluginClassLoader) instrumentationClassLoader).getPluginName();
                 pluginClasses.addAll(((ExternalPluginClassLoader) instrumentationClassLoader).getClassNames());
                 File agentJarFile = ElasticApmAgent.getAgentJarFile();
                 if (agentJarFile == null) {
@@ -342,12 +344,14 @@ public class IndyBootstrap {
                     ClassFileLocator.ForJarFile.of(agentJarFile)
                 );
             } else {
-                pluginClasses.addAll(getClassNamesFromBundledPlugin(adviceClassName, instrumentationClassLoader));
+                pluginName = getBundledPluginPackage(adviceClassName);
+                pluginClasses.addAll(getClassNamesFromBundledPlugin(pluginName, instrumentationClassLoader));
                 classFileLocator = ClassFileLocator.ForClassLoader.of(instrumentationClassLoader);
             }
             pluginClasses.add(LOOKUP_EXPOSER_CLASS_NAME);
             ClassLoader pluginClassLoader = IndyPluginClassLoaderFactory.getOrCreatePluginClassLoader(
                 lookup.lookupClass().getClassLoader(),
+                pluginName,
                 pluginClasses,
                 // we provide the instrumentation class loader as the agent class loader, but it could actually be an
                 // ExternalPluginClassLoader, of which parent is the agent class loader, so this works as well.
@@ -375,11 +379,14 @@ public class IndyBootstrap {
         }
     }
 
-    private static List<String> getClassNamesFromBundledPlugin(String adviceClassName, ClassLoader adviceClassLoader) throws IOException, URISyntaxException {
+    private static String getBundledPluginPackage(String adviceClassName) {
         if (!adviceClassName.startsWith(EMBEDDED_PLUGINS_PACKAGE_PREFIX)) {
             throw new IllegalArgumentException("invalid advice class location : " + adviceClassName);
         }
-        String pluginPackage = adviceClassName.substring(0, adviceClassName.indexOf('.', EMBEDDED_PLUGINS_PACKAGE_PREFIX.length()));
+        return adviceClassName.substring(0, adviceClassName.indexOf('.', EMBEDDED_PLUGINS_PACKAGE_PREFIX.length()));
+    }
+
+    private static List<String> getClassNamesFromBundledPlugin(String pluginPackage, ClassLoader adviceClassLoader) throws IOException, URISyntaxException {
         List<String> pluginClasses = classesByPackage.get(pluginPackage);
         if (pluginClasses == null) {
             classesByPackage.putIfAbsent(pluginPackage, PackageScanner.getClassNames(pluginPackage, adviceClassLoader));
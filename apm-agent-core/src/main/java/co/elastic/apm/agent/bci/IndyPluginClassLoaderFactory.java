@@ -34,46 +34,82 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 
 public class IndyPluginClassLoaderFactory {
 
     private static final Logger logger = LoggerFactory.getLogger(IndyPluginClassLoaderFactory.class);
 
-    private static final Map<ClassLoader, Map<Collection<String>, WeakReference<ClassLoader>>> alreadyInjected = new WeakHashMap<ClassLoader, Map<Collection<String>, WeakReference<ClassLoader>>>();
+    private static final Map<ClassLoader, Map<Collection<String>, PluginClassLoaderReference>> alreadyInjected = new WeakHashMap<ClassLoader, Map<Collection<String>, PluginClassLoaderReference>>();
+
+    /**
+     * The class files of a plugin are the same for all target class loaders.
+     * They are read and filtered only once and shared by all plugin class loaders of the same plugin.
+     * An entry is removed as soon as the last plugin class loader referencing it has been collected.
+     */
+    private static final Map<Collection<String>, SharedPluginClasses> sharedPluginClasses = new HashMap<>();
+
+    private static final ReferenceQueue<ClassLoader> collectedPluginClassLoaders = new ReferenceQueue<>();
 
     /**
      * Creates an isolated CL that has two parents: the target class loader and the agent CL.
      * The agent class loader is currently the bootstrap CL but in the future it will be an isolated CL that is a child of the bootstrap CL.
      */
     public synchronized static ClassLoader getOrCreatePluginClassLoader(@Nullable ClassLoader targetClassLoader,
+                                                                        String pluginName,
                                                                         List<String> classesToInject,
                                                                         ClassLoader agentClassLoader,
                                                                         ClassFileLocator classFileLocator,
                                                                         ElementMatcher<? super TypeDescription> exclusionMatcher) throws Exception {
+        releaseCollectedPluginClassLoaders();
         classesToInject = new ArrayList<>(classesToInject);
 
-        Map<Collection<String>, WeakReference<ClassLoader>> injectedClasses = getOrCreateInjectedClasses(targetClassLoader);
-        if (injectedClasses.containsKey(classesToInject)) {
-            ClassLoader pluginClassLoader = injectedClasses.get(classesToInject).get();
+        Map<Collection<String>, PluginClassLoaderReference> injectedClasses = getOrCreateInjectedClasses(targetClassLoader);
+        PluginClassLoaderReference reference = injectedClasses.get(classesToInject);
+        if (reference != null) {
+            ClassLoader pluginClassLoader = reference.get();
             if (pluginClassLoader == null) {
                 injectedClasses.remove(classesToInject);
+                reference.release();
             } else {
                 return pluginClassLoader;
             }
         }
 
+        SharedPluginClasses pluginClasses = sharedPluginClasses.get(classesToInject);
+        if (pluginClasses == null) {
+            pluginClasses = new SharedPluginClasses(classesToInject, pluginName, filter(classesToInject, classFileLocator, exclusionMatcher), classFileLocator);
+            sharedPluginClasses.put(classesToInject, pluginClasses);
+        }
+        logger.debug("Creating plugin class loader for {} containing {}", targetClassLoader, pluginClasses.typeDefinitions.keySet());
+
+        // child first semantics are important here as the plugin CL contains classes that are also present in the agent CL
+        IndyPluginClassLoader pluginClassLoader;
+        if (targetClassLoader != null) {
+            pluginClassLoader = new IndyPluginClassLoader(targetClassLoader, agentClassLoader, pluginClasses.typeDefinitions);
+        } else {
+            pluginClassLoader = new IndyPluginClassLoader(agentClassLoader, pluginClasses.typeDefinitions);
+        }
+        injectedClasses.put(classesToInject, new PluginClassLoaderReference(pluginClassLoader, pluginClasses));
+
+        return pluginClassLoader;
+    }
+
+    private static List<String> filter(List<String> classesToInject, ClassFileLocator classFileLocator, ElementMatcher<? super TypeDescription> exclusionMatcher) {
         List<String> classesToInjectCopy = new ArrayList<>(classesToInject.size());
         TypePool pool = new TypePool.Default.WithLazyResolution(TypePool.CacheProvider.NoOp.INSTANCE, classFileLocator, TypePool.Default.ReaderMode.FAST);
-        for (Iterator<String> iterator = classesToInject.iterator(); iterator.hasNext(); ) {
-            String className = iterator.next();
+        for (String className : classesToInject) {
             boolean excluded;
             try {
                 excluded = exclusionMatcher.matches(pool.describe(className).resolve());
@@ -85,23 +121,11 @@ public class IndyPluginClassLoaderFactory {
                 classesToInjectCopy.add(className);
             }
         }
-        logger.debug("Creating plugin class loader for {} containing {}", targetClassLoader, classesToInjectCopy);
-
-        Map<String, byte[]> typeDefinitions = getTypeDefinitions(classesToInjectCopy, classFileLocator);
-        // child first semantics are important here as the plugin CL contains classes that are also present in the agent CL
-        ClassLoader pluginClassLoader;
-        if (targetClassLoader != null) {
-            pluginClassLoader = new IndyPluginClassLoader(targetClassLoader, agentClassLoader, typeDefinitions);
-        } else {
-            pluginClassLoader = new IndyPluginClassLoader(agentClassLoader, typeDefinitions);
-        }
-        injectedClasses.put(classesToInject, new WeakReference<>(pluginClassLoader));
-
-        return pluginClassLoader;
+        return classesToInjectCopy;
     }
 
-    private static Map<Collection<String>, WeakReference<ClassLoader>> getOrCreateInjectedClasses(@Nullable ClassLoader targetClassLoader) {
-        Map<Collection<String>, WeakReference<ClassLoader>> injectedClasses = alreadyInjected.get(targetClassLoader);
+    private static Map<Collection<String>, PluginClassLoaderReference> getOrCreateInjectedClasses(@Nullable ClassLoader targetClassLoader) {
+        Map<Collection<String>, PluginClassLoaderReference> injectedClasses = alreadyInjected.get(targetClassLoader);
         if (injectedClasses == null) {
             injectedClasses = new HashMap<>();
             alreadyInjected.put(targetClassLoader, injectedClasses);
@@ -109,8 +133,31 @@ public class IndyPluginClassLoaderFactory {
         return injectedClasses;
     }
 
+    private static void releaseCollectedPluginClassLoaders() {
+        Reference<? extends ClassLoader> reference;
+        while ((reference = collectedPluginClassLoaders.poll()) != null) {
+            ((PluginClassLoaderReference) reference).release();
+        }
+    }
+
     public synchronized static void clear() {
         alreadyInjected.clear();
+        sharedPluginClasses.clear();
+    }
+
+    /**
+     * Returns the statistics of the plugin class loaders that are currently alive, grouped by plugin.
+     * The size of the class files defined by the plugin class loaders approximates their metaspace usage.
+     *
+     * @return the statistics of the plugin class loaders that are currently alive
+     */
+    public synchronized static List<PluginClassLoaderStats> getPluginClassLoaderStats() {
+        releaseCollectedPluginClassLoaders();
+        List<PluginClassLoaderStats> stats = new ArrayList<>(sharedPluginClasses.size());
+        for (SharedPluginClasses pluginClasses : sharedPluginClasses.values()) {
+            stats.add(pluginClasses.getStats());
+        }
+        return stats;
     }
 
     private static Map<String, byte[]> getTypeDefinitions(List<String> helperClassNames, ClassFileLocator classFileLocator) throws IOException {
@@ -122,4 +169,137 @@ public class IndyPluginClassLoaderFactory {
         return typeDefinitions;
     }
 
+    /**
+     * The class files of a plugin, shared by all of its plugin class loaders.
+     * The plugin class loaders still define the classes lazily, on first use.
+     */
+    private static class SharedPluginClasses {
+        private final Collection<String> key;
+        private final String pluginName;
+        private final Map<String, byte[]> typeDefinitions;
+        private final long typeDefinitionBytes;
+        private final Set<PluginClassLoaderReference> references = new HashSet<>();
+
+        private SharedPluginClasses(Collection<String> key, String pluginName, List<String> classNames, ClassFileLocator classFileLocator) throws IOException {
+            this.key = key;
+            this.pluginName = pluginName;
+            this.typeDefinitions = Collections.unmodifiableMap(getTypeDefinitions(classNames, classFileLocator));
+            long bytes = 0;
+            for (byte[] typeDefinition : typeDefinitions.values()) {
+                bytes += typeDefinition.length;
+            }
+            this.typeDefinitionBytes = bytes;
+        }
+
+        private void retain(PluginClassLoaderReference reference) {
+            references.add(reference);
+        }
+
+        private void release(PluginClassLoaderReference reference) {
+            if (references.remove(reference) && references.isEmpty() && sharedPluginClasses.get(key) == this) {
+                logger.debug("Releasing the classes of plugin {} as all of its plugin class loaders have been collected", pluginName);
+                sharedPluginClasses.remove(key);
+            }
+        }
+
+        private PluginClassLoaderStats getStats() {
+            int definedClasses = 0;
+            long definedClassBytes = 0;
+            for (PluginClassLoaderReference reference : references) {
+                ClassLoader pluginClassLoader = reference.get();
+                if (pluginClassLoader instanceof IndyPluginClassLoader) {
+                    definedClasses += ((IndyPluginClassLoader) pluginClassLoader).getDefinedClassCount();
+                    definedClassBytes += ((IndyPluginClassLoader) pluginClassLoader).getDefinedClassBytes();
+                }
+            }
+            return new PluginClassLoaderStats(pluginName, references.size(), typeDefinitions.size(), typeDefinitionBytes, definedClasses, definedClassBytes);
+        }
+    }
+
+    /**
+     * Keeps the {@link SharedPluginClasses} of a plugin class loader alive until the plugin class loader has been collected.
+     */
+    private static class PluginClassLoaderReference extends WeakReference<ClassLoader> {
+        private final SharedPluginClasses pluginClasses;
+
+        private PluginClassLoaderReference(ClassLoader pluginClassLoader, SharedPluginClasses pluginClasses) {
+            super(pluginClassLoader, collectedPluginClassLoaders);
+            this.pluginClasses = pluginClasses;
+            pluginClasses.retain(this);
+        }
+
+        private void release() {
+            pluginClasses.release(this);
+        }
+    }
+
+    public static class PluginClassLoaderStats {
+        private final String pluginName;
+        private final int classLoaderCount;
+        private final int pluginClassCount;
+        private final long pluginClassBytes;
+        private final int definedClassCount;
+        private final long definedClassBytes;
+
+        PluginClassLoaderStats(String pluginName, int classLoaderCount, int pluginClassCount, long pluginClassBytes, int definedClassCount, long definedClassBytes) {
+            this.pluginName = pluginName;
+            this.classLoaderCount = classLoaderCount;
+            this.pluginClassCount = pluginClassCount;
+            this.pluginClassBytes = pluginClassBytes;
+            this.definedClassCount = definedClassCount;
+            this.definedClassBytes = definedClassBytes;
+        }
+
+        public String getPluginName() {
+            return pluginName;
+        }
+
+        /**
+         * @return the number of plugin class loaders of this plugin that are currently alive
+         */
+        public int getClassLoaderCount() {
+            return classLoaderCount;
+        }
+
+        /**
+         * @return the number of classes of this plugin, shared by all of its plugin class loaders
+         */
+        public int getPluginClassCount() {
+            return pluginClassCount;
+        }
+
+        /**
+         * @return the size of the class files of this plugin, held once for all of its plugin class loaders
+         */
+        public long getPluginClassBytes() {
+            return pluginClassBytes;
+        }
+
+        /**
+         * @return the number of classes the plugin class loaders of this plugin have defined so far
+         */
+        public int getDefinedClassCount() {
+            return definedClassCount;
+        }
+
+        /**
+         * @return the size of the class files the plugin class loaders of this plugin have defined so far,
+         * which approximates their metaspace usage
+         */
+        public long getDefinedClassBytes() {
+            return definedClassBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %14d %15d %13d %16d %14d",
+                pluginName, classLoaderCount, pluginClassCount, pluginClassBytes, definedClassCount, definedClassBytes);
+        }
+
+        public static String getTableHeader() {
+            return String.format("%-40s %14s %15s %13s %16s %14s",
+                "Plugin", "Class loaders", "Plugin classes", "Plugin bytes", "Defined classes", "Defined bytes");
+        }
+    }
+
 }
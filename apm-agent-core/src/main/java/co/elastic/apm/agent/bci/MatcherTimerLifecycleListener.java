@@ -37,17 +37,26 @@ public class MatcherTimerLifecycleListener extends AbstractLifecycleListener {
 
     @Override
     public void stop() {
+        ElasticApmAgent.persistTypeMatchingCache();
         if (logger.isDebugEnabled()) {
             final ArrayList<MatcherTimer> matcherTimers = new ArrayList<>(ElasticApmAgent.getMatcherTimers());
             Collections.sort(matcherTimers);
             StringBuilder sb = new StringBuilder()
                 .append("Total time spent matching: ").append(String.format("%,d", ElasticApmAgent.getTotalMatcherTime())).append("ns")
                 .append('\n')
+                .append("Type matching cache hits: ").append(String.format("%,d", ElasticApmAgent.getTotalTypeMatchingCacheHits()))
+                .append('\n')
+                .append("Types rejected by the name pre-filter: ").append(String.format("%,d", ElasticApmAgent.getTotalTypeNamePreFilterRejections()))
+                .append('\n')
                 .append(MatcherTimer.getTableHeader())
                 .append('\n');
             for (MatcherTimer matcherTimer : matcherTimers) {
                 sb.append(matcherTimer.toString()).append('\n');
             }
+            sb.append(IndyPluginClassLoaderFactory.PluginClassLoaderStats.getTableHeader()).append('\n');
+            for (IndyPluginClassLoaderFactory.PluginClassLoaderStats stats : IndyPluginClassLoaderFactory.getPluginClassLoaderStats()) {
+                sb.append(stats.toString()).append('\n');
+            }
             logger.debug(sb.toString());
         }
     }
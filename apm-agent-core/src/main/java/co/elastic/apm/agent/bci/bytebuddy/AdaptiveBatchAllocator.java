@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransforms classes in batches whose size adapts to how long the retransformation of the previous batch took.
+ * <p>
+ * As retransformation causes a stop-the-world pause, batches should be small enough to keep the pauses short,
+ * but batches that are too small make the attachment take unnecessarily long.
+ * Starting with the initial batch size, the size of the next batch is scaled by the ratio of the target duration to the
+ * duration of the previous batch, within the bounds of the minimum and maximum batch size.
+ * </p>
+ * <p>
+ * This class has to be registered both as the {@link AgentBuilder.RedefinitionStrategy.BatchAllocator} and as the last
+ * {@link AgentBuilder.RedefinitionStrategy.Listener}, so that the pauses in-between the batches are not accounted to the batches.
+ * </p>
+ */
+public class AdaptiveBatchAllocator extends AgentBuilder.RedefinitionStrategy.Listener.Adapter implements AgentBuilder.RedefinitionStrategy.BatchAllocator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveBatchAllocator.class);
+
+    private final int initialBatchSize;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetBatchDurationNanos;
+
+    private long start;
+    private long batchStart;
+    private long retransformationNanos;
+
+    public AdaptiveBatchAllocator(int initialBatchSize, int minBatchSize, int maxBatchSize, long targetBatchDuration, TimeUnit unit) {
+        this.initialBatchSize = initialBatchSize;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.targetBatchDurationNanos = unit.toNanos(targetBatchDuration);
+    }
+
+    @Override
+    public Iterable<? extends List<Class<?>>> batch(final List<Class<?>> types) {
+        return new Iterable<List<Class<?>>>() {
+            @Override
+            public Iterator<List<Class<?>>> iterator() {
+                return new Iterator<List<Class<?>>>() {
+                    private int offset = 0;
+                    private int batchSize = initialBatchSize;
+
+                    @Override
+                    public boolean hasNext() {
+                        return offset < types.size();
+                    }
+
+                    @Override
+                    public List<Class<?>> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        long lastBatchDuration = endBatch();
+                        if (lastBatchDuration > 0) {
+                            batchSize = nextBatchSize(batchSize, lastBatchDuration);
+                        }
+                        List<Class<?>> batch = types.subList(offset, Math.min(offset + batchSize, types.size()));
+                        offset += batch.size();
+                        return batch;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    int nextBatchSize(int batchSize, long lastBatchDurationNanos) {
+        long nextBatchSize = batchSize * targetBatchDurationNanos / Math.max(lastBatchDurationNanos, 1);
+        return (int) Math.max(minBatchSize, Math.min(maxBatchSize, nextBatchSize));
+    }
+
+    @Override
+    public synchronized void onBatch(int index, List<Class<?>> batch, List<Class<?>> types) {
+        batchStart = System.nanoTime();
+        if (index == 0) {
+            start = batchStart;
+            retransformationNanos = 0;
+        }
+    }
+
+    private synchronized long endBatch() {
+        if (batchStart == 0) {
+            return 0;
+        }
+        long duration = System.nanoTime() - batchStart;
+        retransformationNanos += duration;
+        batchStart = 0;
+        return duration;
+    }
+
+    @Override
+    public void onComplete(int amount, List<Class<?>> types, Map<List<Class<?>>, Throwable> failures) {
+        if (amount == 0) {
+            return;
+        }
+        endBatch();
+        long retransformationMillis;
+        long totalMillis;
+        synchronized (this) {
+            retransformationMillis = TimeUnit.NANOSECONDS.toMillis(retransformationNanos);
+            totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+        logger.info("Retransformed {} classes in {} batches within {}ms, of which {}ms were spent retransforming",
+            types.size(), amount, totalMillis, retransformationMillis);
+    }
+}
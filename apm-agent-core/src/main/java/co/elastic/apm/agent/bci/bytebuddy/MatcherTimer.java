@@ -32,6 +32,9 @@ public class MatcherTimer implements Comparable<MatcherTimer> {
     private final String adviceClass;
     private final AtomicLong totalTypeMatchingDuration = new AtomicLong();
     private final AtomicLong totalMethodMatchingDuration = new AtomicLong();
+    private final AtomicLong typeMatchingCacheHits = new AtomicLong();
+    private final AtomicLong typeMatchingCount = new AtomicLong();
+    private final AtomicLong typeNamePreFilterRejections = new AtomicLong();
 
     public MatcherTimer(String adviceClassName) {
         this.adviceClass = adviceClassName;
@@ -39,6 +42,31 @@ public class MatcherTimer implements Comparable<MatcherTimer> {
 
     public void addTypeMatchingDuration(long typeMatchingDuration) {
         totalTypeMatchingDuration.addAndGet(typeMatchingDuration);
+        typeMatchingCount.incrementAndGet();
+    }
+
+    public void addTypeNamePreFilterRejection() {
+        typeNamePreFilterRejections.incrementAndGet();
+    }
+
+    public long getTypeNamePreFilterRejections() {
+        return typeNamePreFilterRejections.get();
+    }
+
+    /**
+     * @return the percentage of types that have been rejected by the {@link TypeNamePreFilter}
+     */
+    public double getTypeNamePreFilterRejectionRate() {
+        long count = typeMatchingCount.get();
+        return count == 0 ? 0 : typeNamePreFilterRejections.get() * 100d / count;
+    }
+
+    public void addTypeMatchingCacheHit() {
+        typeMatchingCacheHits.incrementAndGet();
+    }
+
+    public long getTypeMatchingCacheHits() {
+        return typeMatchingCacheHits.get();
     }
 
     public void addMethodMatchingDuration(long methodMatchingDuration) {
@@ -55,13 +83,13 @@ public class MatcherTimer implements Comparable<MatcherTimer> {
     }
 
     public static String getTableHeader() {
-        return String.format("| %-50s | %-15s | %-15s |", "Advice name", "Type ns", "Method ns");
+        return String.format("| %-50s | %-15s | %-15s | %-15s | %-15s |", "Advice name", "Type ns", "Method ns", "Type cache hits", "Pre-filtered");
     }
 
     @Override
     public String toString() {
-        return String.format("| %-50s | %,15d | %,15d |", getSimpleClassName(adviceClass),
-            totalTypeMatchingDuration.get(), totalMethodMatchingDuration.get());
+        return String.format("| %-50s | %,15d | %,15d | %,15d | %14.1f%% |", getSimpleClassName(adviceClass),
+            totalTypeMatchingDuration.get(), totalMethodMatchingDuration.get(), typeMatchingCacheHits.get(), getTypeNamePreFilterRejectionRate());
     }
 
     @Nonnull
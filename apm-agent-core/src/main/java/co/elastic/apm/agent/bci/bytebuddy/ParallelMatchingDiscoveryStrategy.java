@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import co.elastic.apm.agent.premain.ThreadUtils;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.utility.JavaModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines which of the already loaded classes have to be retransformed by evaluating the type matchers on multiple threads.
+ * <p>
+ * By default, Byte Buddy evaluates the type matchers of all instrumentations against all loaded classes on the attaching thread.
+ * On applications with many loaded classes, this is what makes runtime attachment slow.
+ * This strategy partitions the loaded classes and matches the partitions in parallel on a bounded {@link ForkJoinPool},
+ * using the same type descriptions Byte Buddy would use.
+ * Only the matching classes are handed to Byte Buddy, which evaluates the matchers on this subset again before retransforming them.
+ * Therefore, classes that can't be matched here are included, so that Byte Buddy can handle them as usual.
+ * </p>
+ */
+public class ParallelMatchingDiscoveryStrategy implements AgentBuilder.RedefinitionStrategy.DiscoveryStrategy {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelMatchingDiscoveryStrategy.class);
+    private static final int PARTITION_SIZE = 256;
+
+    private final int parallelism;
+    private final AgentBuilder.LocationStrategy locationStrategy;
+    private final AgentBuilder.PoolStrategy poolStrategy;
+    private final List<AgentBuilder.RawMatcher> matchers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param parallelism      the number of threads to match the loaded classes on
+     * @param locationStrategy the location strategy of the agent builder
+     * @param poolStrategy     the pool strategy of the agent builder
+     */
+    public ParallelMatchingDiscoveryStrategy(int parallelism, AgentBuilder.LocationStrategy locationStrategy, AgentBuilder.PoolStrategy poolStrategy) {
+        this.parallelism = parallelism;
+        this.locationStrategy = locationStrategy;
+        this.poolStrategy = poolStrategy;
+    }
+
+    /**
+     * Adds the type matcher of an instrumentation.
+     * The matcher must not have side effects, as it may be evaluated again by Byte Buddy.
+     *
+     * @param matcher the type matcher of an instrumentation
+     */
+    public void addMatcher(AgentBuilder.RawMatcher matcher) {
+        matchers.add(matcher);
+    }
+
+    @Override
+    public Iterable<Iterable<Class<?>>> resolve(Instrumentation instrumentation) {
+        long start = System.nanoTime();
+        Class<?>[] loadedClasses = instrumentation.getAllLoadedClasses();
+        List<Class<?>> matchingClasses;
+        if (parallelism <= 1) {
+            matchingClasses = new MatchingTask(instrumentation, loadedClasses, 0, loadedClasses.length).match();
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName(ThreadUtils.addElasticApmThreadPrefix("type-matching-" + thread.getPoolIndex()));
+                    return thread;
+                }
+            }, null, false);
+            try {
+                matchingClasses = pool.invoke(new MatchingTask(instrumentation, loadedClasses, 0, loadedClasses.length));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        logger.info("Matched {} of {} loaded classes on {} thread(s) within {}ms",
+            matchingClasses.size(), loadedClasses.length, Math.max(parallelism, 1), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return Collections.<Iterable<Class<?>>>singletonList(matchingClasses);
+    }
+
+    private boolean matches(Class<?> type) {
+        ClassLoader classLoader = type.getClassLoader();
+        JavaModule module = JavaModule.ofType(type);
+        try {
+            TypeDescription typeDescription = poolStrategy.typePool(locationStrategy.classFileLocator(classLoader, module), classLoader)
+                .describe(TypeDescription.ForLoadedType.getName(type))
+                .resolve();
+            for (AgentBuilder.RawMatcher matcher : matchers) {
+                if (matcher.matches(typeDescription, classLoader, module, type, type.getProtectionDomain())) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (Throwable ignored) {
+            // let Byte Buddy handle the types that can't be described, as it would without this strategy
+            return true;
+        }
+    }
+
+    private class MatchingTask extends RecursiveTask<List<Class<?>>> {
+
+        private final Instrumentation instrumentation;
+        private final Class<?>[] types;
+        private final int from;
+        private final int to;
+
+        private MatchingTask(Instrumentation instrumentation, Class<?>[] types, int from, int to) {
+            this.instrumentation = instrumentation;
+            this.types = types;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Class<?>> compute() {
+            if (to - from <= PARTITION_SIZE) {
+                return match();
+            }
+            int middle = (from + to) >>> 1;
+            MatchingTask right = new MatchingTask(instrumentation, types, middle, to);
+            right.fork();
+            List<Class<?>> result = new MatchingTask(instrumentation, types, from, middle).compute();
+            result.addAll(right.join());
+            return result;
+        }
+
+        private List<Class<?>> match() {
+            List<Class<?>> result = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                Class<?> type = types[i];
+                if (instrumentation.isModifiableClass(type) && matches(type)) {
+                    result.add(type);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the type matching results of the instrumentations across restarts so that the type hierarchy of classes that have been
+ * matched before doesn't have to be resolved again.
+ * <p>
+ * A cache file is specific to an agent version and to the set of enabled instrumentations.
+ * Within a file, the results are keyed by the name of a class and the checksum of the jar it has been loaded from.
+ * Classes that are not loaded from a jar, such as classes from the bootstrap class loader or from a directory, are not cached.
+ * </p>
+ * <p>
+ * NOTE: a type matcher may also depend on the super types of a class.
+ * As these may be loaded from another jar, the cache has to be cleared manually after replacing a jar
+ * without also replacing the jars that extend types of it.
+ * </p>
+ */
+public class TypeMatchingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TypeMatchingCache.class);
+    private static final int FORMAT_VERSION = 1;
+    private static final String NOT_CACHEABLE = "";
+
+    private final File file;
+    private final String key;
+    /**
+     * Maps the location of a code source to the checksum of the jar, or to {@link #NOT_CACHEABLE}
+     */
+    private final ConcurrentMap<String, String> checksums = new ConcurrentHashMap<>();
+    /**
+     * Maps the path of a jar file to its checksum, or to {@link #NOT_CACHEABLE}.
+     * All jars nested in the same jar, like the libraries of a Spring Boot application, share the checksum of the outer jar
+     * so that the outer jar is only read once.
+     */
+    private final ConcurrentMap<String, String> jarChecksums = new ConcurrentHashMap<>();
+    /**
+     * Maps {@code <jar checksum>/<class name>} to the matching results of that class
+     */
+    private final ConcurrentMap<String, MatchResults> matchResults = new ConcurrentHashMap<>();
+    /**
+     * Type matching for a class is performed by all instrumentations in a row, on the same thread.
+     * Remembering the last lookup avoids computing the key for each instrumentation.
+     */
+    private final ThreadLocal<LastLookup> lastLookup = new ThreadLocal<LastLookup>() {
+        @Override
+        protected LastLookup initialValue() {
+            return new LastLookup();
+        }
+    };
+
+    private TypeMatchingCache(File file, String key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    /**
+     * Creates a cache and loads the results of a previous run from the cache directory, if there are any.
+     *
+     * @param cacheDir     the directory the cache file is stored in
+     * @param agentVersion the version of the agent
+     * @param keyParts     everything the results of the type matchers depend on,
+     *                     like a description of each enabled instrumentation, in the order of their indices
+     * @return the type matching cache
+     */
+    public static TypeMatchingCache load(File cacheDir, @Nullable String agentVersion, List<String> keyParts) {
+        String key = digest(agentVersion, keyParts);
+        TypeMatchingCache cache = new TypeMatchingCache(new File(cacheDir, "type-matching-" + key.substring(0, 16) + ".cache"), key);
+        if (cache.file.isFile()) {
+            try {
+                cache.read();
+            } catch (IOException e) {
+                logger.warn("Failed to read type matching cache {}: {}", cache.file, e.getMessage());
+                cache.matchResults.clear();
+            }
+        }
+        return cache;
+    }
+
+    private static String digest(@Nullable String agentVersion, List<String> keyParts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(agentVersion).getBytes(StandardCharsets.UTF_8));
+            for (String keyPart : keyParts) {
+                digest.update((byte) '\n');
+                digest.update(keyPart.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Looks up whether the type matcher of an instrumentation matched the given class in a previous run.
+     *
+     * @param instrumentation  the index of the instrumentation
+     * @param typeName         the name of the class
+     * @param protectionDomain the protection domain of the class
+     * @return {@code true} or {@code false} if the result is known, {@code null} if the type matcher has to be evaluated
+     */
+    @Nullable
+    public Boolean isMatch(int instrumentation, String typeName, @Nullable ProtectionDomain protectionDomain) {
+        MatchResults results = getMatchResults(typeName, protectionDomain);
+        return results != null ? results.get(instrumentation) : null;
+    }
+
+    /**
+     * Records the result of the type matcher of an instrumentation.
+     *
+     * @param instrumentation  the index of the instrumentation
+     * @param typeName         the name of the class
+     * @param protectionDomain the protection domain of the class
+     * @param matches          whether the type matcher matched the class
+     */
+    public void recordMatch(int instrumentation, String typeName, @Nullable ProtectionDomain protectionDomain, boolean matches) {
+        MatchResults results = getMatchResults(typeName, protectionDomain);
+        if (results != null) {
+            results.set(instrumentation, matches);
+        }
+    }
+
+    @Nullable
+    private MatchResults getMatchResults(String typeName, @Nullable ProtectionDomain protectionDomain) {
+        LastLookup last = lastLookup.get();
+        if (last.protectionDomain == protectionDomain && typeName.equals(last.typeName)) {
+            return last.results;
+        }
+        MatchResults results = null;
+        String checksum = getChecksum(protectionDomain);
+        if (checksum != NOT_CACHEABLE) {
+            String resultsKey = checksum + '/' + typeName;
+            results = matchResults.get(resultsKey);
+            if (results == null) {
+                matchResults.putIfAbsent(resultsKey, new MatchResults());
+                results = matchResults.get(resultsKey);
+            }
+        }
+        last.protectionDomain = protectionDomain;
+        last.typeName = typeName;
+        last.results = results;
+        return results;
+    }
+
+    private String getChecksum(@Nullable ProtectionDomain protectionDomain) {
+        CodeSource codeSource = protectionDomain != null ? protectionDomain.getCodeSource() : null;
+        URL location = codeSource != null ? codeSource.getLocation() : null;
+        if (location == null) {
+            return NOT_CACHEABLE;
+        }
+        String locationString = location.toString();
+        String checksum = checksums.get(locationString);
+        if (checksum == null) {
+            checksum = computeChecksum(locationString);
+            checksums.put(locationString, checksum);
+        }
+        return checksum;
+    }
+
+    /**
+     * Computes the checksum of a jar.
+     * For a jar nested in another jar, like {@code jar:file:/app.jar!/BOOT-INF/lib/lib.jar!/},
+     * the checksum of the outer jar is combined with the checksum of the path of the nested jar.
+     */
+    private String computeChecksum(String location) {
+        String nestedPath = "";
+        if (location.startsWith("jar:")) {
+            int separator = location.indexOf("!/");
+            if (separator < 0) {
+                return NOT_CACHEABLE;
+            }
+            nestedPath = location.substring(separator);
+            location = location.substring("jar:".length(), separator);
+        }
+        if (!location.startsWith("file:")) {
+            return NOT_CACHEABLE;
+        }
+        File jar;
+        try {
+            jar = new File(URI.create(location));
+        } catch (Exception e) {
+            logger.debug("Not caching type matching results of {}: {}", location, e.getMessage());
+            return NOT_CACHEABLE;
+        }
+        String jarChecksum = jarChecksums.get(jar.getPath());
+        if (jarChecksum == null) {
+            jarChecksum = computeJarChecksum(jar);
+            jarChecksums.put(jar.getPath(), jarChecksum);
+        }
+        if (jarChecksum == NOT_CACHEABLE || nestedPath.isEmpty()) {
+            return jarChecksum;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(nestedPath.getBytes(StandardCharsets.UTF_8));
+        return jarChecksum + '-' + Long.toHexString(crc.getValue());
+    }
+
+    private static String computeJarChecksum(File jar) {
+        if (!jar.isFile()) {
+            return NOT_CACHEABLE;
+        }
+        try {
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[8192];
+            try (InputStream is = new FileInputStream(jar)) {
+                for (int read = is.read(buffer); read != -1; read = is.read(buffer)) {
+                    crc.update(buffer, 0, read);
+                }
+            }
+            return Long.toHexString(crc.getValue()) + '-' + Long.toHexString(jar.length());
+        } catch (IOException e) {
+            logger.debug("Not caching type matching results of {}: {}", jar, e.getMessage());
+            return NOT_CACHEABLE;
+        }
+    }
+
+    /**
+     * Writes the results to the cache file.
+     * Only the results of jars that have been seen by this instance are written,
+     * which drops the results of jars that have been removed or updated.
+     */
+    public void persist() {
+        Set<String> currentChecksums = new HashSet<>(checksums.values());
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(key);
+                for (Map.Entry<String, MatchResults> entry : matchResults.entrySet()) {
+                    String resultsKey = entry.getKey();
+                    if (currentChecksums.contains(resultsKey.substring(0, resultsKey.indexOf('/')))) {
+                        out.writeBoolean(true);
+                        out.writeUTF(resultsKey);
+                        entry.getValue().write(out);
+                    }
+                }
+                out.writeBoolean(false);
+            }
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("Can't rename " + tempFile + " to " + file);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to write type matching cache {}: {}", file, e.getMessage());
+            tempFile.delete();
+        }
+    }
+
+    private void read() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+                logger.debug("Ignoring outdated type matching cache {}", file);
+                return;
+            }
+            while (in.readBoolean()) {
+                String resultsKey = in.readUTF();
+                matchResults.put(resultsKey, MatchResults.read(in));
+            }
+        }
+        logger.debug("Read type matching results of {} classes from {}", matchResults.size(), file);
+    }
+
+    int size() {
+        return matchResults.size();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    private static class LastLookup {
+        @Nullable
+        private ProtectionDomain protectionDomain;
+        @Nullable
+        private String typeName;
+        @Nullable
+        private MatchResults results;
+    }
+
+    private static class MatchResults {
+        private static final int MAX_BIT_SET_WORDS = 1024;
+        private final BitSet evaluated;
+        private final BitSet matched;
+
+        private MatchResults() {
+            this(new BitSet(), new BitSet());
+        }
+
+        private MatchResults(BitSet evaluated, BitSet matched) {
+            this.evaluated = evaluated;
+            this.matched = matched;
+        }
+
+        @Nullable
+        synchronized Boolean get(int instrumentation) {
+            return evaluated.get(instrumentation) ? matched.get(instrumentation) : null;
+        }
+
+        synchronized void set(int instrumentation, boolean matches) {
+            evaluated.set(instrumentation);
+            matched.set(instrumentation, matches);
+        }
+
+        synchronized void write(DataOutputStream out) throws IOException {
+            writeBitSet(evaluated, out);
+            writeBitSet(matched, out);
+        }
+
+        static MatchResults read(DataInputStream in) throws IOException {
+            return new MatchResults(readBitSet(in), readBitSet(in));
+        }
+
+        private static void writeBitSet(BitSet bitSet, DataOutputStream out) throws IOException {
+            long[] words = bitSet.toLongArray();
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+
+        private static BitSet readBitSet(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_BIT_SET_WORDS) {
+                throw new IOException("Invalid type matching cache entry");
+            }
+            long[] words = new long[length];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return BitSet.valueOf(words);
+        }
+    }
+}
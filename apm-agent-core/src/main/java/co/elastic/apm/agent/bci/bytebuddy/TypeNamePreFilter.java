@@ -0,0 +1,273 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.matcher.BooleanMatcher;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.NameMatcher;
+import net.bytebuddy.matcher.StringMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Combines the {@linkplain co.elastic.apm.agent.sdk.ElasticApmInstrumentation#getTypeMatcherPreFilter() name pre-filters}
+ * of all instrumentations into a single filter,
+ * so that the names of most classes are rejected for all instrumentations in a single pass over the name,
+ * instead of evaluating the pre-filter of each instrumentation.
+ * <p>
+ * A pre-filter can be compiled if it is composed of disjunctions and conjunctions of name matchers like
+ * {@link net.bytebuddy.matcher.ElementMatchers#nameContains(String)} or {@link net.bytebuddy.matcher.ElementMatchers#nameStartsWith(String)}.
+ * The value of such a name matcher is a token that has to be contained in the name of a matching class.
+ * Each token is registered in a packed bloom filter under its first three characters, ignoring case.
+ * For each three-character window of a class name, a single probe into the bloom filter tells whether a token may start there.
+ * Only in that case, the token is compared to the name.
+ * </p>
+ * <p>
+ * The filter is conservative: if it doesn't reject a name for an instrumentation,
+ * the pre-filter of the instrumentation still has to be evaluated.
+ * Pre-filters that can't be compiled, like {@link net.bytebuddy.matcher.ElementMatchers#any()}, never reject a name.
+ * </p>
+ */
+public class TypeNamePreFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TypeNamePreFilter.class);
+    private static final int MIN_TOKEN_LENGTH = 3;
+    private static final int BLOOM_FILTER_BITS_LOG2 = 12;
+
+    @Nullable
+    private static final Field NAME_MATCHER_MATCHER = getField(NameMatcher.class, "matcher");
+    @Nullable
+    private static final Field STRING_MATCHER_VALUE = getField(StringMatcher.class, "value");
+    @Nullable
+    private static final Field STRING_MATCHER_MODE = getField(StringMatcher.class, "mode");
+    @Nullable
+    private static final Field CONJUNCTION_MATCHERS = getField(ElementMatcher.Junction.Conjunction.class, "matchers");
+    @Nullable
+    private static final Field DISJUNCTION_MATCHERS = getField(ElementMatcher.Junction.Disjunction.class, "matchers");
+    @Nullable
+    private static final Field BOOLEAN_MATCHER_MATCHES = getField(BooleanMatcher.class, "matches");
+
+    private final long[] bloomFilter = new long[(1 << BLOOM_FILTER_BITS_LOG2) / Long.SIZE];
+    private final Token[][] tokensByBucket = new Token[1 << BLOOM_FILTER_BITS_LOG2][];
+    /**
+     * The instrumentations whose pre-filter could be compiled
+     */
+    private final BitSet compiled = new BitSet();
+    /**
+     * Type matching for a class is performed by all instrumentations in a row, on the same thread.
+     * Remembering the candidates for the last name avoids scanning the name for each instrumentation.
+     */
+    private final ThreadLocal<LastLookup> lastLookup = new ThreadLocal<LastLookup>() {
+        @Override
+        protected LastLookup initialValue() {
+            return new LastLookup();
+        }
+    };
+
+    private TypeNamePreFilter() {
+    }
+
+    /**
+     * Compiles the pre-filters of the instrumentations.
+     *
+     * @param preFilters the pre-filter of each instrumentation, in the order of their indices
+     * @return the compiled pre-filter
+     */
+    public static TypeNamePreFilter compile(List<? extends ElementMatcher<?>> preFilters) {
+        TypeNamePreFilter filter = new TypeNamePreFilter();
+        Map<String, Token> tokens = new HashMap<>();
+        for (int i = 0; i < preFilters.size(); i++) {
+            Set<String> tokensOfInstrumentation = getTokens(preFilters.get(i));
+            if (tokensOfInstrumentation == null) {
+                continue;
+            }
+            filter.compiled.set(i);
+            for (String value : tokensOfInstrumentation) {
+                Token token = tokens.get(value);
+                if (token == null) {
+                    token = new Token(value);
+                    tokens.put(value, token);
+                }
+                token.instrumentations.set(i);
+            }
+        }
+        for (Token token : tokens.values()) {
+            filter.addToken(token);
+        }
+        logger.debug("Compiled the name pre-filters of {} out of {} instrumentations into {} tokens",
+            filter.compiled.cardinality(), preFilters.size(), tokens.size());
+        return filter;
+    }
+
+    private void addToken(Token token) {
+        int bucket = bucket(token.value.charAt(0), token.value.charAt(1), token.value.charAt(2));
+        bloomFilter[bucket >>> 6] |= 1L << bucket;
+        Token[] tokens = tokensByBucket[bucket];
+        if (tokens == null) {
+            tokens = new Token[]{token};
+        } else {
+            Token[] newTokens = new Token[tokens.length + 1];
+            System.arraycopy(tokens, 0, newTokens, 0, tokens.length);
+            newTokens[tokens.length] = token;
+            tokens = newTokens;
+        }
+        tokensByBucket[bucket] = tokens;
+    }
+
+    /**
+     * Returns whether the pre-filter of an instrumentation can't match a type name.
+     *
+     * @param instrumentation the index of the instrumentation
+     * @param typeName        the name of the type
+     * @return {@code true} if the pre-filter of the instrumentation doesn't match the type name,
+     * {@code false} if the pre-filter of the instrumentation has to be evaluated
+     */
+    public boolean rejects(int instrumentation, String typeName) {
+        return compiled.get(instrumentation) && !getCandidates(typeName).get(instrumentation);
+    }
+
+    boolean isCompiled(int instrumentation) {
+        return compiled.get(instrumentation);
+    }
+
+    private BitSet getCandidates(String typeName) {
+        LastLookup last = lastLookup.get();
+        if (typeName.equals(last.typeName)) {
+            return last.candidates;
+        }
+        BitSet candidates = last.candidates;
+        candidates.clear();
+        for (int i = 0, end = typeName.length() - MIN_TOKEN_LENGTH; i <= end; i++) {
+            int bucket = bucket(typeName.charAt(i), typeName.charAt(i + 1), typeName.charAt(i + 2));
+            if ((bloomFilter[bucket >>> 6] & (1L << bucket)) != 0) {
+                for (Token token : tokensByBucket[bucket]) {
+                    if (typeName.regionMatches(true, i, token.value, 0, token.value.length())) {
+                        candidates.or(token.instrumentations);
+                    }
+                }
+            }
+        }
+        last.typeName = typeName;
+        return candidates;
+    }
+
+    private static int bucket(char c0, char c1, char c2) {
+        int hash = (Character.toLowerCase(c0) * 31 + Character.toLowerCase(c1)) * 31 + Character.toLowerCase(c2);
+        return (hash * 0x9E3779B9) >>> (Integer.SIZE - BLOOM_FILTER_BITS_LOG2);
+    }
+
+    /**
+     * Returns the tokens of which at least one is contained in each name the matcher matches.
+     *
+     * @param matcher a matcher of {@link net.bytebuddy.description.NamedElement}s or of {@link String}s
+     * @return the tokens, or {@code null} if the matcher can't be compiled
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    static Set<String> getTokens(ElementMatcher<?> matcher) {
+        try {
+            if (matcher instanceof NameMatcher) {
+                return getTokens((ElementMatcher<?>) get(NAME_MATCHER_MATCHER, matcher));
+            } else if (matcher instanceof StringMatcher) {
+                String value = (String) get(STRING_MATCHER_VALUE, matcher);
+                if (get(STRING_MATCHER_MODE, matcher) == StringMatcher.Mode.MATCHES || value.length() < MIN_TOKEN_LENGTH) {
+                    return null;
+                }
+                // a name that starts with, ends with or equals the value also contains it
+                return Collections.singleton(value);
+            } else if (matcher instanceof ElementMatcher.Junction.Disjunction) {
+                // at least one of the alternatives has to match
+                Set<String> tokens = new HashSet<>();
+                for (ElementMatcher<?> alternative : (List<ElementMatcher<?>>) get(DISJUNCTION_MATCHERS, matcher)) {
+                    Set<String> tokensOfAlternative = getTokens(alternative);
+                    if (tokensOfAlternative == null) {
+                        return null;
+                    }
+                    tokens.addAll(tokensOfAlternative);
+                }
+                return tokens;
+            } else if (matcher instanceof ElementMatcher.Junction.Conjunction) {
+                // all parts have to match, so the tokens of any part will do
+                Set<String> tokens = null;
+                for (ElementMatcher<?> part : (List<ElementMatcher<?>>) get(CONJUNCTION_MATCHERS, matcher)) {
+                    Set<String> tokensOfPart = getTokens(part);
+                    if (tokensOfPart != null && (tokens == null || tokensOfPart.size() < tokens.size())) {
+                        tokens = tokensOfPart;
+                    }
+                }
+                return tokens;
+            } else if (matcher instanceof BooleanMatcher && !((Boolean) get(BOOLEAN_MATCHER_MATCHES, matcher))) {
+                return Collections.emptySet();
+            }
+        } catch (Exception e) {
+            logger.debug("Can't compile name pre-filter {}: {}", matcher, e.getMessage());
+        }
+        return null;
+    }
+
+    private static Object get(@Nullable Field field, Object target) throws IllegalAccessException {
+        if (field == null) {
+            throw new IllegalStateException("Unsupported matcher");
+        }
+        return field.get(target);
+    }
+
+    @Nullable
+    private static Field getField(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static class Token {
+        private final String value;
+        private final BitSet instrumentations = new BitSet();
+
+        private Token(String value) {
+            this.value = value;
+        }
+    }
+
+    private static class LastLookup {
+        @Nullable
+        private String typeName;
+        private final BitSet candidates = new BitSet();
+    }
+}
@@ -45,9 +45,11 @@ import java.util.jar.JarFile;
  */
 public class ExternalPluginClassLoader extends URLClassLoader {
     private final List<String> classNames;
+    private final String pluginName;
 
     public ExternalPluginClassLoader(File pluginJar, ClassLoader agentClassLoader) throws IOException {
         super(new URL[]{pluginJar.toURI().toURL()}, agentClassLoader);
+        pluginName = pluginJar.getName();
         classNames = Collections.unmodifiableList(scanForClasses(pluginJar));
         if (classNames.contains(ElasticApmInstrumentation.class.getName())) {
             throw new IllegalStateException("The plugin %s contains the plugin SDK. Please make sure the scope for the dependency apm-agent-plugin-sdk is set to provided.");
@@ -72,4 +74,8 @@ public class ExternalPluginClassLoader extends URLClassLoader {
         return classNames;
     }
 
+    public String getPluginName() {
+        return pluginName;
+    }
+
 }
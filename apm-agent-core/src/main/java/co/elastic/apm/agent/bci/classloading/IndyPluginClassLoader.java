@@ -27,6 +27,8 @@ package co.elastic.apm.agent.bci.classloading;
 import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The plugin class loader has both the agent class loader and the target class loader as the parent.
@@ -36,6 +38,10 @@ import java.util.Map;
  * @see co.elastic.apm.agent.bci.IndyBootstrap
  */
 public class IndyPluginClassLoader extends ByteArrayClassLoader.ChildFirst {
+
+    private final AtomicInteger definedClassCount = new AtomicInteger();
+    private final AtomicLong definedClassBytes = new AtomicLong();
+
     public IndyPluginClassLoader(ClassLoader targetClassLoader, ClassLoader agentClassLoader, Map<String, byte[]> typeDefinitions) {
         super(new IndyPluginClassLoaderParent(agentClassLoader, targetClassLoader), true, typeDefinitions, PersistenceHandler.MANIFEST);
     }
@@ -43,4 +49,32 @@ public class IndyPluginClassLoader extends ByteArrayClassLoader.ChildFirst {
     public IndyPluginClassLoader(ClassLoader agentClassLoader, Map<String, byte[]> typeDefinitions) {
         super(agentClassLoader, true, typeDefinitions, PersistenceHandler.MANIFEST);
     }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] binaryRepresentation = typeDefinitions.get(name);
+        Class<?> type = super.findClass(name);
+        if (binaryRepresentation != null) {
+            definedClassCount.incrementAndGet();
+            definedClassBytes.addAndGet(binaryRepresentation.length);
+        }
+        return type;
+    }
+
+    /**
+     * @return the number of plugin classes this class loader has defined so far
+     */
+    public int getDefinedClassCount() {
+        return definedClassCount.get();
+    }
+
+    /**
+     * Returns the size of the class files of all plugin classes this class loader has defined so far.
+     * This is an approximation of the metaspace used by this class loader.
+     *
+     * @return the size of the class files of all plugin classes this class loader has defined so far
+     */
+    public long getDefinedClassBytes() {
+        return definedClassBytes.get();
+    }
 }
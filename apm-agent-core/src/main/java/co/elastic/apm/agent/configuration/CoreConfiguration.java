@@ -181,6 +181,73 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .addValidator(isInRange(0d, 1d))
         .buildWithDefault(1.0);
 
+    private final ConfigurationOption<Double> sampleTargetThroughput = ConfigurationOption.doubleOption()
+        .key("transaction_sample_target_throughput")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.24.1]", "performance", "experimental")
+        .description("When set to a value greater than `0`, the agent adapts the sample rate to the current load,\n" +
+            "so that each combination of transaction name and type is sampled at most approximately this number of times per second.\n" +
+            "\n" +
+            "The throughput of each transaction name and type is measured over a sliding window of 5 seconds.\n" +
+            "As the sampling decision is made when a transaction starts, and the name is usually only known when it ends,\n" +
+            "a single effective sample rate is derived from these measurements and applied to all transactions.\n" +
+            "It never exceeds <<config-transaction-sample-rate>>.\n" +
+            "The effective sample rate is propagated downstream, so that metrics extrapolated from sampled transactions stay accurate.\n" +
+            "\n" +
+            "Only transactions which don't continue a trace started by another service are affected,\n" +
+            "as the sampling decision of the others is made upstream.")
+        .dynamic(true)
+        .addValidator(isInRange(0d, 1000000d))
+        .buildWithDefault(0d);
+
+    private final ConfigurationOption<Boolean> tailSamplingEnabled = ConfigurationOption.booleanOption()
+        .key("tail_sampling_enabled")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When enabled, transactions that are not sampled according to <<config-transaction-sample-rate>>\n" +
+            "are still recorded, together with their spans.\n" +
+            "The spans are held in a bounded in-memory buffer until the transaction ends.\n" +
+            "If the transaction has failed, if an error has been captured within it,\n" +
+            "or if it took at least <<config-tail-sampling-min-duration>>, the transaction and its spans are reported.\n" +
+            "Otherwise, the transaction is reported as a non-sampled transaction and its spans are discarded.\n" +
+            "\n" +
+            "This allows to keep all slow or failed traces with a low sample rate.\n" +
+            "Note that the overhead of recording a transaction is similar to the overhead of sampling it.\n" +
+            "The decision is local to this service: downstream services are told that the trace is not sampled.\n" +
+            "Kept transactions and spans are reported with a sample rate of `0`,\n" +
+            "so that they are not counted again by the APM Server when it extrapolates the sampled transactions.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> tailSamplingMinDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("tail_sampling_min_duration")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When <<config-tail-sampling-enabled>> is set,\n" +
+            "non-sampled transactions that take at least this long are reported, including their spans.\n" +
+            "Set to `0ms` to only keep transactions that have failed or that captured an error.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("500ms"));
+
+    private final ConfigurationOption<Integer> tailSamplingMaxBufferedSpans = ConfigurationOption.integerOption()
+        .key("tail_sampling_max_buffered_spans")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("The maximum number of spans that are held in memory while waiting for their transaction to end.\n" +
+            "When this limit is reached, further spans of non-sampled transactions are discarded,\n" +
+            "which is counted in the `agent.tail_sampling.evicted` metric.")
+        .addValidator(isInRange(0, 100000))
+        .buildWithDefault(1000);
+
+    private final ConfigurationOption<TimeDuration> tailSamplingBufferTimeout = TimeDurationValueConverter.durationOption("s")
+        .key("tail_sampling_buffer_timeout")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("The maximum time the spans of a trace are held in memory while waiting for their transaction to end.\n" +
+            "Spans of transactions that take longer than that to end are discarded.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("30s"));
+
     private final ConfigurationOption<Integer> transactionMaxSpans = ConfigurationOption.integerOption()
         .key("transaction_max_spans")
         .configurationCategory(CORE_CATEGORY)
@@ -344,6 +411,35 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "exist and use it to dump bytecode of instrumented classes.")
         .buildWithDefault("");
 
+    private final ConfigurationOption<String> typeMatchingCacheDir = ConfigurationOption.stringOption()
+        .key("type_matching_cache_dir")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.24.1]", "performance", "experimental")
+        .description("When set, the agent persists the results of matching classes against its instrumentations in this directory\n" +
+            "and re-uses them on the next start, which speeds up the startup of applications with many classes.\n" +
+            "The results are specific to the agent version and the enabled instrumentations,\n" +
+            "and are keyed by the checksum of the jar a class is loaded from.\n" +
+            "Classes that are not loaded from a jar are always matched.\n" +
+            "\n" +
+            "NOTE: Delete the cache after replacing a library without replacing the jars that depend on it.")
+        .dynamic(false)
+        .buildWithDefault("");
+
+    private final ConfigurationOption<Integer> retransformationParallelism = ConfigurationOption.integerOption()
+        .key("retransformation_parallelism")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("added[1.24.1]", "performance", "experimental")
+        .description("When attaching the agent at runtime and this option is set to a value greater than `0`,\n" +
+            "the classes that are already loaded are matched against the instrumentations on this number of threads.\n" +
+            "Only the matching classes are retransformed, in batches whose size adapts to how long the retransformation of a batch takes.\n" +
+            "This speeds up runtime attachment to applications with many loaded classes.\n" +
+            "When set to `0`, the classes are matched on the attaching thread and retransformed in batches of 100 classes.\n" +
+            "\n" +
+            "This option has no effect when the agent is started with the `-javaagent` flag.")
+        .dynamic(false)
+        .addValidator(isInRange(0, 256))
+        .buildWithDefault(0);
+
     private final ConfigurationOption<Boolean> typeMatchingWithNamePreFilter = ConfigurationOption.booleanOption()
         .key("enable_type_matching_name_pre_filtering")
         .configurationCategory(CORE_CATEGORY)
@@ -514,6 +610,22 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .description("Disables the collection of breakdown metrics (`span.self_time`)")
         .buildWithDefault(true);
 
+    private final ConfigurationOption<Boolean> transactionDurationHistogram = ConfigurationOption.booleanOption()
+        .key("transaction_duration_histogram")
+        .tags("added[1.24.1]", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When enabled, the agent records a latency histogram per transaction name and type (`transaction.duration.histogram`),\n" +
+            "in addition to the sum and count of `transaction.duration`.\n" +
+            "This allows to calculate percentiles like the 95th or 99th percentile of the duration of transactions,\n" +
+            "including non-sampled ones.\n" +
+            "\n" +
+            "The histogram has a fixed number of buckets so that the memory used for each transaction name is bounded.\n" +
+            "The relative error of the recorded durations is at most 12.5%.\n" +
+            "\n" +
+            "NOTE: Histogram metrics require APM Server 7.11 or newer.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
     private final ConfigurationOption<String> configFileLocation = ConfigurationOption.stringOption()
         .key(CONFIG_FILE)
         .tags("added[1.8.0]")
@@ -583,6 +695,43 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(TimeDuration.of("0ms"));
 
+    private final ConfigurationOption<Boolean> spanCompressionEnabled = ConfigurationOption.booleanOption()
+        .key("span_compression_enabled")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("Setting this option to true will enable span compression.\n" +
+            "Consecutive exit spans of the same parent, such as the queries of an N+1 problem,\n" +
+            "are merged into a single composite span that records how many spans it represents and their summed duration.\n" +
+            "This reduces the load on the agent, the APM Server and Elasticsearch and makes such traces easier to read.\n" +
+            "\n" +
+            "Only exit spans that are not discarded, that don't propagate the trace context and that have not failed are compressed.\n" +
+            "See <<config-span-compression-exact-match-max-duration>> and <<config-span-compression-same-kind-max-duration>>\n" +
+            "for the two strategies that determine which spans are merged.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> spanCompressionExactMatchMaxDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("span_compression_exact_match_max_duration")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("Consecutive spans that are exact match and that are under this threshold will be compressed into a single composite span.\n" +
+            "Spans are considered an exact match if they have the same name, type, subtype and destination resource.\n" +
+            "This option has no effect unless <<config-span-compression-enabled>> is set to `true`.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("50ms"));
+
+    private final ConfigurationOption<TimeDuration> spanCompressionSameKindMaxDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("span_compression_same_kind_max_duration")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(CORE_CATEGORY)
+        .description("Consecutive spans to the same destination that are under this threshold will be compressed into a single composite span.\n" +
+            "Spans are considered to be of the same kind if they have the same type, subtype and destination resource.\n" +
+            "As the names of such spans may differ, the composite span is named after its destination,\n" +
+            "for example `Calls to mysql`.\n" +
+            "This option has no effect unless <<config-span-compression-enabled>> is set to `true`.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("5ms"));
+
     private final ConfigurationOption<CloudProvider> cloudProvider = ConfigurationOption.enumOption(CloudProvider.class)
         .key("cloud_provider")
         .tags("added[1.21.0]")
@@ -650,6 +799,26 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return sampleRate;
     }
 
+    public ConfigurationOption<Double> getSampleTargetThroughput() {
+        return sampleTargetThroughput;
+    }
+
+    public boolean isTailSamplingEnabled() {
+        return tailSamplingEnabled.get();
+    }
+
+    public TimeDuration getTailSamplingMinDuration() {
+        return tailSamplingMinDuration.get();
+    }
+
+    public int getTailSamplingMaxBufferedSpans() {
+        return tailSamplingMaxBufferedSpans.get();
+    }
+
+    public TimeDuration getTailSamplingBufferTimeout() {
+        return tailSamplingBufferTimeout.get();
+    }
+
     public int getTransactionMaxSpans() {
         return transactionMaxSpans.get();
     }
@@ -687,6 +856,15 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return bytecodeDumpPath.get();
     }
 
+    @Nullable
+    public String getTypeMatchingCacheDir() {
+        return typeMatchingCacheDir.get();
+    }
+
+    public int getRetransformationParallelism() {
+        return retransformationParallelism.get();
+    }
+
     public boolean isTypeMatchingWithNamePreFilter() {
         return typeMatchingWithNamePreFilter.get();
     }
@@ -727,6 +905,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return breakdownMetrics.get();
     }
 
+    public boolean isTransactionDurationHistogramEnabled() {
+        return transactionDurationHistogram.get();
+    }
+
     public boolean isElasticTraceparentHeaderEnabled() {
         return useElasticTraceparentHeader.get();
     }
@@ -739,6 +921,18 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return spanMinDuration.get();
     }
 
+    public boolean isSpanCompressionEnabled() {
+        return spanCompressionEnabled.get();
+    }
+
+    public TimeDuration getSpanCompressionExactMatchMaxDuration() {
+        return spanCompressionExactMatchMaxDuration.get();
+    }
+
+    public TimeDuration getSpanCompressionSameKindMaxDuration() {
+        return spanCompressionSameKindMaxDuration.get();
+    }
+
     /*
      * Makes sure to not initialize ConfigurationOption, which would initialize the logger
      */
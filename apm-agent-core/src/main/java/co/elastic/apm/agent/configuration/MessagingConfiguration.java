@@ -25,6 +25,8 @@
 package co.elastic.apm.agent.configuration;
 
 import co.elastic.apm.agent.bci.VisibleForAdvice;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import co.elastic.apm.agent.configuration.converter.TimeDurationValueConverter;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
 import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
@@ -86,6 +88,43 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(Boolean.TRUE);
 
+    private final ConfigurationOption<BatchStrategy> messageBatchStrategy = ConfigurationOption.enumOption(BatchStrategy.class)
+        .key("message_batch_strategy")
+        .configurationCategory(MESSAGING_CATEGORY)
+        .tags("added[1.24.1]", "performance", "experimental")
+        .description("Determines whether the agent creates a transaction for each message that is iterated over after a batch \n" +
+            "of messages has been polled (`SINGLE_HANDLING`), or a single transaction for the whole batch (`BATCH_HANDLING`). \n" +
+            "A batch transaction contains links to the traces of the producers of its messages, \n" +
+            "which reduces the number of transactions considerably for consumers that poll large batches. \n" +
+            "\n" +
+            "This option is case-insensitive and is only relevant for Kafka.")
+        .dynamic(true)
+        .buildWithDefault(BatchStrategy.SINGLE_HANDLING);
+
+    private final ConfigurationOption<List<WildcardMatcher>> messageBatchDestinations = ConfigurationOption
+        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .key("message_batch_destinations")
+        .configurationCategory(MESSAGING_CATEGORY)
+        .tags("added[1.24.1]", "performance", "experimental")
+        .description("The JMS queues and topics and the RabbitMQ exchanges whose messages are aggregated into batch transactions, \n" +
+            "instead of creating a transaction for each message that is delivered to a message listener or consumer. \n" +
+            "A batch transaction covers the messages of a destination that are delivered within <<config-message-batch-window>>. \n" +
+            "It records the number of messages as a label and links to the traces of up to 1000 messages. \n" +
+            "The age of the messages is recorded in the `messaging.message.age.histogram` metric, labelled by destination. \n" +
+            "Spans created while handling a message are children of the batch transaction.\n" +
+            "\n" +
+            WildcardMatcher.DOCUMENTATION)
+        .dynamic(true)
+        .buildWithDefault(Collections.<WildcardMatcher>emptyList());
+
+    private final ConfigurationOption<TimeDuration> messageBatchWindow = TimeDurationValueConverter.durationOption("ms")
+        .key("message_batch_window")
+        .configurationCategory(MESSAGING_CATEGORY)
+        .tags("added[1.24.1]", "performance", "experimental")
+        .description("The duration of the batch transactions of the <<config-message-batch-destinations>>.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("1s"));
+
     public MessagingConfiguration.Strategy getMessagePollingTransactionStrategy() {
         return messagePollingTransactionStrategy.get();
     }
@@ -104,10 +143,27 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
         return endMessagingTransactionOnPoll.get();
     }
 
+    public BatchStrategy getMessageBatchStrategy() {
+        return messageBatchStrategy.get();
+    }
+
+    public List<WildcardMatcher> getMessageBatchDestinations() {
+        return messageBatchDestinations.get();
+    }
+
+    public TimeDuration getMessageBatchWindow() {
+        return messageBatchWindow.get();
+    }
+
     @VisibleForAdvice
     public enum Strategy {
         POLLING,
         HANDLING,
         BOTH
     }
+
+    public enum BatchStrategy {
+        SINGLE_HANDLING,
+        BATCH_HANDLING
+    }
 }
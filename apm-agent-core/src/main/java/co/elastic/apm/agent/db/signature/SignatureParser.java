@@ -41,11 +41,11 @@ import static co.elastic.apm.agent.db.signature.Scanner.Token.RPAREN;
 public class SignatureParser {
 
     /**
-     * If the cache reaches this size we assume that the application creates a lot of dynamic queries.
-     * In that case it's inefficient to try to cache these as they are not likely to be repeated.
-     * But we still pay the price of allocating a Map.Entry and a String for the signature.
+     * The maximum size of each of the two cache generations.
+     * If an application creates a lot of dynamic queries, they are evicted along with the young generation,
+     * instead of filling up the cache and preventing queries that are repeated from being cached.
      */
-    private static final int DISABLE_CACHE_THRESHOLD = 512;
+    private static final int CACHE_GENERATION_SIZE = 512;
     /**
      * The cache management overhead is probably not worth it for short queries
      */
@@ -61,9 +61,19 @@ public class SignatureParser {
      * Not using weak keys because ORMs like Hibernate generate equal SQL strings for the same query but don't reuse the same string instance.
      * When relying on weak keys, we would not leverage any caching benefits if the query string is collected.
      * That means that we are leaking Strings but as the size of the map is limited that should not be an issue.
+     * <p>
+     * Repeated executions of the same prepared statement look up the same string instance,
+     * so that a hit only costs the cached {@link String#hashCode()} and an identity comparison.
+     * </p>
+     * <p>
+     * New signatures are added to the young generation.
+     * When it's full, it replaces the old generation, which is dropped along with the queries that have not been executed since.
+     * Hits in the old generation are copied to the young one, so that frequently executed queries stay cached.
+     * This approximates a LRU cache without any bookkeeping on cache hits.
+     * </p>
      */
-    private final ConcurrentMap<String, String[]> signatureCache = new ConcurrentHashMap<String, String[]>(DISABLE_CACHE_THRESHOLD,
-            0.5f, Runtime.getRuntime().availableProcessors());
+    private volatile ConcurrentMap<String, String[]> youngSignatureCache = newSignatureCache();
+    private volatile ConcurrentMap<String, String[]> oldSignatureCache = newSignatureCache();
 
     public SignatureParser() {
         this(new Callable<Scanner>() {
@@ -96,7 +106,7 @@ public class SignatureParser {
             && QUERY_LENGTH_CACHE_LOWER_THRESHOLD < query.length()
             && query.length() < QUERY_LENGTH_CACHE_UPPER_THRESHOLD;
         if (cacheable) {
-            final String[] cachedSignature = signatureCache.get(query);
+            final String[] cachedSignature = getCachedSignature(query);
             if (cachedSignature != null) {
                 signature.append(cachedSignature[0]);
                 if (dbLink != null) {
@@ -109,12 +119,41 @@ public class SignatureParser {
         scanner.setQuery(query);
         parse(scanner, query, signature, dbLink);
 
-        if (cacheable && signatureCache.size() <= DISABLE_CACHE_THRESHOLD) {
-            // we don't mind a small overshoot due to race conditions
-            signatureCache.put(query, new String[]{signature.toString(), dbLink != null ? dbLink.toString() : ""});
+        if (cacheable) {
+            cacheSignature(query, new String[]{signature.toString(), dbLink != null ? dbLink.toString() : ""});
         }
     }
 
+    @Nullable
+    private String[] getCachedSignature(String query) {
+        String[] cachedSignature = youngSignatureCache.get(query);
+        if (cachedSignature == null) {
+            cachedSignature = oldSignatureCache.get(query);
+            if (cachedSignature != null) {
+                cacheSignature(query, cachedSignature);
+            }
+        }
+        return cachedSignature;
+    }
+
+    private void cacheSignature(String query, String[] signature) {
+        ConcurrentMap<String, String[]> youngSignatureCache = this.youngSignatureCache;
+        youngSignatureCache.put(query, signature);
+        if (youngSignatureCache.size() >= CACHE_GENERATION_SIZE) {
+            synchronized (this) {
+                // we don't mind a small overshoot due to race conditions, but only one thread should promote the young generation
+                if (this.youngSignatureCache == youngSignatureCache) {
+                    oldSignatureCache = youngSignatureCache;
+                    this.youngSignatureCache = newSignatureCache();
+                }
+            }
+        }
+    }
+
+    private static ConcurrentMap<String, String[]> newSignatureCache() {
+        return new ConcurrentHashMap<String, String[]>(CACHE_GENERATION_SIZE, 0.5f, Runtime.getRuntime().availableProcessors());
+    }
+
     private void parse(Scanner scanner, String query, StringBuilder signature, @Nullable StringBuilder dbLink) {
         final Scanner.Token firstToken = scanner.scanWhile(Scanner.Token.COMMENT);
         switch (firstToken) {
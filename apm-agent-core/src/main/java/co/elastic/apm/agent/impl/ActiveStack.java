@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+
+import javax.annotation.Nullable;
+
+/**
+ * An array-based stack of the spans and transactions which are active on a thread.
+ * <p>
+ * Compared to a {@link java.util.ArrayDeque}, this only supports the operations needed for activation,
+ * without the wrap-around index arithmetic of a double-ended queue.
+ * The bottom of the stack, which is usually the transaction, can be accessed directly.
+ * </p>
+ * <p>
+ * The array only grows if the activation depth exceeds its capacity, which is rare,
+ * so that activating and deactivating does not allocate.
+ * Virtual threads are usually short-lived and only activate a few spans,
+ * that's why their stacks start with a lower capacity.
+ * </p>
+ * <p>
+ * Not thread safe, each instance must only be accessed by the thread it belongs to.
+ * </p>
+ */
+final class ActiveStack {
+
+    static final int INITIAL_CAPACITY = 16;
+    static final int VIRTUAL_THREAD_INITIAL_CAPACITY = 4;
+
+    private AbstractSpan<?>[] stack;
+    private int size;
+
+    ActiveStack(int initialCapacity) {
+        stack = new AbstractSpan<?>[initialCapacity];
+    }
+
+    void push(AbstractSpan<?> span) {
+        if (size == stack.length) {
+            AbstractSpan<?>[] grown = new AbstractSpan<?>[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, size);
+            stack = grown;
+        }
+        stack[size++] = span;
+    }
+
+    /**
+     * @return the previous top of the stack, or {@code null} if the stack is empty
+     */
+    @Nullable
+    AbstractSpan<?> pop() {
+        if (size == 0) {
+            return null;
+        }
+        AbstractSpan<?> top = stack[--size];
+        // avoids retaining a reference to a span which may be recycled
+        stack[size] = null;
+        return top;
+    }
+
+    @Nullable
+    AbstractSpan<?> peek() {
+        return size > 0 ? stack[size - 1] : null;
+    }
+
+    @Nullable
+    AbstractSpan<?> peekBottom() {
+        return size > 0 ? stack[0] : null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return stack.length;
+    }
+}
@@ -29,8 +29,10 @@ import co.elastic.apm.agent.configuration.ServiceNameUtil;
 import co.elastic.apm.agent.context.ClosableLifecycleListenerAdapter;
 import co.elastic.apm.agent.context.LifecycleListener;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.sampling.AdaptiveSampler;
 import co.elastic.apm.agent.impl.sampling.ProbabilitySampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.sampling.TailSamplingBuffer;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.BinaryHeaderGetter;
@@ -39,10 +41,13 @@ import co.elastic.apm.agent.impl.transaction.TextHeaderGetter;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.objectpool.ObjectPool;
 import co.elastic.apm.agent.objectpool.ObjectPoolFactory;
 import co.elastic.apm.agent.premain.JvmRuntimeInfo;
+import co.elastic.apm.agent.premain.ThreadUtils;
 import co.elastic.apm.agent.report.ApmServerClient;
 import co.elastic.apm.agent.report.Reporter;
 import co.elastic.apm.agent.report.ReporterConfiguration;
@@ -58,13 +63,14 @@ import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nullable;
 import java.io.Closeable;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -76,6 +82,8 @@ import java.util.concurrent.ThreadPoolExecutor;
 public class ElasticApmTracer implements Tracer {
     private static final Logger logger = LoggerFactory.getLogger(ElasticApmTracer.class);
 
+    static final String OBJECT_POOL_GARBAGE_CREATED_METRIC = "agent.objectpool.garbage_created";
+    static final String OBJECT_POOL_SIZE_METRIC = "agent.objectpool.size";
     private static final WeakConcurrentMap<ClassLoader, String> serviceNameByClassLoader = WeakMapSupplier.createMap();
 
     private final ConfigurationRegistry configurationRegistry;
@@ -85,15 +93,18 @@ public class ElasticApmTracer implements Tracer {
     private final ObjectPool<Transaction> transactionPool;
     private final ObjectPool<Span> spanPool;
     private final ObjectPool<ErrorCapture> errorPool;
+    private final TailSamplingBuffer tailSamplingBuffer;
     private final Reporter reporter;
     private final ObjectPoolFactory objectPoolFactory;
     // Maintains a stack of all the activated spans
     // This way its easy to retrieve the bottom of the stack (the transaction)
     // Also, the caller does not have to keep a reference to the previously active span, as that is maintained by the stack
-    private final ThreadLocal<Deque<AbstractSpan<?>>> activeStack = new ThreadLocal<Deque<AbstractSpan<?>>>() {
+    private final ThreadLocal<ActiveStack> activeStack = new ThreadLocal<ActiveStack>() {
         @Override
-        protected Deque<AbstractSpan<?>> initialValue() {
-            return new ArrayDeque<AbstractSpan<?>>();
+        protected ActiveStack initialValue() {
+            return new ActiveStack(ThreadUtils.isVirtual(Thread.currentThread())
+                ? ActiveStack.VIRTUAL_THREAD_INITIAL_CAPACITY
+                : ActiveStack.INITIAL_CAPACITY);
         }
     };
 
@@ -143,22 +154,52 @@ public class ElasticApmTracer implements Tracer {
 
         // we are assuming that we don't need as many errors as spans or transactions
         errorPool = poolFactory.createErrorPool(maxPooledElements / 2, this);
+        registerObjectPoolMetrics("transaction", transactionPool);
+        registerObjectPoolMetrics("span", spanPool);
+        registerObjectPoolMetrics("error", errorPool);
 
-        sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
-        coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
+        sampler = createSampler();
+        ConfigurationOption.ChangeListener<Double> samplerChangeListener = new ConfigurationOption.ChangeListener<Double>() {
             @Override
             public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
-                sampler = ProbabilitySampler.of(newValue);
+                sampler = createSampler();
             }
-        });
+        };
+        coreConfiguration.getSampleRate().addChangeListener(samplerChangeListener);
+        coreConfiguration.getSampleTargetThroughput().addChangeListener(samplerChangeListener);
         this.activationListeners = DependencyInjectingServiceLoader.load(ActivationListener.class, this);
         sharedPool = ExecutorUtils.createSingleThreadSchedulingDaemonPool("shared");
+        tailSamplingBuffer = new TailSamplingBuffer(coreConfiguration, metricRegistry);
 
         // sets the assertionsEnabled flag to true if indeed enabled
         //noinspection AssertWithSideEffects
         assert assertionsEnabled = true;
     }
 
+    private void registerObjectPoolMetrics(String poolName, final ObjectPool<?> pool) {
+        metricRegistry.add(OBJECT_POOL_GARBAGE_CREATED_METRIC, Labels.Mutable.of("pool", poolName), new DoubleSupplier() {
+            @Override
+            public double get() {
+                return pool.getGarbageCreated();
+            }
+        });
+        metricRegistry.add(OBJECT_POOL_SIZE_METRIC, Labels.Mutable.of("pool", poolName), new DoubleSupplier() {
+            @Override
+            public double get() {
+                return pool.getObjectsInPool();
+            }
+        });
+    }
+
+    private Sampler createSampler() {
+        double sampleRate = coreConfiguration.getSampleRate().get();
+        double targetThroughput = coreConfiguration.getSampleTargetThroughput().get();
+        if (targetThroughput > 0) {
+            return new AdaptiveSampler(targetThroughput, sampleRate);
+        }
+        return ProbabilitySampler.of(sampleRate);
+    }
+
     @Override
     @Nullable
     public Transaction startRootTransaction(@Nullable ClassLoader initiatingClassLoader) {
@@ -226,6 +267,9 @@ public class ElasticApmTracer implements Tracer {
         if (serviceName != null) {
             transaction.getTraceContext().setServiceName(serviceName);
         }
+        if (!transaction.isSampled() && coreConfiguration.isTailSamplingEnabled()) {
+            transaction.getTraceContext().recordForTailSampling();
+        }
     }
 
     public Transaction noopTransaction() {
@@ -244,7 +288,7 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public Transaction currentTransaction() {
-        final AbstractSpan<?> bottomOfStack = activeStack.get().peekLast();
+        final AbstractSpan<?> bottomOfStack = activeStack.get().peekBottom();
         return bottomOfStack != null ? bottomOfStack.getTransaction() : null;
     }
 
@@ -329,6 +373,10 @@ public class ElasticApmTracer implements Tracer {
                 error.asChildOf(parent);
                 // don't discard spans leading up to an error, otherwise they'd point to an invalid parent
                 parent.setNonDiscardable();
+                Transaction parentTransaction = parent.getTransaction();
+                if (parentTransaction != null) {
+                    parentTransaction.onErrorCaptured();
+                }
             } else {
                 error.getTraceContext().getId().setToRandomValue();
                 error.getTraceContext().setServiceName(getServiceName(initiatingClassLoader));
@@ -355,6 +403,13 @@ public class ElasticApmTracer implements Tracer {
             }
         }
         if (!transaction.isNoop()) {
+            if (transaction.getTraceContext().isTailSamplingCandidate() && !transaction.isTailSamplingDecided()) {
+                applyTailSamplingDecision(transaction);
+            }
+            Sampler currentSampler = sampler;
+            if (currentSampler instanceof AdaptiveSampler) {
+                ((AdaptiveSampler) currentSampler).onTransactionEnd(transaction);
+            }
             // we do report non-sampled transactions (without the context)
             reporter.report(transaction);
         } else {
@@ -362,10 +417,45 @@ public class ElasticApmTracer implements Tracer {
         }
     }
 
+    private void applyTailSamplingDecision(Transaction transaction) {
+        boolean keep = tailSamplingBuffer.shouldKeep(transaction);
+        List<Span> keptSpans = keep ? new ArrayList<Span>() : Collections.<Span>emptyList();
+        tailSamplingBuffer.onTransactionEnd(transaction, keep, keptSpans);
+        for (int i = 0; i < keptSpans.size(); i++) {
+            reportSpan(keptSpans.get(i));
+        }
+    }
+
     public void endSpan(Span span) {
+        if (dropIfDiscarded(span)) {
+            return;
+        }
+        if (span.getTraceContext().isTailSamplingCandidate()) {
+            if (tailSamplingBuffer.offer(span)) {
+                return;
+            }
+            // the transaction has already been kept or dropped
+            Transaction transaction = span.getTransaction();
+            if (transaction == null || !transaction.isSampled()) {
+                span.decrementReferences();
+                return;
+            }
+        }
+        reportSpan(span);
+    }
+
+    /**
+     * Drops an ended span if it is not sampled, or if it is discarded, for example because it's faster than
+     * {@link CoreConfiguration#getSpanMinDuration() span_min_duration}.
+     * Ended spans go through this check before they are either reported or compressed into a sibling.
+     *
+     * @param span an ended span
+     * @return {@code true} if the span has been dropped, in which case its reference has been released
+     */
+    public boolean dropIfDiscarded(Span span) {
         if (!span.isSampled()) {
             span.decrementReferences();
-            return;
+            return true;
         }
         if (span.getDuration() < coreConfiguration.getSpanMinDuration().getMillis() * 1000) {
             logger.debug("Span faster than span_min_duration. Request discarding {}", span);
@@ -378,9 +468,9 @@ public class ElasticApmTracer implements Tracer {
                 transaction.getSpanCount().getDropped().incrementAndGet();
             }
             span.decrementReferences();
-            return;
+            return true;
         }
-        reportSpan(span);
+        return false;
     }
 
     private void reportSpan(Span span) {
@@ -394,13 +484,22 @@ public class ElasticApmTracer implements Tracer {
         }
         // makes sure that parents are also non-discardable
         span.setNonDiscardable();
+        captureStackTraceIfSlow(span);
+        reporter.report(span);
+    }
+
+    /**
+     * Captures the stack trace of the current thread if the span is slower than {@code span_frames_min_duration}.
+     * Must be called on the thread that has ended the span.
+     * That's why composite spans don't get a stack trace if only their combined duration exceeds the threshold.
+     */
+    public void captureStackTraceIfSlow(Span span) {
         long spanFramesMinDurationMs = stacktraceConfiguration.getSpanFramesMinDurationMs();
-        if (spanFramesMinDurationMs != 0 && span.isSampled() && span.getStackFrames() == null) {
+        if (spanFramesMinDurationMs != 0 && span.isSampled() && span.getStackFrames() == null && span.getStacktrace() == null && !span.isComposite()) {
             if (span.getDurationMs() >= spanFramesMinDurationMs) {
                 span.withStacktrace(new Throwable());
             }
         }
-        reporter.report(span);
     }
 
     public void endError(ErrorCapture error) {
@@ -432,12 +531,14 @@ public class ElasticApmTracer implements Tracer {
             }
         }
         ExecutorUtils.shutdownAndWaitTermination(sharedPool);
+        tailSamplingBuffer.clear();
         tracerState = TracerState.STOPPED;
         logger.info("Tracer switched to STOPPED state");
 
         try {
             configurationRegistry.close();
             reporter.close();
+            apmServerClient.close();
         } catch (Exception e) {
             logger.warn("Suppressed exception while calling stop()", e);
         }
@@ -451,6 +552,10 @@ public class ElasticApmTracer implements Tracer {
         return sampler;
     }
 
+    public TailSamplingBuffer getTailSamplingBuffer() {
+        return tailSamplingBuffer;
+    }
+
     public ObjectPoolFactory getObjectPoolFactory() {
         return objectPoolFactory;
     }
@@ -556,6 +661,12 @@ public class ElasticApmTracer implements Tracer {
         }
         apmServerClient.start();
         reporter.start();
+        sharedPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tailSamplingBuffer.evictExpired(System.nanoTime());
+            }
+        }, 1, 1, TimeUnit.SECONDS);
         for (LifecycleListener lifecycleListener : lifecycleListeners) {
             try {
                 lifecycleListener.start(this);
@@ -685,8 +796,7 @@ public class ElasticApmTracer implements Tracer {
             logger.debug("Deactivating {} on thread {}", span, Thread.currentThread().getId());
         }
         try {
-            final Deque<AbstractSpan<?>> stack = activeStack.get();
-            assertIsActive(span, stack.poll());
+            assertIsActive(span, activeStack.get().pop());
             List<ActivationListener> activationListeners = getActivationListeners();
             for (int i = 0, size = activationListeners.size(); i < size; i++) {
                 try {
@@ -119,12 +119,54 @@ public class Db implements Recyclable {
 
     /**
      * A database statement (e.g. query) for the given database type
+     * <p>
+     * Statements that exceed {@link DslJsonSerializer#MAX_LONG_STRING_VALUE_LENGTH} are truncated right away
+     * into the {@linkplain #getStatementBuffer() statement buffer},
+     * so that the span doesn't keep huge statements, such as batches of inserts, alive until it's reported.
+     * </p>
      */
     public Db withStatement(@Nullable String statement) {
+        if (statement != null && statement.length() > DslJsonSerializer.MAX_LONG_STRING_VALUE_LENGTH) {
+            return withStatementCopy(statement);
+        }
         this.statement = statement;
         return this;
     }
 
+    /**
+     * Copies the statement into the pooled {@linkplain #getStatementBuffer() statement buffer},
+     * truncating it with an ellipsis if it exceeds the capacity of the buffer.
+     * <p>
+     * Unlike {@link #withStatement(String)}, this doesn't keep a reference to the provided statement,
+     * which makes it possible to build statements in a reusable {@link StringBuilder}.
+     * </p>
+     */
+    public Db withStatementCopy(CharSequence statement) {
+        this.statement = null;
+        CharBuffer buffer = withStatementBuffer();
+        ((Buffer) buffer).clear();
+        int length = statement.length();
+        if (length > buffer.capacity()) {
+            put(statement, buffer.capacity() - 1, buffer);
+            buffer.put('…');
+        } else {
+            put(statement, length, buffer);
+        }
+        ((Buffer) buffer).flip();
+        return this;
+    }
+
+    private static void put(CharSequence value, int length, CharBuffer buffer) {
+        if (value instanceof String) {
+            // doesn't allocate, as opposed to put(CharSequence)
+            buffer.put((String) value, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                buffer.put(value.charAt(i));
+            }
+        }
+    }
+
     /**
      * Gets a pooled {@link CharBuffer} to record the DB statement and associates it with this instance.
      * <p>
@@ -251,5 +293,8 @@ public class Db implements Recyclable {
         type = other.type;
         user = other.user;
         dbLink = other.dbLink;
+        if (other.statement == null && other.statementBuffer != null) {
+            withStatementCopy(other.statementBuffer);
+        }
     }
 }
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.configuration.converter.RoundedDoubleConverter;
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link Sampler} which adapts its sample rate so that the number of sampled transactions per second
+ * stays within a configured budget for each transaction name and type.
+ * <p>
+ * The sampling decision has to be made when a transaction starts,
+ * which is before instrumentations typically set its name and type.
+ * That's why the throughput of each name/type combination is measured when transactions end,
+ * and translated into a single effective sample rate which is then applied to all transactions that start afterwards.
+ * Every key contributes at most {@code targetThroughput} transactions per second to the sampled throughput:
+ * </p>
+ * <pre>
+ * rate = min(maxSampleRate, sum(min(throughput(key), targetThroughput)) / sum(throughput(key)))
+ * </pre>
+ * <p>
+ * Implementation notes:
+ * </p>
+ * <ul>
+ *     <li>
+ *         Keys are hashed into a fixed number of slots of an {@link AtomicLongArray},
+ *         so that counting is lock-free and does not allocate.
+ *         Keys whose hashes collide share the same budget.
+ *     </li>
+ *     <li>
+ *         The throughput of a key is averaged over a sliding window of {@link #WINDOW_BUCKETS} buckets,
+ *         each one covering {@link #BUCKET_DURATION_NANOS}.
+ *         When a bucket is completed, the thread that ends the next transaction recomputes the rate.
+ *     </li>
+ *     <li>
+ *         Only root transactions are counted, as the sampling decision of other transactions is made upstream.
+ *     </li>
+ *     <li>
+ *         The sampling decision is delegated to a {@link ProbabilitySampler} which is only replaced when the
+ *         rounded rate actually changes.
+ *         This allows to propagate the effective rate via the {@code tracestate} header without allocating
+ *         a new header value for each transaction.
+ *     </li>
+ * </ul>
+ */
+public class AdaptiveSampler implements Sampler {
+
+    static final int SLOTS = 512;
+    static final int WINDOW_BUCKETS = 5;
+    static final long BUCKET_DURATION_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final RoundedDoubleConverter ROUNDED_DOUBLE_CONVERTER = RoundedDoubleConverter.withDefaultPrecision();
+    /**
+     * The smallest non-zero rate that can be represented with {@link RoundedDoubleConverter#DEFAULT_PRECISION}
+     */
+    static final double MIN_SAMPLE_RATE = 1d / Math.pow(10, RoundedDoubleConverter.DEFAULT_PRECISION);
+
+    private final double targetThroughput;
+    private final double maxSampleRate;
+    private final AtomicLongArray currentBucket = new AtomicLongArray(SLOTS);
+    /**
+     * Only accessed by the thread which has won the {@link #recomputing} flag
+     */
+    private final double[] previousBuckets = new double[SLOTS * WINDOW_BUCKETS];
+    private final AtomicLong bucketStartNanos;
+    private final AtomicBoolean recomputing = new AtomicBoolean();
+    private int previousBucketIndex;
+    private int completedBuckets;
+    private volatile Sampler delegate;
+
+    public AdaptiveSampler(double targetThroughput, double maxSampleRate) {
+        this(targetThroughput, maxSampleRate, System.nanoTime());
+    }
+
+    AdaptiveSampler(double targetThroughput, double maxSampleRate, long nanoTime) {
+        this.targetThroughput = targetThroughput;
+        this.maxSampleRate = maxSampleRate;
+        this.bucketStartNanos = new AtomicLong(nanoTime);
+        this.delegate = ProbabilitySampler.of(maxSampleRate);
+    }
+
+    @Override
+    public boolean isSampled(Id traceId) {
+        return delegate.isSampled(traceId);
+    }
+
+    /**
+     * Note that there's a small chance that the rate changes between a call to {@link #isSampled(Id)} and this method.
+     * This only leads to a negligible error when extrapolating the throughput based on the propagated rate.
+     */
+    @Override
+    public double getSampleRate() {
+        return delegate.getSampleRate();
+    }
+
+    @Override
+    public String getTraceStateHeader() {
+        return delegate.getTraceStateHeader();
+    }
+
+    /**
+     * Records an ended transaction so that its throughput is considered when recomputing the sample rate
+     *
+     * @param transaction the ended transaction
+     */
+    public void onTransactionEnd(Transaction transaction) {
+        if (transaction.getTraceContext().isRoot()) {
+            onTransactionEnd(transaction.getType(), transaction.getNameForSerialization(), System.nanoTime());
+        }
+    }
+
+    void onTransactionEnd(@Nullable String type, CharSequence name, long nanoTime) {
+        currentBucket.incrementAndGet(slot(type, name));
+        long bucketStart = bucketStartNanos.get();
+        if (nanoTime - bucketStart >= BUCKET_DURATION_NANOS && recomputing.compareAndSet(false, true)) {
+            try {
+                // re-check as another thread might just have completed the bucket
+                if (bucketStartNanos.compareAndSet(bucketStart, nanoTime)) {
+                    completeBucket(nanoTime - bucketStart);
+                }
+            } finally {
+                recomputing.set(false);
+            }
+        }
+    }
+
+    private void completeBucket(long elapsedNanos) {
+        // if there were no transactions ending for a while, the current bucket spans multiple bucket durations
+        // its counts are spread evenly across the buckets covering the elapsed time
+        int elapsedBuckets = (int) Math.max(1, Math.min(WINDOW_BUCKETS, elapsedNanos / BUCKET_DURATION_NANOS));
+        double scale = (double) BUCKET_DURATION_NANOS / elapsedNanos;
+        for (int i = 0; i < SLOTS; i++) {
+            double count = currentBucket.getAndSet(i, 0) * scale;
+            for (int bucket = 0; bucket < elapsedBuckets; bucket++) {
+                previousBuckets[((previousBucketIndex + bucket) % WINDOW_BUCKETS) * SLOTS + i] = count;
+            }
+        }
+        previousBucketIndex = (previousBucketIndex + elapsedBuckets) % WINDOW_BUCKETS;
+        completedBuckets = Math.min(completedBuckets + elapsedBuckets, WINDOW_BUCKETS);
+
+        double windowSeconds = completedBuckets * ((double) BUCKET_DURATION_NANOS / TimeUnit.SECONDS.toNanos(1));
+        double totalThroughput = 0;
+        double sampledThroughput = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            double count = 0;
+            for (int bucket = 0; bucket < completedBuckets; bucket++) {
+                count += previousBuckets[bucket * SLOTS + slot];
+            }
+            if (count > 0) {
+                double throughput = count / windowSeconds;
+                totalThroughput += throughput;
+                sampledThroughput += Math.min(throughput, targetThroughput);
+            }
+        }
+        double rate = totalThroughput > 0 ? Math.min(maxSampleRate, sampledThroughput / totalThroughput) : maxSampleRate;
+        if (rate > 0) {
+            // a rate of 0 would stop sampling altogether, no matter how low the throughput of a key gets
+            rate = Math.max(MIN_SAMPLE_RATE, ROUNDED_DOUBLE_CONVERTER.round(rate));
+        }
+        if (rate != delegate.getSampleRate()) {
+            delegate = ProbabilitySampler.of(rate);
+        }
+    }
+
+    private static int slot(@Nullable String type, CharSequence name) {
+        int hash = type != null ? type.hashCode() : 0;
+        for (int i = 0, length = name.length(); i < length; i++) {
+            hash = 31 * hash + name.charAt(i);
+        }
+        // spread the higher bits as SLOTS is a power of two
+        hash ^= hash >>> 16;
+        return hash & (SLOTS - 1);
+    }
+
+}
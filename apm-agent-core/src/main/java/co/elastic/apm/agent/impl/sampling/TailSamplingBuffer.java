@@ -0,0 +1,298 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.Outcome;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import org.jctools.queues.atomic.AtomicQueueFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.jctools.queues.spec.ConcurrentQueueSpec.createBoundedMpmc;
+
+/**
+ * Holds the spans of transactions that have not been sampled at their start until the transaction ends.
+ * <p>
+ * When {@link CoreConfiguration#isTailSamplingEnabled()} is set, non-sampled transactions are still recorded
+ * (see {@link co.elastic.apm.agent.impl.transaction.TraceContext#recordForTailSampling()}).
+ * Their spans are buffered per trace id instead of being reported.
+ * When the transaction ends, {@link #shouldKeep(Transaction)} decides whether to report or to discard them.
+ * </p>
+ * <p>
+ * The buffer is bounded by {@link CoreConfiguration#getTailSamplingMaxBufferedSpans()} and
+ * spans are evicted after {@link CoreConfiguration#getTailSamplingBufferTimeout()}, see {@link #evictExpired(long)}.
+ * </p>
+ */
+public class TailSamplingBuffer {
+
+    public static final String KEPT_METRIC = "agent.tail_sampling.kept";
+    public static final String DROPPED_METRIC = "agent.tail_sampling.dropped";
+    public static final String EVICTED_METRIC = "agent.tail_sampling.evicted";
+
+    private static final int MAX_POOLED_ENTRIES = 256;
+
+    private final CoreConfiguration coreConfiguration;
+    private final MetricRegistry metricRegistry;
+    private final ConcurrentHashMap<Id, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger bufferedSpans = new AtomicInteger();
+    private final ObjectPool<Entry> entryPool;
+
+    public TailSamplingBuffer(CoreConfiguration coreConfiguration, MetricRegistry metricRegistry) {
+        this.coreConfiguration = coreConfiguration;
+        this.metricRegistry = metricRegistry;
+        this.entryPool = QueueBasedObjectPool.ofRecyclable(AtomicQueueFactory.<Entry>newQueue(createBoundedMpmc(MAX_POOLED_ENTRIES)),
+            false, new Allocator<Entry>() {
+                @Override
+                public Entry createInstance() {
+                    return new Entry();
+                }
+            });
+    }
+
+    /**
+     * Determines whether a tail sampling candidate is reported
+     *
+     * @param transaction the transaction that has just ended
+     * @return {@code true}, if the transaction has failed, has captured errors, or is slower than
+     * {@link CoreConfiguration#getTailSamplingMinDuration()}
+     */
+    public boolean shouldKeep(Transaction transaction) {
+        if (transaction.getOutcome() == Outcome.FAILURE || transaction.hasCapturedErrors()) {
+            return true;
+        }
+        long minDurationUs = coreConfiguration.getTailSamplingMinDuration().getMillis() * 1000;
+        return minDurationUs > 0 && transaction.getDuration() >= minDurationUs;
+    }
+
+    /**
+     * Buffers an ended span of a tail sampling candidate.
+     * <p>
+     * If the buffer is full, the span is discarded.
+     * </p>
+     *
+     * @param span an ended span of a tail sampling candidate
+     * @return {@code true}, if the span has been taken over by the buffer,
+     * {@code false} if its transaction has already been decided on and the caller has to report or discard the span
+     */
+    public boolean offer(Span span) {
+        Transaction transaction = span.getTransaction();
+        if (transaction == null || transaction.isTailSamplingDecided()) {
+            return false;
+        }
+        Id traceId = span.getTraceContext().getTraceId();
+        while (true) {
+            Entry entry = getOrCreateEntry(traceId);
+            synchronized (entry) {
+                if (!entry.isLive(traceId)) {
+                    // has been removed concurrently
+                    continue;
+                }
+                // the decision is made while holding the lock of the entry, see onTransactionEnd
+                if (transaction.isTailSamplingDecided()) {
+                    return false;
+                }
+                if (bufferedSpans.incrementAndGet() > coreConfiguration.getTailSamplingMaxBufferedSpans()) {
+                    bufferedSpans.decrementAndGet();
+                    evict(span);
+                    return true;
+                }
+                entry.spans.add(span);
+                return true;
+            }
+        }
+    }
+
+    private Entry getOrCreateEntry(Id traceId) {
+        Entry entry = entries.get(traceId);
+        if (entry == null) {
+            Entry newEntry = entryPool.createInstance();
+            // a recycled entry might still be referenced by a thread which has looked it up before it has been removed
+            synchronized (newEntry) {
+                newEntry.init(traceId, System.nanoTime());
+            }
+            entry = entries.putIfAbsent(newEntry.traceId, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            } else {
+                synchronized (newEntry) {
+                    newEntry.live = false;
+                }
+                entryPool.recycle(newEntry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Applies the tail sampling decision to a transaction and to the spans that have been buffered for it.
+     *
+     * @param transaction the tail sampling candidate that has just ended
+     * @param keep        whether to keep the transaction, see {@link #shouldKeep(Transaction)}
+     * @param keptSpans   the spans of a kept transaction which have to be reported by the caller are added to this list
+     */
+    public void onTransactionEnd(Transaction transaction, boolean keep, List<Span> keptSpans) {
+        metricRegistry.incrementCounter(keep ? KEPT_METRIC : DROPPED_METRIC, Labels.EMPTY);
+        Id traceId = transaction.getTraceContext().getTraceId();
+        Entry entry = entries.get(traceId);
+        if (entry == null) {
+            transaction.onTailSamplingDecision(keep);
+            return;
+        }
+        List<Span> droppedSpans = null;
+        synchronized (entry) {
+            transaction.onTailSamplingDecision(keep);
+            if (!entry.isLive(traceId)) {
+                return;
+            }
+            for (Iterator<Span> iterator = entry.spans.iterator(); iterator.hasNext(); ) {
+                Span span = iterator.next();
+                if (span.getTransaction() == transaction) {
+                    iterator.remove();
+                    bufferedSpans.decrementAndGet();
+                    if (keep) {
+                        keptSpans.add(span);
+                    } else {
+                        if (droppedSpans == null) {
+                            droppedSpans = new ArrayList<>();
+                        }
+                        droppedSpans.add(span);
+                    }
+                }
+            }
+            if (entry.spans.isEmpty()) {
+                remove(entry);
+            }
+        }
+        if (droppedSpans != null) {
+            for (int i = 0; i < droppedSpans.size(); i++) {
+                droppedSpans.get(i).decrementReferences();
+            }
+        }
+    }
+
+    /**
+     * Discards the spans of traces which have been buffered for longer than {@link CoreConfiguration#getTailSamplingBufferTimeout()}.
+     * This only happens if their transaction has not ended in time, for example because it has been leaked.
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     */
+    public void evictExpired(long nowNanos) {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(coreConfiguration.getTailSamplingBufferTimeout().getMillis());
+        for (Entry entry : entries.values()) {
+            if (nowNanos - entry.createdNanos >= timeoutNanos) {
+                evict(entry);
+            }
+        }
+    }
+
+    /**
+     * Discards all buffered spans
+     */
+    public void clear() {
+        for (Entry entry : entries.values()) {
+            evict(entry);
+        }
+    }
+
+    private void evict(Entry entry) {
+        List<Span> evicted;
+        synchronized (entry) {
+            if (!entry.live) {
+                return;
+            }
+            evicted = new ArrayList<>(entry.spans);
+            bufferedSpans.addAndGet(-evicted.size());
+            remove(entry);
+        }
+        for (int i = 0; i < evicted.size(); i++) {
+            evict(evicted.get(i));
+        }
+    }
+
+    private void evict(Span span) {
+        metricRegistry.incrementCounter(EVICTED_METRIC, Labels.EMPTY);
+        Transaction transaction = span.getTransaction();
+        if (transaction != null) {
+            transaction.getSpanCount().getDropped().incrementAndGet();
+        }
+        span.decrementReferences();
+    }
+
+    /**
+     * Must be called while holding the lock of the entry
+     */
+    private void remove(Entry entry) {
+        entries.remove(entry.traceId, entry);
+        entry.live = false;
+        entry.spans.clear();
+        entryPool.recycle(entry);
+    }
+
+    public int getBufferedSpans() {
+        return bufferedSpans.get();
+    }
+
+    private static class Entry implements Recyclable {
+        private final Id traceId = Id.new128BitId();
+        private final List<Span> spans = new ArrayList<>();
+        private long createdNanos;
+        /**
+         * {@code false} when this entry has been removed from {@link #entries} and may be recycled or reused for another trace
+         */
+        private boolean live;
+
+        void init(Id traceId, long nowNanos) {
+            this.traceId.copyFrom(traceId);
+            this.createdNanos = nowNanos;
+            this.live = true;
+        }
+
+        boolean isLive(Id traceId) {
+            return live && this.traceId.equals(traceId);
+        }
+
+        @Override
+        public void resetState() {
+            traceId.resetState();
+            spans.clear();
+            createdNanos = 0;
+            live = false;
+        }
+    }
+}
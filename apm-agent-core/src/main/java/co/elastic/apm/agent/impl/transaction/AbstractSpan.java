@@ -30,6 +30,7 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.Scope;
 import co.elastic.apm.agent.impl.context.AbstractContext;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.objectpool.Recyclable;
 import co.elastic.apm.agent.report.ReporterConfiguration;
 import org.slf4j.Logger;
@@ -39,6 +40,7 @@ import javax.annotation.Nullable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recyclable {
     public static final int PRIO_USER_SUPPLIED = 1000;
@@ -47,6 +49,18 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
     public static final int PRIO_LOW_LEVEL_FRAMEWORK = 10;
     public static final int PRIO_DEFAULT = 0;
     private static final Logger logger = LoggerFactory.getLogger(AbstractSpan.class);
+    /**
+     * Counts the spans that have been merged into a composite span by span compression
+     */
+    public static final String COMPRESSED_SPANS_METRIC = "agent.spans.compressed";
+    /**
+     * The maximum number of {@linkplain #addSpanLink span links} per span or transaction
+     */
+    public static final int MAX_SPAN_LINKS = 1000;
+    /**
+     * The number of {@code long}s each span link occupies in {@link #getSpanLinks()}
+     */
+    public static final int LONGS_PER_SPAN_LINK = 3;
     protected static final double MS_IN_MICROS = TimeUnit.MILLISECONDS.toMicros(1);
     protected final TraceContext traceContext;
 
@@ -111,6 +125,26 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     private boolean hasCapturedExceptions;
 
+    /**
+     * The last ended exit child span which is eligible for compression but has not been reported yet.
+     * See {@link #bufferSpanForCompression(Span)}.
+     */
+    private final AtomicReference<Span> bufferedSpan = new AtomicReference<Span>();
+
+    /**
+     * Links to other traces, for example to the producers of the messages a batch transaction processes.
+     * Each link is stored as three {@code long}s: the upper and lower half of the trace id, followed by the span id.
+     * This avoids allocating a {@link TraceContext} per link and the list is reused when this span is recycled.
+     */
+    @Nullable
+    private LongList spanLinks;
+
+    /**
+     * Reused to parse the trace context headers of {@linkplain #addSpanLink span links}
+     */
+    @Nullable
+    private TraceContext spanLinkTraceContext;
+
     public int getReferenceCount() {
         return references.get();
     }
@@ -229,7 +263,8 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
     }
 
     /**
-     * Only intended to be used by {@link co.elastic.apm.agent.report.serialize.DslJsonSerializer}
+     * Only intended for read-only access without allocating a {@link String},
+     * like in {@link co.elastic.apm.agent.report.serialize.DslJsonSerializer}
      */
     public StringBuilder getNameForSerialization() {
         return name;
@@ -347,6 +382,10 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         outcome = null;
         userOutcome = null;
         hasCapturedExceptions = false;
+        bufferedSpan.set(null);
+        if (spanLinks != null) {
+            spanLinks.clear();
+        }
     }
 
     public Span createSpan() {
@@ -446,6 +485,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
             childDurations.onSpanEnd(epochMicros);
             beforeEnd(epochMicros);
             this.finished = true;
+            flushBufferedSpan();
             afterEnd();
         } else {
             logger.warn("End has already been called: {}", this);
@@ -471,6 +511,53 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     protected abstract void afterEnd();
 
+    /**
+     * Buffers an ended child span so that it can be compressed with its next sibling.
+     * <p>
+     * The buffered span is taken out of the buffer before trying to compress the sibling into it,
+     * so that only one thread at a time mutates a composite span.
+     * If the sibling can't be compressed, the buffered span is reported and the sibling takes its place.
+     * The buffer is flushed when a sibling that is not eligible for compression ends and when this span ends.
+     * </p>
+     *
+     * @param span an ended child span which is eligible for compression
+     */
+    void bufferSpanForCompression(Span span) {
+        Span buffered = bufferedSpan.getAndSet(null);
+        if (buffered == null) {
+            putIntoBuffer(span);
+        } else if (buffered.tryToCompress(span)) {
+            tracer.getMetricRegistry().incrementCounter(COMPRESSED_SPANS_METRIC, Labels.EMPTY);
+            span.decrementReferences();
+            putIntoBuffer(buffered);
+        } else {
+            tracer.endSpan(buffered);
+            putIntoBuffer(span);
+        }
+    }
+
+    private void putIntoBuffer(Span span) {
+        if (!bufferedSpan.compareAndSet(null, span)) {
+            // a sibling has been buffered concurrently
+            tracer.endSpan(span);
+        } else if (finished) {
+            // this span has ended concurrently and might already have flushed its buffer
+            flushBufferedSpan();
+        }
+    }
+
+    /**
+     * Reports the buffered child span, if any
+     */
+    void flushBufferedSpan() {
+        if (bufferedSpan.get() != null) {
+            Span buffered = bufferedSpan.getAndSet(null);
+            if (buffered != null) {
+                tracer.endSpan(buffered);
+            }
+        }
+    }
+
     public boolean isChildOf(AbstractSpan<?> parent) {
         return traceContext.isChildOf(parent.traceContext) || parent.hasChildId(traceContext.getId());
     }
@@ -620,6 +707,68 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         return childIds;
     }
 
+    /**
+     * Adds a link to the trace context found in the headers of the provided carrier,
+     * for example to link a transaction processing a batch of messages to the producers of the individual messages.
+     * <p>
+     * Links to the same span are only added once and at most {@link #MAX_SPAN_LINKS} links are added.
+     * </p>
+     *
+     * @param childContextCreator the creator that parses the trace context headers,
+     *                            for example {@link TraceContext#getFromTraceContextBinaryHeaders()}
+     * @param headerGetter        the header getter for the carrier
+     * @param carrier             the carrier of the trace context headers, for example a message
+     * @return {@code true} if a link has been added
+     */
+    public <C, G> boolean addSpanLink(TraceContext.ChildContextCreatorTwoArg<C, G> childContextCreator, G headerGetter, @Nullable C carrier) {
+        if (carrier == null) {
+            return false;
+        }
+        LongList links = spanLinks;
+        if (links == null) {
+            links = spanLinks = new LongList(LONGS_PER_SPAN_LINK * 16);
+        } else if (links.getSize() >= MAX_SPAN_LINKS * LONGS_PER_SPAN_LINK) {
+            return false;
+        }
+        TraceContext linkContext = spanLinkTraceContext;
+        if (linkContext == null) {
+            linkContext = spanLinkTraceContext = TraceContext.with64BitId(tracer);
+        }
+        linkContext.resetState();
+        if (!childContextCreator.asChildOf(linkContext, carrier, headerGetter)) {
+            return false;
+        }
+        long traceIdHigh = linkContext.getTraceId().readLong(0);
+        long traceIdLow = linkContext.getTraceId().readLong(8);
+        long spanId = linkContext.getParentId().readLong(0);
+        // a linear search is fine given the bounded number of links
+        for (int i = 0, size = links.getSize(); i < size; i += LONGS_PER_SPAN_LINK) {
+            if (links.get(i + 2) == spanId && links.get(i + 1) == traceIdLow && links.get(i) == traceIdHigh) {
+                return false;
+            }
+        }
+        links.add(traceIdHigh);
+        links.add(traceIdLow);
+        links.add(spanId);
+        return true;
+    }
+
+    /**
+     * Returns the {@linkplain #addSpanLink span links},
+     * each of which consists of {@link #LONGS_PER_SPAN_LINK} {@code long}s:
+     * the upper and lower half of the trace id, followed by the span id.
+     *
+     * @return the span links, or {@code null} if none have been added
+     */
+    @Nullable
+    public LongList getSpanLinks() {
+        return spanLinks;
+    }
+
+    public int getSpanLinkCount() {
+        return spanLinks == null ? 0 : spanLinks.getSize() / LONGS_PER_SPAN_LINK;
+    }
+
     protected abstract T thiz();
 
     /**
@@ -70,6 +70,22 @@ public class Id implements Recyclable {
         onMutation();
     }
 
+    /**
+     * Sets the id based on a hex encoded string, without throwing an exception if it's invalid.
+     *
+     * @param hexEncodedString the string containing the hex encoded id
+     * @param offset           the offset of the id in the string
+     * @return {@code false} if the string is too short or contains a non-hex char, in which case this id is reset
+     */
+    public boolean tryFromHexString(String hexEncodedString, int offset) {
+        if (!HexUtils.tryDecode(hexEncodedString, offset, data, 0, data.length)) {
+            resetState();
+            return false;
+        }
+        onMutation();
+        return true;
+    }
+
     /**
      * Sets the id based on a byte array
      *
@@ -67,6 +67,8 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
      * Any other arbitrary data captured by the agent, optionally provided by the user
      */
     private final SpanContext context = new SpanContext();
+    private final Composite composite = new Composite();
+    private final CoreConfiguration coreConfiguration;
     @Nullable
     private Throwable stacktrace;
     @Nullable
@@ -90,6 +92,7 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
 
     public Span(ElasticApmTracer tracer) {
         super(tracer);
+        coreConfiguration = tracer.getConfig(CoreConfiguration.class);
     }
 
     public <T> Span start(TraceContext.ChildContextCreator<T> childContextCreator, T parentContext, long epochMicros) {
@@ -259,19 +262,140 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         }
         if (parent != null) {
             parent.onChildEnd(epochMicros);
-            parent.decrementReferences();
         }
     }
 
     @Override
     protected void afterEnd() {
+        // the reference to the parent is only released after this span has been handed over,
+        // as this span may be recycled as soon as it has been reported or buffered
+        AbstractSpan<?> parent = this.parent;
+        if (parent != null && !parent.isFinished() && isSampled() && coreConfiguration.isSpanCompressionEnabled()) {
+            if (isCompressionEligible()) {
+                if (!tracer.dropIfDiscarded(this)) {
+                    // the span may be reported from another thread, so the stack trace has to be captured now
+                    tracer.captureStackTraceIfSlow(this);
+                    parent.bufferSpanForCompression(this);
+                }
+                parent.decrementReferences();
+                return;
+            }
+            // only consecutive siblings are compressed
+            parent.flushBufferedSpan();
+        }
         this.tracer.endSpan(this);
+        if (parent != null) {
+            parent.decrementReferences();
+        }
+    }
+
+    /**
+     * Only exit spans that have not failed and that don't propagate the trace context can be compressed.
+     * Spans that propagate the trace context, or that lead up to an error, are not discardable.
+     */
+    private boolean isCompressionEligible() {
+        Outcome outcome = getOutcome();
+        return isExit() && isDiscardable() && (outcome == Outcome.SUCCESS || outcome == Outcome.UNKNOWN);
+    }
+
+    /**
+     * Tries to merge an ended sibling into this span, turning this span into a composite span.
+     * <p>
+     * Exact match: siblings with the same name, type, subtype and destination resource that are faster than
+     * {@link CoreConfiguration#getSpanCompressionExactMatchMaxDuration()}.
+     * </p>
+     * <p>
+     * Same kind: siblings with the same type, subtype and destination resource that are faster than
+     * {@link CoreConfiguration#getSpanCompressionSameKindMaxDuration()}.
+     * The composite span is named after the destination resource.
+     * </p>
+     *
+     * @param sibling the span that ended after this span
+     * @return {@code true}, if the sibling has been merged into this span and must not be reported, {@code false} otherwise
+     */
+    boolean tryToCompress(Span sibling) {
+        boolean canBeCompressed = isComposite() ? canCompressIntoComposite(sibling) : tryToCompressRegular(sibling);
+        if (!canBeCompressed) {
+            return false;
+        }
+        long end = Math.max(getTimestamp() + duration, sibling.getTimestamp() + sibling.duration);
+        setStartTimestamp(Math.min(getTimestamp(), sibling.getTimestamp()));
+        duration = end - getTimestamp();
+        composite.add(sibling.duration);
+        return true;
+    }
+
+    private boolean tryToCompressRegular(Span sibling) {
+        if (!isSameKind(sibling)) {
+            return false;
+        }
+        long exactMatchMaxDuration = coreConfiguration.getSpanCompressionExactMatchMaxDuration().getMillis() * 1000;
+        if (contentEquals(name, sibling.name)) {
+            if (duration <= exactMatchMaxDuration && sibling.duration <= exactMatchMaxDuration) {
+                composite.init(duration, Composite.EXACT_MATCH);
+                return true;
+            }
+            return false;
+        }
+        long sameKindMaxDuration = coreConfiguration.getSpanCompressionSameKindMaxDuration().getMillis() * 1000;
+        if (duration <= sameKindMaxDuration && sibling.duration <= sameKindMaxDuration) {
+            composite.init(duration, Composite.SAME_KIND);
+            name.setLength(0);
+            name.append("Calls to ").append(context.getDestination().getService().getResource());
+            return true;
+        }
+        return false;
+    }
+
+    private boolean canCompressIntoComposite(Span sibling) {
+        if (!isSameKind(sibling)) {
+            return false;
+        }
+        if (Composite.EXACT_MATCH.equals(composite.getCompressionStrategy())) {
+            return contentEquals(name, sibling.name)
+                && sibling.duration <= coreConfiguration.getSpanCompressionExactMatchMaxDuration().getMillis() * 1000;
+        }
+        return sibling.duration <= coreConfiguration.getSpanCompressionSameKindMaxDuration().getMillis() * 1000;
+    }
+
+    private boolean isSameKind(Span other) {
+        return equals(type, other.type)
+            && equals(subtype, other.subtype)
+            && contentEquals(context.getDestination().getService().getResource(), other.context.getDestination().getService().getResource());
+    }
+
+    private static boolean equals(@Nullable String s1, @Nullable String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    private static boolean contentEquals(CharSequence cs1, CharSequence cs2) {
+        if (cs1.length() != cs2.length()) {
+            return false;
+        }
+        for (int i = 0; i < cs1.length(); i++) {
+            if (cs1.charAt(i) != cs2.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true}, if other spans have been compressed into this span
+     */
+    public boolean isComposite() {
+        return composite.getCount() > 0;
+    }
+
+    public Composite getComposite() {
+        return composite;
     }
 
     @Override
     public void resetState() {
         super.resetState();
         context.resetState();
+        composite.resetState();
         stacktrace = null;
         type = null;
         subtype = null;
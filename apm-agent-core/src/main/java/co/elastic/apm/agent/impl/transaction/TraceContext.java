@@ -221,14 +221,29 @@ public class TraceContext implements Recyclable {
     // ???????1 -> maybe recorded
     // ???????0 -> not recorded
     private static final byte FLAG_RECORDED = 0b0000_0001;
+    private static final byte SERIALIZED_DISCARDABLE = 0b0000_0001;
+    private static final byte SERIALIZED_TAIL_SAMPLING_CANDIDATE = 0b0000_0010;
     private final Id traceId = Id.new128BitId();
     private final ElasticApmTracer tracer;
     private final Id id;
     private final Id parentId = Id.new64BitId();
     private final Id transactionId = Id.new64BitId();
     private final StringBuilder outgoingTextHeader = new StringBuilder(TEXT_HEADER_EXPECTED_LENGTH);
+    /**
+     * The rendered {@code traceparent} header, so that propagating the same context to several downstream calls
+     * (for example when no exit span is created) doesn't create a new {@link String} each time.
+     * Reset on each mutation of the ids or flags.
+     */
+    @Nullable
+    private String outgoingTraceParent;
     private byte flags;
     private boolean discardable = true;
+    /**
+     * Whether this context is recorded only locally, so that the trace can be kept or dropped by the
+     * {@link co.elastic.apm.agent.impl.sampling.TailSamplingBuffer} once the transaction has ended.
+     * Downstream services see such a context as not sampled.
+     */
+    private boolean tailSamplingCandidate;
     // weakly referencing to avoid CL leaks in case of leaked spans
     @Nullable
     private WeakReference<ClassLoader> applicationClassLoader;
@@ -330,30 +345,43 @@ public class TraceContext implements Recyclable {
                 logger.warn("Version ff is not supported");
                 return false;
             }
-            byte version = HexUtils.getNextByte(traceParentHeader, 0);
+            int version = HexUtils.tryGetNextByte(traceParentHeader, 0);
+            if (version < 0) {
+                logger.warn("The traceparent header has an invalid version: '{}'", traceParentHeader);
+                return false;
+            }
             if (version == 0 && traceParentHeader.length() > TEXT_HEADER_EXPECTED_LENGTH) {
                 logger.warn("The traceparent header has to be exactly 55 chars long for version 00, but was '{}'", traceParentHeader);
                 return false;
             }
-            traceId.fromHexString(traceParentHeader, TEXT_HEADER_TRACE_ID_OFFSET);
+            // decoding without exceptions, as invalid headers are not exceptional for an inbound request
+            if (!traceId.tryFromHexString(traceParentHeader, TEXT_HEADER_TRACE_ID_OFFSET)) {
+                logger.warn("The traceparent header has an invalid trace id: '{}'", traceParentHeader);
+                return false;
+            }
             if (traceId.isEmpty()) {
                 return false;
             }
-            parentId.fromHexString(traceParentHeader, TEXT_HEADER_PARENT_ID_OFFSET);
+            if (!parentId.tryFromHexString(traceParentHeader, TEXT_HEADER_PARENT_ID_OFFSET)) {
+                logger.warn("The traceparent header has an invalid parent id: '{}'", traceParentHeader);
+                return false;
+            }
             if (parentId.isEmpty()) {
                 return false;
             }
+            int flags = HexUtils.tryGetNextByte(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET);
+            if (flags < 0) {
+                logger.warn("The traceparent header has invalid flags: '{}'", traceParentHeader);
+                return false;
+            }
             id.setToRandomValue();
             transactionId.copyFrom(id);
             // TODO don't blindly trust the flags from the caller
             // consider implement rate limiting and/or having a list of trusted sources
             // trace the request if it's either requested or if the parent has recorded it
-            flags = HexUtils.getNextByte(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET);
+            this.flags = (byte) flags;
             clock.init();
             return true;
-        } catch (IllegalArgumentException e) {
-            logger.warn(e.getMessage());
-            return false;
         } finally {
             onMutation();
         }
@@ -438,6 +466,7 @@ public class TraceContext implements Recyclable {
         parentId.copyFrom(parent.id);
         transactionId.copyFrom(parent.transactionId);
         flags = parent.flags;
+        tailSamplingCandidate = parent.tailSamplingCandidate;
         id.setToRandomValue();
         clock.init(parent.clock);
         serviceName = parent.serviceName;
@@ -453,8 +482,10 @@ public class TraceContext implements Recyclable {
         parentId.resetState();
         transactionId.resetState();
         outgoingTextHeader.setLength(0);
+        outgoingTraceParent = null;
         flags = 0;
         discardable = true;
+        tailSamplingCandidate = false;
         clock.resetState();
         serviceName = null;
         applicationClassLoader = null;
@@ -502,12 +533,17 @@ public class TraceContext implements Recyclable {
     }
 
     /**
-     * Returns the sample rate used for this transaction/span between 0.0 and 1.0 or {@link Double#NaN} if sample rate is unknown
+     * Returns the sample rate used for this transaction/span between 0.0 and 1.0 or {@link Double#NaN} if sample rate is unknown.
+     * <p>
+     * Tail sampling candidates have a sample rate of 0.0, even if they are kept.
+     * They have not been sampled by the head sampler, so they are already represented by the extrapolation of the
+     * head-sampled transactions and must not be counted again.
+     * </p>
      *
      * @return sample rate
      */
     public double getSampleRate() {
-        if (isRecorded()) {
+        if (isRecorded() && !tailSamplingCandidate) {
             return traceState.getSampleRate();
         } else {
             return SAMPLE_RATE_ZERO;
@@ -529,6 +565,33 @@ public class TraceContext implements Recyclable {
         } else {
             flags &= ~FLAG_RECORDED;
         }
+        onMutation();
+    }
+
+    /**
+     * Records a context that has not been sampled at the start of the transaction,
+     * so that the {@link co.elastic.apm.agent.impl.sampling.TailSamplingBuffer} can decide at the end of the transaction.
+     */
+    public void recordForTailSampling() {
+        if (!isRecorded()) {
+            tailSamplingCandidate = true;
+            setRecorded(true);
+        }
+    }
+
+    public boolean isTailSamplingCandidate() {
+        return tailSamplingCandidate;
+    }
+
+    /**
+     * Tail sampling candidates are propagated as not sampled, as the decision is only made when the transaction ends
+     */
+    private boolean isSampledDownstream() {
+        return isSampled() && !tailSamplingCandidate;
+    }
+
+    private byte getOutgoingFlags() {
+        return tailSamplingCandidate ? (byte) (flags & ~FLAG_RECORDED) : flags;
     }
 
     void setNonDiscardable() {
@@ -557,7 +620,7 @@ public class TraceContext implements Recyclable {
      * @param <C>          the header carrier type, for example - an HTTP request
      */
     <C> void propagateTraceContext(C carrier, TextHeaderSetter<C> headerSetter) {
-        String outgoingTraceParent = getOutgoingTraceParentTextHeader().toString();
+        String outgoingTraceParent = getOutgoingTraceParent();
 
         headerSetter.setHeader(W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, outgoingTraceParent, carrier);
         if (coreConfiguration.isElasticTraceparentHeaderEnabled()) {
@@ -593,6 +656,18 @@ public class TraceContext implements Recyclable {
         return headerBufferFilled;
     }
 
+    /**
+     * @return the value of the {@code traceparent} header for downstream services, rendered at most once per mutation
+     */
+    String getOutgoingTraceParent() {
+        String outgoingTraceParent = this.outgoingTraceParent;
+        if (outgoingTraceParent == null) {
+            outgoingTraceParent = getOutgoingTraceParentTextHeader().toString();
+            this.outgoingTraceParent = outgoingTraceParent;
+        }
+        return outgoingTraceParent;
+    }
+
     /**
      * @return  the value of the {@code traceparent} header for downstream services.
      */
@@ -601,7 +676,7 @@ public class TraceContext implements Recyclable {
             // for unsampled traces, propagate the ID of the transaction in calls to downstream services
             // such that the parentID of those transactions point to a transaction that exists
             // remember that we do report unsampled transactions
-            fillTraceParentHeader(outgoingTextHeader, isSampled() ? id : transactionId);
+            fillTraceParentHeader(outgoingTextHeader, isSampledDownstream() ? id : transactionId);
         }
         return outgoingTextHeader;
     }
@@ -612,7 +687,7 @@ public class TraceContext implements Recyclable {
         sb.append('-');
         spanId.writeAsHex(sb);
         sb.append('-');
-        HexUtils.writeByteAsHex(flags, sb);
+        HexUtils.writeByteAsHex(getOutgoingFlags(), sb);
     }
 
     /**
@@ -633,10 +708,10 @@ public class TraceContext implements Recyclable {
         // for unsampled traces, propagate the ID of the transaction in calls to downstream services
         // such that the parentID of those transactions point to a transaction that exists
         // remember that we do report unsampled transactions
-        Id parentId = isSampled() ? id : transactionId;
+        Id parentId = isSampledDownstream() ? id : transactionId;
         parentId.toBytes(buffer, BINARY_FORMAT_PARENT_ID_OFFSET + 1);
         buffer[BINARY_FORMAT_FLAGS_OFFSET] = BINARY_FORMAT_FLAGS_FIELD_ID;
-        buffer[BINARY_FORMAT_FLAGS_OFFSET + 1] = flags;
+        buffer[BINARY_FORMAT_FLAGS_OFFSET + 1] = getOutgoingFlags();
         return true;
     }
 
@@ -655,6 +730,7 @@ public class TraceContext implements Recyclable {
         transactionId.copyFrom(other.transactionId);
         flags = other.flags;
         discardable = other.discardable;
+        tailSamplingCandidate = other.tailSamplingCandidate;
         clock.init(other.clock);
         serviceName = other.serviceName;
         applicationClassLoader = other.applicationClassLoader;
@@ -664,11 +740,12 @@ public class TraceContext implements Recyclable {
 
     @Override
     public String toString() {
-        return getOutgoingTraceParentTextHeader().toString();
+        return getOutgoingTraceParent();
     }
 
     private void onMutation() {
         outgoingTextHeader.setLength(0);
+        outgoingTraceParent = null;
     }
 
     public boolean isRoot() {
@@ -753,7 +830,7 @@ public class TraceContext implements Recyclable {
         offset = id.toBytes(buffer, offset);
         offset = transactionId.toBytes(buffer, offset);
         buffer[offset++] = flags;
-        buffer[offset++] = (byte) (discardable ? 1 : 0);
+        buffer[offset++] = (byte) ((discardable ? SERIALIZED_DISCARDABLE : 0) | (tailSamplingCandidate ? SERIALIZED_TAIL_SAMPLING_CANDIDATE : 0));
         ByteUtils.putLong(buffer, offset, clock.getOffset());
     }
 
@@ -764,7 +841,8 @@ public class TraceContext implements Recyclable {
         offset += transactionId.fromBytes(buffer, offset);
         id.setToRandomValue();
         flags = buffer[offset++];
-        discardable = buffer[offset++] == (byte) 1;
+        discardable = (buffer[offset] & SERIALIZED_DISCARDABLE) != 0;
+        tailSamplingCandidate = (buffer[offset++] & SERIALIZED_TAIL_SAMPLING_CANDIDATE) != 0;
         clock.init(ByteUtils.getLong(buffer, offset));
         this.serviceName = serviceName;
         onMutation();
@@ -776,7 +854,8 @@ public class TraceContext implements Recyclable {
         offset += id.fromBytes(buffer, offset);
         offset += transactionId.fromBytes(buffer, offset);
         flags = buffer[offset++];
-        discardable = buffer[offset++] == (byte) 1;
+        discardable = (buffer[offset] & SERIALIZED_DISCARDABLE) != 0;
+        tailSamplingCandidate = (buffer[offset++] & SERIALIZED_TAIL_SAMPLING_CANDIDATE) != 0;
         clock.init(ByteUtils.getLong(buffer, offset));
         this.serviceName = serviceName;
         onMutation();
@@ -53,6 +53,13 @@ public class TraceState implements Recyclable {
 
     private final List<String> tracestate;
 
+    /**
+     * The joined header value of {@link #tracestate}, so that it's built at most once for each outgoing context.
+     * {@code null} if not rendered yet.
+     */
+    @Nullable
+    private String textHeader;
+
     /**
      * sample rate, {@link Double#NaN} if unknown or not set
      */
@@ -73,10 +80,12 @@ public class TraceState implements Recyclable {
             //noinspection UseBulkOperation
             tracestate.add(other.tracestate.get(i));
         }
+        textHeader = other.textHeader;
         rewriteBuffer.setLength(0);
     }
 
     public void addTextHeader(String headerValue) {
+        textHeader = null;
         int vendorStart = headerValue.indexOf(VENDOR_PREFIX);
 
         if (vendorStart < 0) {
@@ -183,6 +192,7 @@ public class TraceState implements Recyclable {
 
         sampleRate = rate;
         tracestate.add(headerValue);
+        textHeader = null;
     }
 
     /**
@@ -210,9 +220,13 @@ public class TraceState implements Recyclable {
     public String toTextHeader() {
         if (tracestate.isEmpty()) {
             return null;
-        } else {
-            return TextTracestateAppender.INSTANCE.join(tracestate, sizeLimit);
         }
+        String textHeader = this.textHeader;
+        if (textHeader == null) {
+            textHeader = TextTracestateAppender.INSTANCE.join(tracestate, sizeLimit);
+            this.textHeader = textHeader;
+        }
+        return textHeader;
     }
 
     @Override
@@ -221,6 +235,7 @@ public class TraceState implements Recyclable {
         sizeLimit = DEFAULT_SIZE_LIMIT;
         rewriteBuffer.setLength(0);
         tracestate.clear();
+        textHeader = null;
     }
 
     public void setSizeLimit(int limit) {
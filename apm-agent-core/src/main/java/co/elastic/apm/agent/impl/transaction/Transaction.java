@@ -102,6 +102,17 @@ public class Transaction extends AbstractSpan<Transaction> {
     @Nullable
     private String frameworkVersion;
 
+    /**
+     * Whether an error has been captured within this transaction or any of its spans
+     */
+    private volatile boolean capturedErrors;
+
+    /**
+     * Whether the {@link co.elastic.apm.agent.impl.sampling.TailSamplingBuffer} has decided to keep or drop this transaction.
+     * If it has been dropped, the transaction is not sampled anymore.
+     */
+    private volatile boolean tailSamplingDecided;
+
     @Override
     public Transaction getTransaction() {
         return this;
@@ -272,9 +283,37 @@ public class Transaction extends AbstractSpan<Transaction> {
         maxSpans = 0;
         frameworkName = null;
         frameworkVersion = null;
+        capturedErrors = false;
+        tailSamplingDecided = false;
         // don't clear timerBySpanTypeAndSubtype map (see field-level javadoc)
     }
 
+    public void onErrorCaptured() {
+        capturedErrors = true;
+    }
+
+    public boolean hasCapturedErrors() {
+        return capturedErrors;
+    }
+
+    /**
+     * Applies the decision of the {@link co.elastic.apm.agent.impl.sampling.TailSamplingBuffer} for a tail sampling candidate.
+     * A dropped transaction is reported like any other non-sampled transaction.
+     *
+     * @param keep whether the transaction and its spans are reported
+     */
+    public void onTailSamplingDecision(boolean keep) {
+        if (!keep) {
+            traceContext.setRecorded(false);
+            context.resetState();
+        }
+        tailSamplingDecided = true;
+    }
+
+    public boolean isTailSamplingDecided() {
+        return tailSamplingDecided;
+    }
+
     public boolean isNoop() {
         return noop;
     }
@@ -403,6 +442,9 @@ public class Transaction extends AbstractSpan<Transaction> {
             long criticalValueAtEnter = metricRegistry.writerCriticalSectionEnter();
             try {
                 metricRegistry.updateTimer("transaction.duration", labels, getDuration());
+                if (tracer.getConfig(CoreConfiguration.class).isTransactionDurationHistogramEnabled()) {
+                    metricRegistry.updateHistogram("transaction.duration.histogram", labels, getDuration());
+                }
                 if (collectBreakdownMetrics) {
                     metricRegistry.incrementCounter("transaction.breakdown.count", labels);
                     List<String> types = timerBySpanTypeAndSubtype.keyList();
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.messaging;
+
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.TextHeaderGetter;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Labels;
+
+import javax.annotation.Nullable;
+
+/**
+ * The messages of a destination that are handled within the current window of a {@link MessageBatchAggregator}.
+ * <p>
+ * The transaction of a batch is activated on each thread that handles a message of the batch,
+ * so that the spans created while handling a message are its children.
+ * It's ended by the first message after the window has elapsed or, at the latest, by the periodic flush.
+ * When it ends, it gets the following labels:
+ * </p>
+ * <ul>
+ *     <li>{@code message_count}: the number of messages in the batch</li>
+ *     <li>{@code message_age_max_ms}: the maximum age of the messages</li>
+ * </ul>
+ * In addition, the transaction links to the traces of the first {@link AbstractSpan#MAX_SPAN_LINKS} messages.
+ * The age of each message is recorded in the {@value #MESSAGE_AGE_HISTOGRAM} metric, labelled by destination.
+ */
+public class MessageBatch {
+
+    static final String MESSAGE_AGE_HISTOGRAM = "messaging.message.age.histogram";
+
+    private final MessageBatchAggregator aggregator;
+    private final String destinationName;
+    private final Labels.Immutable metricLabels;
+    @Nullable
+    private Transaction transaction;
+    private long windowEndNanos;
+    private int messageCount;
+    private long maxAgeMs = -1;
+
+    MessageBatch(MessageBatchAggregator aggregator, String destinationName) {
+        this.aggregator = aggregator;
+        this.destinationName = destinationName;
+        this.metricLabels = Labels.Mutable.of("destination", destinationName).immutableCopy();
+    }
+
+    /**
+     * Records a message in the batch and activates the batch transaction
+     *
+     * @return the activated batch transaction, which has to be deactivated after the message is handled, see {@link Handling},
+     * or {@code null} if no batch transaction could be started
+     */
+    @Nullable
+    <C> Transaction startMessageHandling(long ageMs, @Nullable C carrier, TextHeaderGetter<C> headerGetter,
+                                         @Nullable ClassLoader classLoader) {
+        if (ageMs >= 0) {
+            aggregator.getTracer().getMetricRegistry().updateHistogram(MESSAGE_AGE_HISTOGRAM, metricLabels, ageMs * 1000);
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (transaction != null && now - windowEndNanos >= 0) {
+                end();
+            }
+            Transaction transaction = this.transaction;
+            if (transaction == null) {
+                transaction = aggregator.startBatchTransaction(destinationName, classLoader);
+                if (transaction == null) {
+                    return null;
+                }
+                this.transaction = transaction;
+                windowEndNanos = now + aggregator.getWindowNanos();
+            }
+            messageCount++;
+            if (ageMs >= 0) {
+                maxAgeMs = Math.max(maxAgeMs, ageMs);
+            }
+            if (transaction.isSampled()) {
+                transaction.addSpanLink(TraceContext.<C>getFromTraceContextTextHeaders(), headerGetter, carrier);
+            }
+            // activating increments the references, so the transaction is not recycled until it's deactivated,
+            // even if the batch is ended by another thread in the meantime
+            return transaction.activate();
+        }
+    }
+
+    synchronized void endIfElapsed(long nanoTime) {
+        if (transaction != null && nanoTime - windowEndNanos >= 0) {
+            end();
+        }
+    }
+
+    private void end() {
+        Transaction transaction = this.transaction;
+        if (transaction == null) {
+            return;
+        }
+        transaction.addLabel("message_count", messageCount);
+        if (maxAgeMs >= 0) {
+            transaction.addLabel("message_age_max_ms", maxAgeMs);
+        }
+        this.transaction = null;
+        messageCount = 0;
+        maxAgeMs = -1;
+        transaction.end();
+    }
+
+    /**
+     * The handling of a single message of a batch, returned by {@link MessageBatchAggregator#startMessageHandling}.
+     * <p>
+     * Holds on to the batch transaction that has been activated for the message,
+     * as the active span of the thread may have changed while the message has been handled.
+     * </p>
+     */
+    public static class Handling {
+
+        private final Transaction transaction;
+
+        Handling(Transaction transaction) {
+            this.transaction = transaction;
+        }
+
+        /**
+         * Deactivates the batch transaction which has been activated for this message
+         *
+         * @param thrown the exception thrown by the message handler, if any
+         */
+        public void end(@Nullable Throwable thrown) {
+            // the batch transaction is not ended, as it covers the other messages of the batch
+            transaction.captureException(thrown).deactivate();
+        }
+
+        Transaction getTransaction() {
+            return transaction;
+        }
+    }
+}
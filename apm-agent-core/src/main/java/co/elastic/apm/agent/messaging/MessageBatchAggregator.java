@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.messaging;
+
+import co.elastic.apm.agent.configuration.MessagingConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.transaction.TextHeaderGetter;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.matcher.WildcardMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Aggregates the messages that are delivered to listeners of the {@code message_batch_destinations} into batch transactions,
+ * so that high-volume destinations don't create a transaction per message.
+ * <p>
+ * Messaging plugins create an instance per framework and call
+ * {@link #startMessageHandling} before and {@link MessageBatch.Handling#end} after a message is handled.
+ * </p>
+ */
+public class MessageBatchAggregator {
+
+    /**
+     * How often batches are checked for an elapsed window,
+     * so that the transactions of destinations that don't receive further messages are ended
+     */
+    static final long FLUSH_INTERVAL_MS = 100;
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageBatchAggregator.class);
+
+    private final ElasticApmTracer tracer;
+    private final MessagingConfiguration messagingConfiguration;
+    private final String frameworkName;
+    private final String transactionNamePrefix;
+    private final ConcurrentMap<String, MessageBatch> batches = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * @param tracer                the tracer
+     * @param frameworkName         the framework name of the batch transactions, for example {@code JMS}
+     * @param transactionNamePrefix the name of the batch transactions, to which the destination name is appended
+     */
+    public MessageBatchAggregator(ElasticApmTracer tracer, String frameworkName, String transactionNamePrefix) {
+        this.tracer = tracer;
+        this.messagingConfiguration = tracer.getConfig(MessagingConfiguration.class);
+        this.frameworkName = frameworkName;
+        this.transactionNamePrefix = transactionNamePrefix;
+    }
+
+    public boolean isBatchDestination(@Nullable String destinationName) {
+        return WildcardMatcher.isAnyMatch(messagingConfiguration.getMessageBatchDestinations(), destinationName);
+    }
+
+    /**
+     * Records a message in the batch of its destination and activates the batch transaction.
+     *
+     * @param destinationName the destination, which has to be one of the {@linkplain #isBatchDestination batch destinations}
+     * @param ageMs           the time since the message has been sent, or a negative value if unknown
+     * @param carrier         the carrier of the trace context headers of the message, used to add a span link
+     * @param headerGetter    the header getter for the carrier
+     * @param classLoader     the class loader of the instrumented class
+     * @return the handling of the message, on which {@link MessageBatch.Handling#end} has to be called after the message is handled,
+     * or {@code null} if no batch transaction could be started
+     */
+    @Nullable
+    public <C> MessageBatch.Handling startMessageHandling(String destinationName, long ageMs, @Nullable C carrier, TextHeaderGetter<C> headerGetter,
+                                                 @Nullable ClassLoader classLoader) {
+        MessageBatch batch = batches.get(destinationName);
+        if (batch == null) {
+            batch = new MessageBatch(this, destinationName);
+            MessageBatch previous = batches.putIfAbsent(destinationName, batch);
+            if (previous != null) {
+                batch = previous;
+            }
+        }
+        Transaction transaction = batch.startMessageHandling(ageMs, carrier, headerGetter, classLoader);
+        if (transaction == null) {
+            return null;
+        }
+        return new MessageBatch.Handling(transaction);
+    }
+
+    @Nullable
+    Transaction startBatchTransaction(String destinationName, @Nullable ClassLoader classLoader) {
+        Transaction transaction = tracer.startRootTransaction(classLoader);
+        if (transaction != null) {
+            transaction.withType("messaging")
+                .appendToName(transactionNamePrefix)
+                .appendToName(destinationName);
+            transaction.setFrameworkName(frameworkName);
+            transaction.getContext().getMessage().withQueue(destinationName);
+            scheduleFlush();
+        }
+        return transaction;
+    }
+
+    long getWindowNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(messagingConfiguration.getMessageBatchWindow().getMillis());
+    }
+
+    ElasticApmTracer getTracer() {
+        return tracer;
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled.get() && flushScheduled.compareAndSet(false, true)) {
+            tracer.getSharedSingleThreadedPool().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush(System.nanoTime());
+                }
+            }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Ends the batch transactions whose window has elapsed
+     */
+    void flush(long nanoTime) {
+        try {
+            for (MessageBatch batch : batches.values()) {
+                batch.endIfElapsed(nanoTime);
+            }
+        } catch (Exception e) {
+            logger.error("Error while ending message batch transactions", e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A compact log-linear histogram of durations in microseconds which allows for calculating percentiles.
+ * <p>
+ * Each power of two is split into {@link #SUB_BUCKETS} linear sub-buckets,
+ * which bounds the relative error of a recorded value to 1/{@link #SUB_BUCKETS} (12.5%).
+ * Values smaller than {@link #SUB_BUCKETS} are recorded exactly.
+ * Values of {@link #MAX_VALUE_US} (about 71 minutes) and greater are recorded in the last bucket.
+ * </p>
+ * <p>
+ * As the buckets are pre-allocated, the memory used by a histogram is fixed at {@link #BUCKETS} longs
+ * and recording a value does not allocate.
+ * </p>
+ * Example of a serialized histogram, where the values are the midpoints of non-empty buckets:
+ * <pre>
+ * "transaction.duration.histogram":{"values":[1088.0,1216.0,2432.0],"counts":[3,1,1],"type":"histogram"}
+ * </pre>
+ */
+public class Histogram implements Recyclable {
+
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final long MAX_VALUE_US = (1L << 32) - 1;
+    static final int BUCKETS = getBucketIndex(MAX_VALUE_US) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+
+    public void update(long durationUs) {
+        counts.incrementAndGet(getBucketIndex(Math.max(0, Math.min(durationUs, MAX_VALUE_US))));
+        totalCount.incrementAndGet();
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << shift;
+    }
+
+    /**
+     * @param index the bucket index, between {@code 0} and {@link #getBucketCount()} (exclusive)
+     * @return the value in the middle of the bucket's bounds
+     */
+    public static double getBucketMidpoint(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        long lowerBound = getBucketLowerBound(index);
+        long width = 1L << (index / SUB_BUCKETS - 1);
+        return lowerBound + width / 2d;
+    }
+
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * @param index the bucket index, between {@code 0} and {@link #getBucketCount()} (exclusive)
+     * @return the number of values recorded in this bucket
+     */
+    public long getCount(int index) {
+        return counts.get(index);
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the midpoint of the bucket containing the value at the given percentile, or {@code 0} if there are no values
+     */
+    public double getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+            if (count >= countAtPercentile) {
+                return getBucketMidpoint(i);
+            }
+        }
+        return getBucketMidpoint(BUCKETS - 1);
+    }
+
+    public boolean hasContent() {
+        return totalCount.get() > 0;
+    }
+
+    @Override
+    public void resetState() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+    }
+}
@@ -32,6 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -39,14 +40,34 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * A registry for metrics.
  * <p>
- * Currently only holds gauges.
- * There are plans to add support for histogram-based timers.
+ * Holds gauges, counters, timers and {@link Histogram}s.
+ * </p>
+ * <p>
+ * The number of {@link MetricSet}s is bounded by {@link #METRIC_SET_LIMIT}.
+ * When the limit is reached, metric sets which have not been updated during their last reporting interval are evicted
+ * when reporting, which keeps the recently used metric sets.
+ * Updates for labels which don't fit into the registry are rolled into an overflow metric set,
+ * whose transaction name is {@link #OVERFLOW_TRANSACTION_NAME}.
+ * Overflow metric sets retain the transaction type and span type and subtype of the original labels
+ * and count the number of rolled up updates in {@link #OVERFLOW_COUNTER}.
  * </p>
  */
 public class MetricRegistry {
 
     private static final Logger logger = LoggerFactory.getLogger(MetricRegistry.class);
-    private static final int METRIC_SET_LIMIT = 1000;
+    static final int METRIC_SET_LIMIT = 1000;
+    /**
+     * Additional metric sets which can be created for overflowing labels
+     */
+    static final int OVERFLOW_METRIC_SET_LIMIT = 100;
+    static final String OVERFLOW_TRANSACTION_NAME = "_other";
+    static final String OVERFLOW_COUNTER = "agent.metricsets.overflow";
+    private static final ThreadLocal<Labels.Mutable> overflowLabelsThreadLocal = new ThreadLocal<Labels.Mutable>() {
+        @Override
+        protected Labels.Mutable initialValue() {
+            return Labels.Mutable.of();
+        }
+    };
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
     private final ReporterConfiguration config;
     /**
@@ -180,8 +201,21 @@ public class MetricRegistry {
             if (metricsReporter != null) {
                 metricsReporter.report(inactiveMetricSets);
             }
-            for (MetricSet metricSet : inactiveMetricSets.values()) {
-                metricSet.resetState();
+            boolean evictIdleMetricSets = inactiveMetricSets.size() >= METRIC_SET_LIMIT;
+            int evicted = 0;
+            for (Iterator<MetricSet> iterator = inactiveMetricSets.values().iterator(); iterator.hasNext(); ) {
+                MetricSet metricSet = iterator.next();
+                // no writer can access the inactive metric sets so it's safe to evict them
+                // they are re-created if they are used again once the metric sets are active
+                if (metricSet.updateIdleReports() > 0 && evictIdleMetricSets && metricSet.getGauges().isEmpty()) {
+                    iterator.remove();
+                    evicted++;
+                } else {
+                    metricSet.resetState();
+                }
+            }
+            if (evicted > 0) {
+                logger.debug("Evicted {} idle metric sets", evicted);
             }
         } finally {
             phaser.readerUnlock();
@@ -204,6 +238,18 @@ public class MetricRegistry {
         }
     }
 
+    public void updateHistogram(String histogramName, Labels labels, long durationUs) {
+        long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+        try {
+            final MetricSet metricSet = getOrCreateMetricSet(labels);
+            if (metricSet != null) {
+                metricSet.histogram(histogramName).update(durationUs);
+            }
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
     /*
      * Must always be executed in context of a critical section so that the
      * activeMetricSets and inactiveMetricSets reference can't swap while this method runs
@@ -217,7 +263,26 @@ public class MetricRegistry {
         if (activeMetricSets.size() < METRIC_SET_LIMIT) {
             return createMetricSet(labels.immutableCopy());
         }
-        return null;
+        return getOrCreateOverflowMetricSet(labels);
+    }
+
+    @Nullable
+    private MetricSet getOrCreateOverflowMetricSet(Labels labels) {
+        Labels.Mutable overflowLabels = overflowLabelsThreadLocal.get();
+        overflowLabels.resetState();
+        overflowLabels.transactionName(OVERFLOW_TRANSACTION_NAME)
+            .transactionType(labels.getTransactionType())
+            .spanType(labels.getSpanType())
+            .spanSubType(labels.getSpanSubType());
+        MetricSet metricSet = activeMetricSets.get(overflowLabels);
+        if (metricSet == null) {
+            if (activeMetricSets.size() >= METRIC_SET_LIMIT + OVERFLOW_METRIC_SET_LIMIT) {
+                return null;
+            }
+            metricSet = createMetricSet(overflowLabels.immutableCopy());
+        }
+        metricSet.incrementCounter(OVERFLOW_COUNTER);
+        return metricSet;
     }
 
     @Nonnull
@@ -226,16 +291,24 @@ public class MetricRegistry {
         // that's why both metric sets have to contain the exact same gauges.
         // we can't access inactiveMetricSets as it might be swapped as this method is executed
         // inactiveMetricSets is only stable after flipping the phase (phaser.flipPhase)
-        MetricSet metricSet = new MetricSet(labelsCopy);
+        // if only one of the metric sets has been evicted, the new one has to share the gauges of the remaining one
+        MetricSet remainingMetricSet = metricSets1.get(labelsCopy);
+        if (remainingMetricSet == null) {
+            remainingMetricSet = metricSets2.get(labelsCopy);
+        }
+        MetricSet metricSet = remainingMetricSet != null
+            ? new MetricSet(labelsCopy, remainingMetricSet.getGauges())
+            : new MetricSet(labelsCopy);
         final MetricSet racyMetricSet = metricSets1.putIfAbsent(labelsCopy, metricSet);
         if (racyMetricSet != null) {
             metricSet = racyMetricSet;
         }
         // even if the map already contains this metric set, the gauges reference will be the same
         metricSets2.putIfAbsent(labelsCopy, new MetricSet(labelsCopy, metricSet.getGauges()));
-        if (metricSets1.size() >= METRIC_SET_LIMIT) {
-            logger.warn("The limit of 1000 timers has been reached, no new timers will be created. " +
-                "Try to name your transactions so that there are less distinct transaction names.");
+        if (metricSets1.size() == METRIC_SET_LIMIT) {
+            logger.warn("The limit of {} metric sets has been reached, metrics for new labels are reported with the transaction name {} " +
+                "until idle metric sets are evicted. " +
+                "Try to name your transactions so that there are less distinct transaction names.", METRIC_SET_LIMIT, OVERFLOW_TRANSACTION_NAME);
         }
         return activeMetricSets.get(labelsCopy);
     }
@@ -52,8 +52,15 @@ public class MetricSet implements Recyclable {
     // low load factor as hash collisions are quite costly when tracking breakdown metrics
     private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
     private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>(4, 0.5f, Runtime.getRuntime().availableProcessors());
     private volatile boolean hasNonEmptyTimer;
     private volatile boolean hasNonEmptyCounter;
+    private volatile boolean hasNonEmptyHistogram;
+    /**
+     * The number of consecutive reports this metric set had no updates.
+     * Only accessed by the reporting thread.
+     */
+    private int idleReports;
 
     MetricSet(Labels.Immutable labels) {
         this(labels, new ConcurrentHashMap<String, DoubleSupplier>());
@@ -91,6 +98,16 @@ public class MetricSet implements Recyclable {
         return timer;
     }
 
+    public Histogram histogram(String histogramName) {
+        hasNonEmptyHistogram = true;
+        Histogram histogram = histograms.get(histogramName);
+        if (histogram == null) {
+            histograms.putIfAbsent(histogramName, new Histogram());
+            histogram = histograms.get(histogramName);
+        }
+        return histogram;
+    }
+
     public void incrementCounter(String name) {
         hasNonEmptyCounter = true;
         AtomicLong counter = counters.get(name);
@@ -106,7 +123,21 @@ public class MetricSet implements Recyclable {
     }
 
     public boolean hasContent() {
-        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter;
+        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter || hasNonEmptyHistogram;
+    }
+
+    /**
+     * Should be called only when the MetricSet is inactive, before {@link #resetState()}
+     *
+     * @return the number of consecutive reports this metric set had no timer, counter or histogram updates
+     */
+    int updateIdleReports() {
+        if (hasNonEmptyTimer || hasNonEmptyCounter || hasNonEmptyHistogram) {
+            idleReports = 0;
+        } else {
+            idleReports++;
+        }
+        return idleReports;
     }
 
     /**
@@ -119,11 +150,19 @@ public class MetricSet implements Recyclable {
         for (AtomicLong counter : counters.values()) {
             counter.set(0);
         }
+        for (Histogram histogram : histograms.values()) {
+            histogram.resetState();
+        }
         hasNonEmptyTimer = false;
         hasNonEmptyCounter = false;
+        hasNonEmptyHistogram = false;
     }
 
     public Map<String, AtomicLong> getCounters() {
         return counters;
     }
+
+    public Map<String, Histogram> getHistograms() {
+        return histograms;
+    }
 }
@@ -28,15 +28,21 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
-import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.objectpool.impl.ThreadLocalObjectPool;
 import org.jctools.queues.atomic.AtomicQueueFactory;
 
 import static org.jctools.queues.spec.ConcurrentQueueSpec.createBoundedMpmc;
 
 public class ObjectPoolFactory {
 
+    /**
+     * The number of objects each thread caches in front of the shared queue of a pool,
+     * see {@link ThreadLocalObjectPool}
+     */
+    static final int MAGAZINE_CAPACITY = 8;
+
     protected <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
-        return QueueBasedObjectPool.ofRecyclable(AtomicQueueFactory.<T>newQueue(createBoundedMpmc(maxCapacity)), false, allocator);
+        return ThreadLocalObjectPool.ofRecyclable(AtomicQueueFactory.<T>newQueue(createBoundedMpmc(maxCapacity)), MAGAZINE_CAPACITY, allocator);
     }
 
     public ObjectPool<Transaction> createTransactionPool(int maxCapacity, final ElasticApmTracer tracer) {
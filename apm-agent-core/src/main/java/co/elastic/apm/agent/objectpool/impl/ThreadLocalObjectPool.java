@@ -0,0 +1,294 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.premain.ThreadUtils;
+
+import javax.annotation.Nullable;
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A two-level object pool where each thread has a small cache of objects (a magazine) in front of a shared queue.
+ * <p>
+ * Creating and recycling objects is served by the magazine of the current thread which does not require synchronization.
+ * Only when the magazine is empty, it's refilled with a batch of objects from the shared queue.
+ * When it's full, a batch of objects is drained to the shared queue.
+ * This reduces the contention on the shared queue, even if objects are created and recycled on different threads,
+ * as is the case for transactions that are recycled by the reporter thread.
+ * </p>
+ * <p>
+ * Virtual threads don't have a magazine and use the shared queue directly,
+ * as they are typically short-lived and numerous.
+ * </p>
+ * <p>
+ * Note that the magazines add to the capacity of the shared queue,
+ * so that the maximum number of pooled objects is the capacity of the queue plus the magazine capacity times the number of threads.
+ * </p>
+ *
+ * @param <T> pooled object type
+ */
+public class ThreadLocalObjectPool<T> extends AbstractObjectPool<T> {
+
+    private final Queue<T> sharedQueue;
+    private final int magazineCapacity;
+    private final ThreadLocal<Magazine<T>> magazines;
+    /**
+     * Used to calculate the number of objects in the pool and to reclaim the magazines of terminated threads
+     */
+    private final Queue<MagazineReference<T>> allMagazines = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a pool for types that implement {@link Recyclable}, use {@link #of(Queue, int, Allocator, Resetter)}
+     * for other pooled object types.
+     *
+     * @param sharedQueue      the queue shared by all threads, has to be thread-safe
+     * @param magazineCapacity the maximum number of objects cached by each thread
+     * @param allocator        a factory used to create new instances of the recyclable object.
+     *                         This factory is used when there are no objects in the magazine of the current thread and in the shared queue.
+     */
+    public static <T extends Recyclable> ThreadLocalObjectPool<T> ofRecyclable(Queue<T> sharedQueue, int magazineCapacity, Allocator<T> allocator) {
+        return new ThreadLocalObjectPool<>(sharedQueue, magazineCapacity, allocator, Resetter.ForRecyclable.<T>get());
+    }
+
+    /**
+     * Creates a pool for types that do not implement {@link Recyclable}, use {@link #ofRecyclable(Queue, int, Allocator)}
+     * for types that implement {@link Recyclable}.
+     *
+     * @param sharedQueue      the queue shared by all threads, has to be thread-safe
+     * @param magazineCapacity the maximum number of objects cached by each thread
+     * @param allocator        a factory used to create new instances of the recyclable object.
+     *                         This factory is used when there are no objects in the magazine of the current thread and in the shared queue.
+     * @param resetter         a reset strategy class
+     */
+    public static <T> ThreadLocalObjectPool<T> of(Queue<T> sharedQueue, int magazineCapacity, Allocator<T> allocator, Resetter<T> resetter) {
+        return new ThreadLocalObjectPool<>(sharedQueue, magazineCapacity, allocator, resetter);
+    }
+
+    private ThreadLocalObjectPool(Queue<T> sharedQueue, final int magazineCapacity, Allocator<T> allocator, Resetter<T> resetter) {
+        super(allocator, resetter);
+        if (magazineCapacity < 2) {
+            throw new IllegalArgumentException("The magazine capacity has to be at least 2, was " + magazineCapacity);
+        }
+        this.sharedQueue = sharedQueue;
+        this.magazineCapacity = magazineCapacity;
+        this.magazines = new ThreadLocal<Magazine<T>>() {
+            @Nullable
+            @Override
+            protected Magazine<T> initialValue() {
+                if (ThreadUtils.isVirtual(Thread.currentThread())) {
+                    return null;
+                }
+                return registerMagazine(new Magazine<T>(magazineCapacity));
+            }
+        };
+    }
+
+    private Magazine<T> registerMagazine(Magazine<T> magazine) {
+        for (MagazineReference<T> reference : allMagazines) {
+            Thread owner = reference.get();
+            // threads registering their magazines concurrently may see the same terminated owner,
+            // only the one that removes the reference may drain it, otherwise objects would be pooled twice
+            if ((owner == null || !owner.isAlive()) && allMagazines.remove(reference)) {
+                // the termination of a thread happens-before isAlive returns false,
+                // which makes it safe to access its magazine
+                reference.magazine.drain(sharedQueue, magazineCapacity);
+            }
+        }
+        allMagazines.add(new MagazineReference<>(Thread.currentThread(), magazine));
+        return magazine;
+    }
+
+    @Nullable
+    @Override
+    protected T tryCreateInstance() {
+        Magazine<T> magazine = magazines.get();
+        if (magazine == null) {
+            return sharedQueue.poll();
+        }
+        T object = magazine.pop();
+        if (object == null) {
+            magazine.refill(sharedQueue, magazineCapacity / 2);
+            object = magazine.pop();
+        }
+        return object;
+    }
+
+    @Override
+    protected boolean returnToPool(T obj) {
+        Magazine<T> magazine = magazines.get();
+        if (magazine == null) {
+            return sharedQueue.offer(obj);
+        }
+        if (magazine.isFull()) {
+            magazine.drain(sharedQueue, magazineCapacity / 2);
+            if (magazine.isFull()) {
+                // the shared queue is full as well
+                return false;
+            }
+        }
+        magazine.push(obj);
+        return true;
+    }
+
+    /**
+     * Returns the number of objects in the shared queue and in the magazines of all threads.
+     * <p>
+     * As the magazines are not synchronized, this is only an approximation while objects are concurrently created or recycled.
+     * </p>
+     *
+     * @return the number of objects in the pool
+     */
+    @Override
+    public int getObjectsInPool() {
+        int objectsInPool = sharedQueue.size();
+        for (MagazineReference<T> magazineReference : allMagazines) {
+            objectsInPool += magazineReference.magazine.size();
+        }
+        return objectsInPool;
+    }
+
+    /**
+     * Clears the shared queue and the magazine of the current thread.
+     * The magazines of other threads can't be cleared without synchronization.
+     */
+    @Override
+    public void clear() {
+        Magazine<T> magazine = magazines.get();
+        if (magazine != null) {
+            magazine.clear();
+        }
+        sharedQueue.clear();
+    }
+
+    /**
+     * Weakly references the thread owning a magazine, so that the objects of terminated threads can be returned to the shared queue
+     */
+    private static class MagazineReference<T> extends WeakReference<Thread> {
+
+        private final Magazine<T> magazine;
+
+        private MagazineReference(Thread owner, Magazine<T> magazine) {
+            super(owner);
+            this.magazine = magazine;
+        }
+    }
+
+    /**
+     * A stack of objects that is only accessed by its owning thread, except for reading the size.
+     */
+    private static class Magazine<T> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Magazine> SIZE = AtomicIntegerFieldUpdater.newUpdater(Magazine.class, "size");
+
+        private final Object[] objects;
+        /**
+         * Only written by the owning thread via {@link AtomicIntegerFieldUpdater#lazySet},
+         * volatile so that {@link ThreadLocalObjectPool#getObjectsInPool()} can read it from other threads.
+         */
+        private volatile int size;
+
+        private Magazine(int capacity) {
+            objects = new Object[capacity];
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        private T pop() {
+            int size = this.size;
+            if (size == 0) {
+                return null;
+            }
+            size--;
+            T object = (T) objects[size];
+            objects[size] = null;
+            SIZE.lazySet(this, size);
+            return object;
+        }
+
+        private void push(T object) {
+            int size = this.size;
+            objects[size] = object;
+            SIZE.lazySet(this, size + 1);
+        }
+
+        private boolean isFull() {
+            return size == objects.length;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void refill(Queue<T> sharedQueue, int batchSize) {
+            int size = this.size;
+            int limit = Math.min(size + batchSize, objects.length);
+            while (size < limit) {
+                T object = sharedQueue.poll();
+                if (object == null) {
+                    break;
+                }
+                objects[size++] = object;
+            }
+            SIZE.lazySet(this, size);
+        }
+
+        /**
+         * Moves the objects at the bottom of this stack to the shared queue, so that the most recently used objects stay in the magazine.
+         */
+        private void drain(Queue<T> sharedQueue, int batchSize) {
+            int size = this.size;
+            int drained = 0;
+            while (drained < batchSize && drained < size && sharedQueue.offer(get(drained))) {
+                drained++;
+            }
+            if (drained > 0) {
+                System.arraycopy(objects, drained, objects, 0, size - drained);
+                for (int i = size - drained; i < size; i++) {
+                    objects[i] = null;
+                }
+                SIZE.lazySet(this, size - drained);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private T get(int index) {
+            return (T) objects[index];
+        }
+
+        private void clear() {
+            for (int i = 0; i < size; i++) {
+                objects[i] = null;
+            }
+            SIZE.lazySet(this, 0);
+        }
+    }
+}
@@ -24,6 +24,9 @@
  */
 package co.elastic.apm.agent.report;
 
+import co.elastic.apm.agent.report.compression.CompressionCodec;
+import co.elastic.apm.agent.report.compression.DeflateCompressionCodec;
+import co.elastic.apm.agent.report.compression.NoCompressionCodec;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.report.serialize.PayloadSerializer;
 import org.slf4j.Logger;
@@ -39,8 +42,6 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 public class AbstractIntakeApiHandler {
     protected final Logger logger = LoggerFactory.getLogger(getClass());
@@ -50,7 +51,7 @@ public class AbstractIntakeApiHandler {
     protected final ReporterConfiguration reporterConfiguration;
     protected final PayloadSerializer payloadSerializer;
     protected final ApmServerClient apmServerClient;
-    protected Deflater deflater;
+    protected final CompressionCodec compressionCodec;
     protected long currentlyTransmitting = 0;
     protected long reported = 0;
     protected long dropped = 0;
@@ -62,10 +63,25 @@ public class AbstractIntakeApiHandler {
     protected volatile boolean shutDown;
 
     public AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, PayloadSerializer payloadSerializer, ApmServerClient apmServerClient) {
+        this(reporterConfiguration, payloadSerializer, apmServerClient, createCompressionCodec(reporterConfiguration));
+    }
+
+    public AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, PayloadSerializer payloadSerializer,
+                                    ApmServerClient apmServerClient, CompressionCodec compressionCodec) {
         this.reporterConfiguration = reporterConfiguration;
         this.payloadSerializer = payloadSerializer;
         this.apmServerClient = apmServerClient;
-        this.deflater = new Deflater(GZIP_COMPRESSION_LEVEL);
+        this.compressionCodec = compressionCodec;
+    }
+
+    static CompressionCodec createCompressionCodec(ReporterConfiguration reporterConfiguration) {
+        switch (reporterConfiguration.getApiRequestCompression()) {
+            case NONE:
+                return new NoCompressionCodec();
+            case DEFLATE:
+            default:
+                return new DeflateCompressionCodec(GZIP_COMPRESSION_LEVEL);
+        }
     }
 
     /*
@@ -84,7 +100,7 @@ public class AbstractIntakeApiHandler {
     }
 
     protected boolean shouldEndRequest() {
-        final long written = deflater.getBytesWritten() + DslJsonSerializer.BUFFER_SIZE;
+        final long written = compressionCodec.getBytesWritten() + DslJsonSerializer.BUFFER_SIZE;
         final boolean endRequest = written >= reporterConfiguration.getApiRequestSize();
         if (endRequest && logger.isDebugEnabled()) {
             logger.debug("Flushing, because request size limit exceeded {}/{}", written, reporterConfiguration.getApiRequestSize());
@@ -101,14 +117,9 @@ public class AbstractIntakeApiHandler {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Starting new request to {}", connection.getURL());
                 }
-                connection.setRequestMethod("POST");
-                connection.setDoOutput(true);
-                connection.setChunkedStreamingMode(DslJsonSerializer.BUFFER_SIZE);
-                connection.setRequestProperty("Content-Encoding", "deflate");
-                connection.setRequestProperty("Content-Type", "application/x-ndjson");
-                connection.setUseCaches(false);
+                prepareRequest(connection, compressionCodec);
                 connection.connect();
-                os = new DeflaterOutputStream(connection.getOutputStream(), deflater);
+                os = compressionCodec.wrap(connection.getOutputStream());
                 payloadSerializer.setOutputStream(os);
                 payloadSerializer.appendMetaDataNdJsonToStream();
                 payloadSerializer.flushToOutputStream();
@@ -141,6 +152,25 @@ public class AbstractIntakeApiHandler {
         return connection;
     }
 
+    /**
+     * Sets the method and headers of a request which sends a ND-JSON body to the intake API.
+     *
+     * @param connection       the connection to prepare
+     * @param compressionCodec the codec the body is compressed with
+     * @throws IOException if the request method can't be set
+     */
+    protected static void prepareRequest(HttpURLConnection connection, CompressionCodec compressionCodec) throws IOException {
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(DslJsonSerializer.BUFFER_SIZE);
+        String contentEncoding = compressionCodec.getContentEncoding();
+        if (contentEncoding != null) {
+            connection.setRequestProperty("Content-Encoding", contentEncoding);
+        }
+        connection.setRequestProperty("Content-Type", "application/x-ndjson");
+        connection.setUseCaches(false);
+    }
+
     public void endRequest() {
         if (connection != null) {
             try {
@@ -149,7 +179,7 @@ public class AbstractIntakeApiHandler {
                     os.close();
                 }
                 if (logger.isDebugEnabled()) {
-                    logger.debug("Flushing {} uncompressed {} compressed bytes", deflater.getBytesRead(), deflater.getBytesWritten());
+                    logger.debug("Flushing {} uncompressed {} compressed bytes", compressionCodec.getBytesRead(), compressionCodec.getBytesWritten());
                 }
                 InputStream inputStream = connection.getInputStream();
                 final int responseCode = connection.getResponseCode();
@@ -168,7 +198,7 @@ public class AbstractIntakeApiHandler {
                 HttpUtils.consumeAndClose(connection);
                 connection = null;
                 os = null;
-                deflater.reset();
+                compressionCodec.reset();
                 currentlyTransmitting = 0;
             }
         }
@@ -207,13 +237,22 @@ public class AbstractIntakeApiHandler {
         final long backoffTimeMillis = TimeUnit.SECONDS.toMillis(backoffTimeSeconds);
         if (backoffTimeMillis > 0) {
             // back off because there are connection issues with the apm server
-            try {
-                synchronized (WAIT_LOCK) {
-                    WAIT_LOCK.wait(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
-                }
-            } catch (InterruptedException e) {
-                logger.info("APM Agent ReportingEventHandler had been interrupted", e);
+            backOff(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
+        }
+    }
+
+    /**
+     * Blocks the current thread for the provided time, unless this handler is {@linkplain #close() closed} in the meantime.
+     *
+     * @param backoffTimeMillis the time to back off, including the jitter
+     */
+    protected void backOff(long backoffTimeMillis) {
+        try {
+            synchronized (WAIT_LOCK) {
+                WAIT_LOCK.wait(backoffTimeMillis);
             }
+        } catch (InterruptedException e) {
+            logger.info("APM Agent ReportingEventHandler had been interrupted", e);
         }
     }
 
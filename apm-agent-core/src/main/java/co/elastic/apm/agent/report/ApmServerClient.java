@@ -25,7 +25,9 @@
 package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.report.ssl.SslUtils;
-import co.elastic.apm.agent.util.UrlConnectionUtils;
+import co.elastic.apm.agent.report.transport.HttpTransport;
+import co.elastic.apm.agent.report.transport.PersistentHttpTransport;
+import co.elastic.apm.agent.report.transport.UrlConnectionHttpTransport;
 import co.elastic.apm.agent.util.Version;
 import co.elastic.apm.agent.util.VersionUtils;
 import org.slf4j.Logger;
@@ -41,7 +43,6 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -82,12 +83,25 @@ public class ApmServerClient {
     private volatile Future<Version> apmServerVersion;
     private final AtomicInteger errorCount = new AtomicInteger();
     private final ApmServerHealthChecker healthChecker;
+    private final HttpTransport transport;
 
     public ApmServerClient(ReporterConfiguration reporterConfiguration) {
+        this(reporterConfiguration, createTransport(reporterConfiguration));
+    }
+
+    public ApmServerClient(ReporterConfiguration reporterConfiguration, HttpTransport transport) {
         this.reporterConfiguration = reporterConfiguration;
+        this.transport = transport;
         this.healthChecker = new ApmServerHealthChecker(this);
     }
 
+    private static HttpTransport createTransport(ReporterConfiguration reporterConfiguration) {
+        if (reporterConfiguration.isPersistentServerConnections()) {
+            return new PersistentHttpTransport(reporterConfiguration.isVerifyServerCert());
+        }
+        return UrlConnectionHttpTransport.INSTANCE;
+    }
+
     public void start() {
         start(shuffleUrls(reporterConfiguration.getServerUrls()));
     }
@@ -135,7 +149,7 @@ public class ApmServerClient {
 
     @Nonnull
     private HttpURLConnection startRequestToUrl(URL url) throws IOException {
-        final URLConnection connection = UrlConnectionUtils.openUrlConnectionThreadSafely(url);
+        final HttpURLConnection connection = transport.openConnection(url);
 
         // change SSL socket factory to support both TLS fallback and disabling certificate validation
         if (connection instanceof HttpsURLConnection) {
@@ -168,7 +182,7 @@ public class ApmServerClient {
         connection.setRequestProperty("User-Agent", USER_AGENT);
         connection.setConnectTimeout((int) reporterConfiguration.getServerTimeout().getMillis());
         connection.setReadTimeout((int) reporterConfiguration.getServerTimeout().getMillis());
-        return (HttpURLConnection) connection;
+        return connection;
     }
 
     @Nullable
@@ -354,6 +368,17 @@ public class ApmServerClient {
         }
     }
 
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Closes idle connections to the APM Server
+     */
+    public void close() {
+        transport.close();
+    }
+
     public interface ConnectionHandler<T> {
 
         /**
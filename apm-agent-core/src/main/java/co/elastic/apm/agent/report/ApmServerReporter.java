@@ -28,18 +28,22 @@ import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.util.MathUtils;
 import co.elastic.apm.agent.premain.ThreadUtils;
 import com.dslplatform.json.JsonWriter;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventTranslator;
 import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.EventTranslatorTwoArg;
 import com.lmax.disruptor.IgnoreExceptionHandler;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -98,17 +102,48 @@ public class ApmServerReporter implements Reporter {
     private final boolean dropTransactionIfQueueFull;
     private final ReportingEventHandler reportingEventHandler;
     private final boolean syncReport;
+    @Nullable
+    private final OffHeapSpanRecords spanRecords;
+    private final EventTranslatorTwoArg<ReportingEvent, Span, DslJsonSerializer> spanRecordEventTranslator = new EventTranslatorTwoArg<ReportingEvent, Span, DslJsonSerializer>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, Span span, DslJsonSerializer serializedSpan) {
+            // only copies the bytes, the span has been serialized before the slot was claimed
+            if (spanRecords == null || !spanRecords.write(event, serializedSpan)) {
+                // the reference is released by reportSpanRecord
+                span.incrementReferences();
+                event.setSpan(span);
+            }
+        }
+    };
 
     public ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
                              ReportingEventHandler reportingEventHandler) {
+        this(dropTransactionIfQueueFull, reporterConfiguration, reportingEventHandler, reporterConfiguration.getMaxQueueSize(), "server-reporter");
+    }
+
+    ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
+                      ReportingEventHandler reportingEventHandler, int maxQueueSize, final String threadName) {
+        this(dropTransactionIfQueueFull, reporterConfiguration, reportingEventHandler, maxQueueSize, threadName, null);
+    }
+
+    /**
+     * @param spanRecords if not {@code null}, spans are serialized into off-heap records when they are reported,
+     *                    see {@link ReporterConfiguration#isOffHeapSpanRecords()}.
+     *                    Has to be created with the same {@code maxQueueSize}.
+     */
+    ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
+                      ReportingEventHandler reportingEventHandler, int maxQueueSize, final String threadName,
+                      @Nullable OffHeapSpanRecords spanRecords) {
         this.dropTransactionIfQueueFull = dropTransactionIfQueueFull;
         this.syncReport = reporterConfiguration.isReportSynchronously();
-        disruptor = new Disruptor<>(new TransactionEventFactory(), MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()), new ThreadFactory() {
+        this.spanRecords = spanRecords;
+        EventFactory<ReportingEvent> eventFactory = spanRecords != null ? spanRecords : new TransactionEventFactory();
+        disruptor = new Disruptor<>(eventFactory, MathUtils.getNextPowerOf2(maxQueueSize), new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
                 Thread thread = new Thread(r);
                 thread.setDaemon(true);
-                thread.setName(ThreadUtils.addElasticApmThreadPrefix("server-reporter"));
+                thread.setName(ThreadUtils.addElasticApmThreadPrefix(threadName));
                 return thread;
             }
         }, ProducerType.MULTI, new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000));
@@ -135,7 +170,9 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void report(Span span) {
-        if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR)) {
+        if (spanRecords != null) {
+            reportSpanRecord(span, spanRecords);
+        } else if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR)) {
             span.decrementReferences();
         }
         if (syncReport) {
@@ -143,6 +180,23 @@ public class ApmServerReporter implements Reporter {
         }
     }
 
+    private void reportSpanRecord(Span span, OffHeapSpanRecords spanRecords) {
+        DslJsonSerializer serializedSpan = spanRecords.serialize(span);
+        if (serializedSpan == null) {
+            if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR)) {
+                span.decrementReferences();
+            }
+            return;
+        }
+        try {
+            tryAddEventToRingBuffer(span, serializedSpan, spanRecordEventTranslator);
+        } finally {
+            spanRecords.release(serializedSpan);
+        }
+        // the span is not needed anymore as it has been serialized
+        span.decrementReferences();
+    }
+
     private void waitForFlush() {
         try {
             flush().get();
@@ -277,6 +331,22 @@ public class ApmServerReporter implements Reporter {
         return true;
     }
 
+    private <A, B> boolean tryAddEventToRingBuffer(A arg0, B arg1, EventTranslatorTwoArg<ReportingEvent, A, B> eventTranslator) {
+        if (dropTransactionIfQueueFull) {
+            boolean queueFull = !disruptor.getRingBuffer().tryPublishEvent(eventTranslator, arg0, arg1);
+            if (queueFull) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Could not add {} {} to ring buffer as no slots are available", arg0.getClass().getSimpleName(), arg0);
+                }
+                dropped.incrementAndGet();
+                return false;
+            }
+        } else {
+            disruptor.getRingBuffer().publishEvent(eventTranslator, arg0, arg1);
+        }
+        return true;
+    }
+
     static class TransactionEventFactory implements EventFactory<ReportingEvent> {
         @Override
         public ReportingEvent newInstance() {
@@ -24,14 +24,23 @@
  */
 package co.elastic.apm.agent.report;
 
+import co.elastic.apm.agent.report.compression.CompressionCodec;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.report.serialize.PayloadSerializer;
 import co.elastic.apm.agent.premain.ThreadUtils;
+import co.elastic.apm.agent.report.spill.SpillQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Objects;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Future;
@@ -48,11 +57,36 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private ApmServerReporter reporter;
     @Nullable
     private TimerTask timeoutTask;
+    /**
+     * If set, events are written to this queue while backing off, instead of blocking the reporter thread
+     */
+    @Nullable
+    private final SpillQueue spillQueue;
+    private final SpillBuffer spillBuffer = new SpillBuffer();
+    @Nullable
+    private CompressionCodec spillCompressionCodec;
+    @Nullable
+    private OutputStream spillOutputStream;
+    private int spilledTransactions;
+    private int spilledSpans;
+    private int spilledErrors;
+    private long backoffUntil;
+    /**
+     * Used to copy the off-heap span records to the serializer, see {@link OffHeapSpanRecords}
+     */
+    private byte[] spanRecordBuffer = new byte[0];
 
     public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
                                          PayloadSerializer payloadSerializer, ApmServerClient apmServerClient) {
+        this(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient, null);
+    }
+
+    public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
+                                         PayloadSerializer payloadSerializer, ApmServerClient apmServerClient,
+                                         @Nullable SpillQueue spillQueue) {
         super(reporterConfiguration, payloadSerializer, apmServerClient);
         this.processorEventHandler = processorEventHandler;
+        this.spillQueue = spillQueue;
         this.timeoutTimer = new Timer(ThreadUtils.addElasticApmThreadPrefix("request-timeout-timer"), true);
     }
 
@@ -81,24 +115,41 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
             return;
         } else if (event.getType() == ReportingEvent.ReportingEventType.FLUSH) {
             endRequest();
+            if (spillQueue != null) {
+                endSpillBatch(spillQueue);
+                if (!isBackingOff()) {
+                    replaySpilledBatches(spillQueue);
+                }
+            }
             return;
         } else if (event.getType() == ReportingEvent.ReportingEventType.SHUTDOWN) {
             shutDown = true;
             endRequest();
+            if (spillQueue != null) {
+                endSpillBatch(spillQueue);
+            }
             return;
         }
         processorEventHandler.onEvent(event, sequence, endOfBatch);
         try {
-            if (connection == null) {
-                connection = startRequest(INTAKE_V2_URL);
+            if (spillQueue != null && connection == null && !isBackingOff()) {
+                // spilled events have to be sent before new events to preserve the order
+                replaySpilledBatches(spillQueue);
             }
-            if (connection != null) {
-                writeEvent(event);
+            if (spillQueue != null && isBackingOff()) {
+                spill(event, spillQueue);
             } else {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Failed to get APM server connection, dropping event: {}", event);
+                if (connection == null) {
+                    connection = startRequest(INTAKE_V2_URL);
+                }
+                if (connection != null) {
+                    writeEvent(event);
+                } else {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Failed to get APM server connection, dropping event: {}", event);
+                    }
+                    dropped++;
                 }
-                dropped++;
             }
         } catch (Exception e) {
             logger.error("Failed to handle event of type {} with this error: {}", event.getType(), e.getMessage());
@@ -112,6 +163,9 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         if (shouldEndRequest()) {
             endRequest();
         }
+        if (spillQueue != null && shouldEndSpillBatch()) {
+            endSpillBatch(spillQueue);
+        }
     }
 
     /**
@@ -124,18 +178,185 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     }
 
     private void writeEvent(ReportingEvent event) {
-        if (event.getTransaction() != null) {
+        if (serializeEvent(event)) {
             currentlyTransmitting++;
+        }
+    }
+
+    /**
+     * Serializes the event to the current output stream of the {@link #payloadSerializer}
+     *
+     * @param event the event to serialize
+     * @return {@code true} if the event is a transaction, span or error, {@code false} otherwise
+     */
+    private boolean serializeEvent(ReportingEvent event) {
+        if (event.getTransaction() != null) {
             payloadSerializer.serializeTransactionNdJson(event.getTransaction());
+            return true;
         } else if (event.getSpan() != null) {
-            currentlyTransmitting++;
             payloadSerializer.serializeSpanNdJson(event.getSpan());
+            return true;
+        } else if (event.getSpanRecordLength() > 0) {
+            writeSpanRecord(event);
+            return true;
         } else if (event.getError() != null) {
-            currentlyTransmitting++;
             payloadSerializer.serializeErrorNdJson(event.getError());
+            return true;
         } else if (event.getJsonWriter() != null) {
             payloadSerializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
         }
+        return false;
+    }
+
+    private void writeSpanRecord(ReportingEvent event) {
+        ByteBuffer spanRecord = Objects.requireNonNull(event.getSpanRecord());
+        int length = event.getSpanRecordLength();
+        if (spanRecordBuffer.length < length) {
+            spanRecordBuffer = new byte[spanRecord.capacity()];
+        }
+        ((Buffer) spanRecord).clear();
+        spanRecord.get(spanRecordBuffer, 0, length);
+        payloadSerializer.writeBytes(spanRecordBuffer, length);
+    }
+
+    private boolean isBackingOff() {
+        return System.currentTimeMillis() < backoffUntil;
+    }
+
+    /**
+     * Unless there's a {@link SpillQueue}, blocks the reporter thread.
+     * Otherwise, the reporter thread continues to process events and writes them to the {@link SpillQueue} until the back off time has elapsed.
+     */
+    @Override
+    protected void backOff(long backoffTimeMillis) {
+        if (spillQueue != null) {
+            backoffUntil = System.currentTimeMillis() + backoffTimeMillis;
+        } else {
+            super.backOff(backoffTimeMillis);
+        }
+    }
+
+    private void spill(ReportingEvent event, SpillQueue spillQueue) throws Exception {
+        if (spillOutputStream == null) {
+            payloadSerializer.blockUntilReady();
+            if (spillCompressionCodec == null) {
+                spillCompressionCodec = compressionCodec.newInstance();
+            }
+            spillOutputStream = spillCompressionCodec.wrap(spillBuffer);
+            payloadSerializer.setOutputStream(spillOutputStream);
+            payloadSerializer.appendMetaDataNdJsonToStream();
+        }
+        if (event.getTransaction() != null) {
+            spilledTransactions++;
+        } else if (event.getSpan() != null || event.getSpanRecordLength() > 0) {
+            spilledSpans++;
+        } else if (event.getError() != null) {
+            spilledErrors++;
+        }
+        serializeEvent(event);
+    }
+
+    private boolean shouldEndSpillBatch() {
+        return spillOutputStream != null && spillCompressionCodec != null
+            && spillCompressionCodec.getBytesWritten() + DslJsonSerializer.BUFFER_SIZE >= reporterConfiguration.getApiRequestSize();
+    }
+
+    /**
+     * Completes the request body which is currently written to the {@link #spillBuffer} and adds it to the {@link SpillQueue}.
+     */
+    private void endSpillBatch(SpillQueue spillQueue) {
+        if (spillOutputStream == null || spillCompressionCodec == null) {
+            return;
+        }
+        int events = spilledTransactions + spilledSpans + spilledErrors;
+        try {
+            payloadSerializer.fullFlush();
+            spillOutputStream.close();
+            if (!spillBuffer.offerTo(spillQueue, spilledTransactions, spilledSpans, spilledErrors)) {
+                dropped += events;
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to spill events: {}", e.getMessage());
+            dropped += events;
+        } finally {
+            spillOutputStream = null;
+            spillBuffer.reset();
+            spillCompressionCodec.reset();
+            spilledTransactions = 0;
+            spilledSpans = 0;
+            spilledErrors = 0;
+        }
+    }
+
+    /**
+     * Sends the batches of the {@link SpillQueue} to the APM Server in the order they have been added,
+     * until the queue is empty or until a request fails.
+     */
+    private void replaySpilledBatches(SpillQueue spillQueue) {
+        endSpillBatch(spillQueue);
+        if (spillQueue.isEmpty()) {
+            return;
+        }
+        logger.debug("Sending {} spilled batches", spillQueue.getBatches());
+        try {
+            for (SpillQueue.Batch batch = spillQueue.peek(); batch != null && !shutDown; batch = spillQueue.peek()) {
+                if (!sendSpilledBatch(batch, spillQueue)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to read spilled events, discarding {} batches: {}", spillQueue.getBatches(), e.getMessage());
+            logger.debug("Spill queue read failure", e);
+            spillQueue.clear();
+        }
+    }
+
+    /**
+     * @return {@code true}, if the batch has been removed from the queue, {@code false} if it should be retried later
+     */
+    private boolean sendSpilledBatch(SpillQueue.Batch batch, SpillQueue spillQueue) throws IOException {
+        final HttpURLConnection connection;
+        try {
+            payloadSerializer.blockUntilReady();
+            connection = apmServerClient.startRequest(INTAKE_V2_URL);
+        } catch (Exception e) {
+            logger.debug("Failed to start request for spilled events", e);
+            return false;
+        }
+        if (connection == null) {
+            return false;
+        }
+        try {
+            prepareRequest(connection, compressionCodec);
+            connection.connect();
+            final OutputStream os = connection.getOutputStream();
+            os.write(batch.getPayload(), 0, batch.getLength());
+            os.close();
+            final int responseCode = connection.getResponseCode();
+            if (responseCode < 400) {
+                errorCount = 0;
+                reported += batch.getEventCount();
+                spillQueue.remove();
+                return true;
+            } else if (responseCode == 429 || responseCode >= 500) {
+                logger.info("Failed to send spilled events, response code is {}", responseCode);
+                onConnectionError(responseCode, 0, 0);
+                return false;
+            } else {
+                // retrying won't help
+                logger.warn("APM Server rejected {} spilled events, response code is {}", batch.getEventCount(), responseCode);
+                dropped += batch.getEventCount();
+                spillQueue.drop();
+                return true;
+            }
+        } catch (IOException e) {
+            logger.error("Error sending spilled events to APM server: {}", e.getMessage());
+            logger.debug("Sending spilled events to APM server failed", e);
+            onConnectionError(null, 0, 0);
+            return false;
+        } finally {
+            HttpUtils.consumeAndClose(connection);
+        }
     }
 
     private void cancelTimeout() {
@@ -173,6 +394,24 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         logger.info("Reported events: {}", reported);
         logger.info("Dropped events: {}", dropped);
         timeoutTimer.cancel();
+        if (spillQueue != null) {
+            if (!spillQueue.isEmpty()) {
+                logger.info("Discarding {} spilled batches", spillQueue.getBatches());
+            }
+            logger.info("Events which could not be spilled: {} transactions, {} spans, {} errors",
+                spillQueue.getDroppedTransactions(), spillQueue.getDroppedSpans(), spillQueue.getDroppedErrors());
+            spillQueue.close();
+        }
+    }
+
+    /**
+     * Gives access to the internal buffer to avoid copying it when adding it to the {@link SpillQueue}
+     */
+    private static class SpillBuffer extends ByteArrayOutputStream {
+
+        private boolean offerTo(SpillQueue spillQueue, int transactions, int spans, int errors) {
+            return spillQueue.offer(buf, 0, count, transactions, spans, errors);
+        }
     }
 
     private static class FlushOnTimeoutTimerTask extends TimerTask {
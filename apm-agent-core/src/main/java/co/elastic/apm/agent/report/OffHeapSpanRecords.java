@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.util.MathUtils;
+import com.dslplatform.json.JsonWriter;
+import com.lmax.disruptor.EventFactory;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+/**
+ * Stores serialized spans in an off-heap buffer, see {@link ReporterConfiguration#isOffHeapSpanRecords()}.
+ * <p>
+ * Each {@link ReportingEvent} of the ring buffer gets a fixed-size slice of a single direct {@link ByteBuffer}.
+ * When a span is reported, it's {@linkplain #serialize serialized} on the reporting thread before a slot of the ring buffer is claimed,
+ * so that the {@link Span} object can be recycled right away.
+ * While the slot is claimed, the serialized span is only {@linkplain #write copied} into the slice of the event.
+ * The reporter thread then copies the serialized span to the request body, without having to look at the {@link Span} object again.
+ * </p>
+ * <p>
+ * The serializers are pooled rather than kept per thread, so that the memory they use is bounded
+ * regardless of the number of application threads.
+ * </p>
+ */
+class OffHeapSpanRecords implements EventFactory<ReportingEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapSpanRecords.class);
+
+    private final ByteBuffer buffer;
+    private final int recordSize;
+    private final ObjectPool<DslJsonSerializer> serializerPool;
+    private int nextRecordOffset;
+
+    private OffHeapSpanRecords(ByteBuffer buffer, int recordSize, final StacktraceConfiguration stacktraceConfiguration,
+                               final ApmServerClient apmServerClient, final Future<MetaData> metaData) {
+        this.buffer = buffer;
+        this.recordSize = recordSize;
+        // more serializers than processors would only be in use concurrently if application threads are de-scheduled while serializing
+        this.serializerPool = QueueBasedObjectPool.of(new MpmcAtomicArrayQueue<DslJsonSerializer>(Math.max(2, Runtime.getRuntime().availableProcessors())), false,
+            new Allocator<DslJsonSerializer>() {
+                @Override
+                public DslJsonSerializer createInstance() {
+                    return new DslJsonSerializer(stacktraceConfiguration, apmServerClient, metaData);
+                }
+            },
+            new Resetter<DslJsonSerializer>() {
+                @Override
+                public void recycle(DslJsonSerializer serializer) {
+                    serializer.getJsonWriter().reset();
+                }
+            });
+    }
+
+    /**
+     * @param maxQueueSize the maximum queue size, which is rounded up to the next power of two, just like the ring buffer
+     * @param recordSize   the maximum size of a serialized span
+     * @return the off-heap span records, or {@code null} if the buffer would exceed the maximum size of a {@link ByteBuffer}
+     */
+    @Nullable
+    static OffHeapSpanRecords create(int maxQueueSize, int recordSize, StacktraceConfiguration stacktraceConfiguration,
+                                     ApmServerClient apmServerClient, Future<MetaData> metaData) {
+        long capacity = (long) MathUtils.getNextPowerOf2(maxQueueSize) * recordSize;
+        if (recordSize <= 0 || capacity > Integer.MAX_VALUE) {
+            logger.warn("Can't allocate {} bytes for off-heap span records, spans are kept on the heap", capacity);
+            return null;
+        }
+        return new OffHeapSpanRecords(ByteBuffer.allocateDirect((int) capacity), recordSize, stacktraceConfiguration, apmServerClient, metaData);
+    }
+
+    /**
+     * Called by the {@link com.lmax.disruptor.RingBuffer} when pre-allocating the events
+     */
+    @Override
+    public ReportingEvent newInstance() {
+        ByteBuffer record = null;
+        if (nextRecordOffset + recordSize <= buffer.capacity()) {
+            ByteBuffer duplicate = buffer.duplicate();
+            ((Buffer) duplicate).position(nextRecordOffset);
+            ((Buffer) duplicate).limit(nextRecordOffset + recordSize);
+            record = duplicate.slice();
+            nextRecordOffset += recordSize;
+        }
+        return new ReportingEvent(record);
+    }
+
+    /**
+     * Serializes the span with a pooled serializer.
+     * Must be called before claiming a slot of the ring buffer, so that the reporter thread does not wait for the serialization.
+     *
+     * @param span the span to serialize
+     * @return the serializer whose {@link JsonWriter} contains the serialized span, which has to be {@linkplain #release released},
+     * or {@code null} if the serialized span is larger than a record or if the serialization failed
+     */
+    @Nullable
+    DslJsonSerializer serialize(Span span) {
+        DslJsonSerializer serializer = serializerPool.createInstance();
+        try {
+            serializer.serializeSpanNdJson(span);
+            if (serializer.getJsonWriter().size() <= recordSize) {
+                return serializer;
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to serialize span into off-heap record: {}", e.getMessage());
+            logger.debug("Serialization failure", e);
+        }
+        release(serializer);
+        return null;
+    }
+
+    /**
+     * Copies a {@linkplain #serialize serialized} span into the off-heap record of the event.
+     *
+     * @param event      the claimed event
+     * @param serializer the serializer returned by {@link #serialize}
+     * @return {@code true} if the span has been copied into the record of the event, {@code false} if the event has no record
+     */
+    boolean write(ReportingEvent event, DslJsonSerializer serializer) {
+        ByteBuffer record = event.getSpanRecord();
+        if (record == null) {
+            return false;
+        }
+        JsonWriter jw = serializer.getJsonWriter();
+        int size = jw.size();
+        ((Buffer) record).clear();
+        record.put(jw.getByteBuffer(), 0, size);
+        event.setSpanRecord(size);
+        return true;
+    }
+
+    void release(DslJsonSerializer serializer) {
+        serializerPool.recycle(serializer);
+    }
+
+    int getRecordSize() {
+        return recordSize;
+    }
+}
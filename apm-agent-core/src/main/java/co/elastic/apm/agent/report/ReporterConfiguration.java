@@ -41,6 +41,7 @@ import java.net.URL;
 import java.util.Collections;
 import java.util.List;
 
+import static co.elastic.apm.agent.configuration.validation.RangeValidator.isInRange;
 import static co.elastic.apm.agent.configuration.validation.RangeValidator.isNotInRange;
 
 public class ReporterConfiguration extends ConfigurationOptionProvider {
@@ -143,6 +144,19 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
             "Verification can be disabled by changing this setting to false.")
         .buildWithDefault(true);
 
+    private final ConfigurationOption<Boolean> persistentServerConnections = ConfigurationOption.booleanOption()
+        .key("persistent_server_connections")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("If set to `true`, the agent keeps a small pool of long-lived connections to the APM Server\n" +
+            "instead of relying on the JDK's keep-alive cache, which drops idle connections after a few seconds.\n" +
+            "This avoids TCP and TLS handshakes when a new request to the intake API is started,\n" +
+            "for example after <<config-api-request-time>> has elapsed.\n" +
+            "\n" +
+            "If the APM Server is reached via a proxy, the agent falls back to the JDK's HTTP client for these connections.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
     private final ConfigurationOption<Integer> maxQueueSize = ConfigurationOption.integerOption()
         .key("max_queue_size")
         .configurationCategory(REPORTER_CATEGORY)
@@ -159,6 +173,82 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         .dynamic(false)
         .buildWithDefault(512);
 
+    private final ConfigurationOption<Integer> reportingThreads = ConfigurationOption.integerOption()
+        .key("reporting_threads")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of threads serializing, compressing and sending events to the APM Server.\n" +
+            "\n" +
+            "By default, a single thread handles all events.\n" +
+            "On hosts with many cores that create a lot of events, this thread can become the bottleneck which leads to dropped events.\n" +
+            "When setting this to a value greater than `1`, the events are distributed to multiple queues based on the thread that created them.\n" +
+            "Each queue has its own reporting thread and a separate request to the APM Server.\n" +
+            "The <<config-max-queue-size>> is split evenly across all queues.")
+        .dynamic(false)
+        .addValidator(isInRange(1, 64))
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<Boolean> spillQueueEnabled = ConfigurationOption.booleanOption()
+        .key("spill_queue_enabled")
+        .tags("added[1.24.1]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("If set to `true`, the agent does not stop processing events while it backs off after a connection error\n" +
+            "or an error response from the APM Server.\n" +
+            "Instead, the events are serialized, compressed and written to files on disk.\n" +
+            "Once the APM Server is reachable again, the events are sent in the order they have been recorded.\n" +
+            "\n" +
+            "This makes it less likely to lose events if the APM Server is unavailable for a short period of time,\n" +
+            "as the <<config-max-queue-size,queue>> does not fill up while backing off.\n" +
+            "The disk usage is limited by <<config-spill-queue-max-size>>.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<ByteValue> spillQueueMaxSize = ByteValueConverter.byteOption()
+        .key("spill_queue_max_size")
+        .tags("added[1.24.1]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum disk space the spilled events may occupy (see <<config-spill-queue-enabled>>).\n" +
+            "The space is divided evenly among the <<config-reporting-threads>>.\n" +
+            "If the limit is reached, new events are dropped.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("64mb"));
+
+    private final ConfigurationOption<String> spillQueueDirectory = ConfigurationOption.stringOption()
+        .key("spill_queue_directory")
+        .tags("added[1.24.1]", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The directory in which the files of the spill queue are created (see <<config-spill-queue-enabled>>).\n" +
+            "The files are deleted when the application shuts down.\n" +
+            "If unset, the value of the `java.io.tmpdir` system property will be used.")
+        .dynamic(false)
+        .build();
+
+    private final ConfigurationOption<Boolean> offHeapSpanRecords = ConfigurationOption.booleanOption()
+        .key("off_heap_span_records")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("If set to `true`, spans are serialized when they end and are stored in an off-heap buffer until they are sent to the APM Server.\n" +
+            "The span objects can then be reused immediately instead of staying on the heap while they are waiting in the queue.\n" +
+            "This reduces the heap usage and the GC pressure when there are many spans in the queue,\n" +
+            "at the cost of serializing the spans, including their stack traces, on the application threads.\n" +
+            "\n" +
+            "The off-heap buffer has a size of <<config-max-queue-size>> (rounded up to the next power of two) times <<config-off-heap-span-record-size>>.\n" +
+            "Spans whose serialized size exceeds <<config-off-heap-span-record-size>> are kept on the heap.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<ByteValue> offHeapSpanRecordSize = ByteValueConverter.byteOption()
+        .key("off_heap_span_record_size")
+        .tags("added[1.24.1]", "performance", "experimental")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum size of a serialized span that is stored off-heap (see <<config-off-heap-span-records>>).\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("2kb"));
+
     private final ConfigurationOption<Boolean> reportSynchronously = ConfigurationOption.booleanOption()
         .key("report_sync")
         .tags("internal")
@@ -194,6 +284,22 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
             "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
         .buildWithDefault(ByteValue.of("768kb"));
 
+    private final ConfigurationOption<ApiRequestCompression> apiRequestCompression = ConfigurationOption.enumOption(ApiRequestCompression.class)
+        .key("api_request_compression")
+        .tags("added[1.24.1]", "performance")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("How the body of requests to the APM Server intake API is compressed.\n" +
+            "\n" +
+            "`DEFLATE` uses the fastest compression level of the `deflate` content encoding.\n" +
+            "`NONE` sends the events uncompressed.\n" +
+            "This reduces the CPU usage of the reporter thread but increases the network traffic roughly by a factor of ten.\n" +
+            "Consider this when the APM Server is reachable via a fast network, for example when it runs on the same host.\n" +
+            "\n" +
+            "NOTE: <<config-api-request-size>> limits the number of bytes sent per request.\n" +
+            "When compression is disabled, this means that each request contains fewer events.")
+        .dynamic(false)
+        .buildWithDefault(ApiRequestCompression.DEFLATE);
+
     private final ConfigurationOption<TimeDuration> metricsInterval = TimeDurationValueConverter.durationOption("s")
         .key("metrics_interval")
         .tags("added[1.3.0]")
@@ -278,10 +384,39 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return verifyServerCert.get();
     }
 
+    public boolean isPersistentServerConnections() {
+        return persistentServerConnections.get();
+    }
+
     public int getMaxQueueSize() {
         return maxQueueSize.get();
     }
 
+    public int getReportingThreads() {
+        return reportingThreads.get();
+    }
+
+    public boolean isSpillQueueEnabled() {
+        return spillQueueEnabled.get();
+    }
+
+    public long getSpillQueueMaxSize() {
+        return spillQueueMaxSize.get().getBytes();
+    }
+
+    @Nullable
+    public String getSpillQueueDirectory() {
+        return spillQueueDirectory.get();
+    }
+
+    public boolean isOffHeapSpanRecords() {
+        return offHeapSpanRecords.get();
+    }
+
+    public int getOffHeapSpanRecordSize() {
+        return (int) offHeapSpanRecordSize.get().getBytes();
+    }
+
     public boolean isReportSynchronously() {
         return reportSynchronously.get();
     }
@@ -298,6 +433,10 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return apiRequestSize.get().getBytes();
     }
 
+    public ApiRequestCompression getApiRequestCompression() {
+        return apiRequestCompression.get();
+    }
+
     public long getMetricsIntervalMs() {
         return metricsInterval.get().getMillis();
     }
@@ -313,4 +452,9 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
     public ConfigurationOption<List<URL>> getServerUrlsOption() {
         return this.serverUrls;
     }
+
+    public enum ApiRequestCompression {
+        DEFLATE,
+        NONE
+    }
 }
@@ -28,31 +28,89 @@ import co.elastic.apm.agent.impl.MetaData;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.spill.SpillQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Future;
 
 public class ReporterFactory {
 
+    private static final Logger logger = LoggerFactory.getLogger(ReporterFactory.class);
+
     public Reporter createReporter(ConfigurationRegistry configurationRegistry,
                                    ApmServerClient apmServerClient,
                                    Future<MetaData> metaData) {
 
         ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
-        ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient);
-        return new ApmServerReporter(true, reporterConfiguration, reportingEventHandler);
+        int reportingThreads = reporterConfiguration.getReportingThreads();
+        if (reportingThreads > 1) {
+            int maxQueueSizePerShard = ShardedApmServerReporter.getMaxQueueSizePerShard(reporterConfiguration.getMaxQueueSize(), reportingThreads);
+            long spillQueueMaxSizePerShard = ShardedApmServerReporter.getSpillQueueMaxSizePerShard(reporterConfiguration.getSpillQueueMaxSize(), reportingThreads);
+            List<ApmServerReporter> shards = new ArrayList<>(reportingThreads);
+            for (int i = 0; i < reportingThreads; i++) {
+                ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient,
+                    spillQueueMaxSizePerShard);
+                shards.add(new ApmServerReporter(true, reporterConfiguration, reportingEventHandler, maxQueueSizePerShard, "server-reporter-" + i,
+                    createOffHeapSpanRecords(configurationRegistry, reporterConfiguration, maxQueueSizePerShard, metaData, apmServerClient)));
+            }
+            return new ShardedApmServerReporter(shards);
+        }
+        ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient,
+            reporterConfiguration.getSpillQueueMaxSize());
+        int maxQueueSize = reporterConfiguration.getMaxQueueSize();
+        return new ApmServerReporter(true, reporterConfiguration, reportingEventHandler, maxQueueSize, "server-reporter",
+            createOffHeapSpanRecords(configurationRegistry, reporterConfiguration, maxQueueSize, metaData, apmServerClient));
+    }
+
+    @Nullable
+    private OffHeapSpanRecords createOffHeapSpanRecords(ConfigurationRegistry configurationRegistry,
+                                                        ReporterConfiguration reporterConfiguration,
+                                                        int maxQueueSize,
+                                                        Future<MetaData> metaData,
+                                                        ApmServerClient apmServerClient) {
+        if (!reporterConfiguration.isOffHeapSpanRecords()) {
+            return null;
+        }
+        return OffHeapSpanRecords.create(maxQueueSize, reporterConfiguration.getOffHeapSpanRecordSize(),
+            configurationRegistry.getConfig(StacktraceConfiguration.class), apmServerClient, metaData);
     }
 
     @Nonnull
     private ReportingEventHandler getReportingEventHandler(ConfigurationRegistry configurationRegistry,
                                                            ReporterConfiguration reporterConfiguration,
                                                            Future<MetaData> metaData,
-                                                           ApmServerClient apmServerClient) {
+                                                           ApmServerClient apmServerClient,
+                                                           long spillQueueMaxSize) {
 
         DslJsonSerializer payloadSerializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class), apmServerClient, metaData);
         ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(configurationRegistry);
-        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient);
+        return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient,
+            createSpillQueue(reporterConfiguration, spillQueueMaxSize));
+    }
+
+    @Nullable
+    private SpillQueue createSpillQueue(ReporterConfiguration reporterConfiguration, long maxSize) {
+        if (!reporterConfiguration.isSpillQueueEnabled()) {
+            return null;
+        }
+        String directory = reporterConfiguration.getSpillQueueDirectory();
+        if (directory == null) {
+            directory = System.getProperty("java.io.tmpdir");
+        }
+        try {
+            return new SpillQueue(new File(directory), maxSize, SpillQueue.DEFAULT_SEGMENT_SIZE);
+        } catch (IOException e) {
+            logger.warn("Failed to create spill queue in {}, events will be dropped while backing off: {}", directory, e.getMessage());
+            return null;
+        }
     }
 
 }
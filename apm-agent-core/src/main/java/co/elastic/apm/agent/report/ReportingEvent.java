@@ -30,12 +30,14 @@ import co.elastic.apm.agent.impl.transaction.Transaction;
 import com.dslplatform.json.JsonWriter;
 
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.ERROR;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.FLUSH;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.JSON_WRITER;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.SHUTDOWN;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.SPAN;
+import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.SPAN_RECORD;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.TRANSACTION;
 
 public class ReportingEvent {
@@ -49,6 +51,20 @@ public class ReportingEvent {
     private Span span;
     @Nullable
     private JsonWriter jsonWriter;
+    /**
+     * A slice of the off-heap buffer of {@link OffHeapSpanRecords}, {@code null} if spans are not stored off-heap
+     */
+    @Nullable
+    private final ByteBuffer spanRecord;
+    private int spanRecordLength;
+
+    public ReportingEvent() {
+        this(null);
+    }
+
+    ReportingEvent(@Nullable ByteBuffer spanRecord) {
+        this.spanRecord = spanRecord;
+    }
 
     public void resetState() {
         this.transaction = null;
@@ -56,6 +72,7 @@ public class ReportingEvent {
         this.error = null;
         this.span = null;
         this.jsonWriter = null;
+        this.spanRecordLength = 0;
     }
 
     @Nullable
@@ -97,6 +114,29 @@ public class ReportingEvent {
         this.type = SPAN;
     }
 
+    /**
+     * Marks this event as containing a span that has been serialized into the {@link #getSpanRecord() span record}
+     *
+     * @param length the number of bytes of the serialized span
+     */
+    void setSpanRecord(int length) {
+        this.spanRecordLength = length;
+        this.type = SPAN_RECORD;
+    }
+
+    @Nullable
+    ByteBuffer getSpanRecord() {
+        return spanRecord;
+    }
+
+    /**
+     * @return the number of bytes of the serialized span in the {@link #getSpanRecord() span record},
+     * {@code 0} if this event does not contain a serialized span
+     */
+    int getSpanRecordLength() {
+        return spanRecordLength;
+    }
+
     public void shutdownEvent() {
         this.type = SHUTDOWN;
     }
@@ -134,6 +174,6 @@ public class ReportingEvent {
     }
 
     enum ReportingEventType {
-        FLUSH, TRANSACTION, SPAN, ERROR, SHUTDOWN, JSON_WRITER
+        FLUSH, TRANSACTION, SPAN, SPAN_RECORD, ERROR, SHUTDOWN, JSON_WRITER
     }
 }
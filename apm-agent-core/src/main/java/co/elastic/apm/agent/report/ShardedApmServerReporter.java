@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import com.dslplatform.json.JsonWriter;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Distributes events across multiple {@link ApmServerReporter}s,
+ * each with its own ring buffer, reporter thread, serializer and connection to the APM Server.
+ * <p>
+ * Events are assigned to a shard based on the thread which reports them.
+ * That way, a single application thread always uses the same ring buffer,
+ * which reduces the contention on the ring buffers' sequences compared to a single shared ring buffer.
+ * </p>
+ */
+public class ShardedApmServerReporter implements Reporter {
+
+    private final ApmServerReporter[] shards;
+
+    /**
+     * @param shards the reporters to distribute the events to, each with a distinct {@link ReportingEventHandler}
+     */
+    public ShardedApmServerReporter(List<ApmServerReporter> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = shards.toArray(new ApmServerReporter[0]);
+    }
+
+    /**
+     * Returns the size of the ring buffer of a single shard so that all shards combined hold {@code maxQueueSize} events.
+     *
+     * @param maxQueueSize the configured maximum queue size
+     * @param shards       the number of shards
+     * @return the maximum queue size of a single shard
+     */
+    static int getMaxQueueSizePerShard(int maxQueueSize, int shards) {
+        return Math.max(1, (maxQueueSize + shards - 1) / shards);
+    }
+
+    /**
+     * Returns the max size of the spill queue of a single shard so that all shards combined don't exceed {@code spillQueueMaxSize}.
+     *
+     * @param spillQueueMaxSize the configured maximum spill queue size in bytes
+     * @param shards            the number of shards
+     * @return the maximum spill queue size of a single shard in bytes
+     */
+    static long getSpillQueueMaxSizePerShard(long spillQueueMaxSize, int shards) {
+        return spillQueueMaxSize / shards;
+    }
+
+    private ApmServerReporter getShard() {
+        return shards[(int) (Thread.currentThread().getId() % shards.length)];
+    }
+
+    int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public void start() {
+        for (ApmServerReporter shard : shards) {
+            shard.start();
+        }
+    }
+
+    @Override
+    public void report(Transaction transaction) {
+        getShard().report(transaction);
+    }
+
+    @Override
+    public void report(Span span) {
+        getShard().report(span);
+    }
+
+    @Override
+    public void report(ErrorCapture error) {
+        getShard().report(error);
+    }
+
+    @Override
+    public void report(JsonWriter jsonWriter) {
+        getShard().report(jsonWriter);
+    }
+
+    @Override
+    public long getDropped() {
+        long dropped = 0;
+        for (ApmServerReporter shard : shards) {
+            dropped += shard.getDropped();
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getReported() {
+        long reported = 0;
+        for (ApmServerReporter shard : shards) {
+            reported += shard.getReported();
+        }
+        return reported;
+    }
+
+    /**
+     * Flushes all shards.
+     *
+     * @return A {@link Future} which resolves when the flush has been executed by all shards.
+     */
+    @Override
+    public Future<Void> flush() {
+        final Future<?>[] flushes = new Future<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            flushes[i] = shards[i].flush();
+        }
+        return new Future<Void>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = false;
+                for (Future<?> flush : flushes) {
+                    cancelled |= flush.cancel(mayInterruptIfRunning);
+                }
+                return cancelled;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                for (Future<?> flush : flushes) {
+                    if (flush.isCancelled()) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public boolean isDone() {
+                for (Future<?> flush : flushes) {
+                    if (!flush.isDone()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Void get() throws InterruptedException, ExecutionException {
+                for (Future<?> flush : flushes) {
+                    flush.get();
+                }
+                return null;
+            }
+
+            @Override
+            public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+                final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+                for (Future<?> flush : flushes) {
+                    flush.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        for (ApmServerReporter shard : shards) {
+            shard.close();
+        }
+    }
+}
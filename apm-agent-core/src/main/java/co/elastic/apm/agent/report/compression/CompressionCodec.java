@@ -0,0 +1,75 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.compression;
+
+import javax.annotation.Nullable;
+import java.io.OutputStream;
+
+/**
+ * Compresses the body of requests to the intake API.
+ * <p>
+ * An instance is reused for all requests of a single reporting thread and is not thread safe.
+ * After a request has been completed, the codec has to be {@linkplain #reset() reset} before it can be used for the next request.
+ * </p>
+ */
+public interface CompressionCodec {
+
+    /**
+     * Returns the value of the {@code Content-Encoding} header.
+     *
+     * @return the value of the {@code Content-Encoding} header or {@code null} if the body is not compressed
+     */
+    @Nullable
+    String getContentEncoding();
+
+    /**
+     * Wraps the request body stream.
+     * The returned stream has to be closed in order to complete the request body.
+     *
+     * @param os the request body stream
+     * @return a stream which compresses the data before writing it to the request body stream
+     */
+    OutputStream wrap(OutputStream os);
+
+    /**
+     * @return the number of uncompressed bytes written since the last {@link #reset()}
+     */
+    long getBytesRead();
+
+    /**
+     * @return the number of compressed bytes written since the last {@link #reset()}
+     */
+    long getBytesWritten();
+
+    /**
+     * Resets the state of this codec so that it can be used for a new request body.
+     */
+    void reset();
+
+    /**
+     * @return a new codec with the same settings as this one
+     */
+    CompressionCodec newInstance();
+}
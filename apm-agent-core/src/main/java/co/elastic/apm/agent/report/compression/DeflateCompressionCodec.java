@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.compression;
+
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses the request body with the zlib format, which is what HTTP calls the {@code deflate} content encoding.
+ */
+public class DeflateCompressionCodec implements CompressionCodec {
+
+    private final int level;
+    private final Deflater deflater;
+
+    public DeflateCompressionCodec(int level) {
+        this.level = level;
+        this.deflater = new Deflater(level);
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return "deflate";
+    }
+
+    @Override
+    public OutputStream wrap(OutputStream os) {
+        return new DeflaterOutputStream(os, deflater);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return deflater.getBytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return deflater.getBytesWritten();
+    }
+
+    @Override
+    public void reset() {
+        deflater.reset();
+    }
+
+    @Override
+    public CompressionCodec newInstance() {
+        return new DeflateCompressionCodec(level);
+    }
+}
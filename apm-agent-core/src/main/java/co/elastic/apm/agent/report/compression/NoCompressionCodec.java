@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.compression;
+
+import javax.annotation.Nullable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends the request body uncompressed.
+ * <p>
+ * This trades network bandwidth for the CPU time it takes to compress the data,
+ * which can be worth it if the APM Server is reachable via a fast network, for example if it runs on the same host.
+ * </p>
+ */
+public class NoCompressionCodec implements CompressionCodec {
+
+    private long bytesWritten;
+
+    @Nullable
+    @Override
+    public String getContentEncoding() {
+        return null;
+    }
+
+    @Override
+    public OutputStream wrap(OutputStream os) {
+        return new FilterOutputStream(os) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesWritten++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesWritten += len;
+            }
+        };
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesWritten;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void reset() {
+        bytesWritten = 0;
+    }
+
+    @Override
+    public CompressionCodec newInstance() {
+        return new NoCompressionCodec();
+    }
+}
@@ -49,6 +49,8 @@ import co.elastic.apm.agent.impl.payload.RuntimeInfo;
 import co.elastic.apm.agent.impl.payload.Service;
 import co.elastic.apm.agent.impl.payload.SystemInfo;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Composite;
 import co.elastic.apm.agent.impl.transaction.Id;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.SpanCount;
@@ -115,6 +117,12 @@ public class DslJsonSerializer implements PayloadSerializer {
     private final Future<MetaData> metaData;
     @Nullable
     private byte[] serializedMetaData;
+    /**
+     * The complete {@code {"metadata":{...}}\n} ND-JSON line that starts every intake API request.
+     * As the metadata does not change over the lifetime of the agent, it's rendered once and then copied as-is.
+     */
+    @Nullable
+    private byte[] serializedMetaDataNdJson;
 
     public DslJsonSerializer(StacktraceConfiguration stacktraceConfiguration, ApmServerClient apmServerClient, final Future<MetaData> metaData) {
         this.stacktraceConfiguration = stacktraceConfiguration;
@@ -178,11 +186,8 @@ public class DslJsonSerializer implements PayloadSerializer {
     @Override
     public void appendMetaDataNdJsonToStream() throws UninitializedException {
         assertMetaDataReady();
-        jw.writeByte(JsonWriter.OBJECT_START);
-        writeFieldName("metadata");
-        appendMetadataToStream();
-        jw.writeByte(JsonWriter.OBJECT_END);
-        jw.writeByte(NEW_LINE);
+        //noinspection ConstantConditions
+        jw.writeAscii(serializedMetaDataNdJson);
     }
 
     static void serializeMetadata(MetaData metaData, JsonWriter metadataJW) {
@@ -237,7 +242,15 @@ public class DslJsonSerializer implements PayloadSerializer {
         if (serializedMetaData == null) {
             JsonWriter metadataJW = new DslJson<>(new DslJson.Settings<>()).newWriter(4096);
             serializeMetadata(metaData.get(5, TimeUnit.SECONDS), metadataJW);
-            serializedMetaData = metadataJW.toByteArray();
+            byte[] metadata = metadataJW.toByteArray();
+            metadataJW.reset();
+            metadataJW.writeByte(JsonWriter.OBJECT_START);
+            writeFieldName("metadata", metadataJW);
+            metadataJW.writeAscii(metadata);
+            metadataJW.writeByte(JsonWriter.OBJECT_END);
+            metadataJW.writeByte(NEW_LINE);
+            serializedMetaDataNdJson = metadataJW.toByteArray();
+            serializedMetaData = metadata;
         }
     }
 
@@ -617,6 +630,7 @@ public class DslJsonSerializer implements PayloadSerializer {
         writeField("outcome", transaction.getOutcome().toString());
         serializeContext(transaction, transaction.getContext(), traceContext);
         serializeSpanCount(transaction.getSpanCount());
+        serializeSpanLinks(transaction.getSpanLinks());
         double sampleRate = traceContext.getSampleRate();
         if (!Double.isNaN(sampleRate)) {
             writeField("sample_rate", sampleRate);
@@ -656,14 +670,54 @@ public class DslJsonSerializer implements PayloadSerializer {
         }
         serializeSpanContext(span.getContext(), traceContext);
         writeHexArray("child_ids", span.getChildIds());
+        serializeSpanLinks(span.getSpanLinks());
         double sampleRate = traceContext.getSampleRate();
         if (!Double.isNaN(sampleRate)) {
             writeField("sample_rate", sampleRate);
         }
+        if (span.isComposite()) {
+            serializeComposite(span.getComposite());
+        }
         serializeSpanType(span);
         jw.writeByte(OBJECT_END);
     }
 
+    private void serializeSpanLinks(@Nullable LongList spanLinks) {
+        if (spanLinks != null && spanLinks.getSize() > 0) {
+            writeFieldName("links");
+            jw.writeByte(ARRAY_START);
+            for (int i = 0, size = spanLinks.getSize(); i < size; i += AbstractSpan.LONGS_PER_SPAN_LINK) {
+                if (i > 0) {
+                    jw.writeByte(COMMA);
+                }
+                jw.writeByte(OBJECT_START);
+                writeFieldName("trace_id");
+                jw.writeByte(QUOTE);
+                HexUtils.writeAsHex(spanLinks.get(i), jw);
+                HexUtils.writeAsHex(spanLinks.get(i + 1), jw);
+                jw.writeByte(QUOTE);
+                jw.writeByte(COMMA);
+                writeFieldName("span_id");
+                jw.writeByte(QUOTE);
+                HexUtils.writeAsHex(spanLinks.get(i + 2), jw);
+                jw.writeByte(QUOTE);
+                jw.writeByte(OBJECT_END);
+            }
+            jw.writeByte(ARRAY_END);
+            jw.writeByte(COMMA);
+        }
+    }
+
+    private void serializeComposite(Composite composite) {
+        writeFieldName("composite");
+        jw.writeByte(OBJECT_START);
+        writeField("count", composite.getCount());
+        writeField("sum", composite.getSumMs());
+        writeLastField("compression_strategy", composite.getCompressionStrategy());
+        jw.writeByte(OBJECT_END);
+        jw.writeByte(COMMA);
+    }
+
     private void serializeServiceName(TraceContext traceContext) {
         String serviceName = traceContext.getServiceName();
         if (serviceName != null) {
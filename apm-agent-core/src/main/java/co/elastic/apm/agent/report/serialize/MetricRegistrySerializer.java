@@ -25,6 +25,7 @@
 package co.elastic.apm.agent.report.serialize;
 
 import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
 import com.dslplatform.json.DslJson;
@@ -80,6 +81,7 @@ public class MetricRegistrySerializer {
                 hasSamples = serializeGauges(metricSet.getGauges(), jw);
                 hasSamples |= serializeTimers(metricSet.getTimers(), hasSamples, jw);
                 hasSamples |= serializeCounters(metricSet.getCounters(), hasSamples, jw);
+                hasSamples |= serializeHistograms(metricSet.getHistograms(), hasSamples, jw);
                 jw.writeByte(JsonWriter.OBJECT_END);
             }
             jw.writeByte(JsonWriter.OBJECT_END);
@@ -184,6 +186,60 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
+    private static boolean serializeHistograms(Map<String, Histogram> histograms, boolean hasSamples, JsonWriter jw) {
+        for (Map.Entry<String, Histogram> kv : histograms.entrySet()) {
+            Histogram histogram = kv.getValue();
+            if (histogram.hasContent()) {
+                if (hasSamples) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                serializeHistogram(kv.getKey(), histogram, jw);
+                hasSamples = true;
+            }
+        }
+        return hasSamples;
+    }
+
+    /**
+     * Only serializes non-empty buckets, using the midpoint of each bucket as its value
+     */
+    private static void serializeHistogram(String key, Histogram histogram, JsonWriter jw) {
+        DslJsonSerializer.writeFieldName(key, jw);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonSerializer.writeFieldName("values", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        boolean first = true;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            if (histogram.getCount(i) > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(Histogram.getBucketMidpoint(i), jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("counts", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        first = true;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            long count = histogram.getCount(i);
+            if (count > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(count, jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("type", jw);
+        jw.writeAscii("\"histogram\"");
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
     private static void serializeCounter(String key, AtomicLong value, JsonWriter jw) {
         serializeValueStart(key, "", jw);
         NumberConverter.serialize(value.get(), jw);
@@ -0,0 +1,356 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.spill;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * A FIFO queue of already serialized and compressed intake API request bodies which is backed by files on disk.
+ * <p>
+ * While the APM Server can't be reached, the reporter appends the request bodies (called batches) to this queue
+ * instead of blocking the reporter thread, which would otherwise lead to a full ring buffer and dropped events.
+ * Once the APM Server is reachable again, the batches are sent in the order they have been added.
+ * </p>
+ * <p>
+ * The queue consists of multiple segment files.
+ * New batches are appended to the last segment until it has reached the segment size, after which a new segment is started.
+ * A segment is deleted as soon as all of its batches have been removed.
+ * The total size of all segments is bounded by the max size.
+ * When adding a batch would exceed the max size, the batch is rejected and its events are counted as dropped.
+ * </p>
+ * <p>
+ * Similar to {@code BufferedFile} in the profiling plugin, this does not use a {@link java.nio.MappedByteBuffer},
+ * as accessing it is not a safepoint and could therefore increase the time-to-safepoint when the disk is slow.
+ * Instead, the segments are accessed with positional reads and writes on a {@link FileChannel}, using reusable buffers.
+ * </p>
+ * <p>
+ * This class is not thread safe and is meant to be used by the reporter thread only.
+ * </p>
+ */
+public class SpillQueue implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final Logger logger = LoggerFactory.getLogger(SpillQueue.class);
+    private static final int SIZE_OF_INT = 4;
+    /**
+     * payload length, number of transactions, number of spans, number of errors
+     */
+    private static final int HEADER_SIZE = 4 * SIZE_OF_INT;
+
+    private final File directory;
+    private final long maxSize;
+    private final long segmentSize;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final Batch batch = new Batch();
+    private boolean batchLoaded;
+    private long nextSegmentId;
+    private long size;
+    private int batches;
+    private long droppedTransactions;
+    private long droppedSpans;
+    private long droppedErrors;
+
+    /**
+     * @param parentDirectory the directory in which a new, unique directory for the segment files is created
+     * @param maxSize         the max number of bytes all segments may occupy
+     * @param segmentSize     the size after which a new segment is started
+     * @throws IOException if the directory could not be created
+     */
+    public SpillQueue(File parentDirectory, long maxSize, long segmentSize) throws IOException {
+        this.directory = Files.createTempDirectory(parentDirectory.toPath(), "elastic-apm-spill-").toFile();
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Appends a batch to the end of the queue.
+     *
+     * @param payload      the buffer containing the serialized and compressed request body
+     * @param offset       the offset of the request body within the buffer
+     * @param length       the length of the request body
+     * @param transactions the number of transactions contained in the request body
+     * @param spans        the number of spans contained in the request body
+     * @param errors       the number of errors contained in the request body
+     * @return {@code true}, if the batch has been added, {@code false} if it has been dropped
+     * because the queue is full or because of an I/O error
+     */
+    public boolean offer(byte[] payload, int offset, int length, int transactions, int spans, int errors) {
+        final long recordSize = HEADER_SIZE + length;
+        if (size + recordSize > maxSize) {
+            logger.debug("Spill queue is full, dropping {} transactions, {} spans and {} errors", transactions, spans, errors);
+            onDropped(transactions, spans, errors);
+            return false;
+        }
+        try {
+            Segment tail = segments.peekLast();
+            if (tail == null || (tail.writePosition > 0 && tail.writePosition + recordSize > segmentSize)) {
+                tail = newSegment();
+            }
+            ((Buffer) header).clear();
+            header.putInt(length).putInt(transactions).putInt(spans).putInt(errors);
+            ((Buffer) header).flip();
+            writeFully(tail.channel, header, tail.writePosition);
+            writeFully(tail.channel, ByteBuffer.wrap(payload, offset, length), tail.writePosition + HEADER_SIZE);
+            // only advance the position after the whole record has been written
+            // so that a partially written record gets overwritten by the next one
+            tail.writePosition += recordSize;
+            size += recordSize;
+            batches++;
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to write to spill queue in {}: {}", directory, e.getMessage());
+            logger.debug("Spill queue write failure", e);
+            onDropped(transactions, spans, errors);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the oldest batch without removing it from the queue.
+     * <p>
+     * The returned {@link Batch} is reused and only valid until the next call to {@link #remove()}.
+     * </p>
+     *
+     * @return the oldest batch or {@code null} if the queue is empty
+     * @throws IOException if the batch could not be read
+     */
+    @Nullable
+    public Batch peek() throws IOException {
+        if (batchLoaded) {
+            return batch;
+        }
+        final Segment head = segments.peekFirst();
+        if (head == null || head.readPosition >= head.writePosition) {
+            return null;
+        }
+        ((Buffer) header).clear();
+        readFully(head.channel, header, head.readPosition);
+        ((Buffer) header).flip();
+        batch.length = header.getInt();
+        batch.transactions = header.getInt();
+        batch.spans = header.getInt();
+        batch.errors = header.getInt();
+        if (batch.payload.length < batch.length) {
+            batch.payload = new byte[batch.length];
+        }
+        readFully(head.channel, ByteBuffer.wrap(batch.payload, 0, batch.length), head.readPosition + HEADER_SIZE);
+        batchLoaded = true;
+        return batch;
+    }
+
+    /**
+     * Removes the oldest batch from the queue and deletes its segment if it does not contain any other batches.
+     *
+     * @throws IOException if the oldest batch could not be read
+     */
+    public void remove() throws IOException {
+        if (peek() == null) {
+            return;
+        }
+        final Segment head = segments.getFirst();
+        head.readPosition += HEADER_SIZE + batch.length;
+        batchLoaded = false;
+        batches--;
+        if (head.readPosition >= head.writePosition) {
+            segments.removeFirst();
+            size -= head.writePosition;
+            head.delete();
+        }
+    }
+
+    /**
+     * Removes and drops the oldest batch, for example if the APM Server has rejected it.
+     *
+     * @throws IOException if the oldest batch could not be read
+     */
+    public void drop() throws IOException {
+        final Batch batch = peek();
+        if (batch != null) {
+            onDropped(batch.transactions, batch.spans, batch.errors);
+            remove();
+        }
+    }
+
+    private void onDropped(int transactions, int spans, int errors) {
+        droppedTransactions += transactions;
+        droppedSpans += spans;
+        droppedErrors += errors;
+    }
+
+    private Segment newSegment() throws IOException {
+        final File file = new File(directory, "segment-" + nextSegmentId++ + ".spill");
+        final Segment segment = new Segment(file, FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of spill queue segment");
+            }
+            position += read;
+        }
+    }
+
+    public boolean isEmpty() {
+        return batches == 0;
+    }
+
+    /**
+     * @return the number of batches in the queue
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return the number of bytes all segments occupy on disk
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getDroppedTransactions() {
+        return droppedTransactions;
+    }
+
+    public long getDroppedSpans() {
+        return droppedSpans;
+    }
+
+    public long getDroppedErrors() {
+        return droppedErrors;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Deletes all segments, including the batches which have not been removed yet.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        size = 0;
+        batches = 0;
+        batchLoaded = false;
+    }
+
+    /**
+     * {@linkplain #clear() Clears} the queue and deletes its directory.
+     */
+    @Override
+    public void close() {
+        clear();
+        if (!directory.delete()) {
+            logger.debug("Could not delete spill queue directory {}", directory);
+        }
+    }
+
+    /**
+     * A batch of events which have been serialized and compressed into the body of an intake API request.
+     */
+    public static class Batch {
+        private byte[] payload = new byte[0];
+        private int length;
+        private int transactions;
+        private int spans;
+        private int errors;
+
+        /**
+         * @return the buffer containing the request body, starting at offset {@code 0}
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getTransactions() {
+            return transactions;
+        }
+
+        public int getSpans() {
+            return spans;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public int getEventCount() {
+            return transactions + spans + errors;
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private long writePosition;
+        private long readPosition;
+
+        private Segment(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        private void delete() {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            if (!file.delete()) {
+                logger.debug("Could not delete spill queue segment {}", file);
+            }
+        }
+    }
+}
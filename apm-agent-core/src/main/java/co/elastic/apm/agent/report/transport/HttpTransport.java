@@ -0,0 +1,56 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.transport;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the HTTP connections that {@link co.elastic.apm.agent.report.ApmServerClient} uses to communicate with the APM Server.
+ * <p>
+ * Implementations decide how the underlying TCP (and TLS) connections are managed,
+ * for example whether they are pooled and kept alive in between requests.
+ * </p>
+ */
+public interface HttpTransport {
+
+    /**
+     * Creates a new, not yet connected {@link HttpURLConnection}.
+     * Callers are expected to fully consume and close the response streams,
+     * for example via {@link co.elastic.apm.agent.report.HttpUtils#consumeAndClose(HttpURLConnection)},
+     * so that the underlying connection can be reused.
+     *
+     * @param url the URL to open a connection to
+     * @return a new connection
+     * @throws IOException if the connection can't be created
+     */
+    HttpURLConnection openConnection(URL url) throws IOException;
+
+    /**
+     * Releases all idle connections held by this transport
+     */
+    void close();
+}
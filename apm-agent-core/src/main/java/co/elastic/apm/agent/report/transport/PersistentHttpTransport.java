@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.transport;
+
+import co.elastic.apm.agent.report.ssl.SslUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link HttpTransport} which keeps a small pool of long-lived HTTP/1.1 connections per APM Server.
+ * <p>
+ * The JDK's keep-alive cache drops idle connections after a few seconds and is shared with the application,
+ * which means that the agent frequently pays for new TCP and TLS handshakes, for example when the reporter opens a new
+ * intake request after the {@code api_request_time} has elapsed.
+ * This transport keeps connections open for up to {@link #MAX_IDLE_MILLIS}
+ * and validates them before reuse, so that subsequent requests are written to an already established connection.
+ * </p>
+ * <p>
+ * Request bodies are always sent with chunked transfer encoding.
+ * Connections to URLs which have to go through a proxy are delegated to {@link UrlConnectionHttpTransport}.
+ * </p>
+ */
+public class PersistentHttpTransport implements HttpTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentHttpTransport.class);
+
+    /**
+     * Lower than the default {@code idle_timeout} of the APM Server (45s)
+     * so that we usually close idle connections before the server does.
+     */
+    static final long MAX_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * The reporter, the log shipper, the central config poller and the health check may all have a request in-flight at the same time
+     */
+    static final int MAX_IDLE_CONNECTIONS_PER_HOST = 4;
+
+    private final boolean verifyServerCert;
+    private final Map<String, Deque<PooledSocket>> idleConnections = new HashMap<>();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private volatile boolean closed;
+
+    public PersistentHttpTransport(boolean verifyServerCert) {
+        this.verifyServerCert = verifyServerCert;
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        if (!isDirect(url)) {
+            return UrlConnectionHttpTransport.INSTANCE.openConnection(url);
+        }
+        return new PersistentHttpURLConnection(url, this);
+    }
+
+    private static boolean isDirect(URL url) {
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector == null) {
+            return true;
+        }
+        try {
+            List<Proxy> proxies = proxySelector.select(url.toURI());
+            return proxies.isEmpty() || proxies.get(0).type() == Proxy.Type.DIRECT;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns an idle connection to the host of the provided URL or opens a new one.
+     */
+    PooledSocket acquire(URL url, int connectTimeout, int readTimeout) throws IOException {
+        String key = getPoolKey(url);
+        for (PooledSocket socket = pollIdle(key); socket != null; socket = pollIdle(key)) {
+            if (socket.isReusable(System.currentTimeMillis(), MAX_IDLE_MILLIS)) {
+                socket.setReadTimeout(readTimeout);
+                logger.trace("Reusing connection to {}", key);
+                return socket;
+            }
+            socket.close();
+        }
+        return open(url, key, connectTimeout, readTimeout);
+    }
+
+    /**
+     * Puts the connection back into the pool after a response has been fully consumed
+     */
+    void release(PooledSocket socket) {
+        if (!closed) {
+            socket.markIdle(System.currentTimeMillis());
+            synchronized (idleConnections) {
+                Deque<PooledSocket> idle = idleConnections.get(socket.getPoolKey());
+                if (idle == null) {
+                    idle = new ArrayDeque<>();
+                    idleConnections.put(socket.getPoolKey(), idle);
+                }
+                if (idle.size() < MAX_IDLE_CONNECTIONS_PER_HOST) {
+                    // LIFO so that the most recently used connection, which is most likely to still be alive, is reused first
+                    idle.addFirst(socket);
+                    return;
+                }
+            }
+        }
+        socket.close();
+    }
+
+    @Nullable
+    private PooledSocket pollIdle(String key) {
+        synchronized (idleConnections) {
+            Deque<PooledSocket> idle = idleConnections.get(key);
+            return idle != null ? idle.pollFirst() : null;
+        }
+    }
+
+    private PooledSocket open(URL url, String key, int connectTimeout, int readTimeout) throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            if ("https".equals(url.getProtocol())) {
+                socket = upgradeToTls(socket, host, port);
+            }
+            socket.setSoTimeout(readTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        long opened = connectionsOpened.incrementAndGet();
+        logger.debug("Opened new connection to {} ({} connections opened so far)", key, opened);
+        return new PooledSocket(socket, key);
+    }
+
+    private Socket upgradeToTls(Socket socket, String host, int port) throws IOException {
+        SSLSocketFactory socketFactory = SslUtils.getSSLSocketFactory(verifyServerCert);
+        if (socketFactory == null) {
+            socketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+        }
+        SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(socket, host, port, true);
+        if (verifyServerCert) {
+            SSLParameters sslParameters = sslSocket.getSSLParameters();
+            sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+            sslSocket.setSSLParameters(sslParameters);
+        }
+        sslSocket.startHandshake();
+        return sslSocket;
+    }
+
+    private static String getPoolKey(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /**
+     * Returns the number of connections opened by this transport,
+     * which is equivalent to the number of TCP (and TLS) handshakes.
+     *
+     * @return the number of connections opened by this transport
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    int getIdleConnectionCount() {
+        int count = 0;
+        synchronized (idleConnections) {
+            for (Deque<PooledSocket> idle : idleConnections.values()) {
+                count += idle.size();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (idleConnections) {
+            for (Deque<PooledSocket> idle : idleConnections.values()) {
+                for (PooledSocket socket : idle) {
+                    socket.close();
+                }
+            }
+            idleConnections.clear();
+        }
+    }
+}
@@ -0,0 +1,628 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.transport;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal HTTP/1.1 client connection that writes to and reads from a {@link PooledSocket} borrowed from a
+ * {@link PersistentHttpTransport} and returns the socket to the pool once the response has been fully consumed.
+ * <p>
+ * Only the subset of {@link HttpURLConnection} that the agent relies on is supported.
+ * Most notably, request bodies are always sent with chunked transfer encoding,
+ * redirects are not followed and there's no support for proxies.
+ * </p>
+ */
+class PersistentHttpURLConnection extends HttpURLConnection {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int DEFAULT_CHUNK_SIZE = 4096;
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    /**
+     * If there's more response body left than that, closing the connection is cheaper than draining the body
+     */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final PersistentHttpTransport transport;
+    private final List<String[]> responseHeaders = new ArrayList<>();
+    @Nullable
+    private PooledSocket socket;
+    @Nullable
+    private Map<String, List<String>> requestHeaders;
+    @Nullable
+    private ChunkedOutputStream requestBody;
+    @Nullable
+    private InputStream responseBody;
+    @Nullable
+    private String statusLine;
+    @Nullable
+    private IOException failure;
+    private boolean requestSent;
+    private boolean responseRead;
+    private boolean keepAlive;
+
+    PersistentHttpURLConnection(URL url, PersistentHttpTransport transport) {
+        super(url);
+        this.transport = transport;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        // the request properties are not accessible any more after the connection has been established
+        requestHeaders = getRequestProperties();
+        try {
+            socket = transport.acquire(url, getConnectTimeout(), getReadTimeout());
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+        connected = true;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput) {
+            throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+        }
+        if (responseRead) {
+            throw new ProtocolException("Cannot write output after reading input.");
+        }
+        if (requestBody == null) {
+            if ("GET".equals(method)) {
+                method = "POST";
+            }
+            connect();
+            PooledSocket socket = getSocket();
+            writeRequestHead(socket, true);
+            requestBody = new ChunkedOutputStream(socket.getOutputStream(), chunkLength > 0 ? chunkLength : DEFAULT_CHUNK_SIZE);
+        }
+        return requestBody;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (!doInput) {
+            throw new ProtocolException("Cannot read from URLConnection if doInput=false (call setDoInput(true))");
+        }
+        readResponse();
+        if (responseCode >= 400) {
+            if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+                throw new FileNotFoundException(url.toString());
+            }
+            throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+        }
+        return getResponseBody();
+    }
+
+    @Override
+    @Nullable
+    public InputStream getErrorStream() {
+        if (!connected) {
+            return null;
+        }
+        try {
+            readResponse();
+        } catch (IOException e) {
+            return null;
+        }
+        return responseCode >= 400 ? responseBody : null;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        readResponse();
+        return responseCode;
+    }
+
+    @Override
+    @Nullable
+    public String getResponseMessage() throws IOException {
+        readResponse();
+        return responseMessage;
+    }
+
+    @Override
+    @Nullable
+    public String getHeaderField(String name) {
+        if (!tryReadResponse()) {
+            return null;
+        }
+        String value = null;
+        for (String[] header : responseHeaders) {
+            if (header[0].equalsIgnoreCase(name)) {
+                value = header[1];
+            }
+        }
+        return value;
+    }
+
+    @Override
+    @Nullable
+    public String getHeaderField(int n) {
+        if (!tryReadResponse()) {
+            return null;
+        }
+        if (n == 0) {
+            return statusLine;
+        }
+        return n <= responseHeaders.size() ? responseHeaders.get(n - 1)[1] : null;
+    }
+
+    @Override
+    @Nullable
+    public String getHeaderFieldKey(int n) {
+        if (!tryReadResponse() || n == 0) {
+            return null;
+        }
+        return n <= responseHeaders.size() ? responseHeaders.get(n - 1)[0] : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        if (!tryReadResponse()) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<String>> headerFields = new LinkedHashMap<>();
+        headerFields.put(null, Collections.singletonList(statusLine));
+        for (String[] header : responseHeaders) {
+            List<String> values = headerFields.get(header[0]);
+            if (values == null) {
+                values = new ArrayList<>(1);
+                headerFields.put(header[0], values);
+            }
+            values.add(header[1]);
+        }
+        return Collections.unmodifiableMap(headerFields);
+    }
+
+    @Override
+    public void disconnect() {
+        closeSocket();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    private boolean tryReadResponse() {
+        try {
+            readResponse();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private InputStream getResponseBody() throws IOException {
+        if (responseBody == null) {
+            throw new IOException("Response body not available");
+        }
+        return responseBody;
+    }
+
+    private PooledSocket getSocket() throws IOException {
+        if (socket == null) {
+            throw new IOException("Connection already closed");
+        }
+        return socket;
+    }
+
+    private void writeRequestHead(PooledSocket socket, boolean hasBody) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        String file = url.getFile();
+        head.append(method).append(' ').append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+        appendHeader(head, "Host", url.getPort() == -1 || url.getPort() == url.getDefaultPort() ? url.getHost() : url.getHost() + ":" + url.getPort());
+        if (requestHeaders != null) {
+            for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+                String name = header.getKey();
+                if (name == null || isManagedHeader(name)) {
+                    continue;
+                }
+                for (String value : header.getValue()) {
+                    appendHeader(head, name, value);
+                }
+            }
+        }
+        if (hasBody) {
+            appendHeader(head, "Transfer-Encoding", "chunked");
+        }
+        head.append("\r\n");
+        OutputStream out = socket.getOutputStream();
+        out.write(head.toString().getBytes(ISO_8859_1));
+        if (!hasBody) {
+            out.flush();
+        }
+        requestSent = true;
+    }
+
+    private static boolean isManagedHeader(String name) {
+        return name.equalsIgnoreCase("Host")
+            || name.equalsIgnoreCase("Transfer-Encoding")
+            || name.equalsIgnoreCase("Content-Length")
+            || name.equalsIgnoreCase("Connection");
+    }
+
+    private static void appendHeader(StringBuilder head, String name, String value) {
+        head.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    private void readResponse() throws IOException {
+        if (responseRead) {
+            return;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        connect();
+        try {
+            PooledSocket socket = getSocket();
+            if (requestBody != null) {
+                requestBody.close();
+            } else if (!requestSent) {
+                writeRequestHead(socket, false);
+            }
+            InputStream in = socket.getInputStream();
+            do {
+                // skipping informational responses like 100 Continue
+                readStatusLine(in);
+                readResponseHeaders(in);
+            } while (responseCode >= 100 && responseCode < 200);
+            responseBody = createResponseBody(in);
+            responseRead = true;
+        } catch (IOException e) {
+            failure = e;
+            closeSocket();
+            throw e;
+        }
+    }
+
+    private void readStatusLine(InputStream in) throws IOException {
+        String line = readLine(in);
+        // HTTP/1.1 200 OK
+        int firstSpace = line.indexOf(' ');
+        if (!line.startsWith("HTTP/1.") || firstSpace < 0 || line.length() < firstSpace + 4) {
+            throw new ProtocolException("Invalid HTTP status line: " + line);
+        }
+        try {
+            responseCode = Integer.parseInt(line.substring(firstSpace + 1, firstSpace + 4));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid HTTP status line: " + line);
+        }
+        responseMessage = line.length() > firstSpace + 5 ? line.substring(firstSpace + 5) : "";
+        statusLine = line;
+        // HTTP/1.0 connections are closed by the server unless keep-alive is explicitly requested
+        keepAlive = line.startsWith("HTTP/1.1");
+    }
+
+    private void readResponseHeaders(InputStream in) throws IOException {
+        responseHeaders.clear();
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                responseHeaders.add(new String[]{name, value});
+                if (name.equalsIgnoreCase("Connection")) {
+                    keepAlive = !value.equalsIgnoreCase("close") && (keepAlive || value.equalsIgnoreCase("keep-alive"));
+                }
+            }
+        }
+    }
+
+    private InputStream createResponseBody(InputStream in) throws IOException {
+        String transferEncoding = getHeaderFieldInternal("Transfer-Encoding");
+        String contentLength = getHeaderFieldInternal("Content-Length");
+        if ("HEAD".equals(method) || responseCode == HTTP_NO_CONTENT || responseCode == HTTP_NOT_MODIFIED) {
+            return new FixedLengthInputStream(in, 0);
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            return new ChunkedInputStream(in);
+        } else if (contentLength != null) {
+            try {
+                return new FixedLengthInputStream(in, Long.parseLong(contentLength));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+        } else {
+            // the body is delimited by the server closing the connection
+            keepAlive = false;
+            return new UntilEofInputStream(in);
+        }
+    }
+
+    @Nullable
+    private String getHeaderFieldInternal(String name) {
+        for (String[] header : responseHeaders) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b == -1) {
+                throw new EOFException("Unexpected end of stream while reading HTTP response");
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("HTTP response line too long");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private void onResponseBodyClosed(boolean reusable) {
+        PooledSocket socket = this.socket;
+        this.socket = null;
+        if (socket != null) {
+            if (reusable && keepAlive) {
+                transport.release(socket);
+            } else {
+                socket.close();
+            }
+        }
+    }
+
+    private void closeSocket() {
+        onResponseBodyClosed(false);
+    }
+
+    /**
+     * Makes sure the socket is returned to the pool or closed when the response body is closed
+     */
+    private abstract class ResponseBodyInputStream extends InputStream {
+
+        final InputStream in;
+        private boolean closed;
+
+        ResponseBodyInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            onResponseBodyClosed(drain());
+        }
+
+        private boolean drain() {
+            try {
+                byte[] buffer = new byte[1024];
+                int drained = 0;
+                for (int n = read(buffer, 0, buffer.length); n != -1; n = read(buffer, 0, buffer.length)) {
+                    drained += n;
+                    if (drained > MAX_DRAIN_BYTES) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    private class FixedLengthInputStream extends ResponseBodyInputStream {
+
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("Unexpected end of stream, " + remaining + " bytes of the response body are missing");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    private class ChunkedInputStream extends ResponseBodyInputStream {
+
+        private long remainingInChunk;
+        private boolean eof;
+
+        ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (remainingInChunk == 0) {
+                remainingInChunk = readChunkSize();
+                if (remainingInChunk == 0) {
+                    // skip trailers
+                    while (!readLine(in).isEmpty()) {
+                    }
+                    eof = true;
+                    return -1;
+                }
+            }
+            int read = in.read(b, off, (int) Math.min(len, remainingInChunk));
+            if (read == -1) {
+                throw new EOFException("Unexpected end of stream while reading chunked response body");
+            }
+            remainingInChunk -= read;
+            if (remainingInChunk == 0) {
+                // each chunk is followed by a CRLF
+                readLine(in);
+            }
+            return read;
+        }
+
+        private long readChunkSize() throws IOException {
+            String line = readLine(in);
+            int extension = line.indexOf(';');
+            if (extension >= 0) {
+                line = line.substring(0, extension);
+            }
+            try {
+                return Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid chunk size: " + line);
+            }
+        }
+    }
+
+    private class UntilEofInputStream extends ResponseBodyInputStream {
+
+        UntilEofInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+    }
+
+    /**
+     * Buffers writes so that each chunk has the configured chunk size
+     * (see {@link HttpURLConnection#setChunkedStreamingMode(int)}), except for when explicitly flushed.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+
+        private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+        private final OutputStream out;
+        private final byte[] buffer;
+        private int count;
+        private boolean closed;
+
+        ChunkedOutputStream(OutputStream out, int chunkSize) {
+            this.out = out;
+            this.buffer = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            buffer[count++] = (byte) b;
+            if (count == buffer.length) {
+                writeChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == buffer.length) {
+                    writeChunk();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            writeChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeChunk();
+            out.write(LAST_CHUNK);
+            out.flush();
+        }
+
+        private void writeChunk() throws IOException {
+            if (count > 0) {
+                out.write(Integer.toHexString(count).getBytes(ISO_8859_1));
+                out.write(CRLF);
+                out.write(buffer, 0, count);
+                out.write(CRLF);
+                count = 0;
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+/**
+ * A connection managed by {@link PersistentHttpTransport}
+ */
+class PooledSocket {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Socket socket;
+    private final String poolKey;
+    private final BufferedInputStream inputStream;
+    private final BufferedOutputStream outputStream;
+    private long idleSince;
+
+    PooledSocket(Socket socket, String poolKey) throws IOException {
+        this.socket = socket;
+        this.poolKey = poolKey;
+        this.inputStream = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        this.outputStream = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+    }
+
+    String getPoolKey() {
+        return poolKey;
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    void setReadTimeout(int readTimeout) throws SocketException {
+        socket.setSoTimeout(readTimeout);
+    }
+
+    void markIdle(long now) {
+        idleSince = now;
+    }
+
+    /**
+     * Checks whether an idle connection can be used for another request.
+     * <p>
+     * A connection that has been closed by the server is only detected when reading from it.
+     * As there should not be any data sent by the server while the connection is idle,
+     * we read with a minimal timeout. A timeout means the connection is still alive.
+     * </p>
+     */
+    boolean isReusable(long now, long maxIdleMillis) {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown() || now - idleSince > maxIdleMillis) {
+            return false;
+        }
+        try {
+            if (inputStream.available() > 0) {
+                // unexpected data, for example a late response to a previous request
+                return false;
+            }
+            int originalTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                // -1 means that the server has closed the connection, anything else is unexpected data
+                inputStream.read();
+                return false;
+            } catch (SocketTimeoutException expected) {
+                return true;
+            } finally {
+                socket.setSoTimeout(originalTimeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -26,10 +26,28 @@ package co.elastic.apm.agent.util;
 
 import com.dslplatform.json.JsonWriter;
 
+import java.util.Arrays;
+
 public class HexUtils {
 
     private final static char[] hexArray = "0123456789abcdef".toCharArray();
 
+    /**
+     * The value of each ASCII hex digit, {@code -1} for all other ASCII chars
+     */
+    private final static byte[] hexValues = new byte[128];
+
+    static {
+        Arrays.fill(hexValues, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            hexValues['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            hexValues['a' + i] = (byte) (10 + i);
+            hexValues['A' + i] = (byte) (10 + i);
+        }
+    }
+
     private HexUtils() {
         // only static utility methods, don't instantiate
     }
@@ -86,17 +104,56 @@ public class HexUtils {
         return (byte) ((hi << 4) + lo);
     }
 
+    /**
+     * Decodes the two hex chars at the given offset without throwing an exception for invalid input.
+     *
+     * @return the unsigned value of the byte, or {@code -1} if one of the chars is not a hex digit
+     */
+    public static int tryGetNextByte(String hexEncodedString, int offset) {
+        final int hi = hexCharToBinary(hexEncodedString.charAt(offset));
+        final int lo = hexCharToBinary(hexEncodedString.charAt(offset + 1));
+        if ((hi | lo) < 0) {
+            return -1;
+        }
+        return (hi << 4) | lo;
+    }
+
     private static int hexCharToBinary(char ch) {
-        if ('0' <= ch && ch <= '9') {
-            return ch - '0';
+        if (ch >= hexValues.length) {
+            return -1;
         }
-        if ('A' <= ch && ch <= 'F') {
-            return ch - 'A' + 10;
+        return hexValues[ch];
+    }
+
+    /**
+     * Decodes {@code length} bytes from the hex chars starting at {@code srcOffset} without throwing an exception for
+     * invalid input, which makes it suitable for parsing untrusted headers.
+     * <p>
+     * The chars are decoded with a lookup table instead of range checks,
+     * as the branches for digits and letters are unpredictable for random ids.
+     * Invalid chars are accumulated and checked only once at the end.
+     * </p>
+     *
+     * @return {@code false} if the string is too short or if one of the chars is not a hex digit,
+     * in which case the content of {@code bytes} is undefined
+     */
+    public static boolean tryDecode(String hexEncodedString, int srcOffset, byte[] bytes, int destOffset, int length) {
+        if (hexEncodedString.length() < srcOffset + length * 2) {
+            return false;
         }
-        if ('a' <= ch && ch <= 'f') {
-            return ch - 'a' + 10;
+        int invalid = 0;
+        for (int i = 0; i < length; i++) {
+            final char hiChar = hexEncodedString.charAt(srcOffset + i * 2);
+            final char loChar = hexEncodedString.charAt(srcOffset + i * 2 + 1);
+            if ((hiChar | loChar) >= hexValues.length) {
+                return false;
+            }
+            final int hi = hexValues[hiChar];
+            final int lo = hexValues[loChar];
+            invalid |= hi | lo;
+            bytes[destOffset + i] = (byte) ((hi << 4) | lo);
         }
-        return -1;
+        return invalid >= 0;
     }
 
     public static void nextBytes(String hexEncodedString, int offset, byte[] bytes) {
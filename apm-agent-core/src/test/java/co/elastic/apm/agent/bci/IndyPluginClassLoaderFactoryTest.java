@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci;
+
+import co.elastic.apm.agent.bci.IndyPluginClassLoaderFactory.PluginClassLoaderStats;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class IndyPluginClassLoaderFactoryTest {
+
+    private static final List<String> PLUGIN_CLASSES = List.of(PluginHelper.class.getName(), ExcludedHelper.class.getName());
+
+    @BeforeEach
+    @AfterEach
+    void clear() {
+        IndyPluginClassLoaderFactory.clear();
+    }
+
+    @Test
+    void testPluginClassesAreSharedBetweenTargetClassLoaders() throws Exception {
+        ClassLoader target1 = new URLClassLoader(new URL[0], null);
+        ClassLoader target2 = new URLClassLoader(new URL[0], null);
+
+        ClassLoader pluginClassLoader1 = getOrCreatePluginClassLoader(target1);
+        ClassLoader pluginClassLoader2 = getOrCreatePluginClassLoader(target2);
+        assertThat(getOrCreatePluginClassLoader(target1)).isSameAs(pluginClassLoader1);
+        assertThat(pluginClassLoader1).isNotSameAs(pluginClassLoader2);
+
+        PluginClassLoaderStats stats = getStats();
+        assertThat(stats.getPluginName()).isEqualTo("test-plugin");
+        assertThat(stats.getClassLoaderCount()).isEqualTo(2);
+        assertThat(stats.getPluginClassCount()).isEqualTo(1);
+        assertThat(stats.getPluginClassBytes()).isPositive();
+        // classes are defined lazily
+        assertThat(stats.getDefinedClassCount()).isZero();
+
+        Class<?> helper = pluginClassLoader1.loadClass(PluginHelper.class.getName());
+        assertThat(helper.getClassLoader()).isSameAs(pluginClassLoader1);
+        assertThat(pluginClassLoader1.loadClass(ExcludedHelper.class.getName()).getClassLoader()).isNotSameAs(pluginClassLoader1);
+
+        stats = getStats();
+        assertThat(stats.getDefinedClassCount()).isEqualTo(1);
+        assertThat(stats.getDefinedClassBytes()).isEqualTo(stats.getPluginClassBytes());
+    }
+
+    @Test
+    void testPluginClassesAreReleasedWhenAllPluginClassLoadersAreCollected() throws Exception {
+        // in reality, the plugin class loaders are kept alive by the call sites linked to their advices
+        ClassLoader pluginClassLoader1 = getOrCreatePluginClassLoader(new URLClassLoader(new URL[0], null));
+        ClassLoader pluginClassLoader2 = getOrCreatePluginClassLoader(new URLClassLoader(new URL[0], null));
+        assertThat(getStats().getClassLoaderCount()).isEqualTo(2);
+
+        pluginClassLoader1 = null;
+        await().untilAsserted(() -> {
+            System.gc();
+            assertThat(getStats().getClassLoaderCount()).isEqualTo(1);
+        });
+
+        pluginClassLoader2 = null;
+        await().untilAsserted(() -> {
+            System.gc();
+            assertThat(IndyPluginClassLoaderFactory.getPluginClassLoaderStats()).isEmpty();
+        });
+    }
+
+    private static ClassLoader getOrCreatePluginClassLoader(ClassLoader targetClassLoader) throws Exception {
+        ClassLoader agentClassLoader = IndyPluginClassLoaderFactoryTest.class.getClassLoader();
+        return IndyPluginClassLoaderFactory.getOrCreatePluginClassLoader(
+            targetClassLoader,
+            "test-plugin",
+            PLUGIN_CLASSES,
+            agentClassLoader,
+            ClassFileLocator.ForClassLoader.of(agentClassLoader),
+            named(ExcludedHelper.class.getName()));
+    }
+
+    private static PluginClassLoaderStats getStats() {
+        List<PluginClassLoaderStats> stats = IndyPluginClassLoaderFactory.getPluginClassLoaderStats();
+        assertThat(stats).hasSize(1);
+        return stats.get(0);
+    }
+
+    public static class PluginHelper {
+    }
+
+    public static class ExcludedHelper {
+    }
+}
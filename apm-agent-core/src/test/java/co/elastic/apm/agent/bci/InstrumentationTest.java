@@ -95,6 +95,13 @@ class InstrumentationTest {
         assertThat(interceptMe()).isEqualTo("intercepted");
     }
 
+    @Test
+    void testInterceptWithParallelRetransformation() {
+        doReturn(2).when(coreConfig).getRetransformationParallelism();
+        init(List.of(new TestInstrumentation()));
+        assertThat(interceptMe()).isEqualTo("intercepted");
+    }
+
     @Test
     void testFieldAccess() {
         init(List.of(new FieldAccessInstrumentation()));
@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveBatchAllocatorTest {
+
+    private final AdaptiveBatchAllocator batchAllocator = new AdaptiveBatchAllocator(100, 10, 1000, 50, TimeUnit.MILLISECONDS);
+
+    @Test
+    void testNextBatchSize() {
+        assertThat(batchAllocator.nextBatchSize(100, TimeUnit.MILLISECONDS.toNanos(50))).isEqualTo(100);
+        assertThat(batchAllocator.nextBatchSize(100, TimeUnit.MILLISECONDS.toNanos(25))).isEqualTo(200);
+        assertThat(batchAllocator.nextBatchSize(100, TimeUnit.MILLISECONDS.toNanos(100))).isEqualTo(50);
+        assertThat(batchAllocator.nextBatchSize(100, TimeUnit.SECONDS.toNanos(10))).isEqualTo(10);
+        assertThat(batchAllocator.nextBatchSize(100, 1)).isEqualTo(1000);
+    }
+
+    @Test
+    void testBatchesContainAllTypes() {
+        List<Class<?>> types = new ArrayList<>(Collections.<Class<?>>nCopies(1234, Object.class));
+        int batches = 0;
+        int batchedTypes = 0;
+        for (List<Class<?>> batch : batchAllocator.batch(types)) {
+            if (batches == 0) {
+                assertThat(batch).hasSize(100);
+            }
+            batchAllocator.onBatch(batches++, batch, types);
+            batchedTypes += batch.size();
+        }
+        batchAllocator.onComplete(batches, types, Collections.<List<Class<?>>, Throwable>emptyMap());
+        assertThat(batchedTypes).isEqualTo(types.size());
+        // the batches are retransformed instantly so the batches grow beyond the initial size
+        assertThat(batches).isLessThan(types.size() / 100);
+    }
+}
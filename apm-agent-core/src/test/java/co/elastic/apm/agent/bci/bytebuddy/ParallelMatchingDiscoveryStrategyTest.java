@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.utility.JavaModule;
+import org.junit.jupiter.api.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ParallelMatchingDiscoveryStrategyTest {
+
+    private final Instrumentation instrumentation = ByteBuddyAgent.install();
+
+    @Test
+    void testMatchesLoadedClasses() {
+        for (int parallelism : new int[]{1, 4}) {
+            ParallelMatchingDiscoveryStrategy discoveryStrategy = createDiscoveryStrategy(parallelism);
+            discoveryStrategy.addMatcher(new AgentBuilder.RawMatcher.ForElementMatchers(named(ParallelMatchingDiscoveryStrategyTest.class.getName())));
+            discoveryStrategy.addMatcher(new AgentBuilder.RawMatcher.ForElementMatchers(named(AdaptiveBatchAllocator.class.getName())));
+
+            assertThat(resolve(discoveryStrategy))
+                .describedAs("parallelism %d", parallelism)
+                .containsExactlyInAnyOrder(ParallelMatchingDiscoveryStrategyTest.class, AdaptiveBatchAllocator.class);
+        }
+    }
+
+    @Test
+    void testIncludesClassesThatCantBeMatched() {
+        ParallelMatchingDiscoveryStrategy discoveryStrategy = createDiscoveryStrategy(2);
+        discoveryStrategy.addMatcher(new AgentBuilder.RawMatcher() {
+            @Override
+            public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+                if (typeDescription.getName().equals(ParallelMatchingDiscoveryStrategyTest.class.getName())) {
+                    throw new IllegalStateException();
+                }
+                return false;
+            }
+        });
+
+        assertThat(resolve(discoveryStrategy)).containsExactly(ParallelMatchingDiscoveryStrategyTest.class);
+    }
+
+    @Test
+    void testMatchesManyClassesInParallel() {
+        ParallelMatchingDiscoveryStrategy sequential = createDiscoveryStrategy(1);
+        ParallelMatchingDiscoveryStrategy parallel = createDiscoveryStrategy(4);
+        AgentBuilder.RawMatcher matcher = new AgentBuilder.RawMatcher.ForElementMatchers(nameStartsWith("java.util."));
+        sequential.addMatcher(matcher);
+        parallel.addMatcher(matcher);
+
+        List<Class<?>> sequentialResult = resolve(sequential);
+        assertThat(sequentialResult).isNotEmpty();
+        assertThat(resolve(parallel)).containsAll(sequentialResult);
+    }
+
+    private static ParallelMatchingDiscoveryStrategy createDiscoveryStrategy(int parallelism) {
+        return new ParallelMatchingDiscoveryStrategy(parallelism, AgentBuilder.LocationStrategy.ForClassLoader.WEAK, AgentBuilder.PoolStrategy.Default.FAST);
+    }
+
+    private List<Class<?>> resolve(ParallelMatchingDiscoveryStrategy discoveryStrategy) {
+        List<Class<?>> result = new ArrayList<>();
+        for (Iterable<Class<?>> classes : discoveryStrategy.resolve(instrumentation)) {
+            for (Class<?> type : classes) {
+                result.add(type);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TypeMatchingCacheTest {
+
+    private static final List<String> INSTRUMENTATIONS = Arrays.asList("FooInstrumentation", "BarInstrumentation");
+
+    @TempDir
+    File tempDir;
+    private File cacheDir;
+    private File jar;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cacheDir = new File(tempDir, "cache");
+        jar = new File(tempDir, "app.jar");
+        writeJar(jar, "com/example/Foo.class");
+    }
+
+    @Test
+    void testResultsArePersisted() {
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS);
+        ProtectionDomain protectionDomain = protectionDomain(jar);
+        assertThat(cache.isMatch(0, "com.example.Foo", protectionDomain)).isNull();
+
+        cache.recordMatch(0, "com.example.Foo", protectionDomain, true);
+        cache.recordMatch(1, "com.example.Foo", protectionDomain, false);
+        assertThat(cache.isMatch(0, "com.example.Foo", protectionDomain)).isTrue();
+        assertThat(cache.isMatch(1, "com.example.Foo", protectionDomain)).isFalse();
+        cache.persist();
+
+        cache = TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS);
+        assertThat(cache.size()).isEqualTo(1);
+        // a different protection domain instance for the same jar
+        protectionDomain = protectionDomain(jar);
+        assertThat(cache.isMatch(0, "com.example.Foo", protectionDomain)).isTrue();
+        assertThat(cache.isMatch(1, "com.example.Foo", protectionDomain)).isFalse();
+        assertThat(cache.isMatch(0, "com.example.Bar", protectionDomain)).isNull();
+    }
+
+    @Test
+    void testChangedJarIsNotCached() throws IOException {
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS);
+        cache.recordMatch(0, "com.example.Foo", protectionDomain(jar), true);
+        cache.persist();
+
+        writeJar(jar, "com/example/Foo.class", "com/example/Bar.class");
+
+        cache = TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS);
+        assertThat(cache.isMatch(0, "com.example.Foo", protectionDomain(jar))).isNull();
+        cache.persist();
+        // the results of the old jar are dropped
+        assertThat(TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS).size()).isEqualTo(1);
+    }
+
+    @Test
+    void testCacheIsSpecificToAgentVersionAndInstrumentations() {
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS);
+        cache.recordMatch(0, "com.example.Foo", protectionDomain(jar), true);
+        cache.persist();
+
+        assertThat(TypeMatchingCache.load(cacheDir, "1.1", INSTRUMENTATIONS).size()).isZero();
+        assertThat(TypeMatchingCache.load(cacheDir, "1.0", Arrays.asList("BarInstrumentation", "FooInstrumentation")).size()).isZero();
+        assertThat(TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS).size()).isEqualTo(1);
+    }
+
+    @Test
+    void testClassesNotLoadedFromAJarAreNotCached() {
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS);
+        cache.recordMatch(0, "com.example.Foo", null, true);
+        cache.recordMatch(0, "com.example.Foo", protectionDomain(tempDir), true);
+        assertThat(cache.isMatch(0, "com.example.Foo", null)).isNull();
+        assertThat(cache.isMatch(0, "com.example.Foo", protectionDomain(tempDir))).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void testNestedJars() throws IOException {
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS);
+        ProtectionDomain fooLib = nestedProtectionDomain(jar, "BOOT-INF/lib/foo.jar");
+        ProtectionDomain barLib = nestedProtectionDomain(jar, "BOOT-INF/lib/bar.jar");
+        cache.recordMatch(0, "com.example.Foo", fooLib, true);
+        // the results of each nested jar are separate
+        assertThat(cache.isMatch(0, "com.example.Foo", barLib)).isNull();
+        cache.recordMatch(0, "com.example.Foo", barLib, false);
+        assertThat(cache.isMatch(0, "com.example.Foo", fooLib)).isTrue();
+        assertThat(cache.isMatch(0, "com.example.Foo", barLib)).isFalse();
+        cache.persist();
+
+        cache = TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS);
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.isMatch(0, "com.example.Foo", nestedProtectionDomain(jar, "BOOT-INF/lib/foo.jar"))).isTrue();
+
+        // the outer jar is only read for the first nested jar, the checksum of the outer jar is reused for the others
+        assertThat(jar.delete()).isTrue();
+        assertThat(cache.isMatch(0, "com.example.Foo", nestedProtectionDomain(jar, "BOOT-INF/lib/bar.jar"))).isFalse();
+    }
+
+    @Test
+    void testTruncatedCacheFileIsIgnored() throws IOException {
+        TypeMatchingCache cache = TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS);
+        cache.recordMatch(0, "com.example.Foo", protectionDomain(jar), true);
+        cache.persist();
+        try (RandomAccessFile file = new RandomAccessFile(cache.getFile(), "rw")) {
+            file.setLength(file.length() - 4);
+        }
+
+        cache = TypeMatchingCache.load(cacheDir, "1.0", INSTRUMENTATIONS);
+        assertThat(cache.size()).isZero();
+        assertThat(cache.isMatch(0, "com.example.Foo", protectionDomain(jar))).isNull();
+    }
+
+    private static ProtectionDomain protectionDomain(File codeSource) {
+        try {
+            return new ProtectionDomain(new CodeSource(codeSource.toURI().toURL(), (Certificate[]) null), null);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ProtectionDomain nestedProtectionDomain(File outerJar, String nestedJar) throws IOException {
+        URL location = new URL("jar:" + outerJar.toURI() + "!/" + nestedJar + "!/");
+        return new ProtectionDomain(new CodeSource(location, (Certificate[]) null), null);
+    }
+
+    private static void writeJar(File jar, String... entries) throws IOException {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            for (String entry : entries) {
+                out.putNextEntry(new JarEntry(entry));
+                out.write(new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE});
+                out.closeEntry();
+            }
+        }
+    }
+}
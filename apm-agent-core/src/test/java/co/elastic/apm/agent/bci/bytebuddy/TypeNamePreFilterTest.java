@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.BooleanMatcher;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.nameContains;
+import static net.bytebuddy.matcher.ElementMatchers.nameContainsIgnoreCase;
+import static net.bytebuddy.matcher.ElementMatchers.nameEndsWith;
+import static net.bytebuddy.matcher.ElementMatchers.nameMatches;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TypeNamePreFilterTest {
+
+    private final List<ElementMatcher<? super NamedElement>> preFilters = List.of(
+        nameContains("Servlet").or(nameContainsIgnoreCase("jsp")),
+        nameStartsWith("io.grpc").and(nameEndsWith("ClientCallImpl")),
+        any(),
+        new BooleanMatcher<NamedElement>(false).and(nameContains("HttpClient")),
+        not(nameStartsWith("org.springframework.")),
+        nameMatches(".*Servlet"),
+        named("java.lang.Thread"),
+        nameContains("Ex")
+    );
+    private final TypeNamePreFilter filter = TypeNamePreFilter.compile(preFilters);
+
+    @Test
+    void testCompiledPreFilters() {
+        assertThat(filter.isCompiled(0)).isTrue();
+        assertThat(filter.isCompiled(1)).isTrue();
+        assertThat(filter.isCompiled(2)).isFalse();
+        assertThat(filter.isCompiled(3)).isTrue();
+        assertThat(filter.isCompiled(4)).isFalse();
+        assertThat(filter.isCompiled(5)).isFalse();
+        assertThat(filter.isCompiled(6)).isTrue();
+        // too short to be compiled
+        assertThat(filter.isCompiled(7)).isFalse();
+    }
+
+    @Test
+    void testRejects() {
+        assertThat(filter.rejects(0, "javax.servlet.http.HttpServlet")).isFalse();
+        assertThat(filter.rejects(0, "org.apache.jasper.JspServlet")).isFalse();
+        assertThat(filter.rejects(0, "org.apache.jasper.runtime.JSPFactory")).isFalse();
+        assertThat(filter.rejects(0, "java.lang.String")).isTrue();
+
+        assertThat(filter.rejects(1, "io.grpc.internal.ClientCallImpl")).isFalse();
+        assertThat(filter.rejects(1, "com.example.ClientCallImpl")).isTrue();
+        assertThat(filter.rejects(1, "java.lang.String")).isTrue();
+
+        assertThat(filter.rejects(3, "org.apache.http.client.HttpClient")).isTrue();
+        assertThat(filter.rejects(6, "java.lang.Thread")).isFalse();
+        assertThat(filter.rejects(6, "java.lang.String")).isTrue();
+
+        for (int notCompiled : new int[]{2, 4, 5, 7}) {
+            assertThat(filter.rejects(notCompiled, "java.lang.String")).isFalse();
+        }
+    }
+
+    @Test
+    void testNeverRejectsMatchingNames() {
+        for (Class<?> type : List.of(String.class, Thread.class, TypeNamePreFilter.class, TypeNamePreFilterTest.class, ElementMatcher.Junction.Disjunction.class)) {
+            TypeDescription typeDescription = TypeDescription.ForLoadedType.of(type);
+            for (int i = 0; i < preFilters.size(); i++) {
+                if (preFilters.get(i).matches(typeDescription)) {
+                    assertThat(filter.rejects(i, typeDescription.getName())).describedAs("%s %s", preFilters.get(i), type).isFalse();
+                }
+            }
+        }
+    }
+}
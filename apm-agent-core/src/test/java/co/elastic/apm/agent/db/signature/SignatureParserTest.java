@@ -34,6 +34,7 @@ import specs.TestJsonSpec;
 import java.util.Optional;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -109,6 +110,45 @@ public class SignatureParserTest {
         assertThat(dblink.toString()).isEqualTo("DBLINK");
     }
 
+    @Test
+    void testCacheEvictsQueriesThatAreNotRepeated() {
+        AtomicInteger parsedQueries = new AtomicInteger();
+        SignatureParser parser = new SignatureParser(() -> new Scanner() {
+            @Override
+            public void setQuery(String sql) {
+                parsedQueries.incrementAndGet();
+                super.setQuery(sql);
+            }
+        });
+        String frequentQuery = "SELECT * FROM frequent WHERE a_rather_long_column_name = ? AND another_column_name = ?";
+        assertThat(signature(parser, frequentQuery)).isEqualTo("SELECT FROM frequent");
+        assertThat(parsedQueries.get()).isEqualTo(1);
+
+        int distinctQueries = 2000;
+        for (int i = 0; i < distinctQueries; i++) {
+            assertThat(signature(parser, "SELECT * FROM table" + i + " WHERE a_rather_long_column_name = ? AND another_column_name = ?"))
+                .isEqualTo("SELECT FROM table" + i);
+            if (i % 100 == 0) {
+                assertThat(signature(parser, frequentQuery)).isEqualTo("SELECT FROM frequent");
+            }
+        }
+        assertThat(parsedQueries.get()).isEqualTo(1 + distinctQueries);
+
+        // queries are still cached after many distinct queries
+        signature(parser, "SELECT * FROM table" + (distinctQueries - 1) + " WHERE a_rather_long_column_name = ? AND another_column_name = ?");
+        assertThat(parsedQueries.get()).isEqualTo(1 + distinctQueries);
+
+        // queries that have not been repeated are evicted
+        signature(parser, "SELECT * FROM table0 WHERE a_rather_long_column_name = ? AND another_column_name = ?");
+        assertThat(parsedQueries.get()).isEqualTo(2 + distinctQueries);
+    }
+
+    private static String signature(SignatureParser parser, String query) {
+        StringBuilder signature = new StringBuilder();
+        parser.querySignature(query, signature, true);
+        return signature.toString();
+    }
+
     @Test
     void testDbLinkFqdn() {
         final StringBuilder sb = new StringBuilder();
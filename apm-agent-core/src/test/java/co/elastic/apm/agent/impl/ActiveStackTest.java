@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class ActiveStackTest {
+
+    private final ActiveStack stack = new ActiveStack(2);
+
+    @Test
+    void testEmptyStack() {
+        assertThat(stack.peek()).isNull();
+        assertThat(stack.peekBottom()).isNull();
+        assertThat(stack.pop()).isNull();
+        assertThat(stack.size()).isZero();
+    }
+
+    @Test
+    void testPushAndPop() {
+        Transaction transaction = mock(Transaction.class);
+        Span span = mock(Span.class);
+
+        stack.push(transaction);
+        stack.push(span);
+        assertThat(stack.peek()).isSameAs(span);
+        assertThat(stack.peekBottom()).isSameAs(transaction);
+        assertThat(stack.size()).isEqualTo(2);
+
+        assertThat(stack.pop()).isSameAs(span);
+        assertThat(stack.peek()).isSameAs(transaction);
+        assertThat(stack.pop()).isSameAs(transaction);
+        assertThat(stack.peek()).isNull();
+    }
+
+    @Test
+    void testGrowsBeyondInitialCapacity() {
+        List<AbstractSpan<?>> spans = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Span span = mock(Span.class);
+            spans.add(span);
+            stack.push(span);
+        }
+        assertThat(stack.capacity()).isEqualTo(16);
+        assertThat(stack.peekBottom()).isSameAs(spans.get(0));
+
+        for (int i = spans.size() - 1; i >= 0; i--) {
+            assertThat(stack.pop()).isSameAs(spans.get(i));
+        }
+        assertThat(stack.size()).isZero();
+    }
+
+    @Test
+    void testTracerActivation() {
+        ElasticApmTracer tracer = MockTracer.createRealTracer();
+        try {
+            Transaction transaction = tracer.startRootTransaction(null);
+            try (Scope scope = transaction.activateInScope()) {
+                assertThat(tracer.currentTransaction()).isSameAs(transaction);
+                assertThat(tracer.getActive()).isSameAs(transaction);
+            }
+            assertThat(tracer.currentTransaction()).isNull();
+            transaction.end();
+        } finally {
+            tracer.stop();
+        }
+    }
+}
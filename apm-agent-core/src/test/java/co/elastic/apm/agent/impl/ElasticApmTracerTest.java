@@ -30,6 +30,7 @@ import co.elastic.apm.agent.configuration.ServiceNameUtil;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
 import co.elastic.apm.agent.configuration.source.PropertyFileConfigurationSource;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.sampling.AdaptiveSampler;
 import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
@@ -37,6 +38,7 @@ import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.objectpool.TestObjectPoolFactory;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -357,6 +359,29 @@ class ElasticApmTracerTest {
         assertThat(reporter.getFirstTransaction().getType()).isEqualTo("request");
     }
 
+    @Test
+    void testSamplerFollowsTargetThroughput() throws IOException {
+        CoreConfiguration coreConfiguration = config.getConfig(CoreConfiguration.class);
+        coreConfiguration.getSampleRate().update(0.5, SpyConfiguration.CONFIG_SOURCE_NAME);
+        coreConfiguration.getSampleTargetThroughput().update(10d, SpyConfiguration.CONFIG_SOURCE_NAME);
+        assertThat(tracerImpl.getSampler()).isInstanceOf(AdaptiveSampler.class);
+        assertThat(tracerImpl.getSampler().getSampleRate()).isEqualTo(0.5);
+
+        coreConfiguration.getSampleTargetThroughput().update(0d, SpyConfiguration.CONFIG_SOURCE_NAME);
+        assertThat(tracerImpl.getSampler()).isNotInstanceOf(AdaptiveSampler.class);
+        assertThat(tracerImpl.getSampler().getSampleRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    void testObjectPoolMetrics() {
+        tracerImpl.startRootTransaction(null).end();
+        reporter.reset();
+
+        Labels labels = Labels.Mutable.of("pool", "transaction");
+        assertThat(tracerImpl.getMetricRegistry().getGaugeValue(ElasticApmTracer.OBJECT_POOL_SIZE_METRIC, labels)).isEqualTo(1);
+        assertThat(tracerImpl.getMetricRegistry().getGaugeValue(ElasticApmTracer.OBJECT_POOL_GARBAGE_CREATED_METRIC, labels)).isEqualTo(0);
+    }
+
     @Test
     void testTransactionWithParentReference() {
         final Map<String, String> headerMap = Map.of(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01");
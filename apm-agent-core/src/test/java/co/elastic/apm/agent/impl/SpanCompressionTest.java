@@ -0,0 +1,232 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
+import co.elastic.apm.agent.impl.transaction.Composite;
+import co.elastic.apm.agent.impl.transaction.Outcome;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class SpanCompressionTest {
+
+    private ElasticApmTracer tracer;
+    private MockReporter reporter;
+    private Transaction transaction;
+
+    @BeforeEach
+    void setUp() {
+        reporter = new MockReporter();
+        tracer = MockTracer.createRealTracer(reporter);
+        CoreConfiguration config = tracer.getConfig(CoreConfiguration.class);
+        doReturn(true).when(config).isSpanCompressionEnabled();
+        doReturn(TimeDuration.of("50ms")).when(config).getSpanCompressionExactMatchMaxDuration();
+        doReturn(TimeDuration.of("5ms")).when(config).getSpanCompressionSameKindMaxDuration();
+        transaction = tracer.startRootTransaction(ConstantSampler.of(true), 0, null);
+        assertThat(transaction).isNotNull();
+    }
+
+    @AfterEach
+    void cleanupAndCheck() {
+        reporter.assertRecycledAfterDecrementingReferences();
+        tracer.stop();
+    }
+
+    @Test
+    void testExactMatchCompression() {
+        exitSpan("SELECT FROM users", "mysql", 1_000, 2_000);
+        exitSpan("SELECT FROM users", "mysql", 3_000, 13_000);
+        exitSpan("SELECT FROM users", "mysql", 14_000, 15_000);
+        assertThat(reporter.getSpans()).isEmpty();
+        transaction.end(20_000);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        Span span = reporter.getFirstSpan();
+        assertThat(span.getNameAsString()).isEqualTo("SELECT FROM users");
+        assertThat(span.getTimestamp()).isEqualTo(1_000);
+        assertThat(span.getDuration()).isEqualTo(14_000);
+        Composite composite = span.getComposite();
+        assertThat(composite.getCount()).isEqualTo(3);
+        assertThat(composite.getSumMs()).isEqualTo(12.0);
+        assertThat(composite.getCompressionStrategy()).isEqualTo(Composite.EXACT_MATCH);
+        assertThat(transaction.getSpanCount().getReported()).hasValue(1);
+        assertThat(transaction.getSpanCount().getDropped()).hasValue(0);
+    }
+
+    @Test
+    void testSameKindCompression() {
+        exitSpan("SELECT FROM users", "mysql", 1_000, 2_000);
+        exitSpan("SELECT FROM orders", "mysql", 3_000, 4_000);
+        exitSpan("SELECT FROM items", "mysql", 5_000, 6_000);
+        transaction.end(20_000);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        Span span = reporter.getFirstSpan();
+        assertThat(span.getNameAsString()).isEqualTo("Calls to mysql");
+        assertThat(span.getComposite().getCount()).isEqualTo(3);
+        assertThat(span.getComposite().getCompressionStrategy()).isEqualTo(Composite.SAME_KIND);
+    }
+
+    @Test
+    void testSameKindCompositeDoesNotAcceptSlowSibling() {
+        exitSpan("SELECT FROM users", "mysql", 1_000, 2_000);
+        exitSpan("SELECT FROM orders", "mysql", 3_000, 4_000);
+        exitSpan("SELECT FROM orders", "mysql", 5_000, 15_000);
+        transaction.end(20_000);
+
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans().get(0).getComposite().getCount()).isEqualTo(2);
+        assertThat(reporter.getSpans().get(1).isComposite()).isFalse();
+    }
+
+    @Test
+    void testSpansExceedingThresholdAreNotCompressed() {
+        exitSpan("SELECT FROM users", "mysql", 1_000, 61_000);
+        exitSpan("SELECT FROM users", "mysql", 62_000, 63_000);
+        transaction.end(70_000);
+
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans()).noneMatch(Span::isComposite);
+    }
+
+    @Test
+    void testDifferentDestinationsAreNotCompressed() {
+        exitSpan("SELECT FROM users", "mysql", 1_000, 2_000);
+        exitSpan("SELECT FROM users", "postgresql", 3_000, 4_000);
+        transaction.end(20_000);
+
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans()).noneMatch(Span::isComposite);
+    }
+
+    @Test
+    void testOnlyConsecutiveSpansAreCompressed() {
+        exitSpan("SELECT FROM users", "mysql", 1_000, 2_000);
+        Span propagating = createExitSpan("SELECT FROM orders", "mysql", 3_000);
+        propagating.propagateTraceContext(new HashMap<String, String>(), TextHeaderMapAccessor.INSTANCE);
+        propagating.end(4_000);
+        exitSpan("SELECT FROM users", "mysql", 5_000, 6_000);
+        transaction.end(20_000);
+
+        assertThat(reporter.getSpans().stream().map(Span::getNameAsString))
+            .containsExactly("SELECT FROM users", "SELECT FROM orders", "SELECT FROM users");
+        assertThat(reporter.getSpans()).noneMatch(Span::isComposite);
+    }
+
+    @Test
+    void testFailedSpansAreNotCompressed() {
+        exitSpan("SELECT FROM users", "mysql", 1_000, 2_000);
+        createExitSpan("SELECT FROM users", "mysql", 3_000).withOutcome(Outcome.FAILURE).end(4_000);
+        transaction.end(20_000);
+
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans()).noneMatch(Span::isComposite);
+    }
+
+    @Test
+    void testSpanCompressionDisabled() {
+        doReturn(false).when(tracer.getConfig(CoreConfiguration.class)).isSpanCompressionEnabled();
+        exitSpan("SELECT FROM users", "mysql", 1_000, 2_000);
+        exitSpan("SELECT FROM users", "mysql", 3_000, 4_000);
+        assertThat(reporter.getSpans()).hasSize(2);
+        transaction.end(20_000);
+
+        assertThat(reporter.getSpans()).noneMatch(Span::isComposite);
+    }
+
+    @Test
+    void testBufferedSpanIsFlushedWhenParentEnds() {
+        Span parent = transaction.createSpan(500).withName("parent");
+        Span child = parent.createSpan(1_000).asExit().withName("SELECT FROM users").withType("db").withSubtype("mysql");
+        withDestination(child, "mysql");
+        child.end(2_000);
+        assertThat(reporter.getSpans()).isEmpty();
+
+        parent.end(3_000);
+        assertThat(reporter.getSpans().stream().map(Span::getNameAsString)).containsExactly("SELECT FROM users", "parent");
+        transaction.end(20_000);
+    }
+
+    @Test
+    void testChildEndingAfterParentIsNotCompressed() {
+        Span parent = transaction.createSpan(500).withName("parent");
+        Span child = parent.createSpan(1_000).asExit().withName("SELECT FROM users").withType("db").withSubtype("mysql");
+        withDestination(child, "mysql");
+        parent.end(2_000);
+        assertThat(reporter.getSpans().stream().map(Span::getNameAsString)).containsExactly("parent");
+
+        // the parent must not be recycled before the child has been reported
+        assertThat(parent.isReferenced()).isTrue();
+        child.end(3_000);
+        assertThat(reporter.getSpans().stream().map(Span::getNameAsString)).containsExactly("parent", "SELECT FROM users");
+        assertThat(reporter.getSpans()).noneMatch(Span::isComposite);
+        transaction.end(20_000);
+    }
+
+    @Test
+    void testSpansFasterThanSpanMinDurationAreDroppedBeforeCompression() {
+        doReturn(TimeDuration.of("2ms")).when(tracer.getConfig(CoreConfiguration.class)).getSpanMinDuration();
+        exitSpan("SELECT FROM users", "mysql", 1_000, 4_000);
+        exitSpan("SELECT FROM users", "mysql", 5_000, 6_000);
+        exitSpan("SELECT FROM users", "mysql", 7_000, 10_000);
+        transaction.end(20_000);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getFirstSpan().getComposite().getCount()).isEqualTo(2);
+        assertThat(transaction.getSpanCount().getReported()).hasValue(1);
+        assertThat(transaction.getSpanCount().getDropped()).hasValue(1);
+    }
+
+    private void exitSpan(String name, String subtype, long start, long end) {
+        createExitSpan(name, subtype, start).end(end);
+    }
+
+    private Span createExitSpan(String name, String subtype, long start) {
+        Span span = transaction.createSpan(start)
+            .asExit()
+            .withName(name)
+            .withType("db")
+            .withSubtype(subtype);
+        withDestination(span, subtype);
+        return span;
+    }
+
+    private static void withDestination(Span span, String resource) {
+        span.getContext().getDestination().withAddress("localhost").withPort(1234)
+            .getService().withResource(resource).withName(resource).withType("db");
+    }
+}
@@ -44,6 +44,7 @@ import javax.annotation.Nullable;
 import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 import static org.mockito.Mockito.when;
 
 @SuppressWarnings("ConstantConditions")
@@ -97,6 +98,28 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    @Test
+    void testTransactionDurationHistogram() {
+        when(tracer.getConfig(CoreConfiguration.class).isTransactionDurationHistogramEnabled()).thenReturn(true);
+        createTransaction()
+            .end(30);
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            MetricSet metricSet = metricSets.get(Labels.Mutable.of().transactionName("test").transactionType("request"));
+            assertThat(metricSet.getHistograms().get("transaction.duration.histogram").getTotalCount()).isEqualTo(1);
+            assertThat(metricSet.getHistograms().get("transaction.duration.histogram").getValueAtPercentile(99)).isCloseTo(30, within(30 / 8d));
+        });
+    }
+
+    @Test
+    void testTransactionDurationHistogram_disabledByDefault() {
+        createTransaction()
+            .end(30);
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            MetricSet metricSet = metricSets.get(Labels.Mutable.of().transactionName("test").transactionType("request"));
+            assertThat(metricSet.getHistograms()).isEmpty();
+        });
+    }
+
     /*
      * ██████████░░░░░░░░░░██████████
      * └─────────██████████
@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.context;
+
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DbTest {
+
+    private final Db db = new Db();
+
+    @Test
+    void testShortStatementIsReferenced() {
+        String statement = "SELECT * FROM foo";
+        db.withStatement(statement);
+        assertThat(db.getStatement()).isSameAs(statement);
+        assertThat((CharSequence) db.getStatementBuffer()).isNull();
+    }
+
+    @Test
+    void testLongStatementIsTruncatedOnCapture() {
+        StringBuilder statement = new StringBuilder();
+        while (statement.length() <= 5 * DslJsonSerializer.MAX_LONG_STRING_VALUE_LENGTH) {
+            statement.append("INSERT INTO foo VALUES (1);");
+        }
+        db.withStatement(statement.toString());
+
+        assertThat(db.getStatement()).isNull();
+        assertThat((CharSequence) db.getStatementBuffer()).isNotNull();
+        String captured = db.getStatementBuffer().toString();
+        assertThat(captured).hasSize(DslJsonSerializer.MAX_LONG_STRING_VALUE_LENGTH);
+        assertThat(captured).startsWith("INSERT INTO foo VALUES (1);INSERT");
+        assertThat(captured).endsWith("…");
+    }
+
+    @Test
+    void testStatementCopy() {
+        StringBuilder statement = new StringBuilder("SELECT * FROM foo");
+        db.withStatementCopy(statement);
+        statement.setLength(0);
+        assertThat(db.getStatementBuffer().toString()).isEqualTo("SELECT * FROM foo");
+
+        db.withStatementCopy("SELECT * FROM bar");
+        assertThat(db.getStatementBuffer().toString()).isEqualTo("SELECT * FROM bar");
+
+        Db copy = new Db();
+        copy.copyFrom(db);
+        assertThat(copy.getStatementBuffer().toString()).isEqualTo("SELECT * FROM bar");
+
+        db.resetState();
+        assertThat((CharSequence) db.getStatementBuffer()).isNull();
+        assertThat(db.hasContent()).isFalse();
+    }
+}
@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.TraceState;
+import org.junit.jupiter.api.Test;
+
+import static co.elastic.apm.agent.impl.sampling.AdaptiveSampler.BUCKET_DURATION_NANOS;
+import static co.elastic.apm.agent.impl.sampling.AdaptiveSampler.WINDOW_BUCKETS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+class AdaptiveSamplerTest {
+
+    private long nanoTime = 0;
+
+    @Test
+    void testInitialRateIsMaxRate() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 0.5, nanoTime);
+
+        assertThat(sampler.getSampleRate()).isEqualTo(0.5);
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(0.5));
+    }
+
+    @Test
+    void testRateIsNotChangedWithinBucket() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 1.0, nanoTime);
+
+        endTransactions(sampler, "request", "GET /", 1000);
+        nanoTime += BUCKET_DURATION_NANOS - 1;
+        endTransactions(sampler, "request", "GET /", 1);
+
+        assertThat(sampler.getSampleRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void testRateAdaptsToThroughput() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 1.0, nanoTime);
+
+        endTransactions(sampler, "request", "GET /", 99);
+        completeBucket(sampler, "request", "GET /");
+
+        assertThat(sampler.getSampleRate()).isEqualTo(0.1);
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(0.1));
+    }
+
+    @Test
+    void testBudgetIsPerKey() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 1.0, nanoTime);
+
+        // a key at 90 tps and a key at 10 tps
+        // each key contributes at most 10 tps so the expected rate is (10 + 10) / (90 + 10)
+        endTransactions(sampler, "request", "GET /hot", 90);
+        endTransactions(sampler, "request", "GET /cold", 9);
+        completeBucket(sampler, "request", "GET /cold");
+
+        assertThat(sampler.getSampleRate()).isEqualTo(0.2);
+    }
+
+    @Test
+    void testTypeIsPartOfTheKey() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 1.0, nanoTime);
+
+        endTransactions(sampler, "request", "foo", 10);
+        endTransactions(sampler, "messaging", "foo", 9);
+        completeBucket(sampler, "messaging", "foo");
+
+        assertThat(sampler.getSampleRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void testRateDoesNotExceedMaxRate() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 0.5, nanoTime);
+
+        endTransactions(sampler, "request", "GET /", 4);
+        completeBucket(sampler, "request", "GET /");
+
+        assertThat(sampler.getSampleRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    void testThroughputIsAveragedOverSlidingWindow() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 1.0, nanoTime);
+
+        endTransactions(sampler, "request", "GET /", 99);
+        completeBucket(sampler, "request", "GET /");
+        assertThat(sampler.getSampleRate()).isEqualTo(0.1);
+
+        // the spike is still part of the window
+        endTransactions(sampler, "request", "GET /", 9);
+        completeBucket(sampler, "request", "GET /");
+        assertThat(sampler.getSampleRate()).isCloseTo(10 / 55.0, offset(0.0001));
+
+        for (int i = 1; i < WINDOW_BUCKETS; i++) {
+            endTransactions(sampler, "request", "GET /", 9);
+            completeBucket(sampler, "request", "GET /");
+        }
+        // the spike has left the window
+        assertThat(sampler.getSampleRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void testIdlePeriodsAreConsideredInThroughput() {
+        AdaptiveSampler sampler = new AdaptiveSampler(10, 1.0, nanoTime);
+
+        endTransactions(sampler, "request", "GET /", 99);
+        completeBucket(sampler, "request", "GET /");
+        assertThat(sampler.getSampleRate()).isEqualTo(0.1);
+
+        // 100 transactions ending during a whole window are 20 tps
+        nanoTime += (WINDOW_BUCKETS - 1) * BUCKET_DURATION_NANOS;
+        endTransactions(sampler, "request", "GET /", 99);
+        completeBucket(sampler, "request", "GET /");
+
+        assertThat(sampler.getSampleRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    void testRateIsNotRoundedToZero() {
+        AdaptiveSampler sampler = new AdaptiveSampler(0.001, 1.0, nanoTime);
+
+        endTransactions(sampler, "request", "GET /", 100_000);
+        completeBucket(sampler, "request", "GET /");
+
+        assertThat(sampler.getSampleRate()).isEqualTo(0.0001);
+    }
+
+    @Test
+    void testRateBelowPrecisionIsClampedToMinRate() {
+        AdaptiveSampler sampler = new AdaptiveSampler(1, 1.0, nanoTime);
+
+        // 1 tps out of 30k tps is a rate of 3.3e-5, which is below the precision of the rate
+        endTransactions(sampler, "request", "GET /", 29_999);
+        completeBucket(sampler, "request", "GET /");
+
+        assertThat(sampler.getSampleRate()).isEqualTo(AdaptiveSampler.MIN_SAMPLE_RATE).isEqualTo(0.0001);
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(0.0001));
+    }
+
+    private void endTransactions(AdaptiveSampler sampler, String type, String name, int count) {
+        for (int i = 0; i < count; i++) {
+            sampler.onTransactionEnd(type, name, nanoTime);
+        }
+    }
+
+    /**
+     * Ends a transaction exactly one bucket duration after the last one, which completes the current bucket
+     */
+    private void completeBucket(AdaptiveSampler sampler, String type, String name) {
+        nanoTime += BUCKET_DURATION_NANOS;
+        sampler.onTransactionEnd(type, name, nanoTime);
+    }
+}
@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.TextHeaderMapAccessor;
+import co.elastic.apm.agent.impl.transaction.Outcome;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class TailSamplingBufferTest {
+
+    private ElasticApmTracer tracer;
+    private MockReporter reporter;
+    private CoreConfiguration config;
+
+    @BeforeEach
+    void setUp() {
+        reporter = new MockReporter();
+        tracer = MockTracer.createRealTracer(reporter);
+        config = tracer.getConfig(CoreConfiguration.class);
+        doReturn(true).when(config).isTailSamplingEnabled();
+        doReturn(TimeDuration.of("500ms")).when(config).getTailSamplingMinDuration();
+    }
+
+    @AfterEach
+    void cleanupAndCheck() {
+        reporter.assertRecycledAfterDecrementingReferences();
+        tracer.stop();
+    }
+
+    @Test
+    void testFastTransactionIsDropped() {
+        Transaction transaction = startUnsampledTransaction();
+        assertThat(transaction.isSampled()).isTrue();
+        assertThat(transaction.getTraceContext().isTailSamplingCandidate()).isTrue();
+        transaction.createSpan(1_000).withName("span").end(2_000);
+        assertThat(reporter.getSpans()).isEmpty();
+
+        transaction.end(100_000);
+
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+        assertThat(transaction.getSpanCount().getReported()).hasValue(0);
+        assertThat(getBuffer().getBufferedSpans()).isZero();
+    }
+
+    @Test
+    void testSlowTransactionIsKept() {
+        Transaction transaction = startUnsampledTransaction();
+        transaction.createSpan(1_000).withName("span").end(2_000);
+
+        transaction.end(600_000);
+
+        assertThat(reporter.getSpans().stream().map(Span::getNameAsString)).containsExactly("span");
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(transaction.getSpanCount().getReported()).hasValue(1);
+    }
+
+    @Test
+    void testKeptCandidatesHaveSampleRateZero() {
+        Transaction transaction = startUnsampledTransaction();
+        transaction.createSpan(1_000).withName("span").end(2_000);
+
+        transaction.end(600_000);
+
+        // kept candidates are excluded from the extrapolation of the head-sampled transactions
+        assertThat(reporter.getFirstTransaction().getTraceContext().getSampleRate()).isZero();
+        assertThat(reporter.getFirstSpan().getTraceContext().getSampleRate()).isZero();
+    }
+
+    @Test
+    void testFailedTransactionIsKept() {
+        Transaction transaction = startUnsampledTransaction();
+        transaction.createSpan(1_000).withName("span").end(2_000);
+
+        transaction.withOutcome(Outcome.FAILURE).end(100_000);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+    }
+
+    @Test
+    void testTransactionWithErrorIsKept() {
+        Transaction transaction = startUnsampledTransaction();
+        Span span = transaction.createSpan(1_000).withName("span");
+        span.captureException(new Exception());
+        span.end(2_000);
+
+        transaction.end(100_000);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getErrors()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+    }
+
+    @Test
+    void testSpanEndingAfterKeptTransaction() {
+        Transaction transaction = startUnsampledTransaction();
+        Span span = transaction.createSpan(1_000).withName("span");
+
+        transaction.end(600_000);
+        span.end(700_000);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    void testSpanEndingAfterDroppedTransaction() {
+        Transaction transaction = startUnsampledTransaction();
+        Span span = transaction.createSpan(1_000).withName("span");
+
+        transaction.end(100_000);
+        span.end(200_000);
+
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+    }
+
+    @Test
+    void testCandidatesArePropagatedAsNotSampled() {
+        Transaction transaction = startUnsampledTransaction();
+        Span span = transaction.createSpan(1_000).withName("span");
+        Map<String, String> headers = new HashMap<>();
+        span.propagateTraceContext(headers, TextHeaderMapAccessor.INSTANCE);
+
+        assertThat(headers.get("traceparent"))
+            .endsWith(transaction.getTraceContext().getId().toString() + "-00");
+
+        span.end(2_000);
+        transaction.end(100_000);
+    }
+
+    @Test
+    void testSampledTransactionsAreNotBuffered() {
+        Transaction transaction = tracer.startRootTransaction(ConstantSampler.of(true), 0, null);
+        assertThat(transaction).isNotNull();
+        assertThat(transaction.getTraceContext().isTailSamplingCandidate()).isFalse();
+        transaction.createSpan(1_000).withName("span").end(2_000);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        transaction.end(100_000);
+    }
+
+    @Test
+    void testTailSamplingDisabled() {
+        doReturn(false).when(config).isTailSamplingEnabled();
+        Transaction transaction = startUnsampledTransaction();
+        assertThat(transaction.isSampled()).isFalse();
+        transaction.end(600_000);
+
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+    }
+
+    @Test
+    void testMaxBufferedSpans() {
+        doReturn(1).when(config).getTailSamplingMaxBufferedSpans();
+        Transaction transaction = startUnsampledTransaction();
+        transaction.createSpan(1_000).withName("buffered").end(2_000);
+        transaction.createSpan(3_000).withName("evicted").end(4_000);
+        assertThat(getBuffer().getBufferedSpans()).isEqualTo(1);
+
+        transaction.end(600_000);
+
+        assertThat(reporter.getSpans().stream().map(Span::getNameAsString)).containsExactly("buffered");
+        assertThat(transaction.getSpanCount().getDropped()).hasValue(1);
+    }
+
+    @Test
+    void testEvictExpired() {
+        Transaction transaction = startUnsampledTransaction();
+        transaction.createSpan(1_000).withName("span").end(2_000);
+        TailSamplingBuffer buffer = getBuffer();
+
+        buffer.evictExpired(System.nanoTime());
+        assertThat(buffer.getBufferedSpans()).isEqualTo(1);
+        buffer.evictExpired(System.nanoTime() + config.getTailSamplingBufferTimeout().getMillis() * 1_000_000);
+        assertThat(buffer.getBufferedSpans()).isZero();
+
+        transaction.end(600_000);
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+    }
+
+    private Transaction startUnsampledTransaction() {
+        Transaction transaction = tracer.startRootTransaction(ConstantSampler.of(false), 0, null);
+        assertThat(transaction).isNotNull();
+        return transaction.withName("transaction");
+    }
+
+    private TailSamplingBuffer getBuffer() {
+        return tracer.getTailSamplingBuffer();
+    }
+}
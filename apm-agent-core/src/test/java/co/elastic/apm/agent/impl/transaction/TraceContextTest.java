@@ -399,6 +399,29 @@ class TraceContextTest {
         assertThat(traceContext.getOutgoingTraceParentTextHeader().toString()).isNotEqualTo(traceParentHeader);
     }
 
+    @Test
+    void testOutgoingTextHeaderIsCached() {
+        final TraceContext traceContext = TraceContext.with64BitId(tracer);
+        traceContext.asChildOf("00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01");
+        Map<String, String> first = new HashMap<>();
+        Map<String, String> second = new HashMap<>();
+        traceContext.propagateTraceContext(first, TextHeaderMapAccessor.INSTANCE);
+        traceContext.propagateTraceContext(second, TextHeaderMapAccessor.INSTANCE);
+        assertThat(second.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME))
+            .isSameAs(first.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME))
+            .endsWith("-01");
+
+        traceContext.setRecorded(false);
+        traceContext.propagateTraceContext(second, TextHeaderMapAccessor.INSTANCE);
+        assertThat(second.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME)).endsWith("-00");
+
+        traceContext.recordForTailSampling();
+        traceContext.propagateTraceContext(first, TextHeaderMapAccessor.INSTANCE);
+        assertThat(first.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME))
+            .isNotSameAs(second.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME))
+            .isEqualTo(second.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME));
+    }
+
     @Test
     void testResetOutgoingBinaryHeader() {
         final TraceContext traceContext = TraceContext.with64BitId(tracer);
@@ -674,6 +697,13 @@ class TraceContextTest {
         assertInvalid("00-$af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-03");
     }
 
+    @Test
+    void testInvalidHeader_nonHexCharsInParentIdAndFlags() {
+        assertInvalid("00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918eg-01");
+        assertInvalid("00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-0x");
+        assertInvalid("0x-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01");
+    }
+
     @Test
     void testInvalidHeader_traceIdTooLong() {
         assertInvalid("00-00af7651916cd43dd8448eb211c80319c-9c7c989f97918e1-03");
@@ -232,6 +232,26 @@ class TraceStateTest {
         assertThat(TraceState.getHeaderValue(traceState.getSampleRate())).isEqualTo(header);
     }
 
+    @Test
+    void textHeaderIsCachedUntilModified() {
+        traceState.addTextHeader("foo=bar");
+        traceState.addTextHeader("es=s:0.5");
+        String header = traceState.toTextHeader();
+        assertThat(header).isEqualTo("foo=bar,es=s:0.5");
+        assertThat(traceState.toTextHeader()).isSameAs(header);
+
+        TraceState copy = new TraceState();
+        copy.copyFrom(traceState);
+        assertThat(copy.toTextHeader()).isSameAs(header);
+
+        traceState.addTextHeader("baz=qux");
+        assertThat(traceState.toTextHeader()).isEqualTo("foo=bar,es=s:0.5,baz=qux");
+        assertThat(copy.toTextHeader()).isSameAs(header);
+
+        traceState.resetState();
+        assertThat(traceState.toTextHeader()).isNull();
+    }
+
     private void checkHeader(double expectedSampleRate, @Nullable String expectedHeader){
         double sampleRate = traceState.getSampleRate();
         if (Double.isNaN(expectedSampleRate)) {
@@ -28,13 +28,18 @@ import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.TransactionUtils;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
 import co.elastic.apm.agent.impl.MetaData;
+import co.elastic.apm.agent.impl.TextHeaderMapAccessor;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.report.ApmServerClient;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -95,4 +100,47 @@ class TransactionTest {
 
     }
 
+    @Test
+    void addSpanLinks() throws Exception {
+        Transaction transaction = new Transaction(MockTracer.create());
+        Map<String, String> headers = new HashMap<>();
+
+        headers.put(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        assertThat(addSpanLink(transaction, headers)).isTrue();
+        assertThat(addSpanLink(transaction, headers))
+            .describedAs("links to the same span are only added once")
+            .isFalse();
+        headers.put(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, "00-0af7651916cd43dd8448eb211c80319c-00f067aa0ba902b7-00");
+        assertThat(addSpanLink(transaction, headers)).isTrue();
+        headers.put(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, "invalid");
+        assertThat(addSpanLink(transaction, headers)).isFalse();
+        assertThat(transaction.addSpanLink(TraceContext.<Map<String, String>>getFromTraceContextTextHeaders(), TextHeaderMapAccessor.INSTANCE, null)).isFalse();
+        assertThat(transaction.getSpanLinkCount()).isEqualTo(2);
+
+        JsonNode links = new ObjectMapper().readTree(jsonSerializer.toJsonString(transaction)).get("links");
+        assertThat(links).hasSize(2);
+        assertThat(links.get(0).get("trace_id").textValue()).isEqualTo("0af7651916cd43dd8448eb211c80319c");
+        assertThat(links.get(0).get("span_id").textValue()).isEqualTo("b7ad6b7169203331");
+        assertThat(links.get(1).get("trace_id").textValue()).isEqualTo("0af7651916cd43dd8448eb211c80319c");
+        assertThat(links.get(1).get("span_id").textValue()).isEqualTo("00f067aa0ba902b7");
+
+        transaction.resetState();
+        assertThat(transaction.getSpanLinkCount()).isZero();
+        assertThat(new ObjectMapper().readTree(jsonSerializer.toJsonString(transaction)).get("links")).isNull();
+    }
+
+    @Test
+    void spanLinksAreCapped() {
+        Transaction transaction = new Transaction(MockTracer.create());
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 0; i <= AbstractSpan.MAX_SPAN_LINKS; i++) {
+            headers.put(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, String.format("00-0af7651916cd43dd8448eb211c80319c-%016x-01", i + 1));
+            assertThat(addSpanLink(transaction, headers)).isEqualTo(i < AbstractSpan.MAX_SPAN_LINKS);
+        }
+        assertThat(transaction.getSpanLinkCount()).isEqualTo(AbstractSpan.MAX_SPAN_LINKS);
+    }
+
+    private static boolean addSpanLink(Transaction transaction, Map<String, String> headers) {
+        return transaction.addSpanLink(TraceContext.<Map<String, String>>getFromTraceContextTextHeaders(), TextHeaderMapAccessor.INSTANCE, headers);
+    }
 }
@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.messaging;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.MessagingConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.TextHeaderMapAccessor;
+import co.elastic.apm.agent.impl.TracerInternalApiUtils;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.metrics.Histogram;
+import co.elastic.apm.agent.metrics.Labels;
+import org.assertj.core.data.Percentage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class MessageBatchAggregatorTest {
+
+    private ElasticApmTracer tracer;
+    private MockReporter reporter;
+    private MessageBatchAggregator aggregator;
+
+    @BeforeEach
+    void setUp() {
+        ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
+        MessagingConfiguration messagingConfiguration = config.getConfig(MessagingConfiguration.class);
+        doReturn(Collections.singletonList(WildcardMatcher.valueOf("batch-*"))).when(messagingConfiguration).getMessageBatchDestinations();
+        doReturn(TimeDuration.of("60m")).when(messagingConfiguration).getMessageBatchWindow();
+        reporter = new MockReporter();
+        tracer = MockTracer.createRealTracer(reporter, config);
+        aggregator = new MessageBatchAggregator(tracer, "Test", "Test RECEIVE from ");
+    }
+
+    @AfterEach
+    void tearDown() {
+        tracer.stop();
+    }
+
+    @Test
+    void testBatchDestinations() {
+        assertThat(aggregator.isBatchDestination("batch-queue")).isTrue();
+        assertThat(aggregator.isBatchDestination("queue")).isFalse();
+        assertThat(aggregator.isBatchDestination(null)).isFalse();
+    }
+
+    @Test
+    void testMessagesAreAggregated() {
+        handleMessage("batch-queue", 5, "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        handleMessage("batch-queue", 50, "00-0af7651916cd43dd8448eb211c80319c-00f067aa0ba902b7-01");
+        handleMessage("batch-queue", 20000, null);
+        handleMessage("batch-queue", -1, null);
+        handleMessage("batch-other", 5, null);
+        assertThat(reporter.getTransactions()).isEmpty();
+
+        aggregator.flush(System.nanoTime());
+        assertThat(reporter.getTransactions())
+            .describedAs("the window has not elapsed yet")
+            .isEmpty();
+
+        aggregator.flush(System.nanoTime() + TimeUnit.MINUTES.toNanos(61));
+        assertThat(reporter.getTransactions()).hasSize(2);
+        Transaction transaction = reporter.getTransactions().get(0);
+        assertThat(transaction.getNameAsString()).isEqualTo("Test RECEIVE from batch-queue");
+        assertThat(transaction.getType()).isEqualTo("messaging");
+        assertThat(transaction.getFrameworkName()).isEqualTo("Test");
+        assertThat(transaction.getContext().getMessage().getQueueName()).isEqualTo("batch-queue");
+        assertThat(transaction.getContext().getLabel("message_count")).isEqualTo(4);
+        assertThat(transaction.getContext().getLabel("message_age_max_ms")).isEqualTo(20000L);
+        assertThat(transaction.getSpanLinkCount()).isEqualTo(2);
+        assertThat(reporter.getTransactions().get(1).getContext().getLabel("message_count")).isEqualTo(1);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            Histogram histogram = metricSets.get(Labels.Mutable.of("destination", "batch-queue")).getHistograms().get(MessageBatch.MESSAGE_AGE_HISTOGRAM);
+            assertThat(histogram.getTotalCount()).isEqualTo(3);
+            assertThat(histogram.getValueAtPercentile(100)).isCloseTo(20_000_000, Percentage.withPercentage(15));
+            assertThat(metricSets.get(Labels.Mutable.of("destination", "batch-other")).getHistograms().get(MessageBatch.MESSAGE_AGE_HISTOGRAM).getTotalCount()).isEqualTo(1);
+        });
+    }
+
+    @Test
+    void testBatchTransactionIsActiveWhileHandlingMessages() {
+        MessageBatch.Handling handling = aggregator.startMessageHandling("batch-queue", -1, null, TextHeaderMapAccessor.INSTANCE, null);
+        assertThat(handling).isNotNull();
+        Transaction transaction = tracer.currentTransaction();
+        assertThat(transaction).isSameAs(handling.getTransaction());
+        handling.end(null);
+        assertThat(tracer.getActive()).isNull();
+
+        MessageBatch.Handling secondHandling = aggregator.startMessageHandling("batch-queue", -1, null, TextHeaderMapAccessor.INSTANCE, null);
+        assertThat(secondHandling).isNotNull();
+        assertThat(secondHandling.getTransaction()).isSameAs(transaction);
+        assertThat(tracer.currentTransaction()).isSameAs(transaction);
+        // ending the batch while the transaction is active on this thread
+        aggregator.flush(System.nanoTime() + TimeUnit.MINUTES.toNanos(61));
+        assertThat(reporter.getTransactions()).containsExactly(transaction);
+        assertThat(tracer.currentTransaction()).isSameAs(transaction);
+        secondHandling.end(null);
+        assertThat(tracer.getActive()).isNull();
+    }
+
+    @Test
+    void testEndDeactivatesTheBatchTransactionEvenIfTheHandlerLeftASpanActive() {
+        handleMessage("batch-queue", -1, null);
+        MessageBatch.Handling handling = aggregator.startMessageHandling("batch-queue", -1, null, TextHeaderMapAccessor.INSTANCE, null);
+        assertThat(handling).isNotNull();
+        Transaction transaction = handling.getTransaction();
+        int referencesWhileActive = transaction.getReferenceCount();
+        // the message handler doesn't deactivate its span
+        Span span = transaction.createSpan().activate();
+
+        TracerInternalApiUtils.runWithoutAssertions(tracer, () -> handling.end(null));
+        assertThat(transaction.getReferenceCount()).isEqualTo(referencesWhileActive - 1);
+        span.end();
+    }
+
+    private void handleMessage(String destination, long ageMs, String traceparent) {
+        Map<String, String> headers = new HashMap<>();
+        if (traceparent != null) {
+            headers.put(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, traceparent);
+        }
+        MessageBatch.Handling handling = aggregator.startMessageHandling(destination, ageMs, headers, TextHeaderMapAccessor.INSTANCE, null);
+        assertThat(handling).isNotNull();
+        assertThat(tracer.currentTransaction()).isNotNull();
+        handling.end(null);
+        assertThat(tracer.getActive()).isNull();
+    }
+}
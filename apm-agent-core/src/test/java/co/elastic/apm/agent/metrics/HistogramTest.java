@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class HistogramTest {
+
+    private final Histogram histogram = new Histogram();
+
+    @Test
+    void testSmallValuesAreExact() {
+        for (int i = 0; i < Histogram.SUB_BUCKETS; i++) {
+            assertThat(Histogram.getBucketIndex(i)).isEqualTo(i);
+            assertThat(Histogram.getBucketMidpoint(i)).isEqualTo(i);
+        }
+    }
+
+    @Test
+    void testBucketsAreContiguous() {
+        for (int i = 1; i < Histogram.BUCKETS; i++) {
+            long lowerBound = Histogram.getBucketLowerBound(i);
+            assertThat(Histogram.getBucketIndex(lowerBound)).isEqualTo(i);
+            assertThat(Histogram.getBucketIndex(lowerBound - 1)).isEqualTo(i - 1);
+        }
+        assertThat(Histogram.getBucketIndex(Histogram.MAX_VALUE_US)).isEqualTo(Histogram.BUCKETS - 1);
+    }
+
+    @ParameterizedTest
+    @ValueSource(longs = {9, 100, 1_000, 12_345, 1_000_000, 60_000_000, Histogram.MAX_VALUE_US})
+    void testRelativeError(long value) {
+        double midpoint = Histogram.getBucketMidpoint(Histogram.getBucketIndex(value));
+        assertThat(Math.abs(midpoint - value) / value).isLessThanOrEqualTo(1d / Histogram.SUB_BUCKETS);
+    }
+
+    @Test
+    void testOutOfRangeValuesAreClamped() {
+        histogram.update(-1);
+        histogram.update(Long.MAX_VALUE);
+
+        assertThat(histogram.getCount(0)).isEqualTo(1);
+        assertThat(histogram.getCount(Histogram.BUCKETS - 1)).isEqualTo(1);
+        assertThat(histogram.getTotalCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testPercentiles() {
+        for (int i = 1; i <= 100; i++) {
+            histogram.update(i * 1000);
+        }
+
+        assertThat(histogram.getValueAtPercentile(50)).isCloseTo(50_000, within(50_000 / 8d));
+        assertThat(histogram.getValueAtPercentile(95)).isCloseTo(95_000, within(95_000 / 8d));
+        assertThat(histogram.getValueAtPercentile(99)).isCloseTo(99_000, within(99_000 / 8d));
+        assertThat(histogram.getValueAtPercentile(100)).isCloseTo(100_000, within(100_000 / 8d));
+    }
+
+    @Test
+    void testReset() {
+        histogram.update(42);
+        assertThat(histogram.hasContent()).isTrue();
+
+        histogram.resetState();
+
+        assertThat(histogram.hasContent()).isFalse();
+        assertThat(histogram.getCount(Histogram.getBucketIndex(42))).isZero();
+        assertThat(histogram.getValueAtPercentile(99)).isZero();
+    }
+}
@@ -139,9 +139,74 @@ class MetricRegistryTest {
         IntStream.range(1, 505).forEach(i -> metricRegistry.updateTimer("timer" + i, Labels.Mutable.of("foo", Integer.toString(i)), 1));
         IntStream.range(1, 505).forEach(i -> metricRegistry.updateTimer("timer" + i, Labels.Mutable.of("bar", Integer.toString(i)), 1));
 
-        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(1000));
+        // 1000 regular metric sets and one overflow metric set
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets).hasSize(1001);
+            MetricSet overflow = metricSets.get(Labels.Mutable.of().transactionName(MetricRegistry.OVERFLOW_TRANSACTION_NAME));
+            assertThat(overflow.getCounters().get(MetricRegistry.OVERFLOW_COUNTER).get()).isEqualTo(8);
+            assertThat(overflow.getTimers()).hasSize(8);
+        });
         // the active and inactive metricSets are now switched, also check the size of the previously inactive metricSets
+        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(1001));
+    }
+
+    @Test
+    void testOverflowRetainsTypes() {
+        fillMetricSets(MetricRegistry.METRIC_SET_LIMIT);
+        metricRegistry.updateTimer("timer", Labels.Mutable.of().transactionName("foo").transactionType("request").spanType("db").spanSubType("mysql"), 1);
+        metricRegistry.updateTimer("timer", Labels.Mutable.of().transactionName("bar").transactionType("request").spanType("db").spanSubType("mysql"), 2);
+        metricRegistry.updateTimer("timer", Labels.Mutable.of().transactionName("bar").transactionType("request").spanType("app"), 3);
+
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            Labels.Mutable overflowLabels = Labels.Mutable.of()
+                .transactionName(MetricRegistry.OVERFLOW_TRANSACTION_NAME)
+                .transactionType("request");
+            verifyTimer(metricSets.get(overflowLabels.spanType("db").spanSubType("mysql")), 2, 3);
+            verifyTimer(metricSets.get(overflowLabels.spanType("app").spanSubType(null)), 1, 3);
+        });
+    }
+
+    @Test
+    void testIdleMetricSetsAreEvictedWhenFull() {
+        Labels.Mutable hot = Labels.Mutable.of("hot", "true");
+        Labels.Mutable gaugeLabels = Labels.Mutable.of("gauge", "true");
+        metricRegistry.add("gauge", gaugeLabels, () -> 42);
+        metricRegistry.updateTimer("timer", hot, 1);
+        fillMetricSets(MetricRegistry.METRIC_SET_LIMIT - 2);
+        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(1000));
+
+        // idle metric sets are evicted after they have been reported
+        metricRegistry.updateTimer("timer", hot, 1);
         metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(1000));
+        metricRegistry.updateTimer("timer", hot, 1);
+        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(1000));
+
+        // now, only the recently used metric set and the gauge remain
+        metricRegistry.updateTimer("timer", hot, 1);
+        metricRegistry.updateTimer("timer", Labels.Mutable.of("new", "true"), 1);
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets).hasSize(3);
+            verifyTimer(metricSets.get(hot), 1, 1);
+            verifyTimer(metricSets.get(Labels.Mutable.of("new", "true")), 1, 1);
+            assertThat(metricSets.get(gaugeLabels).getGauge("gauge").get()).isEqualTo(42);
+        });
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets).hasSize(3);
+            assertThat(metricSets.get(gaugeLabels).getGauge("gauge").get()).isEqualTo(42);
+        });
+    }
+
+    @Test
+    void testNoEvictionBelowLimit() {
+        Labels.Mutable labels = Labels.Mutable.of("foo", "bar");
+        metricRegistry.updateTimer("timer", labels, 1);
+        for (int i = 0; i < 10; i++) {
+            metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets.get(labels)).isNotNull());
+        }
+    }
+
+    private void fillMetricSets(int count) {
+        IntStream.range(0, count).forEach(i -> metricRegistry.updateTimer("timer", Labels.Mutable.of("foo", Integer.toString(i)), 1));
     }
 
     @Test
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.ObjectPoolTest;
+import co.elastic.apm.agent.objectpool.TestRecyclable;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ThreadLocalObjectPoolTest extends ObjectPoolTest<ThreadLocalObjectPool<TestRecyclable>> {
+
+    @Override
+    protected ThreadLocalObjectPool<TestRecyclable> createObjectPool(int maxSize) {
+        // half of the capacity is in the shared queue, the other half in the magazine of the test thread
+        return ThreadLocalObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(maxSize / 2), maxSize / 2, TestRecyclable::new);
+    }
+
+    @Test
+    void testObjectsRecycledOnOtherThreadAreReused() throws Exception {
+        ThreadLocalObjectPool<TestRecyclable> pool = ThreadLocalObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(16), 4, TestRecyclable::new);
+        List<TestRecyclable> created = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            created.add(pool.createInstance());
+        }
+
+        // recycling on a long-lived thread fills its magazine and drains it to the shared queue in batches
+        Thread recycler = new Thread(() -> created.forEach(pool::recycle));
+        recycler.start();
+        recycler.join();
+        assertThat(pool.getObjectsInPool()).isEqualTo(8);
+        assertThat(pool.getGarbageCreated()).isZero();
+
+        // the creating thread refills its magazine from the shared queue
+        for (int i = 0; i < 4; i++) {
+            assertThat(created).contains(pool.createInstance());
+        }
+        // the rest is in the magazine of the recycler thread
+        assertThat(pool.getObjectsInPool()).isEqualTo(4);
+    }
+
+    @Test
+    void testMagazineOfTerminatedThreadIsReclaimed() throws Exception {
+        ThreadLocalObjectPool<TestRecyclable> pool = ThreadLocalObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(16), 4, TestRecyclable::new);
+        TestRecyclable instance = pool.createInstance();
+
+        Thread recycler = new Thread(() -> pool.recycle(instance));
+        recycler.start();
+        recycler.join();
+        assertThat(pool.getObjectsInPool()).isEqualTo(1);
+
+        // the magazine of the terminated thread is drained to the shared queue when another thread registers its magazine
+        Thread otherThread = new Thread(() -> pool.recycle(new TestRecyclable()));
+        otherThread.start();
+        otherThread.join();
+        assertThat(pool.getObjectsInPool()).isEqualTo(2);
+        assertThat(pool.createInstance()).isSameAs(instance);
+    }
+
+    @Test
+    void testMagazineOfTerminatedThreadIsReclaimedOnlyOnce() throws Exception {
+        int racingThreads = 8;
+        for (int round = 0; round < 100; round++) {
+            ThreadLocalObjectPool<TestRecyclable> pool = ThreadLocalObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), 8, TestRecyclable::new);
+            List<TestRecyclable> recycled = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                recycled.add(new TestRecyclable());
+            }
+            Thread recycler = new Thread(() -> recycled.forEach(pool::recycle));
+            recycler.start();
+            recycler.join();
+
+            // all of these threads register their magazine at the same time and see the terminated recycler thread
+            CyclicBarrier barrier = new CyclicBarrier(racingThreads);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < racingThreads; i++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        barrier.await();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    pool.recycle(new TestRecyclable());
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            List<TestRecyclable> handedOut = new ArrayList<>();
+            while (pool.getObjectsInPool() > 0) {
+                handedOut.add(pool.createInstance());
+            }
+            Set<TestRecyclable> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+            distinct.addAll(handedOut);
+            assertThat(handedOut).hasSize(distinct.size());
+            assertThat(distinct).containsAll(recycled);
+        }
+    }
+
+    @Test
+    void testGarbageCreatedWhenMagazineAndQueueAreFull() {
+        ThreadLocalObjectPool<TestRecyclable> pool = ThreadLocalObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(2), 2, TestRecyclable::new);
+        for (int i = 0; i < 5; i++) {
+            pool.recycle(new TestRecyclable());
+        }
+        assertThat(pool.getObjectsInPool()).isEqualTo(4);
+        assertThat(pool.getGarbageCreated()).isEqualTo(1);
+    }
+}
@@ -36,6 +36,7 @@ import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.spill.SpillQueue;
 import com.dslplatform.json.DslJson;
 import com.dslplatform.json.JsonWriter;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -43,10 +44,12 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import org.junit.Rule;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
@@ -56,8 +59,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.InflaterInputStream;
@@ -70,6 +75,7 @@ import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 class IntakeV2ReportingEventHandlerTest {
 
@@ -170,6 +176,28 @@ class IntakeV2ReportingEventHandlerTest {
         assertThat(ndJsonNodes.get(4).get("foo").textValue()).isEqualTo("bar");
     }
 
+    @Test
+    void testReportSpanRecord() throws Exception {
+        OffHeapSpanRecords spanRecords = Objects.requireNonNull(OffHeapSpanRecords.create(1, 2048, mock(StacktraceConfiguration.class), apmServerClient,
+            MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", "platform"), null, Collections.emptyMap())));
+        ReportingEvent reportingEvent = spanRecords.newInstance();
+        Span span = new Span(MockTracer.create());
+        span.withName("off-heap");
+        DslJsonSerializer serializedSpan = Objects.requireNonNull(spanRecords.serialize(span));
+        assertThat(spanRecords.write(reportingEvent, serializedSpan)).isTrue();
+        spanRecords.release(serializedSpan);
+        // the span can be reused right away
+        span.resetState();
+
+        reportingEventHandler.onEvent(reportingEvent, -1, true);
+        reportingEventHandler.endRequest();
+
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(2);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("span").get("name").textValue()).isEqualTo("off-heap");
+    }
+
     @Test
     void testNoopWhenNotConnected() {
         reportTransaction(nonConnectedReportingEventHandler);
@@ -207,6 +235,85 @@ class IntakeV2ReportingEventHandlerTest {
         mockApmServer2.verify(postRequestedFor(urlEqualTo(APM_SERVER_PATH + INTAKE_V2_URL)));
     }
 
+    @Test
+    void testReportWithoutCompression() throws Exception {
+        final ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
+        final ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        when(reporterConfiguration.getApiRequestCompression()).thenReturn(ReporterConfiguration.ApiRequestCompression.NONE);
+        final IntakeV2ReportingEventHandler uncompressedReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", "platform"), null, Collections.emptyMap())
+            ),
+            apmServerClient);
+
+        reportTransaction(uncompressedReportingEventHandler);
+        uncompressedReportingEventHandler.endRequest();
+
+        final LoggedRequest request = mockApmServer1.findAll(postRequestedFor(urlEqualTo(INTAKE_V2_URL))).get(0);
+        assertThat(request.containsHeader("Content-Encoding")).isFalse();
+        final List<JsonNode> ndJsonNodes = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(request.getBody())))
+            .lines()
+            .map(IntakeV2ReportingEventHandlerTest::getReadTree)
+            .collect(Collectors.toList());
+        assertThat(ndJsonNodes).hasSize(2);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+        uncompressedReportingEventHandler.close();
+    }
+
+    @Test
+    void testSpillWhileBackingOff(@TempDir Path tempDir) throws Exception {
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(serviceUnavailable()));
+        final ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
+        final ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        final ApmServerClient apmServerClient = new ApmServerClient(reporterConfiguration);
+        apmServerClient.start(List.of(new URL(HTTP_LOCALHOST + mockApmServer1.port())));
+        final SpillQueue spillQueue = new SpillQueue(tempDir.toFile(), 1024 * 1024, 4096);
+        final IntakeV2ReportingEventHandler spillingReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", "platform"), null, Collections.emptyMap())
+            ),
+            apmServerClient,
+            spillQueue);
+
+        // the first error does not lead to a back off
+        reportTransaction(spillingReportingEventHandler);
+        spillingReportingEventHandler.endRequest();
+        // the second error leads to a back off of 1s
+        reportTransaction(spillingReportingEventHandler);
+        spillingReportingEventHandler.endRequest();
+        mockApmServer1.verify(2, postRequestedFor(urlEqualTo(INTAKE_V2_URL)));
+
+        reportTransaction(spillingReportingEventHandler);
+        reportTransaction(spillingReportingEventHandler);
+        sendFlushEvent(spillingReportingEventHandler);
+        mockApmServer1.verify(2, postRequestedFor(urlEqualTo(INTAKE_V2_URL)));
+        assertThat(spillQueue.getBatches()).isEqualTo(1);
+        assertThat(spillingReportingEventHandler.getDropped()).isEqualTo(2);
+
+        mockApmServer1.resetRequests();
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(ok()));
+        Thread.sleep(1200);
+        sendFlushEvent(spillingReportingEventHandler);
+
+        assertThat(spillQueue.isEmpty()).isTrue();
+        assertThat(spillingReportingEventHandler.getReported()).isEqualTo(2);
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(3);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+        assertThat(ndJsonNodes.get(2).get("transaction")).isNotNull();
+        spillingReportingEventHandler.close();
+    }
+
     @Test
     void testExponentialBackoff() {
         assertThat(IntakeV2ReportingEventHandler.getBackoffTimeSeconds(0)).isEqualTo(0);
@@ -256,6 +363,12 @@ class IntakeV2ReportingEventHandlerTest {
         reportingEventHandler.onEvent(reportingEvent, -1, true);
     }
 
+    private void sendFlushEvent(IntakeV2ReportingEventHandler reportingEventHandler) {
+        final ReportingEvent reportingEvent = new ReportingEvent();
+        reportingEvent.setFlushEvent();
+        reportingEventHandler.onEvent(reportingEvent, -1, true);
+    }
+
     private void sendShutdownEvent() {
         final ReportingEvent reportingEvent = new ReportingEvent();
         reportingEvent.shutdownEvent();
@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class OffHeapSpanRecordsTest {
+
+    private ApmServerClient apmServerClient;
+    private Future<MetaData> metaData;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        apmServerClient = mock(ApmServerClient.class);
+        metaData = mock(Future.class);
+    }
+
+    @Test
+    void testEachEventHasItsOwnRecord() {
+        OffHeapSpanRecords spanRecords = createSpanRecords(3, 64);
+        ReportingEvent first = spanRecords.newInstance();
+        ReportingEvent second = spanRecords.newInstance();
+        assertThat(first.getSpanRecord()).isNotNull();
+        assertThat(second.getSpanRecord()).isNotNull();
+        assertThat(first.getSpanRecord().capacity()).isEqualTo(64);
+        assertThat(first.getSpanRecord().isDirect()).isTrue();
+
+        first.getSpanRecord().put(0, (byte) 1);
+        assertThat(second.getSpanRecord().get(0)).isEqualTo((byte) 0);
+
+        // the queue size is rounded up to the next power of two
+        spanRecords.newInstance();
+        assertThat(spanRecords.newInstance().getSpanRecord()).isNotNull();
+        assertThat(spanRecords.newInstance().getSpanRecord()).isNull();
+    }
+
+    @Test
+    void testWriteSpan() {
+        OffHeapSpanRecords spanRecords = createSpanRecords(1, 2048);
+        ReportingEvent event = spanRecords.newInstance();
+        Span span = new Span(MockTracer.create());
+        span.withName("foo");
+
+        DslJsonSerializer serializedSpan = spanRecords.serialize(span);
+        assertThat(serializedSpan).isNotNull();
+        assertThat(spanRecords.write(event, serializedSpan)).isTrue();
+        spanRecords.release(serializedSpan);
+
+        assertThat(event.getType()).isEqualTo(ReportingEvent.ReportingEventType.SPAN_RECORD);
+        assertThat(event.getSpan()).isNull();
+        String json = readRecord(event);
+        assertThat(json).startsWith("{\"span\":{\"name\":\"foo\"");
+        assertThat(json).endsWith("}\n");
+
+        event.resetState();
+        assertThat(event.getSpanRecordLength()).isZero();
+        assertThat(event.getType()).isNull();
+    }
+
+    @Test
+    void testSpanLargerThanRecord() {
+        OffHeapSpanRecords spanRecords = createSpanRecords(1, 16);
+
+        assertThat(spanRecords.serialize(new Span(MockTracer.create()))).isNull();
+    }
+
+    @Test
+    void testSerializersArePooled() {
+        OffHeapSpanRecords spanRecords = createSpanRecords(1, 2048);
+        DslJsonSerializer serializer = spanRecords.serialize(new Span(MockTracer.create()).withName("foo"));
+        assertThat(serializer).isNotNull();
+        spanRecords.release(serializer);
+        assertThat(serializer.getJsonWriter().size()).isZero();
+
+        DslJsonSerializer reused = spanRecords.serialize(new Span(MockTracer.create()).withName("bar"));
+        assertThat(reused).isSameAs(serializer);
+        spanRecords.release(reused);
+    }
+
+    @Test
+    void testEventWithoutRecord() {
+        OffHeapSpanRecords spanRecords = createSpanRecords(1, 2048);
+        DslJsonSerializer serializedSpan = Objects.requireNonNull(spanRecords.serialize(new Span(MockTracer.create())));
+
+        assertThat(spanRecords.write(new ReportingEvent(), serializedSpan)).isFalse();
+        spanRecords.release(serializedSpan);
+    }
+
+    @Test
+    void testBufferTooLarge() {
+        assertThat(OffHeapSpanRecords.create(1 << 20, 1 << 20, mock(StacktraceConfiguration.class), apmServerClient, metaData)).isNull();
+    }
+
+    private OffHeapSpanRecords createSpanRecords(int maxQueueSize, int recordSize) {
+        return Objects.requireNonNull(OffHeapSpanRecords.create(maxQueueSize, recordSize, mock(StacktraceConfiguration.class), apmServerClient, metaData));
+    }
+
+    private static String readRecord(ReportingEvent event) {
+        ByteBuffer record = Objects.requireNonNull(event.getSpanRecord());
+        byte[] bytes = new byte[event.getSpanRecordLength()];
+        record.clear();
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -137,4 +137,23 @@ class ReporterFactoryTest {
             .describedAs("request should have produced a certificate validation error")
             .isFalse();
     }
+
+    @Test
+    void testShardedReporter() throws Exception {
+        when(reporterConfiguration.isVerifyServerCert()).thenReturn(false);
+        when(reporterConfiguration.getReportingThreads()).thenReturn(2);
+        ApmServerClient apmServerClient = new ApmServerClient(reporterConfiguration);
+        apmServerClient.start();
+        final Reporter reporter = reporterFactory.createReporter(configuration, apmServerClient, MetaData.create(configuration, null));
+        assertThat(reporter).isInstanceOf(ShardedApmServerReporter.class);
+        assertThat(((ShardedApmServerReporter) reporter).getShardCount()).isEqualTo(2);
+        reporter.start();
+
+        reporter.report(new Transaction(MockTracer.create()));
+        reporter.flush().get();
+
+        assertThat(requestHandled).isTrue();
+        assertThat(reporter.getReported()).isEqualTo(1);
+        reporter.close();
+    }
 }
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ShardedApmServerReporterTest {
+
+    private static final int SHARDS = 2;
+
+    private ShardedApmServerReporter reporter;
+    private List<ReportingEventHandler> reportingEventHandlers;
+
+    @BeforeEach
+    void setUp() {
+        final ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
+        ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        reportingEventHandlers = new ArrayList<>();
+        List<ApmServerReporter> shards = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            ReportingEventHandler reportingEventHandler = mock(ReportingEventHandler.class);
+            reportingEventHandlers.add(reportingEventHandler);
+            shards.add(new ApmServerReporter(true, reporterConfiguration, reportingEventHandler, 8, "server-reporter-" + i));
+        }
+        reporter = new ShardedApmServerReporter(shards);
+        reporter.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        reporter.close();
+    }
+
+    @Test
+    void testEventsAreShardedByReportingThread() throws Exception {
+        Thread reportingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reporter.report(new Transaction(MockTracer.create()));
+            }
+        });
+        // makes sure the reporting thread and the current thread use different shards
+        while (reportingThread.getId() % SHARDS == Thread.currentThread().getId() % SHARDS) {
+            reportingThread = new Thread(reportingThread);
+        }
+        reportingThread.start();
+        reportingThread.join();
+        reporter.flush().get(1, TimeUnit.SECONDS);
+
+        ReportingEventHandler otherShard = reportingEventHandlers.get((int) (reportingThread.getId() % SHARDS));
+        ReportingEventHandler currentShard = reportingEventHandlers.get((int) (Thread.currentThread().getId() % SHARDS));
+        verify(otherShard).onEvent(argThat(event -> event.getTransaction() != null), anyLong(), anyBoolean());
+        verify(currentShard, never()).onEvent(argThat(event -> event.getTransaction() != null), anyLong(), anyBoolean());
+    }
+
+    @Test
+    void testFlushAllShards() throws Exception {
+        reporter.flush().get(1, TimeUnit.SECONDS);
+
+        for (ReportingEventHandler reportingEventHandler : reportingEventHandlers) {
+            verify(reportingEventHandler).onEvent(argThat(event -> event.getType() == ReportingEvent.ReportingEventType.FLUSH), anyLong(), anyBoolean());
+        }
+    }
+
+    @Test
+    void testCountersAreAggregated() {
+        when(reportingEventHandlers.get(0).getReported()).thenReturn(3L);
+        when(reportingEventHandlers.get(1).getReported()).thenReturn(4L);
+        when(reportingEventHandlers.get(0).getDropped()).thenReturn(1L);
+        when(reportingEventHandlers.get(1).getDropped()).thenReturn(2L);
+
+        assertThat(reporter.getReported()).isEqualTo(7);
+        assertThat(reporter.getDropped()).isEqualTo(3);
+    }
+
+    @Test
+    void testMaxQueueSizePerShard() {
+        assertThat(ShardedApmServerReporter.getMaxQueueSizePerShard(512, 4)).isEqualTo(128);
+        assertThat(ShardedApmServerReporter.getMaxQueueSizePerShard(10, 4)).isEqualTo(3);
+        assertThat(ShardedApmServerReporter.getMaxQueueSizePerShard(0, 4)).isEqualTo(1);
+    }
+
+    @Test
+    void testSpillQueueMaxSizePerShard() {
+        // all shards combined must not exceed the configured disk space
+        assertThat(ShardedApmServerReporter.getSpillQueueMaxSizePerShard(64 * 1024 * 1024, 4)).isEqualTo(16 * 1024 * 1024);
+        assertThat(ShardedApmServerReporter.getSpillQueueMaxSizePerShard(10, 4)).isEqualTo(2);
+    }
+}
@@ -45,6 +45,7 @@ import co.elastic.apm.agent.impl.payload.SystemInfo;
 import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Composite;
 import co.elastic.apm.agent.impl.transaction.Id;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
@@ -436,6 +437,21 @@ class DslJsonSerializerTest {
         assertThat(db.get("statement").textValue()).isEqualTo("SELECT * FROM TABLE");
     }
 
+    @Test
+    void testSpanCompositeSerialization() {
+        Span span = new Span(MockTracer.create());
+        span.getComposite().init(1000, Composite.EXACT_MATCH);
+        span.getComposite().add(2000);
+
+        JsonNode composite = readJsonString(serializer.toJsonString(span)).get("composite");
+        assertThat(composite).isNotNull();
+        assertThat(composite.get("count").intValue()).isEqualTo(2);
+        assertThat(composite.get("sum").doubleValue()).isEqualTo(3.0);
+        assertThat(composite.get("compression_strategy").textValue()).isEqualTo("exact_match");
+
+        assertThat(readJsonString(serializer.toJsonString(new Span(MockTracer.create()))).get("composite")).isNull();
+    }
+
     @Test
     void testSpanChildIdSerialization() {
         Id id1 = Id.new64BitId();
@@ -561,6 +577,26 @@ class DslJsonSerializerTest {
 
     }
 
+    @Test
+    void testMetaDataNdJsonLineIsRenderedOnce() throws Exception {
+        ConfigurationRegistry configRegistry = SpyConfiguration.createSpyConfig();
+        serializer = new DslJsonSerializer(mock(StacktraceConfiguration.class), apmServerClient, MetaData.create(configRegistry, null));
+        serializer.blockUntilReady();
+        serializer.appendMetaDataNdJsonToStream();
+        String firstRequest = serializer.toString();
+        serializer.jw.reset();
+
+        serializer.blockUntilReady();
+        serializer.appendMetaDataNdJsonToStream();
+        assertThat(serializer.toString()).isEqualTo(firstRequest);
+
+        assertThat(firstRequest).endsWith("}\n");
+        serializer.jw.reset();
+        serializer.appendMetadataToStream();
+        assertThat(firstRequest).isEqualTo("{\"metadata\":" + serializer.toString() + "}\n");
+        assertThat(readJsonString(firstRequest).get("metadata").get("service")).isNotNull();
+    }
+
     @Test
     void testTransactionContextSerialization() {
 
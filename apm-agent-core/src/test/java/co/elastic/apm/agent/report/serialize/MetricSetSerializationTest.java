@@ -110,6 +110,27 @@ class MetricSetSerializationTest {
         assertThat(samples.get("foo.bar.count").get("value").doubleValue()).isEqualTo(1);
     }
 
+    @Test
+    void testSerializeHistograms() throws Exception {
+        final Labels.Mutable labels = Labels.Mutable.of("foo.bar", "baz");
+        registry.updateHistogram("foo.bar", labels, 1100);
+        registry.updateHistogram("foo.bar", labels, 1100);
+        registry.updateHistogram("foo.bar", labels, 2500);
+
+        JsonNode histogram = reportAsJson().get("metricset").get("samples").get("foo.bar");
+        assertThat(histogram.get("type").textValue()).isEqualTo("histogram");
+        assertThat(histogram.get("values")).hasSize(2);
+        assertThat(histogram.get("values").get(0).doubleValue()).isEqualTo(1088);
+        assertThat(histogram.get("values").get(1).doubleValue()).isEqualTo(2432);
+        assertThat(histogram.get("counts").get(0).longValue()).isEqualTo(2);
+        assertThat(histogram.get("counts").get(1).longValue()).isEqualTo(1);
+
+        registry.updateHistogram("foo.bar", labels, 1100);
+        histogram = reportAsJson().get("metricset").get("samples").get("foo.bar");
+        assertThat(histogram.get("counts")).hasSize(1);
+        assertThat(histogram.get("counts").get(0).longValue()).isEqualTo(1);
+    }
+
     @Test
     void testSerializeEmptyMetricSet() throws Exception {
         final Labels.Mutable labels = Labels.Mutable.of("foo.bar", "baz");
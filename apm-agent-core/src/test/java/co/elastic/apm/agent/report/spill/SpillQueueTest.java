@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.spill;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpillQueueTest {
+
+    private static final int HEADER_SIZE = 16;
+
+    @TempDir
+    Path tempDir;
+    private SpillQueue spillQueue;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        spillQueue = new SpillQueue(tempDir.toFile(), 1024, 64);
+    }
+
+    @AfterEach
+    void tearDown() {
+        spillQueue.close();
+    }
+
+    @Test
+    void testBatchesAreReturnedInOrder() throws Exception {
+        assertThat(spillQueue.peek()).isNull();
+        assertThat(offer("foo", 1, 2, 3)).isTrue();
+        assertThat(offer("bar", 4, 5, 6)).isTrue();
+        assertThat(spillQueue.getBatches()).isEqualTo(2);
+
+        SpillQueue.Batch batch = spillQueue.peek();
+        assertThat(batch).isNotNull();
+        assertThat(getPayload(batch)).isEqualTo("foo");
+        assertThat(batch.getTransactions()).isEqualTo(1);
+        assertThat(batch.getSpans()).isEqualTo(2);
+        assertThat(batch.getErrors()).isEqualTo(3);
+        assertThat(batch.getEventCount()).isEqualTo(6);
+        // peeking again does not advance the queue
+        assertThat(getPayload(spillQueue.peek())).isEqualTo("foo");
+
+        spillQueue.remove();
+        assertThat(getPayload(spillQueue.peek())).isEqualTo("bar");
+        spillQueue.remove();
+        assertThat(spillQueue.peek()).isNull();
+        assertThat(spillQueue.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testSegmentsAreDeletedWhenConsumed() throws Exception {
+        char[] chars = new char[64 - HEADER_SIZE];
+        Arrays.fill(chars, 'x');
+        String segmentSizedPayload = new String(chars);
+        assertThat(offer(segmentSizedPayload, 1, 0, 0)).isTrue();
+        assertThat(offer(segmentSizedPayload, 1, 0, 0)).isTrue();
+        assertThat(offer("foo", 1, 0, 0)).isTrue();
+        assertThat(getSegmentFiles()).hasSize(3);
+        assertThat(spillQueue.getSize()).isEqualTo(64 + 64 + HEADER_SIZE + 3);
+
+        spillQueue.remove();
+        assertThat(getSegmentFiles()).hasSize(2);
+        assertThat(spillQueue.getSize()).isEqualTo(64 + HEADER_SIZE + 3);
+
+        spillQueue.remove();
+        spillQueue.remove();
+        assertThat(getSegmentFiles()).isEmpty();
+        assertThat(spillQueue.getSize()).isZero();
+
+        assertThat(offer("bar", 1, 0, 0)).isTrue();
+        assertThat(getPayload(spillQueue.peek())).isEqualTo("bar");
+    }
+
+    @Test
+    void testDropWhenFull() throws Exception {
+        char[] chars = new char[1024 - HEADER_SIZE];
+        Arrays.fill(chars, 'x');
+        assertThat(offer(new String(chars), 1, 0, 0)).isTrue();
+        assertThat(offer("foo", 1, 2, 3)).isFalse();
+        assertThat(spillQueue.getDroppedTransactions()).isEqualTo(1);
+        assertThat(spillQueue.getDroppedSpans()).isEqualTo(2);
+        assertThat(spillQueue.getDroppedErrors()).isEqualTo(3);
+
+        spillQueue.drop();
+        assertThat(spillQueue.isEmpty()).isTrue();
+        assertThat(spillQueue.getDroppedTransactions()).isEqualTo(2);
+        assertThat(offer("foo", 1, 2, 3)).isTrue();
+    }
+
+    @Test
+    void testCloseDeletesDirectory() throws Exception {
+        offer("foo", 1, 0, 0);
+        File directory = spillQueue.getDirectory();
+        assertThat(directory).exists();
+
+        spillQueue.close();
+
+        assertThat(directory).doesNotExist();
+        assertThat(spillQueue.isEmpty()).isTrue();
+    }
+
+    private boolean offer(String payload, int transactions, int spans, int errors) {
+        byte[] bytes = ("_" + payload).getBytes(StandardCharsets.UTF_8);
+        return spillQueue.offer(bytes, 1, bytes.length - 1, transactions, spans, errors);
+    }
+
+    private static String getPayload(SpillQueue.Batch batch) {
+        return new String(batch.getPayload(), 0, batch.getLength(), StandardCharsets.UTF_8);
+    }
+
+    private File[] getSegmentFiles() {
+        return spillQueue.getDirectory().listFiles();
+    }
+}
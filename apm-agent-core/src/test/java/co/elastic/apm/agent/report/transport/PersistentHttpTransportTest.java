@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.transport;
+
+import co.elastic.apm.agent.report.HttpUtils;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PersistentHttpTransportTest {
+
+    private WireMockServer server;
+    private PersistentHttpTransport transport;
+
+    @BeforeEach
+    void setUp() {
+        server = new WireMockServer(WireMockConfiguration.wireMockConfig().dynamicPort());
+        server.start();
+        server.stubFor(get(urlEqualTo("/")).willReturn(aResponse().withStatus(200).withBody("{\"version\":\"7.13.0\"}")));
+        server.stubFor(post(urlEqualTo("/intake")).willReturn(aResponse().withStatus(202)));
+        server.stubFor(post(urlEqualTo("/unavailable")).willReturn(serviceUnavailable().withBody("queue is full")));
+        server.stubFor(get(urlEqualTo("/close")).willReturn(aResponse().withStatus(200).withHeader("Connection", "close").withBody("bye")));
+        transport = new PersistentHttpTransport(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        transport.close();
+        server.stop();
+    }
+
+    @Test
+    void testConnectionIsReusedForSubsequentRequests() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            HttpURLConnection connection = transport.openConnection(url("/"));
+            assertThat(connection.getResponseCode()).isEqualTo(200);
+            assertThat(HttpUtils.readToString(connection.getInputStream())).isEqualTo("{\"version\":\"7.13.0\"}");
+            HttpUtils.consumeAndClose(connection);
+        }
+        assertThat(transport.getConnectionsOpened()).isEqualTo(1);
+        assertThat(transport.getIdleConnectionCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testChunkedRequestBody() throws Exception {
+        String body = "{\"metadata\":{}}\n{\"transaction\":{}}\n{\"span\":{}}\n";
+        for (int i = 0; i < 2; i++) {
+            HttpURLConnection connection = transport.openConnection(url("/intake"));
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            // forces the body to be split into multiple chunks
+            connection.setChunkedStreamingMode(8);
+            connection.setRequestProperty("Content-Type", "application/x-ndjson");
+            connection.connect();
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            assertThat(connection.getResponseCode()).isEqualTo(202);
+            HttpUtils.consumeAndClose(connection);
+        }
+
+        server.verify(2, postRequestedFor(urlEqualTo("/intake"))
+            .withHeader("Content-Type", equalTo("application/x-ndjson"))
+            .withHeader("Transfer-Encoding", equalTo("chunked"))
+            .withRequestBody(equalTo(body)));
+        assertThat(transport.getConnectionsOpened()).isEqualTo(1);
+    }
+
+    @Test
+    void testErrorResponse() throws Exception {
+        HttpURLConnection connection = transport.openConnection(url("/unavailable"));
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().close();
+
+        assertThatThrownBy(connection::getInputStream).isInstanceOf(IOException.class);
+        assertThat(connection.getResponseCode()).isEqualTo(503);
+        assertThat(HttpUtils.readToString(connection.getErrorStream())).isEqualTo("queue is full");
+        HttpUtils.consumeAndClose(connection);
+
+        // error responses don't prevent the connection from being reused
+        HttpURLConnection next = transport.openConnection(url("/"));
+        assertThat(next.getResponseCode()).isEqualTo(200);
+        HttpUtils.consumeAndClose(next);
+        assertThat(transport.getConnectionsOpened()).isEqualTo(1);
+    }
+
+    @Test
+    void testConnectionClosedByServerIsNotReused() throws Exception {
+        HttpURLConnection connection = transport.openConnection(url("/close"));
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        assertThat(connection.getHeaderField("connection")).isEqualTo("close");
+        HttpUtils.consumeAndClose(connection);
+        assertThat(transport.getIdleConnectionCount()).isZero();
+
+        HttpURLConnection next = transport.openConnection(url("/"));
+        assertThat(next.getResponseCode()).isEqualTo(200);
+        HttpUtils.consumeAndClose(next);
+        assertThat(transport.getConnectionsOpened()).isEqualTo(2);
+    }
+
+    @Test
+    void testIdleConnectionClosedByServerIsDetected() throws Exception {
+        HttpURLConnection connection = transport.openConnection(url("/"));
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        HttpUtils.consumeAndClose(connection);
+        assertThat(transport.getIdleConnectionCount()).isEqualTo(1);
+
+        server.stop();
+        server.start();
+
+        HttpURLConnection next = transport.openConnection(url("/"));
+        assertThat(next.getResponseCode()).isEqualTo(200);
+        HttpUtils.consumeAndClose(next);
+        assertThat(transport.getConnectionsOpened()).isEqualTo(2);
+    }
+
+    @Test
+    void testCloseReleasesIdleConnections() throws Exception {
+        HttpURLConnection connection = transport.openConnection(url("/"));
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        HttpUtils.consumeAndClose(connection);
+        assertThat(transport.getIdleConnectionCount()).isEqualTo(1);
+
+        transport.close();
+
+        assertThat(transport.getIdleConnectionCount()).isZero();
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http", "localhost", server.port(), path);
+    }
+}
@@ -64,6 +64,25 @@ class HexUtilsTest {
         assertThat(bytes).isEqualTo(new byte[]{10});
     }
 
+    @Test
+    void testTryDecode() {
+        byte[] bytes = new byte[10];
+        assertThat(HexUtils.tryDecode("-09c2572177FDAE24ff0a", 1, bytes, 0, 10)).isTrue();
+        assertThat(HexUtils.bytesToHex(bytes)).isEqualTo("09c2572177fdae24ff0a");
+    }
+
+    @Test
+    void testTryDecodeInvalid() {
+        byte[] bytes = new byte[10];
+        assertThat(HexUtils.tryDecode("09c2572177fdae24ff0", 0, bytes, 0, 10)).isFalse();
+        assertThat(HexUtils.tryDecode("09c2572177fdae2g", 0, bytes, 0, 8)).isFalse();
+        assertThat(HexUtils.tryDecode("09c2572177fdae24ff0$", 0, bytes, 0, 10)).isFalse();
+        // a non-ASCII char whose lower 7 bits are a valid hex digit
+        assertThat(HexUtils.tryDecode("09c2572177fdae2\u01b0", 0, bytes, 0, 8)).isFalse();
+        assertThat(HexUtils.tryGetNextByte("0\u0130", 0)).isEqualTo(-1);
+        assertThat(HexUtils.tryGetNextByte("fF", 0)).isEqualTo(0xff);
+    }
+
     @Test
     void testLongToHex() {
         byte[] bytes = new byte[8];
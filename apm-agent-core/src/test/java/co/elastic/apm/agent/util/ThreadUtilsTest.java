@@ -38,4 +38,9 @@ class ThreadUtilsTest {
         String prefixedThreadName = ThreadUtils.addElasticApmThreadPrefix(purpose);
         assertThat(prefixedThreadName).isEqualTo("elastic-apm-"+purpose);
     }
+
+    @Test
+    public void testPlatformThreadIsNotVirtual() {
+        assertThat(ThreadUtils.isVirtual(Thread.currentThread())).isFalse();
+    }
 }
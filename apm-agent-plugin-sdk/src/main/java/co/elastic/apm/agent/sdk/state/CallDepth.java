@@ -26,17 +26,27 @@ package co.elastic.apm.agent.sdk.state;
 
 import net.bytebuddy.asm.Advice;
 
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  * A utility that makes it easy to detect nested method calls.
+ * <p>
+ * Each instance is assigned a fixed index when it's registered.
+ * The call depths of all instances are stored in a single {@code int[]} per thread, indexed by that index.
+ * This avoids a thread local lookup per instance and boxing the counters.
+ * </p>
  */
 public class CallDepth {
+    private static final int INITIAL_CAPACITY = 16;
     private static final ConcurrentMap<String, CallDepth> registry = new ConcurrentHashMap<>();
-    private final ThreadLocal<Integer> callDepthPerThread = new ThreadLocal<Integer>();
+    private static final ThreadLocal<int[]> callDepthsPerThread = new ThreadLocal<int[]>();
+    private static int nextIndex = 0;
+    private final int index;
 
-    private CallDepth() {
+    private CallDepth(int index) {
+        this.index = index;
     }
 
     /**
@@ -48,11 +58,23 @@ public class CallDepth {
      */
     public static CallDepth get(Class<?> adviceClass) {
         // we want to return the same CallDepth instance even if the advice class has been loaded from different class loaders
-        String key = adviceClass.getName();
+        return get(adviceClass.getName());
+    }
+
+    static CallDepth get(String key) {
         CallDepth callDepth = registry.get(key);
         if (callDepth == null) {
-            registry.putIfAbsent(key, new CallDepth());
-            callDepth = registry.get(key);
+            callDepth = register(key);
+        }
+        return callDepth;
+    }
+
+    private static synchronized CallDepth register(String key) {
+        CallDepth callDepth = registry.get(key);
+        if (callDepth == null) {
+            // indices are never reused so that a new instance doesn't see the stale call depths of a cleared one
+            callDepth = new CallDepth(nextIndex++);
+            registry.put(key, callDepth);
         }
         return callDepth;
     }
@@ -68,9 +90,8 @@ public class CallDepth {
      * @return the call depth before it has been incremented
      */
     public int increment() {
-        int depth = get();
-        set(depth + 1);
-        return depth;
+        int[] callDepths = getCallDepthsForCurrentThread();
+        return callDepths[index]++;
     }
 
     /**
@@ -94,8 +115,8 @@ public class CallDepth {
      * @return the call depth after it has been incremented
      */
     public int decrement() {
-        int depth = get() - 1;
-        set(depth);
+        int[] callDepths = getCallDepthsForCurrentThread();
+        int depth = --callDepths[index];
         assert depth >= 0;
         return depth;
     }
@@ -114,16 +135,15 @@ public class CallDepth {
         return decrement() != 0;
     }
 
-    private int get() {
-        Integer callDepthForCurrentThread = callDepthPerThread.get();
-        if (callDepthForCurrentThread == null) {
-            callDepthForCurrentThread = 0;
-            callDepthPerThread.set(callDepthForCurrentThread);
+    private int[] getCallDepthsForCurrentThread() {
+        int[] callDepths = callDepthsPerThread.get();
+        if (callDepths == null) {
+            callDepths = new int[Math.max(INITIAL_CAPACITY, index + 1)];
+            callDepthsPerThread.set(callDepths);
+        } else if (index >= callDepths.length) {
+            callDepths = Arrays.copyOf(callDepths, Math.max(callDepths.length * 2, index + 1));
+            callDepthsPerThread.set(callDepths);
         }
-        return callDepthForCurrentThread;
-    }
-
-    private void set(int depth) {
-        callDepthPerThread.set(depth);
+        return callDepths;
     }
 }
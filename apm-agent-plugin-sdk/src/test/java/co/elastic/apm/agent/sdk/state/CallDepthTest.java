@@ -28,6 +28,10 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
@@ -53,6 +57,34 @@ class CallDepthTest {
         assertThat(callDepth.isNestedCallAndDecrement()).isFalse();
     }
 
+    @Test
+    void testCallDepthsAreIndependent() {
+        List<CallDepth> callDepths = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            callDepths.add(CallDepth.get("advice" + i));
+        }
+        for (int i = 0; i < callDepths.size(); i++) {
+            for (int j = 0; j <= i; j++) {
+                callDepths.get(i).increment();
+            }
+        }
+        for (int i = 0; i < callDepths.size(); i++) {
+            assertThat(callDepths.get(i).decrement()).isEqualTo(i);
+        }
+        assertThat(callDepth.isNestedCallAndIncrement()).isFalse();
+    }
+
+    @Test
+    void testCallDepthIsPerThread() throws Exception {
+        assertThat(callDepth.isNestedCallAndIncrement()).isFalse();
+        AtomicBoolean nestedInOtherThread = new AtomicBoolean(true);
+        Thread thread = new Thread(() -> nestedInOtherThread.set(callDepth.isNestedCallAndIncrement()));
+        thread.start();
+        thread.join();
+        assertThat(nestedInOtherThread).isFalse();
+        assertThat(callDepth.isNestedCallAndDecrement()).isFalse();
+    }
+
     @Test
     void testNegativeCount() {
         assertThatThrownBy(() -> callDepth.decrement()).isInstanceOf(AssertionError.class);
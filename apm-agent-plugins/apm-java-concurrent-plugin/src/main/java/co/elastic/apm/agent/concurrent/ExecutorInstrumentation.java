@@ -74,6 +74,19 @@ public abstract class ExecutorInstrumentation extends TracerAwareInstrumentation
         excludedClasses.add("org.apache.tomcat.util.threads.ThreadPoolExecutor");
     }
 
+    /**
+     * Executors that start a new thread for each task, such as the one returned by
+     * {@code Executors.newVirtualThreadPerTaskExecutor()}.
+     * Workloads using these typically submit a large number of short-lived tasks.
+     * Instead of instrumenting the class of each task and keeping track of the context in a weak map,
+     * the tasks submitted to these executors are always wrapped in a context-carrying wrapper.
+     */
+    static final Set<String> threadPerTaskExecutors = GlobalVariables.get(ExecutorInstrumentation.class, "threadPerTaskExecutors", new HashSet<String>());
+
+    static {
+        threadPerTaskExecutors.add("java.util.concurrent.ThreadPerTaskExecutor");
+    }
+
 
     @Override
     public ElementMatcher<? super NamedElement> getTypeMatcherPreFilter() {
@@ -108,6 +121,10 @@ public abstract class ExecutorInstrumentation extends TracerAwareInstrumentation
         return excludedClasses.contains(executor.getClass().getName());
     }
 
+    private static boolean isThreadPerTask(@Advice.This Executor executor) {
+        return threadPerTaskExecutors.contains(executor.getClass().getName());
+    }
+
     public static class ExecutorRunnableInstrumentation extends ExecutorInstrumentation {
 
         @Nullable
@@ -118,7 +135,7 @@ public abstract class ExecutorInstrumentation extends TracerAwareInstrumentation
             if (ExecutorInstrumentation.isExcluded(thiz)) {
                 return runnable;
             }
-            return JavaConcurrent.withContext(runnable, tracer);
+            return JavaConcurrent.withContext(runnable, tracer, ExecutorInstrumentation.isThreadPerTask(thiz));
         }
 
         @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
@@ -154,7 +171,7 @@ public abstract class ExecutorInstrumentation extends TracerAwareInstrumentation
             if (ExecutorInstrumentation.isExcluded(thiz)) {
                 return callable;
             }
-            return JavaConcurrent.withContext(callable, tracer);
+            return JavaConcurrent.withContext(callable, tracer, ExecutorInstrumentation.isThreadPerTask(thiz));
         }
 
         @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
@@ -202,7 +219,7 @@ public abstract class ExecutorInstrumentation extends TracerAwareInstrumentation
             if (ExecutorInstrumentation.isExcluded(thiz)) {
                 return callables;
             }
-            return JavaConcurrent.withContext(callables, tracer);
+            return JavaConcurrent.withContext(callables, tracer, ExecutorInstrumentation.isThreadPerTask(thiz));
         }
 
         @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
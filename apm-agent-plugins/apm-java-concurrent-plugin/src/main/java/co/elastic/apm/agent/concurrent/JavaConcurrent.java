@@ -52,13 +52,17 @@ public class JavaConcurrent {
 
     static {
         EXCLUDED_EXECUTABLE_TYPES = new HashSet<String>();
-        EXCLUDED_EXECUTABLE_TYPES.add(RunnableLambdaWrapper.class.getName());
-        EXCLUDED_EXECUTABLE_TYPES.add(CallableLambdaWrapper.class.getName());
+        EXCLUDED_EXECUTABLE_TYPES.add(RunnableContextWrapper.class.getName());
+        EXCLUDED_EXECUTABLE_TYPES.add(CallableContextWrapper.class.getName());
         // Spring-JMS polling mechanism that translates to passive onMessage handling
         EXCLUDED_EXECUTABLE_TYPES.add("org.springframework.jms.listener.DefaultMessageListenerContainer$AsyncMessageListenerInvoker");
     }
 
     private static void removeContext(Object o) {
+        if (o instanceof ContextWrapper) {
+            ((ContextWrapper) o).discardContext();
+            return;
+        }
         AbstractSpan<?> context = contextMap.remove(o);
         if (context != null) {
             context.decrementReferences();
@@ -79,6 +83,11 @@ public class JavaConcurrent {
         if (context == null) {
             return null;
         }
+        return activateCapturedContext(context, tracer);
+    }
+
+    @Nullable
+    private static AbstractSpan<?> activateCapturedContext(AbstractSpan<?> context, Tracer tracer) {
         if (tracer.getActive() != context) {
             context.activate();
             context.decrementReferences();
@@ -94,6 +103,20 @@ public class JavaConcurrent {
      */
     @Nullable
     public static Runnable withContext(@Nullable Runnable runnable, Tracer tracer) {
+        return withContext(runnable, tracer, false);
+    }
+
+    /**
+     * Instruments or wraps the provided runnable and makes this {@link AbstractSpan} active in the {@link Runnable#run()} method.
+     *
+     * @param runnable      the task to propagate the context to
+     * @param tracer        the tracer
+     * @param alwaysWrap    whether to always wrap the task in a context-carrying wrapper instead of instrumenting its class,
+     *                      which is cheaper for executors that start a new (virtual) thread per task,
+     *                      see {@link ExecutorInstrumentation#threadPerTaskExecutors}
+     */
+    @Nullable
+    public static Runnable withContext(@Nullable Runnable runnable, Tracer tracer, boolean alwaysWrap) {
         if (shouldAvoidContextPropagation(runnable)) {
             return runnable;
         }
@@ -102,8 +125,8 @@ public class JavaConcurrent {
         if (active == null) {
             return runnable;
         }
-        if (isLambda(runnable)) {
-            runnable = new RunnableLambdaWrapper(runnable);
+        if (alwaysWrap || isLambda(runnable)) {
+            return new RunnableContextWrapper(runnable, retainContext(active), tracer);
         }
         captureContext(runnable, active);
         return runnable;
@@ -111,10 +134,14 @@ public class JavaConcurrent {
 
     private static void captureContext(Object task, AbstractSpan<?> active) {
         DynamicTransformer.Accessor.get().ensureInstrumented(task.getClass(), RUNNABLE_CALLABLE_FJTASK_INSTRUMENTATION);
-        contextMap.put(task, active);
+        contextMap.put(task, retainContext(active));
+    }
+
+    private static AbstractSpan<?> retainContext(AbstractSpan<?> active) {
         active.incrementReferences();
         // Do no discard branches leading to async operations so not to break span references
         active.setNonDiscardable();
+        return active;
     }
 
     /**
@@ -122,6 +149,19 @@ public class JavaConcurrent {
      */
     @Nullable
     public static <T> Callable<T> withContext(@Nullable Callable<T> callable, Tracer tracer) {
+        return withContext(callable, tracer, false);
+    }
+
+    /**
+     * Instruments or wraps the provided callable and makes this {@link AbstractSpan} active in the {@link Callable#call()} method.
+     *
+     * @param callable      the task to propagate the context to
+     * @param tracer        the tracer
+     * @param alwaysWrap    whether to always wrap the task in a context-carrying wrapper instead of instrumenting its class,
+     *                      see {@link #withContext(Runnable, Tracer, boolean)}
+     */
+    @Nullable
+    public static <T> Callable<T> withContext(@Nullable Callable<T> callable, Tracer tracer, boolean alwaysWrap) {
         if (shouldAvoidContextPropagation(callable)) {
             return callable;
         }
@@ -130,8 +170,8 @@ public class JavaConcurrent {
         if (active == null) {
             return callable;
         }
-        if (isLambda(callable)) {
-            callable = new CallableLambdaWrapper<>(callable);
+        if (alwaysWrap || isLambda(callable)) {
+            return new CallableContextWrapper<>(callable, retainContext(active), tracer);
         }
         captureContext(callable, active);
         return callable;
@@ -173,6 +213,11 @@ public class JavaConcurrent {
 
     @Nullable
     public static <T> Collection<? extends Callable<T>> withContext(@Nullable Collection<? extends Callable<T>> callables, Tracer tracer) {
+        return withContext(callables, tracer, false);
+    }
+
+    @Nullable
+    public static <T> Collection<? extends Callable<T>> withContext(@Nullable Collection<? extends Callable<T>> callables, Tracer tracer, boolean alwaysWrap) {
         if (callables == null) {
             return null;
         }
@@ -180,7 +225,7 @@ public class JavaConcurrent {
             return callables;
         }
         final Collection<Callable<T>> wrapped;
-        if (needsWrapping(callables)) {
+        if (alwaysWrap || needsWrapping(callables)) {
             wrapped = new ArrayList<>(callables.size());
         } else {
             wrapped = null;
@@ -189,7 +234,7 @@ public class JavaConcurrent {
         for (Callable<T> callable : callables) {
             // restore previous state as withContext always sets to false
             needsContext.set(context);
-            final Callable<T> potentiallyWrappedCallable = withContext(callable, tracer);
+            final Callable<T> potentiallyWrappedCallable = withContext(callable, tracer, alwaysWrap);
             if (wrapped != null) {
                 wrapped.add(potentiallyWrappedCallable);
             }
@@ -215,30 +260,86 @@ public class JavaConcurrent {
         needsContext.set(Boolean.TRUE);
     }
 
-    public static class RunnableLambdaWrapper implements Runnable {
+    /**
+     * Carries the context of a task in the task wrapper itself,
+     * which avoids a {@link #contextMap} entry and instrumenting the class of the task.
+     * <p>
+     * The context is activated at most once, as a wrapper is executed at most once.
+     * </p>
+     */
+    abstract static class ContextWrapper {
+
+        @Nullable
+        private AbstractSpan<?> context;
+        private final Tracer tracer;
+
+        ContextWrapper(AbstractSpan<?> context, Tracer tracer) {
+            this.context = context;
+            this.tracer = tracer;
+        }
+
+        @Nullable
+        AbstractSpan<?> restoreContext() {
+            // When an Executor executes directly on the current thread we need to enable this thread for context propagation again
+            needsContext.set(Boolean.TRUE);
+            AbstractSpan<?> context = this.context;
+            if (context == null) {
+                return null;
+            }
+            this.context = null;
+            return activateCapturedContext(context, tracer);
+        }
+
+        void discardContext() {
+            AbstractSpan<?> context = this.context;
+            if (context != null) {
+                this.context = null;
+                context.decrementReferences();
+            }
+        }
+    }
+
+    public static class RunnableContextWrapper extends ContextWrapper implements Runnable {
 
         private final Runnable delegate;
 
-        public RunnableLambdaWrapper(Runnable delegate) {
+        RunnableContextWrapper(Runnable delegate, AbstractSpan<?> context, Tracer tracer) {
+            super(context, tracer);
             this.delegate = delegate;
         }
 
         @Override
         public void run() {
-            delegate.run();
+            AbstractSpan<?> context = restoreContext();
+            try {
+                delegate.run();
+            } finally {
+                if (context != null) {
+                    context.deactivate();
+                }
+            }
         }
     }
 
-    public static class CallableLambdaWrapper<V> implements Callable<V> {
+    public static class CallableContextWrapper<V> extends ContextWrapper implements Callable<V> {
+
         private final Callable<V> delegate;
 
-        public CallableLambdaWrapper(Callable<V> delegate) {
+        CallableContextWrapper(Callable<V> delegate, AbstractSpan<?> context, Tracer tracer) {
+            super(context, tracer);
             this.delegate = delegate;
         }
 
         @Override
         public V call() throws Exception {
-            return delegate.call();
+            AbstractSpan<?> context = restoreContext();
+            try {
+                return delegate.call();
+            } finally {
+                if (context != null) {
+                    context.deactivate();
+                }
+            }
         }
     }
 }
@@ -93,7 +93,7 @@ public class ExecutorServiceDoubleWrappingTest extends AbstractInstrumentationTe
         int numWrappers = 0;
         StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
         for (StackTraceElement stackTraceElement : stackTrace) {
-            if (stackTraceElement.getClassName().endsWith("LambdaWrapper")) {
+            if (stackTraceElement.getClassName().endsWith("ContextWrapper")) {
                 numWrappers++;
             }
         }
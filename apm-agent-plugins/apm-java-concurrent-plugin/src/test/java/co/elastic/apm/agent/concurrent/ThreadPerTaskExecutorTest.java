@@ -0,0 +1,176 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.concurrent;
+
+import co.elastic.apm.agent.AbstractInstrumentationTest;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ThreadPerTaskExecutorTest extends AbstractInstrumentationTest {
+
+    private ThreadPerTaskExecutor executor;
+    private Transaction transaction;
+    private int initialReferences;
+
+    @Before
+    public void setUp() {
+        executor = new ThreadPerTaskExecutor();
+        ExecutorInstrumentation.threadPerTaskExecutors.add(ThreadPerTaskExecutor.class.getName());
+        transaction = startTestRootTransaction();
+        initialReferences = transaction.getReferenceCount();
+    }
+
+    @After
+    public void tearDown() {
+        assertThat(transaction.getReferenceCount()).isEqualTo(initialReferences);
+        transaction.deactivate().end();
+        ExecutorInstrumentation.threadPerTaskExecutors.remove(ThreadPerTaskExecutor.class.getName());
+    }
+
+    @Test
+    public void testExecuteWrapsTaskThatIsNotALambda() throws Exception {
+        final AtomicReference<AbstractSpan<?>> active = new AtomicReference<>();
+        final AtomicReference<Boolean> wrapped = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                active.set(tracer.getActive());
+                wrapped.set(isWrapped());
+                latch.countDown();
+            }
+        });
+        assertThat(latch.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(active.get()).isSameAs(transaction);
+        assertThat(wrapped.get()).isTrue();
+        executor.lastThread.join();
+    }
+
+    @Test
+    public void testSubmitCallable() throws Exception {
+        Future<AbstractSpan<?>> future = executor.submit(new Callable<AbstractSpan<?>>() {
+            @Override
+            public AbstractSpan<?> call() {
+                assertThat(isWrapped()).isTrue();
+                return tracer.getActive();
+            }
+        });
+        assertThat(future.get()).isSameAs(transaction);
+    }
+
+    @Test
+    public void testInvokeAll() throws Exception {
+        Callable<AbstractSpan<?>> callable = new Callable<AbstractSpan<?>>() {
+            @Override
+            public AbstractSpan<?> call() {
+                return tracer.getActive();
+            }
+        };
+        List<Future<AbstractSpan<?>>> futures = executor.invokeAll(Arrays.asList(callable, callable));
+        assertThat(futures).hasSize(2);
+        for (Future<AbstractSpan<?>> future : futures) {
+            assertThat(future.get()).isSameAs(transaction);
+        }
+    }
+
+    @Test
+    public void testRejectedTaskReleasesContext() {
+        executor.shutdown();
+        assertThatThrownBy(() -> executor.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        })).isInstanceOf(RejectedExecutionException.class);
+    }
+
+    private static boolean isWrapped() {
+        for (StackTraceElement stackTraceElement : Thread.currentThread().getStackTrace()) {
+            if (stackTraceElement.getClassName().endsWith("ContextWrapper")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mimics {@code java.util.concurrent.ThreadPerTaskExecutor} which is only available as of Java 21.
+     */
+    private static class ThreadPerTaskExecutor extends AbstractExecutorService {
+
+        private volatile boolean shutdown;
+        private volatile Thread lastThread;
+
+        @Override
+        public void execute(Runnable command) {
+            if (shutdown) {
+                throw new RejectedExecutionException();
+            }
+            lastThread = new Thread(command);
+            lastThread.start();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return null;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
@@ -27,6 +27,7 @@ package co.elastic.apm.agent.jdbc;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.jdbc.helper.JdbcHelper;
+import co.elastic.apm.agent.jdbc.helper.StatementBatch;
 import net.bytebuddy.asm.Advice;
 import net.bytebuddy.description.NamedElement;
 import net.bytebuddy.description.method.MethodDescription;
@@ -186,11 +187,28 @@ public abstract class StatementInstrumentation extends JdbcInstrumentation {
 
         @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
         public static void storeSql(@Advice.This Statement statement, @Advice.Argument(0) String sql) {
-            JdbcHelper.get().mapStatementToSql(statement, sql);
+            JdbcHelper.get().addStatementToBatch(statement, sql);
         }
     }
 
-    // FIXME : what about .clearBatch() method ?
+    /**
+     * Instruments {@link Statement#clearBatch()}
+     */
+    public static class ClearBatchInstrumentation extends StatementInstrumentation {
+
+        public ClearBatchInstrumentation(ElasticApmTracer tracer) {
+            super(
+                named("clearBatch")
+                    .and(takesArguments(0))
+                    .and(isPublic())
+            );
+        }
+
+        @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
+        public static void clearBatch(@Advice.This Statement statement) {
+            JdbcHelper.get().removeBatch(statement);
+        }
+    }
 
     /**
      * Instruments:
@@ -214,9 +232,13 @@ public abstract class StatementInstrumentation extends JdbcInstrumentation {
         @SuppressWarnings("DuplicatedCode")
         public static Object onBeforeExecute(@Advice.This Statement statement) {
             JdbcHelper helper = JdbcHelper.get();
+            StatementBatch batch = helper.removeBatch(statement);
+            if (batch != null) {
+                return helper.createJdbcBatchSpan(batch, statement, tracer.getActive());
+            }
+            // batches of prepared statements
             String sql = helper.retrieveSqlForStatement(statement);
             return helper.createJdbcSpan(sql, statement, tracer.getActive(), true);
-
         }
 
         @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
@@ -34,6 +34,7 @@ import java.sql.Connection;
 public class JdbcGlobalState {
 
     public static final WeakConcurrentMap<Object, String> statementSqlMap = WeakMapSupplier.createMap();
+    public static final WeakConcurrentMap<Object, StatementBatch> statementBatchMap = WeakMapSupplier.createMap();
     public static final WeakConcurrentMap<Connection, ConnectionMetaData> metaDataMap = WeakMapSupplier.createMap();
     public static final WeakConcurrentMap<Class<?>, Boolean> metadataSupported = WeakMapSupplier.createMap();
     public static final WeakConcurrentMap<Class<?>, Boolean> connectionSupported = WeakMapSupplier.createMap();
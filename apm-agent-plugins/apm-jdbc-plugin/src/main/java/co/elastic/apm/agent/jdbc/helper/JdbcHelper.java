@@ -44,6 +44,7 @@ import java.util.concurrent.Callable;
 import static co.elastic.apm.agent.jdbc.helper.JdbcGlobalState.connectionSupported;
 import static co.elastic.apm.agent.jdbc.helper.JdbcGlobalState.metaDataMap;
 import static co.elastic.apm.agent.jdbc.helper.JdbcGlobalState.metadataSupported;
+import static co.elastic.apm.agent.jdbc.helper.JdbcGlobalState.statementBatchMap;
 import static co.elastic.apm.agent.jdbc.helper.JdbcGlobalState.statementSqlMap;
 
 public class JdbcHelper {
@@ -88,6 +89,43 @@ public class JdbcHelper {
         return statementSqlMap.get(statement);
     }
 
+    /**
+     * Records a statement added to the batch of the provided {@link Statement}
+     *
+     * @param statement javax.sql.Statement object
+     * @param sql       query string
+     */
+    public void addStatementToBatch(Object statement, String sql) {
+        StatementBatch batch = statementBatchMap.get(statement);
+        if (batch == null) {
+            batch = new StatementBatch();
+            StatementBatch previous = statementBatchMap.putIfAbsent(statement, batch);
+            if (previous != null) {
+                batch = previous;
+            }
+        }
+        batch.add(sql);
+    }
+
+    /**
+     * Removes the batch of the provided {@link Statement}, as it's executed or cleared.
+     *
+     * @return the statements added via {@link Statement#addBatch(String)} since the last execution, or {@code null}
+     */
+    @Nullable
+    public StatementBatch removeBatch(Object statement) {
+        return statementBatchMap.remove(statement);
+    }
+
+    @Nullable
+    public Span createJdbcBatchSpan(StatementBatch batch, Object statement, @Nullable AbstractSpan<?> parent) {
+        Span span = createJdbcSpan(batch.getFirstStatement(), statement, parent, true);
+        if (span != null) {
+            batch.writeStatementTo(span.getContext().getDb());
+            span.addLabel("db_batch_size", batch.size());
+        }
+        return span;
+    }
 
     @Nullable
     public Span createJdbcSpan(@Nullable String sql, Object statement, @Nullable AbstractSpan<?> parent, boolean preparedStatement) {
@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.jdbc.helper;
+
+import co.elastic.apm.agent.impl.context.Db;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+
+import javax.annotation.Nullable;
+
+/**
+ * The statements added to a {@link java.sql.Statement} via {@link java.sql.Statement#addBatch(String)}.
+ * <p>
+ * Batches can contain thousands of statements, which are often the same or differ only in their values.
+ * That's why only the first {@link #MAX_DISTINCT_STATEMENTS} distinct statements are recorded, along with the total count.
+ * </p>
+ * <p>
+ * Note: not thread safe, just like the {@link java.sql.Statement} it belongs to.
+ * </p>
+ */
+public class StatementBatch {
+
+    static final int MAX_DISTINCT_STATEMENTS = 10;
+    private static final String STATEMENT_SEPARATOR = ";\n";
+
+    private static final ThreadLocal<StringBuilder> statementBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+
+    private final String[] distinctStatements = new String[MAX_DISTINCT_STATEMENTS];
+    private int distinctStatementCount;
+    private int size;
+
+    void add(String sql) {
+        size++;
+        for (int i = 0; i < distinctStatementCount; i++) {
+            if (distinctStatements[i].equals(sql)) {
+                return;
+            }
+        }
+        if (distinctStatementCount < MAX_DISTINCT_STATEMENTS) {
+            distinctStatements[distinctStatementCount++] = sql;
+        }
+    }
+
+    @Nullable
+    String getFirstStatement() {
+        return distinctStatementCount > 0 ? distinctStatements[0] : null;
+    }
+
+    /**
+     * @return the number of statements in this batch, including repeated ones
+     */
+    int size() {
+        return size;
+    }
+
+    int getDistinctStatementCount() {
+        return distinctStatementCount;
+    }
+
+    /**
+     * Sets the distinct statements of this batch, separated by {@code ;\n}, as the statement of the provided {@link Db} context.
+     * The statements are written into a reusable buffer and copied into the pooled statement buffer of the context,
+     * where they are truncated if they exceed its capacity.
+     */
+    void writeStatementTo(Db db) {
+        if (distinctStatementCount == 1) {
+            db.withStatement(distinctStatements[0]);
+            return;
+        }
+        StringBuilder statement = statementBuilder.get();
+        statement.setLength(0);
+        for (int i = 0; i < distinctStatementCount; i++) {
+            if (i > 0) {
+                statement.append(STATEMENT_SEPARATOR);
+            }
+            String sql = distinctStatements[i];
+            // the builder doesn't need to hold more than what's left after the truncation
+            int remaining = DslJsonSerializer.MAX_LONG_STRING_VALUE_LENGTH + 1 - statement.length();
+            if (sql.length() >= remaining) {
+                statement.append(sql, 0, Math.max(remaining, 0));
+                break;
+            }
+            statement.append(sql);
+        }
+        db.withStatementCopy(statement);
+    }
+}
@@ -268,7 +268,8 @@ public abstract class AbstractJdbcInstrumentationTest extends AbstractInstrument
 
         // note: in that case, Statement.getUpdateCount() does not return the sum
         // of the returned array values.
-        assertSpanRecorded(insert, false, 2);
+        Span span = assertSpanRecorded(insert, insert + ";\n" + delete, false, 2);
+        assertThat(span.getContext().getLabel("db_batch_size")).isEqualTo(2);
     }
 
     private interface StatementExecutor<T> {
@@ -394,6 +395,10 @@ public abstract class AbstractJdbcInstrumentationTest extends AbstractInstrument
     }
 
     private Span assertSpanRecorded(String rawSql, boolean preparedStatement, long expectedAffectedRows) throws SQLException {
+        return assertSpanRecorded(rawSql, rawSql, preparedStatement, expectedAffectedRows);
+    }
+
+    private Span assertSpanRecorded(String rawSql, String expectedStatement, boolean preparedStatement, long expectedAffectedRows) throws SQLException {
         assertThat(reporter.getSpans())
             .describedAs("one span is expected")
             .hasSize(1);
@@ -406,7 +411,11 @@ public abstract class AbstractJdbcInstrumentationTest extends AbstractInstrument
         assertThat(span.getAction()).isEqualTo(DB_SPAN_ACTION);
 
         Db db = span.getContext().getDb();
-        assertThat(db.getStatement()).isEqualTo(rawSql);
+        if (db.getStatement() != null) {
+            assertThat(db.getStatement()).isEqualTo(expectedStatement);
+        } else {
+            assertThat(db.getStatementBuffer().toString()).isEqualTo(expectedStatement);
+        }
         DatabaseMetaData metaData = connection.getMetaData();
         assertThat(db.getUser()).isEqualToIgnoringCase(metaData.getUserName());
         assertThat(db.getType()).isEqualToIgnoringCase("sql");
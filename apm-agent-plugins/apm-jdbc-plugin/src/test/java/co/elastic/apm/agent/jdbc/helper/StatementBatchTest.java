@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.jdbc.helper;
+
+import co.elastic.apm.agent.impl.context.Db;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StatementBatchTest {
+
+    @Test
+    void testRepeatedStatements() {
+        StatementBatch batch = new StatementBatch();
+        for (int i = 0; i < 100; i++) {
+            batch.add("INSERT INTO foo VALUES (1)");
+            batch.add("DELETE FROM foo");
+        }
+        assertThat(batch.size()).isEqualTo(200);
+        assertThat(batch.getDistinctStatementCount()).isEqualTo(2);
+        assertThat(batch.getFirstStatement()).isEqualTo("INSERT INTO foo VALUES (1)");
+
+        Db db = new Db();
+        batch.writeStatementTo(db);
+        assertThat(db.getStatement()).isNull();
+        assertThat(db.getStatementBuffer().toString()).isEqualTo("INSERT INTO foo VALUES (1);\nDELETE FROM foo");
+    }
+
+    @Test
+    void testSingleDistinctStatement() {
+        StatementBatch batch = new StatementBatch();
+        batch.add("DELETE FROM foo");
+        batch.add("DELETE FROM foo");
+
+        Db db = new Db();
+        batch.writeStatementTo(db);
+        assertThat(db.getStatement()).isEqualTo("DELETE FROM foo");
+        assertThat((CharSequence) db.getStatementBuffer()).isNull();
+    }
+
+    @Test
+    void testMaxDistinctStatements() {
+        StatementBatch batch = new StatementBatch();
+        for (int i = 0; i < 1000; i++) {
+            batch.add("INSERT INTO foo VALUES (" + i + ")");
+        }
+        assertThat(batch.size()).isEqualTo(1000);
+        assertThat(batch.getDistinctStatementCount()).isEqualTo(StatementBatch.MAX_DISTINCT_STATEMENTS);
+
+        Db db = new Db();
+        batch.writeStatementTo(db);
+        assertThat(db.getStatementBuffer().toString())
+            .startsWith("INSERT INTO foo VALUES (0);\nINSERT INTO foo VALUES (1);\n")
+            .endsWith("INSERT INTO foo VALUES (" + (StatementBatch.MAX_DISTINCT_STATEMENTS - 1) + ")");
+    }
+
+    @Test
+    void testLargeStatementsAreTruncated() {
+        StringBuilder largeStatement = new StringBuilder("INSERT INTO foo VALUES (0)");
+        while (largeStatement.length() < 3 * DslJsonSerializer.MAX_LONG_STRING_VALUE_LENGTH) {
+            largeStatement.append(", (0)");
+        }
+        StatementBatch batch = new StatementBatch();
+        batch.add("DELETE FROM foo");
+        batch.add(largeStatement.toString());
+        batch.add("DELETE FROM bar");
+
+        Db db = new Db();
+        batch.writeStatementTo(db);
+        assertThat(db.getStatementBuffer().toString())
+            .hasSize(DslJsonSerializer.MAX_LONG_STRING_VALUE_LENGTH)
+            .startsWith("DELETE FROM foo;\nINSERT INTO foo VALUES (0), (0)")
+            .endsWith("…");
+    }
+}
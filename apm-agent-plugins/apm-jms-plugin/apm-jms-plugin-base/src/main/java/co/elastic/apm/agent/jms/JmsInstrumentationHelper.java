@@ -32,6 +32,8 @@ import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.messaging.MessageBatch;
+import co.elastic.apm.agent.messaging.MessageBatchAggregator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -92,11 +94,13 @@ public class JmsInstrumentationHelper {
     private final ElasticApmTracer tracer;
     private final CoreConfiguration coreConfiguration;
     private final MessagingConfiguration messagingConfiguration;
+    private final MessageBatchAggregator batchAggregator;
 
     public JmsInstrumentationHelper(ElasticApmTracer tracer) {
         this.tracer = tracer;
         coreConfiguration = tracer.getConfig(CoreConfiguration.class);
         messagingConfiguration = tracer.getConfig(MessagingConfiguration.class);
+        batchAggregator = new MessageBatchAggregator(tracer, FRAMEWORK_NAME, RECEIVE_NAME_PREFIX + " from ");
     }
 
     @SuppressWarnings("Duplicates")
@@ -156,6 +160,21 @@ public class JmsInstrumentationHelper {
         return transaction;
     }
 
+    public boolean isBatchDestination(@Nullable String destinationName) {
+        return batchAggregator.isBatchDestination(destinationName);
+    }
+
+    /**
+     * Records the message in the batch transaction of its destination, see {@link MessageBatchAggregator}
+     *
+     * @return the handling of the message, which has to be {@linkplain MessageBatch.Handling#end ended} after the message is handled
+     */
+    @Nullable
+    public MessageBatch.Handling startBatchMessageHandling(Message message, String destinationName, Class<?> instrumentedClass) {
+        return batchAggregator.startMessageHandling(destinationName, getMessageAge(message), message,
+            JmsMessagePropertyAccessor.instance(), instrumentedClass.getClassLoader());
+    }
+
     public void makeChildOf(Transaction childTransaction, Message parentMessage) {
         TraceContext.<Message>getFromTraceContextTextHeaders().asChildOf(childTransaction.getTraceContext(), parentMessage, JmsMessagePropertyAccessor.instance());
     }
@@ -231,6 +250,13 @@ public class JmsInstrumentationHelper {
     }
 
     public void setMessageAge(Message message, AbstractSpan<?> span) {
+        long age = getMessageAge(message);
+        if (age >= 0) {
+            span.getContext().getMessage().withAge(age);
+        }
+    }
+
+    private long getMessageAge(Message message) {
         long messageTimestamp = -1L;
         try {
             messageTimestamp = message.getJMSTimestamp();
@@ -239,9 +265,9 @@ public class JmsInstrumentationHelper {
         }
         if (messageTimestamp > 0) {
             long now = System.currentTimeMillis();
-            long age = now > messageTimestamp ? now - messageTimestamp : 0;
-            span.getContext().getMessage().withAge(age);
+            return now > messageTimestamp ? now - messageTimestamp : 0;
         }
+        return -1L;
     }
 
     public void addMessageDetails(@Nullable Message message, AbstractSpan<?> span) {
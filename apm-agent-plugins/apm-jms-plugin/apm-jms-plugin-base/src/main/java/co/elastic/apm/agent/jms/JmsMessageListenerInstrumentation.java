@@ -25,6 +25,7 @@
 package co.elastic.apm.agent.jms;
 
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.messaging.MessageBatch;
 import net.bytebuddy.asm.Advice;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.type.TypeDescription;
@@ -94,6 +95,9 @@ public class JmsMessageListenerInstrumentation extends BaseJmsInstrumentation {
                 if (helper.ignoreDestination(destinationName)) {
                     return null;
                 }
+                if (destinationName != null && helper.isBatchDestination(destinationName)) {
+                    return helper.startBatchMessageHandling(message, destinationName, clazz);
+                }
             }
 
             // Create a transaction - even if running on same JVM as the sender
@@ -121,6 +125,8 @@ public class JmsMessageListenerInstrumentation extends BaseJmsInstrumentation {
                 Transaction transaction = (Transaction) transactionObj;
                 transaction.captureException(throwable);
                 transaction.deactivate().end();
+            } else if (transactionObj instanceof MessageBatch.Handling) {
+                ((MessageBatch.Handling) transactionObj).end(throwable);
             }
         }
     }
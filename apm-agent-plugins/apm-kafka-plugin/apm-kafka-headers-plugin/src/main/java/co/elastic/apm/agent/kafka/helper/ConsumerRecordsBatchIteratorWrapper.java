@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2021 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.kafka.helper;
+
+import co.elastic.apm.agent.configuration.MessagingConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.matcher.WildcardMatcher;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+
+/**
+ * Creates a single transaction for all records that are iterated over, rather than one per record.
+ * The transaction links to the trace context of each record,
+ * see {@link co.elastic.apm.agent.impl.transaction.AbstractSpan#addSpanLink}.
+ * <p>
+ * The transaction is started with the first record that isn't ignored via {@code ignore_message_queues}
+ * and ended when the iteration is complete, or at the latest by the next {@code KafkaConsumer#poll}.
+ * It's named after the topic of the records, or {@value #MULTIPLE_TOPICS_NAME} if the records come from different topics.
+ * </p>
+ */
+@SuppressWarnings("rawtypes")
+class ConsumerRecordsBatchIteratorWrapper implements Iterator<ConsumerRecord> {
+
+    public static final Logger logger = LoggerFactory.getLogger(ConsumerRecordsBatchIteratorWrapper.class);
+
+    static final String MULTIPLE_TOPICS_NAME = "Kafka records";
+
+    private final Iterator<ConsumerRecord> delegate;
+    private final ElasticApmTracer tracer;
+    private final MessagingConfiguration messagingConfiguration;
+    @Nullable
+    private Transaction transaction;
+    /**
+     * The topic of the records of the transaction, {@code null} if they come from different topics
+     */
+    @Nullable
+    private String transactionTopic;
+
+    public ConsumerRecordsBatchIteratorWrapper(Iterator<ConsumerRecord> delegate, ElasticApmTracer tracer) {
+        this.delegate = delegate;
+        this.tracer = tracer;
+        messagingConfiguration = tracer.getConfig(MessagingConfiguration.class);
+    }
+
+    @Override
+    public boolean hasNext() {
+        boolean hasNext = delegate.hasNext();
+        if (!hasNext) {
+            endTransaction();
+        }
+        return hasNext;
+    }
+
+    private void endTransaction() {
+        try {
+            Transaction transaction = this.transaction;
+            if (transaction != null) {
+                this.transaction = null;
+                // the transaction may have been ended already by the next poll
+                if (tracer.currentTransaction() == transaction) {
+                    transaction.deactivate().end();
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error in Kafka batch iterator wrapper", e);
+        }
+    }
+
+    @Override
+    public ConsumerRecord next() {
+        ConsumerRecord record = delegate.next();
+        try {
+            String topic = record.topic();
+            if (!WildcardMatcher.isAnyMatch(messagingConfiguration.getIgnoreMessageQueues(), topic)) {
+                Transaction transaction = this.transaction;
+                if (transaction == null && tracer.currentTransaction() == null) {
+                    transaction = this.transaction = startTransaction(topic);
+                    transactionTopic = topic;
+                } else if (transaction != null && transactionTopic != null && !transactionTopic.equals(topic)) {
+                    transaction.withName(MULTIPLE_TOPICS_NAME);
+                    transaction.getContext().getMessage().withQueue(null);
+                    transactionTopic = null;
+                }
+                if (transaction != null && transaction.isSampled()) {
+                    transaction.addSpanLink(TraceContext.<ConsumerRecord>getFromTraceContextBinaryHeaders(), KafkaRecordHeaderAccessor.instance(), record);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error in transaction creation based on Kafka records", e);
+        }
+        return record;
+    }
+
+    @Nullable
+    private Transaction startTransaction(String topic) {
+        Transaction transaction = tracer.startRootTransaction(ConsumerRecordsBatchIteratorWrapper.class.getClassLoader());
+        if (transaction != null) {
+            transaction.withType("messaging").withName("Kafka records from " + topic).activate();
+            transaction.setFrameworkName(ConsumerRecordsIteratorWrapper.FRAMEWORK_NAME);
+            transaction.getContext().getMessage().withQueue(topic);
+        }
+        return transaction;
+    }
+
+    @Override
+    public void remove() {
+        delegate.remove();
+    }
+}
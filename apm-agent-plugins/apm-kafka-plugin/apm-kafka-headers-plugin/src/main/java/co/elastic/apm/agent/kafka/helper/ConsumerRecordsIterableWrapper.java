@@ -42,6 +42,6 @@ class ConsumerRecordsIterableWrapper implements Iterable<ConsumerRecord> {
 
     @Override
     public Iterator<ConsumerRecord> iterator() {
-        return new ConsumerRecordsIteratorWrapper(delegate.iterator(), tracer);
+        return KafkaInstrumentationHeadersHelperImpl.wrapIterator(delegate.iterator(), tracer);
     }
 }
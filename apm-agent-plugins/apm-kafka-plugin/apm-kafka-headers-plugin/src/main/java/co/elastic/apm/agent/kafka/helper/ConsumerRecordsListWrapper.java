@@ -60,7 +60,7 @@ class ConsumerRecordsListWrapper implements List<ConsumerRecord> {
 
     @Override
     public Iterator<ConsumerRecord> iterator() {
-        return new ConsumerRecordsIteratorWrapper(delegate.iterator(), tracer);
+        return KafkaInstrumentationHeadersHelperImpl.wrapIterator(delegate.iterator(), tracer);
     }
 
     @Override
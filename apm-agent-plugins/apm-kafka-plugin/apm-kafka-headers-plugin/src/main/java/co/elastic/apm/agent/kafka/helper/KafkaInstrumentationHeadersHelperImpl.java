@@ -24,6 +24,7 @@
  */
 package co.elastic.apm.agent.kafka.helper;
 
+import co.elastic.apm.agent.configuration.MessagingConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
@@ -49,13 +50,20 @@ public class KafkaInstrumentationHeadersHelperImpl implements KafkaInstrumentati
     @Override
     public Iterator<ConsumerRecord> wrapConsumerRecordIterator(Iterator<ConsumerRecord> consumerRecordIterator) {
         try {
-            return new ConsumerRecordsIteratorWrapper(consumerRecordIterator, tracer);
+            return wrapIterator(consumerRecordIterator, tracer);
         } catch (Throwable throwable) {
             logger.debug("Failed to wrap Kafka ConsumerRecords iterator", throwable);
             return consumerRecordIterator;
         }
     }
 
+    static Iterator<ConsumerRecord> wrapIterator(Iterator<ConsumerRecord> consumerRecordIterator, ElasticApmTracer tracer) {
+        if (tracer.getConfig(MessagingConfiguration.class).getMessageBatchStrategy() == MessagingConfiguration.BatchStrategy.BATCH_HANDLING) {
+            return new ConsumerRecordsBatchIteratorWrapper(consumerRecordIterator, tracer);
+        }
+        return new ConsumerRecordsIteratorWrapper(consumerRecordIterator, tracer);
+    }
+
     @Override
     public Iterable<ConsumerRecord> wrapConsumerRecordIterable(Iterable<ConsumerRecord> consumerRecordIterable) {
         try {
@@ -25,6 +25,7 @@
 package co.elastic.apm.agent.kafka;
 
 import co.elastic.apm.agent.AbstractInstrumentationTest;
+import co.elastic.apm.agent.collections.LongList;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.configuration.MessagingConfiguration;
 import co.elastic.apm.agent.impl.TracerInternalApiUtils;
@@ -35,6 +36,7 @@ import co.elastic.apm.agent.impl.context.SpanContext;
 import co.elastic.apm.agent.impl.context.TransactionContext;
 import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.Outcome;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
@@ -48,7 +50,10 @@ import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.junit.After;
@@ -62,10 +67,14 @@ import org.testcontainers.shaded.com.google.common.collect.ImmutableMap;
 
 import javax.annotation.Nullable;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -360,6 +369,193 @@ public class KafkaIT extends AbstractInstrumentationTest {
         transactions.forEach(transaction -> assertThat(transaction.getNameAsString()).isEqualTo("Kafka record from " + REQUEST_TOPIC));
     }
 
+    @Test
+    public void testBatchHandling_SendTwoRecords() {
+        doReturn(MessagingConfiguration.BatchStrategy.BATCH_HANDLING).when(messagingConfiguration).getMessageBatchStrategy();
+        testScenario = TestScenario.BATCH_HANDLING;
+        consumerThread.setIterationMode(RecordIterationMode.ITERABLE_FOR);
+        sendTwoRecordsAndConsumeReplies();
+        //noinspection ConstantConditions
+        tracer.currentTransaction().deactivate().end();
+
+        // the records may be received in one or two polls, each poll creates one transaction
+        await().atMost(2000, MILLISECONDS).untilAsserted(() -> assertThat(getBatchTransactions().stream().mapToInt(Transaction::getSpanLinkCount).sum()).isEqualTo(2));
+        List<Transaction> batchTransactions = getBatchTransactions();
+        assertThat(batchTransactions).hasSizeBetween(1, 2);
+        for (Transaction batchTransaction : batchTransactions) {
+            assertThat(batchTransaction.getType()).isEqualTo("messaging");
+            assertThat(batchTransaction.getNameAsString()).isEqualTo("Kafka records from " + REQUEST_TOPIC);
+            assertThat(batchTransaction.getFrameworkName()).isEqualTo("Kafka");
+            assertThat(batchTransaction.getContext().getMessage().getQueueName()).isEqualTo(REQUEST_TOPIC);
+            // the batch transaction is a root, the producers are linked instead
+            assertThat(batchTransaction.getTraceContext().getParentId().isEmpty()).isTrue();
+        }
+        List<Span> spans = reporter.getSpans();
+        // two send spans to the request topic, two send spans to the reply topic, which are children of the batch transactions,
+        // and one poll span from the reply topic
+        assertThat(spans).hasSize(5);
+        Span sendRequestSpan0 = spans.get(0);
+        verifySendSpanContents(sendRequestSpan0, REQUEST_TOPIC);
+        Span sendRequestSpan1 = spans.get(1);
+        verifySendSpanContents(sendRequestSpan1, REQUEST_TOPIC);
+        verifySendSpanContents(spans.get(2), REPLY_TOPIC);
+        verifySendSpanContents(spans.get(3), REPLY_TOPIC);
+        verifyPollSpanContents(spans.get(4));
+        assertThat(batchTransactions).anySatisfy(batchTransaction -> verifySpanLink(batchTransaction, 0, sendRequestSpan0));
+    }
+
+    private List<Transaction> getBatchTransactions() {
+        return reporter.getTransactions().stream()
+            .filter(transaction -> transaction.getNameAsString().startsWith("Kafka records"))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testBatchHandling_OneTransactionPerPoll() {
+        doReturn(MessagingConfiguration.BatchStrategy.BATCH_HANDLING).when(messagingConfiguration).getMessageBatchStrategy();
+        //noinspection ConstantConditions
+        tracer.currentTransaction().deactivate().end();
+        reporter.reset();
+
+        TraceContext producer0 = createProducerContext();
+        TraceContext producer1 = createProducerContext();
+        iterate(createConsumerRecords(REQUEST_TOPIC, producer0, producer1, null));
+        iterate(createConsumerRecords(REQUEST_TOPIC, producer1));
+
+        List<Transaction> transactions = reporter.getTransactions();
+        assertThat(transactions).hasSize(2);
+        assertThat(transactions.get(0).getNameAsString()).isEqualTo("Kafka records from " + REQUEST_TOPIC);
+        assertThat(transactions.get(0).getSpanLinkCount()).isEqualTo(2);
+        verifySpanLink(transactions.get(0), 0, producer0);
+        verifySpanLink(transactions.get(0), 1, producer1);
+        assertThat(transactions.get(1).getSpanLinkCount()).isEqualTo(1);
+        verifySpanLink(transactions.get(1), 0, producer1);
+        assertThat(tracer.getActive()).isNull();
+    }
+
+    @Test
+    public void testBatchHandling_DuplicateSpanLinks() {
+        doReturn(MessagingConfiguration.BatchStrategy.BATCH_HANDLING).when(messagingConfiguration).getMessageBatchStrategy();
+        //noinspection ConstantConditions
+        tracer.currentTransaction().deactivate().end();
+        reporter.reset();
+
+        TraceContext producer = createProducerContext();
+        iterate(createConsumerRecords(REQUEST_TOPIC, producer, producer, producer));
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        Transaction transaction = reporter.getFirstTransaction();
+        assertThat(transaction.getSpanLinkCount()).isEqualTo(1);
+        verifySpanLink(transaction, 0, producer);
+    }
+
+    @Test
+    public void testBatchHandling_MaxSpanLinks() {
+        doReturn(MessagingConfiguration.BatchStrategy.BATCH_HANDLING).when(messagingConfiguration).getMessageBatchStrategy();
+        //noinspection ConstantConditions
+        tracer.currentTransaction().deactivate().end();
+        reporter.reset();
+
+        TraceContext[] producers = new TraceContext[AbstractSpan.MAX_SPAN_LINKS + 10];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = createProducerContext();
+        }
+        assertThat(iterate(createConsumerRecords(REQUEST_TOPIC, producers))).isEqualTo(producers.length);
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        Transaction transaction = reporter.getFirstTransaction();
+        assertThat(transaction.getSpanLinkCount()).isEqualTo(AbstractSpan.MAX_SPAN_LINKS);
+        verifySpanLink(transaction, AbstractSpan.MAX_SPAN_LINKS - 1, producers[AbstractSpan.MAX_SPAN_LINKS - 1]);
+    }
+
+    @Test
+    public void testBatchHandling_MultipleTopics() {
+        doReturn(MessagingConfiguration.BatchStrategy.BATCH_HANDLING).when(messagingConfiguration).getMessageBatchStrategy();
+        //noinspection ConstantConditions
+        tracer.currentTransaction().deactivate().end();
+        reporter.reset();
+
+        Map<TopicPartition, List<ConsumerRecord<String, String>>> records = new LinkedHashMap<>();
+        records.put(new TopicPartition(REQUEST_TOPIC, 0), List.of(createConsumerRecord(REQUEST_TOPIC, 0, createProducerContext())));
+        records.put(new TopicPartition(REPLY_TOPIC, 0), List.of(createConsumerRecord(REPLY_TOPIC, 0, createProducerContext())));
+        iterate(new ConsumerRecords<>(records));
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        Transaction transaction = reporter.getFirstTransaction();
+        assertThat(transaction.getNameAsString()).isEqualTo("Kafka records");
+        assertThat(transaction.getContext().getMessage().getQueueName()).isNull();
+        assertThat(transaction.getSpanLinkCount()).isEqualTo(2);
+    }
+
+    private int iterate(ConsumerRecords<String, String> records) {
+        int count = 0;
+        // the iterator is instrumented as no transaction is active
+        for (ConsumerRecord<String, String> record : records) {
+            assertThat(tracer.currentTransaction()).isNotNull();
+            count++;
+        }
+        assertThat(tracer.currentTransaction()).isNull();
+        return count;
+    }
+
+    private TraceContext createProducerContext() {
+        Transaction producerTransaction = tracer.startRootTransaction(null);
+        assertThat(producerTransaction).isNotNull();
+        Span sendSpan = producerTransaction.createSpan();
+        TraceContext producerContext = TraceContext.with64BitId(tracer);
+        producerContext.copyFrom(sendSpan.getTraceContext());
+        sendSpan.end();
+        producerTransaction.end();
+        reporter.reset();
+        return producerContext;
+    }
+
+    /**
+     * @param producers the trace contexts of the producers of the records, {@code null} for a record without trace context headers
+     */
+    private static ConsumerRecords<String, String> createConsumerRecords(String topic, @Nullable TraceContext... producers) {
+        List<ConsumerRecord<String, String>> records = new ArrayList<>();
+        for (int i = 0; i < producers.length; i++) {
+            records.add(createConsumerRecord(topic, i, producers[i]));
+        }
+        return new ConsumerRecords<>(Map.of(new TopicPartition(topic, 0), records));
+    }
+
+    private static ConsumerRecord<String, String> createConsumerRecord(String topic, long offset, @Nullable TraceContext producer) {
+        RecordHeaders headers = new RecordHeaders();
+        if (producer != null) {
+            headers.add(TraceContext.TRACE_PARENT_BINARY_HEADER_NAME, toBinaryTraceparent(producer));
+        }
+        //noinspection deprecation - this constructor is deprecated in newer clients, but enables testing of old ones
+        return new ConsumerRecord<>(topic, 0, offset, System.currentTimeMillis(), TimestampType.CREATE_TIME, null,
+            REQUEST_KEY.length(), FIRST_MESSAGE_VALUE.length(), REQUEST_KEY, FIRST_MESSAGE_VALUE, headers);
+    }
+
+    private static byte[] toBinaryTraceparent(TraceContext traceContext) {
+        byte[] traceparent = new byte[TraceContext.BINARY_FORMAT_EXPECTED_LENGTH];
+        // version 0, trace id (field 0), span id (field 1), flags (field 2): sampled
+        traceparent[1] = 0;
+        traceContext.getTraceId().toBytes(traceparent, 2);
+        traceparent[18] = 1;
+        traceContext.getId().toBytes(traceparent, 19);
+        traceparent[27] = 2;
+        traceparent[28] = 1;
+        return traceparent;
+    }
+
+    private static void verifySpanLink(Transaction transaction, int index, Span producerSpan) {
+        verifySpanLink(transaction, index, producerSpan.getTraceContext());
+    }
+
+    private static void verifySpanLink(Transaction transaction, int index, TraceContext producer) {
+        LongList spanLinks = transaction.getSpanLinks();
+        assertThat(spanLinks).isNotNull();
+        int offset = index * AbstractSpan.LONGS_PER_SPAN_LINK;
+        assertThat(spanLinks.get(offset)).isEqualTo(producer.getTraceId().readLong(0));
+        assertThat(spanLinks.get(offset + 1)).isEqualTo(producer.getTraceId().readLong(8));
+        assertThat(spanLinks.get(offset + 2)).isEqualTo(producer.getId().readLong(0));
+    }
+
     private void sendTwoRecordsAndConsumeReplies() {
         final StringBuilder callback = new StringBuilder();
         ProducerRecord<String, String> record1 = new ProducerRecord<>(REQUEST_TOPIC, 0, REQUEST_KEY, FIRST_MESSAGE_VALUE);
@@ -369,7 +565,10 @@ public class KafkaIT extends AbstractInstrumentationTest {
         record2.headers().add(headerKey, TEST_HEADER_VALUE.getBytes(StandardCharsets.UTF_8));
         producer.send(record1);
         producer.send(record2, (metadata, exception) -> callback.append("done"));
-        if (testScenario != TestScenario.IGNORE_REQUEST_TOPIC && testScenario != TestScenario.AGENT_PAUSED) {
+        if (testScenario == TestScenario.BATCH_HANDLING) {
+            // the records may be handled in one or two batch transactions, each sending a reply
+            await().atMost(2000, MILLISECONDS).until(() -> reporter.getSpans().size() == 4);
+        } else if (testScenario != TestScenario.IGNORE_REQUEST_TOPIC && testScenario != TestScenario.AGENT_PAUSED) {
             await().atMost(2000, MILLISECONDS).until(() -> reporter.getTransactions().size() == 2);
             if (testScenario != TestScenario.NON_SAMPLED_TRANSACTION) {
                 int expectedSpans = (testScenario == TestScenario.NO_CONTEXT_PROPAGATION) ? 2 : 4;
@@ -589,7 +788,8 @@ public class KafkaIT extends AbstractInstrumentationTest {
         AGENT_PAUSED,
         NO_CONTEXT_PROPAGATION,
         TOPIC_ADDRESS_COLLECTION_DISABLED,
-        NON_SAMPLED_TRANSACTION
+        NON_SAMPLED_TRANSACTION,
+        BATCH_HANDLING
     }
 
     /**
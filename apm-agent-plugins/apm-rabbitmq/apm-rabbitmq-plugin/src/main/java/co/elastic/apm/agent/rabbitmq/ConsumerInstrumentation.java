@@ -24,8 +24,11 @@
  */
 package co.elastic.apm.agent.rabbitmq;
 
+import co.elastic.apm.agent.impl.GlobalTracer;
 import co.elastic.apm.agent.impl.context.Message;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.messaging.MessageBatch;
+import co.elastic.apm.agent.messaging.MessageBatchAggregator;
 import co.elastic.apm.agent.rabbitmq.header.RabbitMQTextHeaderGetter;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Consumer;
@@ -83,6 +86,9 @@ public class ConsumerInstrumentation extends RabbitmqBaseInstrumentation {
 
     public static class RabbitConsumerAdvice {
 
+        private static final MessageBatchAggregator batchAggregator = new MessageBatchAggregator(GlobalTracer.requireTracerImpl(),
+            "RabbitMQ", "RabbitMQ RECEIVE from ");
+
         private RabbitConsumerAdvice() {
         }
 
@@ -106,6 +112,12 @@ public class ConsumerInstrumentation extends RabbitmqBaseInstrumentation {
                 return null;
             }
 
+            if (batchAggregator.isBatchDestination(exchange)) {
+                long age = getTimestamp(properties != null ? properties.getTimestamp() : null);
+                return batchAggregator.startMessageHandling(normalizeExchangeName(exchange), age, properties,
+                    RabbitMQTextHeaderGetter.INSTANCE, originClazz.getClassLoader());
+            }
+
             transaction = tracer.startChildTransaction(properties, RabbitMQTextHeaderGetter.INSTANCE, originClazz.getClassLoader());
             if (transaction == null) {
                 return null;
@@ -132,6 +144,8 @@ public class ConsumerInstrumentation extends RabbitmqBaseInstrumentation {
                 transaction.captureException(throwable)
                     .deactivate()
                     .end();
+            } else if (transactionObject instanceof MessageBatch.Handling) {
+                ((MessageBatch.Handling) transactionObject).end(throwable);
             }
         }
     }
@@ -24,6 +24,11 @@
  */
 package co.elastic.apm.agent.premain;
 
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
 public final class ThreadUtils {
 
     public static final String ELASTIC_APM_THREAD_PREFIX = "elastic-apm-";
@@ -34,4 +39,42 @@ public final class ThreadUtils {
     public static String addElasticApmThreadPrefix(String purpose) {
         return ELASTIC_APM_THREAD_PREFIX + purpose;
     }
+
+    /**
+     * @param thread the thread to check
+     * @return {@code true} if the thread is a virtual thread, {@code false} if it's a platform thread or
+     * if the JVM does not support virtual threads
+     */
+    public static boolean isVirtual(Thread thread) {
+        MethodHandle isVirtual = IsVirtualHolder.IS_VIRTUAL;
+        if (isVirtual == null) {
+            return false;
+        }
+        try {
+            return (boolean) isVirtual.invokeExact(thread);
+        } catch (Throwable throwable) {
+            return false;
+        }
+    }
+
+    /**
+     * Looks up the method handle lazily, as this class is also used by {@link AgentMain} during premain
+     */
+    private static class IsVirtualHolder {
+
+        /**
+         * {@code Thread#isVirtual()}, only available as of Java 19
+         */
+        @Nullable
+        private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+        @Nullable
+        private static MethodHandle findIsVirtual() {
+            try {
+                return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
 }